@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Installation of the jars of the clickstack ({@code deps/tomcat-lib*}, {@code deps/javaagent-lib}...) by the
+ * library copy stages of the setup, with each {@link LibraryInstaller.Strategy}, for 10 and 100 jars of 256kB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LibraryInstallerBenchmark {
+
+    private static final int JAR_SIZE = 256 * 1024;
+
+    @Param({"10", "100"})
+    public int jars;
+
+    @Param({"LINK", "COPY"})
+    public LibraryInstaller.Strategy strategy;
+
+    private Path tmpDir;
+    private Path srcDir;
+    private Path destDir;
+
+    @Setup(Level.Trial)
+    public void createJars() throws IOException {
+        tmpDir = Files.createTempDirectory("library-installer-benchmark");
+        srcDir = Files.createDirectories(tmpDir.resolve("deps/tomcat-lib"));
+        Random random = new Random(jars);
+        byte[] bytes = new byte[JAR_SIZE];
+        for (int i = 0; i < jars; i++) {
+            random.nextBytes(bytes);
+            Files.write(srcDir.resolve("library-" + i + ".jar"), bytes);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void cleanDestination() throws IOException {
+        destDir = tmpDir.resolve("catalina-base/lib");
+        if (Files.exists(destDir)) {
+            com.cloudbees.clickstack.tomcat.Setup.deleteRecursively(destDir);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTmpDir() throws IOException {
+        com.cloudbees.clickstack.tomcat.Setup.deleteRecursively(tmpDir);
+    }
+
+    @Benchmark
+    public LibraryInstaller installDirectoryContent() throws IOException {
+        LibraryInstaller libraryInstaller = new LibraryInstaller(strategy);
+        libraryInstaller.installDirectoryContent(srcDir, destDir);
+        return libraryInstaller;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.cloudbees.clickstack.util.XmlUtils;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generation of {@code server.xml} and {@code context.xml} from the files of the clickstack for metadata with 1, 50
+ * and 500 resources (databases with a mail session and a session store every 10 resources), with the DOM and the
+ * streaming engines. The files are parsed and serialized in memory.
+ *
+ * @see SetupTomcatConfigurationFiles#buildTomcatConfigurationFiles(java.nio.file.Path)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetupTomcatConfigurationFilesBenchmark {
+
+    @Param({"1", "50", "500"})
+    public int resources;
+
+    @Param({"dom", "stax"})
+    public String engine;
+
+    private byte[] serverXml;
+    private byte[] contextXml;
+    private Metadata metadata;
+
+    @Setup
+    public void setup() throws IOException {
+        serverXml = readResource("server.xml");
+        contextXml = readResource("context.xml");
+
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < resources; i++) {
+            if (i % 10 == 9) {
+                json.append("'mail-").append(i).append("': {" +
+                        "'SENDGRID_PASSWORD': 'password', " +
+                        "'SENDGRID_SMTP_HOST': 'smtp.sendgrid.net', " +
+                        "'SENDGRID_USERNAME': 'account-").append(i).append("', " +
+                        "'__resource_name__': 'mail/SendGrid").append(i).append("', " +
+                        "'__resource_type__': 'email'}, ");
+            } else {
+                json.append("'db-").append(i).append("': {" +
+                        "'DATABASE_PASSWORD': 'password', " +
+                        "'DATABASE_URL': 'mysql://mysql-").append(i % 4).append(".mycompany.com:3306/db").append(i).append("', " +
+                        "'DATABASE_USERNAME': 'user', " +
+                        "'__resource_name__': 'db").append(i).append("', " +
+                        "'__resource_type__': 'database'}, ");
+            }
+        }
+        json.append("'tomcat': {'configurationEngine': '").append(engine).append("'}}");
+        metadata = Metadata.Builder.fromJsonString(json.toString(), true);
+    }
+
+    @Benchmark
+    public int buildTomcatConfiguration() throws Exception {
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+        ByteArrayOutputStream serverXmlOut = new ByteArrayOutputStream(serverXml.length * 2);
+        ByteArrayOutputStream contextXmlOut = new ByteArrayOutputStream(contextXml.length * 2);
+        if (SetupTomcatConfigurationFiles.isStreamingConfigurationEngine(metadata)) {
+            Document serverXmlProjection = StreamingXmlRewriter.project(new ByteArrayInputStream(serverXml), true);
+            Document contextXmlProjection = StreamingXmlRewriter.project(new ByteArrayInputStream(contextXml), true);
+            setupTomcatConfigurationFiles.buildTomcatConfiguration(metadata, serverXmlProjection, contextXmlProjection);
+            StreamingXmlRewriter.rewrite(new ByteArrayInputStream(serverXml), serverXmlProjection, serverXmlOut);
+            StreamingXmlRewriter.rewrite(new ByteArrayInputStream(contextXml), contextXmlProjection, contextXmlOut);
+        } else {
+            Document serverXmlDocument = XmlUtils.loadXmlDocumentFromStream(new ByteArrayInputStream(serverXml));
+            Document contextXmlDocument = XmlUtils.loadXmlDocumentFromStream(new ByteArrayInputStream(contextXml));
+            setupTomcatConfigurationFiles.buildTomcatConfiguration(metadata, serverXmlDocument, contextXmlDocument);
+            XmlUtils.flush(serverXmlDocument, serverXmlOut);
+            XmlUtils.flush(contextXmlDocument, contextXmlOut);
+        }
+        return serverXmlOut.size() + contextXmlOut.size();
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        try (InputStream in = SetupTomcatConfigurationFilesBenchmark.class.getClassLoader().getResourceAsStream(name)) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+}
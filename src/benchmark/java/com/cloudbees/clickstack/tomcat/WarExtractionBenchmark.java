@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.util.Files2;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Extraction of the war by {@link com.cloudbees.clickstack.tomcat.Setup#installCatalinaBase()}: parallel
+ * extraction and serial fallback ({@code setup.unzip=serial}) of synthetic wars of 100 to 10,000 entries of 4kB that
+ * compress well (text) or not at all (random bytes).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WarExtractionBenchmark {
+
+    private static final int ENTRY_SIZE = 4096;
+
+    @Param({"100", "1000", "10000"})
+    public int entries;
+
+    @Param({"text", "random"})
+    public String content;
+
+    @Param({"parallel", "serial"})
+    public String unzip;
+
+    private Path tmpDir;
+    private Path warFile;
+    private Path webAppDir;
+
+    @Setup(Level.Trial)
+    public void createWar() throws IOException {
+        tmpDir = Files.createTempDirectory("war-extraction-benchmark");
+        warFile = tmpDir.resolve("app.war");
+        Random random = new Random(entries);
+        byte[] text = new byte[ENTRY_SIZE];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) "<div class='item'>lorem ipsum dolor sit amet</div>\n".charAt(i % 51);
+        }
+        byte[] bytes = new byte[ENTRY_SIZE];
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(warFile))) {
+            for (int i = 0; i < entries; i++) {
+                // 100 entries per directory, like the static resources of a web application
+                zip.putNextEntry(new ZipEntry("static/dir-" + (i / 100) + "/file-" + i + ".html"));
+                if ("text".equals(content)) {
+                    zip.write(text);
+                } else {
+                    random.nextBytes(bytes);
+                    zip.write(bytes);
+                }
+                zip.closeEntry();
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void cleanWebApp() throws IOException {
+        webAppDir = tmpDir.resolve("webapps");
+        if (Files.exists(webAppDir)) {
+            com.cloudbees.clickstack.tomcat.Setup.deleteRecursively(webAppDir);
+        }
+        Files.createDirectories(webAppDir.resolve("ROOT"));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTmpDir() throws IOException {
+        com.cloudbees.clickstack.tomcat.Setup.deleteRecursively(tmpDir);
+    }
+
+    @Benchmark
+    public Path extract() throws IOException {
+        Path rootWebAppDir = webAppDir.resolve("ROOT");
+        if ("serial".equals(unzip)) {
+            Files2.unzip(warFile, rootWebAppDir);
+        } else {
+            new ParallelZipExtractor(Runtime.getRuntime().availableProcessors())
+                    .extract(warFile, ZipCentralDirectory.read(warFile), rootWebAppDir);
+        }
+        return rootWebAppDir;
+    }
+}
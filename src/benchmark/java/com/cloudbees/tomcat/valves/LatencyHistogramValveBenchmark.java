@@ -0,0 +1,82 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead per request of the {@link LatencyHistogramValve}: the same no-op valve invoked directly and through the
+ * latency histogram valve.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LatencyHistogramValveBenchmark {
+
+    private ValveBase noopValve;
+    private LatencyHistogramValve latencyHistogramValve;
+    private Request request;
+    private Response response;
+
+    @Setup
+    public void createValves() {
+        noopValve = new ValveBase() {
+            @Override
+            public void invoke(Request request, Response response) {
+            }
+        };
+        latencyHistogramValve = new LatencyHistogramValve();
+        latencyHistogramValve.setNext(noopValve);
+        request = new Request();
+        response = new Response();
+    }
+
+    @Benchmark
+    public void withoutValve() throws IOException, ServletException {
+        noopValve.invoke(request, response);
+    }
+
+    @Benchmark
+    public void withLatencyHistogramValve() throws IOException, ServletException {
+        latencyHistogramValve.invoke(request, response);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void withLatencyHistogramValveContended() throws IOException, ServletException {
+        latencyHistogramValve.invoke(request, response);
+    }
+}
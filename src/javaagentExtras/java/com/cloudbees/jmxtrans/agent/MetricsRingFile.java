@@ -0,0 +1,265 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.jmxtrans.agent;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixed size file of metric samples used as a ring buffer and accessed through a memory mapping, so that the JVM
+ * appends samples without allocating nor writing to the disk and other processes read them without talking to the
+ * JVM.
+ * <p/>
+ * Layout, big endian:
+ * <pre>
+ * header     magic (int) | version (int) | maxMetrics (int) | capacity (int) | sampleCount (long) | metricCount (int) | padding (int)
+ * names      maxMetrics slots of 128 bytes: name length (short) | counter flag (byte) | UTF-8 name (125 bytes)
+ * samples    capacity slots of 8 + 8 * maxMetrics bytes: timestamp in millis (long) | value of each metric (double, NaN if missing)
+ * </pre>
+ * Sample {@code n} is stored in the slot {@code n % capacity}. The writer resets the timestamp of the slot before
+ * writing the values and sets it back afterwards, the reader ignores the slots whose timestamp changed while it was
+ * reading them.
+ * <p/>
+ * Not thread safe: one writer per file.
+ */
+public class MetricsRingFile {
+
+    static final int MAGIC = 0x4a4d5852; // "JMXR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int NAME_SLOT_SIZE = 128;
+    static final int MAX_NAME_LENGTH = NAME_SLOT_SIZE - 3;
+
+    private static final int MAX_METRICS_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int SAMPLE_COUNT_OFFSET = 16;
+    private static final int METRIC_COUNT_OFFSET = 24;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final int maxMetrics;
+    private final int capacity;
+    private final int sampleSize;
+    private final List<String> metricNames = new ArrayList<String>();
+    private final List<Boolean> counters = new ArrayList<Boolean>();
+
+    private MetricsRingFile(Path path, MappedByteBuffer buffer) {
+        this.path = path;
+        this.buffer = buffer;
+        this.maxMetrics = buffer.getInt(MAX_METRICS_OFFSET);
+        this.capacity = buffer.getInt(CAPACITY_OFFSET);
+        this.sampleSize = sampleSize(maxMetrics);
+        readMetricNames();
+    }
+
+    /**
+     * Open the file to append samples, the file is (re)created if it does not exist or has another layout: the
+     * samples of a previous run of the JVM are kept across restarts.
+     */
+    public static MetricsRingFile openForWrite(Path path, int maxMetrics, int capacity) throws IOException {
+        if (maxMetrics <= 0 || capacity <= 1) {
+            throw new IllegalArgumentException("Invalid maxMetrics " + maxMetrics + " or capacity " + capacity);
+        }
+        long fileSize = fileSize(maxMetrics, capacity);
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("File size " + fileSize + " too big for maxMetrics " + maxMetrics + " and capacity " + capacity);
+        }
+        boolean reuse = Files.exists(path) && Files.size(path) == fileSize && hasLayout(path, maxMetrics, capacity);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (!reuse) {
+                file.setLength(0);
+                file.setLength(fileSize);
+            }
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            if (!reuse) {
+                buffer.putInt(MAX_METRICS_OFFSET, maxMetrics);
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+                buffer.putLong(SAMPLE_COUNT_OFFSET, 0);
+                buffer.putInt(METRIC_COUNT_OFFSET, 0);
+                buffer.putInt(4, VERSION);
+                // magic written last: a reader never sees a half initialized header
+                buffer.putInt(0, MAGIC);
+            }
+            return new MetricsRingFile(path, buffer);
+        }
+    }
+
+    public static MetricsRingFile openForRead(Path path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (file.length() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Invalid or unsupported metrics file " + path);
+            }
+            return new MetricsRingFile(path, buffer);
+        }
+    }
+
+    private static boolean hasLayout(Path path, int maxMetrics, int capacity) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+            return file.readInt() == MAGIC && file.readInt() == VERSION && file.readInt() == maxMetrics && file.readInt() == capacity;
+        }
+    }
+
+    static int sampleSize(int maxMetrics) {
+        return 8 + 8 * maxMetrics;
+    }
+
+    static long fileSize(int maxMetrics, int capacity) {
+        return HEADER_SIZE + (long) maxMetrics * NAME_SLOT_SIZE + (long) capacity * sampleSize(maxMetrics);
+    }
+
+    private void readMetricNames() {
+        int metricCount = Math.min(buffer.getInt(METRIC_COUNT_OFFSET), maxMetrics);
+        for (int i = metricNames.size(); i < metricCount; i++) {
+            int offset = HEADER_SIZE + i * NAME_SLOT_SIZE;
+            byte[] name = new byte[Math.min(buffer.getShort(offset), MAX_NAME_LENGTH)];
+            ByteBuffer slot = buffer.duplicate();
+            slot.position(offset + 3);
+            slot.get(name);
+            metricNames.add(new String(name, UTF_8));
+            counters.add(buffer.get(offset + 2) == 1);
+        }
+    }
+
+    /**
+     * @return the index of the given metric, registered if needed, -1 if there are already {@code maxMetrics} metrics
+     */
+    public int indexOf(String name, boolean counter) {
+        int index = metricNames.indexOf(name);
+        if (index != -1 || metricNames.size() >= maxMetrics) {
+            return index;
+        }
+        byte[] bytes = name.getBytes(UTF_8);
+        int length = Math.min(bytes.length, MAX_NAME_LENGTH);
+        index = metricNames.size();
+        int offset = HEADER_SIZE + index * NAME_SLOT_SIZE;
+        buffer.putShort(offset, (short) length);
+        buffer.put(offset + 2, (byte) (counter ? 1 : 0));
+        for (int i = 0; i < length; i++) {
+            buffer.put(offset + 3 + i, bytes[i]);
+        }
+        buffer.putInt(METRIC_COUNT_OFFSET, index + 1);
+        metricNames.add(name);
+        counters.add(counter);
+        return index;
+    }
+
+    /**
+     * @param values indexed by {@link #indexOf(String, boolean)}, NaN for the missing values
+     */
+    public void append(long timestamp, double[] values) {
+        long sampleCount = buffer.getLong(SAMPLE_COUNT_OFFSET);
+        int offset = sampleOffset(sampleCount);
+        buffer.putLong(offset, 0);
+        for (int i = 0; i < maxMetrics; i++) {
+            buffer.putDouble(offset + 8 + 8 * i, i < values.length ? values[i] : Double.NaN);
+        }
+        buffer.putLong(offset, timestamp);
+        buffer.putLong(SAMPLE_COUNT_OFFSET, sampleCount + 1);
+    }
+
+    /**
+     * @return the samples more recent than the given timestamp, oldest first
+     */
+    public List<Sample> readSamples(long sinceTimestamp) {
+        readMetricNames();
+        long sampleCount = buffer.getLong(SAMPLE_COUNT_OFFSET);
+        List<Sample> samples = new ArrayList<Sample>();
+        // the oldest slot may be overwritten while reading, skip it
+        for (long n = Math.max(0, sampleCount - capacity + 1); n < sampleCount; n++) {
+            int offset = sampleOffset(n);
+            long timestamp = buffer.getLong(offset);
+            if (timestamp <= sinceTimestamp) {
+                continue;
+            }
+            double[] values = new double[metricNames.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = buffer.getDouble(offset + 8 + 8 * i);
+            }
+            if (buffer.getLong(offset) == timestamp) {
+                samples.add(new Sample(timestamp, values));
+            }
+        }
+        return samples;
+    }
+
+    private int sampleOffset(long sampleNumber) {
+        return HEADER_SIZE + maxMetrics * NAME_SLOT_SIZE + (int) (sampleNumber % capacity) * sampleSize;
+    }
+
+    public List<String> getMetricNames() {
+        return metricNames;
+    }
+
+    public boolean isCounter(int index) {
+        return counters.get(index);
+    }
+
+    public int getMaxMetrics() {
+        return maxMetrics;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public static class Sample {
+        private final long timestamp;
+        private final double[] values;
+
+        Sample(long timestamp, double[] values) {
+            this.timestamp = timestamp;
+            this.values = values;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the value of the given metric, NaN if it is missing
+         */
+        public double getValue(int index) {
+            return index < values.length ? values[index] : Double.NaN;
+        }
+
+        @Override
+        public String toString() {
+            return "Sample{timestamp=" + timestamp + ", values=" + Arrays.toString(values) + '}';
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsRingFile{path=" + path + ", maxMetrics=" + maxMetrics + ", capacity=" + capacity +
+                ", metrics=" + metricNames.size() + '}';
+    }
+}
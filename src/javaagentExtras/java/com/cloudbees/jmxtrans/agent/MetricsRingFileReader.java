@@ -0,0 +1,194 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.jmxtrans.agent;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Command line reader of a {@link MetricsRingFile}, used by the {@code stats-appstat} control script.
+ * <p/>
+ * <code><pre>
+ * MetricsRingFileReader &lt;file&gt; [--latest | --rate &lt;minutes&gt; | --summary &lt;minutes&gt;] [&lt;metric regex&gt;]
+ * </pre></code>
+ * <ul>
+ * <li>{@code --latest} (default): latest value of each metric</li>
+ * <li>{@code --rate}: per second rate of each counter over the last minutes</li>
+ * <li>{@code --summary}: min, max and average of each metric over the last minutes, counters are summarized as per
+ * second rates</li>
+ * </ul>
+ */
+public class MetricsRingFileReader {
+
+    private final MetricsRingFile ringFile;
+    private final Pattern filter;
+    private final PrintStream out;
+    private final DecimalFormat format = new DecimalFormat("0.###", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+
+    public MetricsRingFileReader(MetricsRingFile ringFile, Pattern filter, PrintStream out) {
+        this.ringFile = ringFile;
+        this.filter = filter;
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            usage();
+            return;
+        }
+        Path path = Paths.get(args[0]);
+        if (!Files.exists(path)) {
+            System.err.println("Metrics file " + path + " not found, is the application started?");
+            System.exit(1);
+        }
+        String mode = "--latest";
+        int minutes = 0;
+        Pattern filter = null;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--latest") || arg.equals("-l")) {
+                mode = "--latest";
+            } else if (arg.equals("--rate") || arg.equals("-r") || arg.equals("--summary") || arg.equals("-s")) {
+                mode = arg.startsWith("--") ? arg : (arg.equals("-r") ? "--rate" : "--summary");
+                if (i + 1 >= args.length) {
+                    usage();
+                    return;
+                }
+                minutes = Integer.parseInt(args[++i]);
+            } else if (filter == null && !arg.startsWith("-")) {
+                filter = Pattern.compile(arg);
+            } else {
+                usage();
+                return;
+            }
+        }
+        MetricsRingFileReader reader = new MetricsRingFileReader(MetricsRingFile.openForRead(path), filter, System.out);
+        if (mode.equals("--rate")) {
+            reader.printRates(minutes);
+        } else if (mode.equals("--summary")) {
+            reader.printSummary(minutes);
+        } else {
+            reader.printLatest();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: MetricsRingFileReader <file> [--latest | --rate <minutes> | --summary <minutes>] [<metric regex>]");
+    }
+
+    private boolean accept(String metricName) {
+        return filter == null || filter.matcher(metricName).find();
+    }
+
+    private long since(int minutes) {
+        return System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(minutes);
+    }
+
+    public void printLatest() {
+        List<MetricsRingFile.Sample> samples = ringFile.readSamples(0);
+        if (samples.isEmpty()) {
+            return;
+        }
+        MetricsRingFile.Sample latest = samples.get(samples.size() - 1);
+        List<String> names = ringFile.getMetricNames();
+        for (int i = 0; i < names.size(); i++) {
+            double value = latest.getValue(i);
+            if (accept(names.get(i)) && !Double.isNaN(value)) {
+                out.println(names.get(i) + " " + format.format(value));
+            }
+        }
+    }
+
+    /**
+     * Per second rate of the counters between the first and the last sample of the last minutes.
+     */
+    public void printRates(int minutes) {
+        List<MetricsRingFile.Sample> samples = ringFile.readSamples(since(minutes));
+        List<String> names = ringFile.getMetricNames();
+        for (int i = 0; i < names.size(); i++) {
+            if (!ringFile.isCounter(i) || !accept(names.get(i))) {
+                continue;
+            }
+            MetricsRingFile.Sample first = null;
+            MetricsRingFile.Sample last = null;
+            for (MetricsRingFile.Sample sample : samples) {
+                if (!Double.isNaN(sample.getValue(i))) {
+                    first = first == null ? sample : first;
+                    last = sample;
+                }
+            }
+            if (first == null || first == last) {
+                continue;
+            }
+            double delta = last.getValue(i) - first.getValue(i);
+            // counter reset by a restart: no meaningful rate over the whole window
+            if (delta >= 0) {
+                out.println(names.get(i) + " " + format.format(delta * 1000 / (last.getTimestamp() - first.getTimestamp())));
+            }
+        }
+    }
+
+    /**
+     * Min, max and average of the gauges and of the per second rates of the counters over the last minutes.
+     */
+    public void printSummary(int minutes) {
+        List<MetricsRingFile.Sample> samples = ringFile.readSamples(since(minutes));
+        List<String> names = ringFile.getMetricNames();
+        out.println("# metric min max avg");
+        for (int i = 0; i < names.size(); i++) {
+            if (!accept(names.get(i))) {
+                continue;
+            }
+            boolean counter = ringFile.isCounter(i);
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            double sum = 0;
+            int count = 0;
+            MetricsRingFile.Sample previous = null;
+            for (MetricsRingFile.Sample sample : samples) {
+                double value = sample.getValue(i);
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                if (counter) {
+                    double previousValue = previous == null ? Double.NaN : previous.getValue(i);
+                    long elapsed = previous == null ? 0 : sample.getTimestamp() - previous.getTimestamp();
+                    previous = sample;
+                    if (Double.isNaN(previousValue) || elapsed <= 0 || value < previousValue) {
+                        continue;
+                    }
+                    value = (value - previousValue) * 1000 / elapsed;
+                }
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+                count++;
+            }
+            if (count > 0) {
+                out.println(names.get(i) + " " + format.format(min) + " " + format.format(max) + " " + format.format(sum / count));
+            }
+        }
+    }
+}
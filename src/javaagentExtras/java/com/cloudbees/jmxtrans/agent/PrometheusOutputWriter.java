@@ -0,0 +1,234 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.jmxtrans.agent;
+
+import org.jmxtrans.agent.AbstractOutputWriter;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * jmxtrans-agent output writer that exposes the collected metrics in the Prometheus text format on
+ * {@code http://127.0.0.1:<port>/metrics}.
+ * <p/>
+ * The page is rendered once per collection, on the collector thread of the agent, and scrapes are answered from this
+ * cache by a single listener thread: scraping never reads MBeans and a tight scrape interval only returns the same
+ * values until the next collection. Metrics of type {@code counter} are exposed as Prometheus counters, the other
+ * ones as gauges, names are prefixed by {@code tomcat_}.
+ * <p/>
+ * If the port can not be bound (e.g. already used by another process), the error is logged and the writer is
+ * disabled: the application and the other output writers keep running.
+ * <p/>
+ * <code><pre>
+ * &lt;outputWriter class="com.cloudbees.jmxtrans.agent.PrometheusOutputWriter"&gt;
+ *     &lt;host&gt;127.0.0.1&lt;/host&gt;
+ *     &lt;port&gt;9404&lt;/port&gt;
+ * &lt;/outputWriter&gt;
+ * </pre></code>
+ */
+public class PrometheusOutputWriter extends AbstractOutputWriter {
+
+    private static final Logger log = Logger.getLogger(PrometheusOutputWriter.class.getName());
+
+    public static final String SETTING_HOST = "host";
+    public static final String SETTING_PORT = "port";
+    public static final String SETTING_PREFIX = "prefix";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int READ_TIMEOUT_IN_MILLIS = 5000;
+
+    private String prefix;
+    private ServerSocket serverSocket;
+    private Thread listenerThread;
+    private final StringBuilder page = new StringBuilder(8192);
+    private final Set<String> pageMetricNames = new HashSet<String>();
+    private volatile byte[] cachedPage = new byte[0];
+
+    @Override
+    public void postConstruct(Map<String, String> settings) {
+        super.postConstruct(settings);
+        String host = getSetting(settings, SETTING_HOST, "127.0.0.1");
+        int port = Integer.parseInt(getSetting(settings, SETTING_PORT, "9404"));
+        prefix = getSetting(settings, SETTING_PREFIX, "tomcat_");
+        ServerSocket serverSocket = null;
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(InetAddress.getByName(host), port));
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Exception binding Prometheus metrics listener on " + host + ":" + port +
+                    ", metrics are not exposed in Prometheus format", e);
+            closeQuietly(serverSocket);
+            return;
+        }
+        this.serverSocket = serverSocket;
+        listenerThread = new Thread("jmxtrans-agent-prometheus-listener") {
+            @Override
+            public void run() {
+                listen();
+            }
+        };
+        // must not prevent the JVM from exiting when Tomcat stops
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+        log.info("Expose metrics in Prometheus format on http://" + host + ":" + getPort() + "/metrics");
+    }
+
+    private static String getSetting(Map<String, String> settings, String name, String defaultValue) {
+        String value = settings.get(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    @Override
+    public void preDestroy() {
+        super.preDestroy();
+        closeQuietly(serverSocket);
+    }
+
+    private static void closeQuietly(ServerSocket serverSocket) {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Exception closing " + serverSocket, e);
+        }
+    }
+
+    /**
+     * @return {@code false} if the listener could not be bound
+     */
+    public boolean isEnabled() {
+        return serverSocket != null;
+    }
+
+    @Override
+    public void preCollect() throws IOException {
+        page.setLength(0);
+        pageMetricNames.clear();
+    }
+
+    @Override
+    public void writeQueryResult(String metricName, String metricType, Object value) throws IOException {
+        if (!isEnabled() || !(value instanceof Number)) {
+            return;
+        }
+        String name = toMetricName(metricName);
+        if (!pageMetricNames.add(name)) {
+            // a sample can only appear once per page
+            return;
+        }
+        page.append("# TYPE ").append(name).append("counter".equals(metricType) ? " counter\n" : " gauge\n");
+        page.append(name).append(' ');
+        if (value instanceof Double || value instanceof Float) {
+            page.append(((Number) value).doubleValue());
+        } else {
+            page.append(((Number) value).longValue());
+        }
+        page.append('\n');
+    }
+
+    @Override
+    public void postCollect() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        cachedPage = page.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * "datasource_mydb_numActive" -> "tomcat_datasource_mydb_numActive", "route_/api_requestCount" ->
+     * "tomcat_route__api_requestCount"
+     */
+    protected String toMetricName(String metricName) {
+        StringBuilder result = new StringBuilder(prefix.length() + metricName.length()).append(prefix);
+        for (int i = 0; i < metricName.length(); i++) {
+            char c = metricName.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == ':';
+            result.append(valid ? c : '_');
+        }
+        return result.toString();
+    }
+
+    protected void listen() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(READ_TIMEOUT_IN_MILLIS);
+                handle(socket);
+            } catch (SocketTimeoutException e) {
+                log.fine("Timeout reading Prometheus scrape request");
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.log(Level.FINE, "Exception serving Prometheus scrape request", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Minimal HTTP/1.0 handling: read the request line, skip the headers and send the cached page.
+     */
+    private void handle(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            // skip headers
+        }
+        String[] tokens = requestLine.split(" ");
+        String path = tokens.length > 1 ? tokens[1] : "";
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        if (!"GET".equals(tokens[0])) {
+            writeResponse(out, "405 Method Not Allowed", new byte[0]);
+        } else if (path.equals("/metrics") || path.startsWith("/metrics?") || path.equals("/")) {
+            writeResponse(out, "200 OK", cachedPage);
+        } else {
+            writeResponse(out, "404 Not Found", new byte[0]);
+        }
+        out.flush();
+    }
+
+    private void writeResponse(OutputStream out, String status, byte[] body) throws IOException {
+        String headers = "HTTP/1.0 " + status + "\r\n" +
+                "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "Connection: close\r\n\r\n";
+        out.write(headers.getBytes(UTF_8));
+        out.write(body);
+    }
+
+    /**
+     * @return the port the listener is bound to, useful if the configured port is 0, {@code -1} if the writer is
+     * disabled
+     */
+    public int getPort() {
+        return isEnabled() ? serverSocket.getLocalPort() : -1;
+    }
+}
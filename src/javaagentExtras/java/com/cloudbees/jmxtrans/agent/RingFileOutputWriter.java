@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.jmxtrans.agent;
+
+import org.jmxtrans.agent.AbstractOutputWriter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * jmxtrans-agent output writer that appends each collection of metrics as a sample of a {@link MetricsRingFile}.
+ * <p/>
+ * <code><pre>
+ * &lt;outputWriter class="com.cloudbees.jmxtrans.agent.RingFileOutputWriter"&gt;
+ *     &lt;fileName&gt;${tomcat_metrics_ring_file:jmxtrans-agent.ring}&lt;/fileName&gt;
+ *     &lt;maxMetrics&gt;256&lt;/maxMetrics&gt;
+ *     &lt;capacity&gt;4320&lt;/capacity&gt;
+ * &lt;/outputWriter&gt;
+ * </pre></code>
+ * With the default values, the file is about 9MB and holds 24 hours of samples collected every 20 seconds or 6 hours
+ * of samples collected every 5 seconds. Metrics beyond {@code maxMetrics} are ignored.
+ */
+public class RingFileOutputWriter extends AbstractOutputWriter {
+
+    private static final Logger log = Logger.getLogger(RingFileOutputWriter.class.getName());
+
+    public static final String SETTING_FILE_NAME = "fileName";
+    public static final String SETTING_MAX_METRICS = "maxMetrics";
+    public static final String SETTING_CAPACITY = "capacity";
+
+    private MetricsRingFile ringFile;
+    private double[] values;
+    private boolean ignoredMetricsLogged;
+
+    @Override
+    public void postConstruct(Map<String, String> settings) {
+        super.postConstruct(settings);
+        Path path = Paths.get(getSetting(settings, SETTING_FILE_NAME, "jmxtrans-agent.ring"));
+        int maxMetrics = Integer.parseInt(getSetting(settings, SETTING_MAX_METRICS, "256"));
+        int capacity = Integer.parseInt(getSetting(settings, SETTING_CAPACITY, "4320"));
+        try {
+            ringFile = MetricsRingFile.openForWrite(path, maxMetrics, capacity);
+        } catch (IOException e) {
+            throw new IllegalStateException("Exception opening metrics file " + path, e);
+        }
+        values = new double[maxMetrics];
+        log.info("Write metrics to " + ringFile);
+    }
+
+    private static String getSetting(Map<String, String> settings, String name, String defaultValue) {
+        String value = settings.get(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    @Override
+    public void preCollect() throws IOException {
+        Arrays.fill(values, Double.NaN);
+    }
+
+    @Override
+    public void writeQueryResult(String metricName, String metricType, Object value) throws IOException {
+        if (!(value instanceof Number)) {
+            return;
+        }
+        int index = ringFile.indexOf(metricName, "counter".equals(metricType));
+        if (index == -1) {
+            if (!ignoredMetricsLogged) {
+                log.warning("More than " + ringFile.getMaxMetrics() + " metrics, ignore " + metricName + " and the following new metrics");
+                ignoredMetricsLogged = true;
+            }
+            return;
+        }
+        values[index] = ((Number) value).doubleValue();
+    }
+
+    @Override
+    public void postCollect() throws IOException {
+        try {
+            ringFile.append(System.currentTimeMillis(), values);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Exception writing metrics to " + ringFile, e);
+        }
+    }
+
+    public MetricsRingFile getRingFile() {
+        return ringFile;
+    }
+}
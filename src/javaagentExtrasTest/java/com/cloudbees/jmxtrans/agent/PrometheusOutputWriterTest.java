@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.jmxtrans.agent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PrometheusOutputWriterTest {
+
+    private PrometheusOutputWriter writer;
+
+    @Before
+    public void before() {
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put(PrometheusOutputWriter.SETTING_PORT, "0");
+        writer = new PrometheusOutputWriter();
+        writer.postConstruct(settings);
+    }
+
+    @After
+    public void after() {
+        writer.preDestroy();
+    }
+
+    private String scrape(String path) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + writer.getPort() + path).openConnection();
+        assertThat(connection.getResponseCode(), is(200));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[1024];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                body.write(buffer, 0, length);
+            }
+        }
+        return body.toString("UTF-8");
+    }
+
+    @Test
+    public void scrapes_return_the_last_collection() throws Exception {
+        assertThat(scrape("/metrics"), is(""));
+
+        writer.preCollect();
+        writer.writeQueryResult("request_requestCount", "counter", 42L);
+        writer.writeQueryResult("threadpool_\"http-nio-8080\"_currentThreadsBusy", null, 3);
+        writer.writeQueryResult("os_system_load", null, 0.5);
+        writer.writeQueryResult("application_name", null, "not a number");
+        writer.postCollect();
+
+        String expected = "" +
+                "# TYPE tomcat_request_requestCount counter\n" +
+                "tomcat_request_requestCount 42\n" +
+                "# TYPE tomcat_threadpool__http_nio_8080__currentThreadsBusy gauge\n" +
+                "tomcat_threadpool__http_nio_8080__currentThreadsBusy 3\n" +
+                "# TYPE tomcat_os_system_load gauge\n" +
+                "tomcat_os_system_load 0.5\n";
+        assertThat(scrape("/metrics"), is(expected));
+        // served from the cache
+        assertThat(scrape("/metrics"), is(expected));
+    }
+
+    @Test
+    public void port_already_in_use_disables_the_writer() throws Exception {
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put(PrometheusOutputWriter.SETTING_PORT, Integer.toString(writer.getPort()));
+        PrometheusOutputWriter conflictingWriter = new PrometheusOutputWriter();
+        conflictingWriter.postConstruct(settings);
+        try {
+            assertThat(conflictingWriter.isEnabled(), is(false));
+            assertThat(conflictingWriter.getPort(), is(-1));
+
+            conflictingWriter.preCollect();
+            conflictingWriter.writeQueryResult("request_requestCount", "counter", 42L);
+            conflictingWriter.postCollect();
+        } finally {
+            conflictingWriter.preDestroy();
+        }
+        // the first writer is still serving
+        assertThat(writer.isEnabled(), is(true));
+        assertThat(scrape("/metrics"), is(""));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.jmxtrans.agent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class RingFileOutputWriterTest {
+
+    private Path file;
+
+    @Before
+    public void before() throws Exception {
+        file = Files.createTempFile("tomcat-metrics", ".ring");
+        Files.delete(file);
+    }
+
+    @After
+    public void after() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    private RingFileOutputWriter newWriter(int capacity) {
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put(RingFileOutputWriter.SETTING_FILE_NAME, file.toString());
+        settings.put(RingFileOutputWriter.SETTING_MAX_METRICS, "4");
+        settings.put(RingFileOutputWriter.SETTING_CAPACITY, String.valueOf(capacity));
+        RingFileOutputWriter writer = new RingFileOutputWriter();
+        writer.postConstruct(settings);
+        return writer;
+    }
+
+    private void collect(RingFileOutputWriter writer, long requestCount, double load) throws Exception {
+        writer.preCollect();
+        writer.writeQueryResult("request_requestCount", "counter", requestCount);
+        writer.writeQueryResult("os_system_load", null, load);
+        writer.writeQueryResult("application_name", null, "not a number");
+        writer.postCollect();
+    }
+
+    @Test
+    public void ring_wraps_around_and_survives_restarts() throws Exception {
+        RingFileOutputWriter writer = newWriter(3);
+        for (int i = 1; i <= 5; i++) {
+            collect(writer, i * 10, i);
+        }
+
+        // new writer as after a restart of the JVM
+        writer = newWriter(3);
+        collect(writer, 60, 6);
+
+        MetricsRingFile ringFile = MetricsRingFile.openForRead(file);
+        assertThat(ringFile.getMetricNames(), contains("request_requestCount", "os_system_load"));
+        assertThat(ringFile.isCounter(0), is(true));
+        assertThat(ringFile.isCounter(1), is(false));
+        List<MetricsRingFile.Sample> samples = ringFile.readSamples(0);
+        // capacity minus the slot that may be overwritten while reading
+        assertThat(samples.size(), is(2));
+        assertThat(samples.get(0).getValue(1), is(5.0));
+        assertThat(samples.get(1).getValue(1), is(6.0));
+        assertThat(samples.get(1).getValue(0), is(60.0));
+    }
+
+    @Test
+    public void more_metrics_than_max_metrics_are_ignored() throws Exception {
+        RingFileOutputWriter writer = newWriter(10);
+        writer.preCollect();
+        for (int i = 0; i < 6; i++) {
+            writer.writeQueryResult("metric_" + i, null, i);
+        }
+        writer.postCollect();
+
+        MetricsRingFile ringFile = MetricsRingFile.openForRead(file);
+        assertThat(ringFile.getMetricNames().size(), is(4));
+        assertThat(ringFile.readSamples(0).get(0).getValue(3), is(3.0));
+    }
+
+    @Test
+    public void print_latest_rates_and_summary() throws Exception {
+        RingFileOutputWriter writer = newWriter(10);
+        collect(writer, 100, 1);
+        Thread.sleep(100);
+        collect(writer, 200, 3);
+
+        ByteArrayOutputStream latest = new ByteArrayOutputStream();
+        new MetricsRingFileReader(MetricsRingFile.openForRead(file), null, new PrintStream(latest, true)).printLatest();
+        assertThat(latest.toString(), is("request_requestCount 200" + System.lineSeparator() + "os_system_load 3" + System.lineSeparator()));
+
+        ByteArrayOutputStream rates = new ByteArrayOutputStream();
+        new MetricsRingFileReader(MetricsRingFile.openForRead(file), Pattern.compile("request"), new PrintStream(rates, true)).printRates(5);
+        assertThat(rates.toString(), startsWith("request_requestCount "));
+        double rate = Double.parseDouble(rates.toString().trim().split(" ")[1]);
+        // 100 requests in about 100ms
+        assertThat(rate, greaterThan(100.0));
+        assertThat(rate, lessThanOrEqualTo(1000.0));
+
+        ByteArrayOutputStream summary = new ByteArrayOutputStream();
+        new MetricsRingFileReader(MetricsRingFile.openForRead(file), Pattern.compile("load"), new PrintStream(summary, true)).printSummary(5);
+        assertThat(summary.toString(), endsWith("os_system_load 1 3 2" + System.lineSeparator()));
+    }
+}
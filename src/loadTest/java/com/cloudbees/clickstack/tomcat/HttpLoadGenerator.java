@@ -0,0 +1,279 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closed loop HTTP load generator: a fixed number of workers send requests back to back, each worker cycles through
+ * the given urls with its own keep-alive connection and its own {@code JSESSIONID} cookie, like a browser would do.
+ * <p/>
+ * The latency of each request is recorded to compute exact percentiles, a request is an error if it fails or if the
+ * response status is not 2xx or 3xx.
+ */
+public class HttpLoadGenerator {
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    private final List<URL> urls;
+
+    private final int connectTimeoutInMillis = 5000;
+
+    private final int readTimeoutInMillis = 30000;
+
+    public HttpLoadGenerator(@Nonnull List<URL> urls) {
+        Preconditions.checkArgument(!urls.isEmpty(), "No url to load");
+        this.urls = urls;
+    }
+
+    /**
+     * Send requests with {@code concurrency} workers during {@code duration}.
+     */
+    @Nonnull
+    public Result run(int concurrency, long duration, @Nonnull TimeUnit timeUnit) throws InterruptedException {
+        Preconditions.checkArgument(concurrency > 0, "Invalid concurrency %s", concurrency);
+        final long deadline = System.nanoTime() + timeUnit.toNanos(duration);
+        final CountDownLatch startSignal = new CountDownLatch(1);
+
+        Worker[] workers = new Worker[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            workers[i] = new Worker(i, startSignal, deadline);
+            workers[i].start();
+        }
+        long startTime = System.nanoTime();
+        startSignal.countDown();
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+
+        int requests = 0;
+        for (Worker worker : workers) {
+            requests += worker.count;
+        }
+        long[] latencies = new long[requests];
+        int errors = 0;
+        int offset = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+            offset += worker.count;
+            errors += worker.errors;
+        }
+        Arrays.sort(latencies);
+        Result result = new Result(concurrency, requests, errors, elapsedNanos, latencies);
+        logger.debug("{}", result);
+        return result;
+    }
+
+    private class Worker extends Thread {
+        private final CountDownLatch startSignal;
+        private final long deadline;
+        private long[] latencies = new long[1024];
+        private int count;
+        private int errors;
+        private String sessionCookie;
+
+        private Worker(int index, @Nonnull CountDownLatch startSignal, long deadline) {
+            super("load-generator-" + index);
+            this.startSignal = startSignal;
+            this.deadline = deadline;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                startSignal.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            byte[] buffer = new byte[8192];
+            int index = (int) (getId() % urls.size());
+            while (System.nanoTime() < deadline) {
+                URL url = urls.get(index++ % urls.size());
+                long start = System.nanoTime();
+                boolean success = send(url, buffer);
+                record(System.nanoTime() - start, success);
+            }
+        }
+
+        private boolean send(@Nonnull URL url, @Nonnull byte[] buffer) {
+            HttpURLConnection connection = null;
+            try {
+                connection = (HttpURLConnection) url.openConnection();
+                connection.setConnectTimeout(connectTimeoutInMillis);
+                connection.setReadTimeout(readTimeoutInMillis);
+                connection.setInstanceFollowRedirects(false);
+                connection.setUseCaches(false);
+                connection.setRequestProperty("Accept-Encoding", "gzip");
+                if (sessionCookie != null) {
+                    connection.setRequestProperty("Cookie", sessionCookie);
+                }
+                int status = connection.getResponseCode();
+                updateSessionCookie(connection);
+                InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                if (in != null) {
+                    // consume and close the body to give the connection back to the keep-alive cache
+                    try {
+                        while (in.read(buffer) != -1) {
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+                return status < 400;
+            } catch (IOException e) {
+                logger.trace("Exception requesting {}", url, e);
+                if (connection != null) {
+                    discardErrorStream(connection);
+                }
+                return false;
+            }
+        }
+
+        private void updateSessionCookie(@Nonnull HttpURLConnection connection) {
+            List<String> cookies = connection.getHeaderFields().get("Set-Cookie");
+            if (cookies == null) {
+                return;
+            }
+            for (String cookie : cookies) {
+                if (cookie.startsWith("JSESSIONID=")) {
+                    int end = cookie.indexOf(';');
+                    sessionCookie = end == -1 ? cookie : cookie.substring(0, end);
+                }
+            }
+        }
+
+        private void discardErrorStream(@Nonnull HttpURLConnection connection) {
+            InputStream errorStream = connection.getErrorStream();
+            if (errorStream == null) {
+                return;
+            }
+            try {
+                ByteStreams.copy(errorStream, ByteStreams.nullOutputStream());
+                errorStream.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        private void record(long latencyInNanos, boolean success) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyInNanos;
+            if (!success) {
+                errors++;
+            }
+        }
+    }
+
+    /**
+     * Outcome of a run at a given concurrency, latencies in milliseconds.
+     */
+    public static class Result {
+        private final int concurrency;
+        private final int requests;
+        private final int errors;
+        private final long elapsedNanos;
+        /**
+         * sorted latencies in nanos
+         */
+        private final long[] latencies;
+
+        public Result(int concurrency, int requests, int errors, long elapsedNanos, @Nonnull long[] latencies) {
+            this.concurrency = concurrency;
+            this.requests = requests;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        public int getRequests() {
+            return requests;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return requests per second
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : requests * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return latency in milliseconds of the given percentile ("nearest rank")
+         */
+        public double getLatency(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+            return latencies[Math.min(Math.max(rank, 1), latencies.length) - 1] / 1000000.0;
+        }
+
+        @Nonnull
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("concurrency", concurrency);
+            map.put("requests", requests);
+            map.put("errors", errors);
+            map.put("throughput", round(getThroughput()));
+            map.put("latencyP50", round(getLatency(50)));
+            map.put("latencyP90", round(getLatency(90)));
+            map.put("latencyP99", round(getLatency(99)));
+            map.put("latencyP999", round(getLatency(99.9)));
+            map.put("latencyMax", round(getLatency(100)));
+            return map;
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 100) / 100.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("concurrency=%d, requests=%d, errors=%d, throughput=%.1f req/s, p50=%.2fms, " +
+                            "p90=%.2fms, p99=%.2fms, p999=%.2fms, max=%.2fms", concurrency, requests, errors,
+                    getThroughput(), getLatency(50), getLatency(90), getLatency(99), getLatency(99.9), getLatency(100));
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test of the {@code catalina-base} generated by the clickstack.
+ * <p/>
+ * For each configuration profile (a {@code metadata.json} file), the load test:
+ * <ol>
+ * <li>runs the setup of the clickstack against a sample war, in a child JVM with the genapp environment variables
+ * ({@code app_dir}, {@code genapp_dir}, {@code control_dir}, {@code pkg_dir}, {@code app_port}...)</li>
+ * <li>starts Tomcat with the generated {@code control/start} script, a {@code java-opts-99-loadtest} file enables
+ * remote JMX on the loopback interface</li>
+ * <li>sends requests with the {@link HttpLoadGenerator} at each concurrency level, after a warmup at the same
+ * level</li>
+ * <li>reports the throughput, the latency percentiles, the GC time and the thread counts of Tomcat</li>
+ * </ol>
+ * Database and session store resources of the profiles are served by the in-process {@link PostgresqlStandIn} and
+ * {@link MemcachedStandIn}: the {@code ${database.port}} and {@code ${memcached.port}} placeholders of the profiles
+ * are replaced by their ports. The {@code loadtest.paths} runtime parameter of a profile lists the comma separated
+ * paths to request (default {@code "/"}).
+ * <p/>
+ * Options are passed as system properties: {@code loadtest.concurrency} (default {@code "1,8,32"}),
+ * {@code loadtest.warmup} and {@code loadtest.duration} in seconds (default 10 and 30), {@code loadtest.profiles}
+ * (comma separated names of the profiles to run, default all).
+ */
+public class LoadTest {
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    private final Path clickstackDir;
+    @Nonnull
+    private final Path warFile;
+    @Nonnull
+    private final Path workDir;
+    @Nonnull
+    private final List<Integer> concurrencyLevels;
+    private final long warmupInSeconds;
+    private final long durationInSeconds;
+    private final long startupTimeoutInSeconds = 180;
+    @Nonnull
+    private final PostgresqlStandIn database;
+    @Nonnull
+    private final MemcachedStandIn memcached;
+
+    public LoadTest(@Nonnull Path clickstackDir, @Nonnull Path warFile, @Nonnull Path workDir,
+                    @Nonnull List<Integer> concurrencyLevels, long warmupInSeconds, long durationInSeconds,
+                    @Nonnull PostgresqlStandIn database, @Nonnull MemcachedStandIn memcached) {
+        Preconditions.checkArgument(Files.isDirectory(clickstackDir.resolve("lib")), "Invalid clickstack dir %s", clickstackDir);
+        Preconditions.checkArgument(Files.isRegularFile(warFile), "War %s not found", warFile);
+        this.clickstackDir = clickstackDir;
+        this.warFile = warFile;
+        this.workDir = workDir;
+        this.concurrencyLevels = concurrencyLevels;
+        this.warmupInSeconds = warmupInSeconds;
+        this.durationInSeconds = durationInSeconds;
+        this.database = database;
+        this.memcached = memcached;
+    }
+
+    /**
+     * @param args clickstack dir, sample war, profiles dir, work dir, results file
+     */
+    public static void main(String[] args) throws Exception {
+        Preconditions.checkArgument(args.length == 5,
+                "Usage: LoadTest <clickstackDir> <war> <profilesDir> <workDir> <resultsFile>");
+        Path clickstackDir = Paths.get(args[0]);
+        Path warFile = Paths.get(args[1]);
+        Path profilesDir = Paths.get(args[2]);
+        Path workDir = Paths.get(args[3]);
+        Path resultsFile = Paths.get(args[4]);
+
+        List<Integer> concurrencyLevels = new ArrayList<>();
+        for (String concurrency : Splitter.on(',').trimResults().omitEmptyStrings().split(System.getProperty("loadtest.concurrency", "1,8,32"))) {
+            concurrencyLevels.add(Integer.parseInt(concurrency));
+        }
+        long warmupInSeconds = Long.parseLong(System.getProperty("loadtest.warmup", "10"));
+        long durationInSeconds = Long.parseLong(System.getProperty("loadtest.duration", "30"));
+        String profilesFilter = System.getProperty("loadtest.profiles", "");
+        Set<String> selectedProfiles = new HashSet<>(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(profilesFilter));
+
+        List<Path> profiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(profilesDir, "*.json")) {
+            for (Path profile : stream) {
+                if (selectedProfiles.isEmpty() || selectedProfiles.contains(getProfileName(profile))) {
+                    profiles.add(profile);
+                }
+            }
+        }
+        Collections.sort(profiles);
+        Preconditions.checkState(!profiles.isEmpty(), "No profile found in %s matching '%s'", profilesDir, profilesFilter);
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        try (PostgresqlStandIn database = new PostgresqlStandIn();
+             MemcachedStandIn memcached = new MemcachedStandIn()) {
+            LoadTest loadTest = new LoadTest(clickstackDir, warFile, workDir, concurrencyLevels,
+                    warmupInSeconds, durationInSeconds, database, memcached);
+            for (Path profile : profiles) {
+                results.add(loadTest.run(profile));
+            }
+        }
+
+        Files.createDirectories(resultsFile.toAbsolutePath().getParent());
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(resultsFile.toFile(), results);
+        LoggerFactory.getLogger(LoadTest.class).info("Results written in {}", resultsFile.toAbsolutePath());
+    }
+
+    @Nonnull
+    protected static String getProfileName(@Nonnull Path profile) {
+        return profile.getFileName().toString().replaceFirst("\\.json$", "");
+    }
+
+    /**
+     * Setup, start, load and stop Tomcat with the given profile.
+     *
+     * @return measures of the profile for each concurrency level
+     */
+    @Nonnull
+    public Map<String, Object> run(@Nonnull Path profile) throws Exception {
+        String profileName = getProfileName(profile);
+        logger.info("Load test profile {}", profileName);
+
+        Path profileDir = workDir.resolve(profileName);
+        if (Files.exists(profileDir)) {
+            Setup.deleteRecursively(profileDir);
+        }
+        Path appDir = Files.createDirectories(profileDir.resolve("app"));
+        Path genappDir = Files.createDirectories(appDir.resolve(".genapp"));
+        Path controlDir = Files.createDirectories(genappDir.resolve("control"));
+        Path packageDir = Files.createDirectories(profileDir.resolve("package"));
+        Files.copy(warFile, packageDir.resolve("app.war"));
+
+        String json = new String(Files.readAllBytes(profile), Charsets.UTF_8)
+                .replace("${database.port}", String.valueOf(database.getPort()))
+                .replace("${memcached.port}", String.valueOf(memcached.getPort()));
+        Files.write(genappDir.resolve("metadata.json"), json.getBytes(Charsets.UTF_8));
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+
+        int appPort = findFreePort();
+        int jmxPort = findFreePort();
+
+        Map<String, String> genappEnvironment = new LinkedHashMap<>();
+        genappEnvironment.put("app_id", "loadtest-" + profileName);
+        genappEnvironment.put("app_user", System.getProperty("user.name"));
+        genappEnvironment.put("app_port", String.valueOf(appPort));
+        genappEnvironment.put("app_dir", appDir.toAbsolutePath().toString());
+        genappEnvironment.put("genapp_dir", genappDir.toAbsolutePath().toString());
+        genappEnvironment.put("control_dir", controlDir.toAbsolutePath().toString());
+        genappEnvironment.put("log_dir", genappDir.resolve("log").toAbsolutePath().toString());
+        genappEnvironment.put("pkg_dir", packageDir.toAbsolutePath().toString());
+        genappEnvironment.put("plugin_dir", clickstackDir.toAbsolutePath().toString());
+        runSetup(genappEnvironment, profileDir.resolve("setup.log"));
+
+        Files.write(controlDir.resolve("java-opts-99-loadtest"), ("" +
+                "-Dcom.sun.management.jmxremote.port=" + jmxPort + " " +
+                "-Dcom.sun.management.jmxremote.rmi.port=" + jmxPort + " " +
+                "-Dcom.sun.management.jmxremote.authenticate=false " +
+                "-Dcom.sun.management.jmxremote.ssl=false " +
+                "-Djava.rmi.server.hostname=127.0.0.1").getBytes(Charsets.UTF_8));
+
+        List<URL> urls = new ArrayList<>();
+        for (String path : Splitter.on(',').trimResults().omitEmptyStrings().split(metadata.getRuntimeParameter("loadtest", "paths", "/"))) {
+            urls.add(new URL("http", "127.0.0.1", appPort, path));
+        }
+        HttpLoadGenerator loadGenerator = new HttpLoadGenerator(urls);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("profile", profileName);
+        result.put("paths", metadata.getRuntimeParameter("loadtest", "paths", "/"));
+        List<Map<String, Object>> levels = new ArrayList<>();
+        result.put("levels", levels);
+
+        Process tomcat = startTomcat(controlDir, genappEnvironment, profileDir.resolve("tomcat.log"));
+        try {
+            waitForStartup(tomcat, urls.get(0));
+            JMXServiceURL jmxServiceUrl = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://127.0.0.1:" + jmxPort + "/jmxrmi");
+            try (JMXConnector jmxConnector = JMXConnectorFactory.connect(jmxServiceUrl)) {
+                MBeanServerConnection mbeanServer = jmxConnector.getMBeanServerConnection();
+                for (int concurrency : concurrencyLevels) {
+                    loadGenerator.run(concurrency, warmupInSeconds, TimeUnit.SECONDS);
+
+                    mbeanServer.invoke(new ObjectName("java.lang:type=Threading"), "resetPeakThreadCount", null, null);
+                    JvmSnapshot before = JvmSnapshot.take(mbeanServer);
+                    long databaseQueries = database.getQueryCount();
+                    long sessionStoreOperations = memcached.getOperationCount();
+
+                    HttpLoadGenerator.Result levelResult = loadGenerator.run(concurrency, durationInSeconds, TimeUnit.SECONDS);
+
+                    JvmSnapshot after = JvmSnapshot.take(mbeanServer);
+                    Map<String, Object> level = levelResult.toMap();
+                    level.put("gcCount", after.gcCount - before.gcCount);
+                    level.put("gcTimeInMillis", after.gcTimeInMillis - before.gcTimeInMillis);
+                    level.put("threads", after.threads);
+                    level.put("peakThreads", after.peakThreads);
+                    level.put("databaseQueries", database.getQueryCount() - databaseQueries);
+                    level.put("sessionStoreOperations", memcached.getOperationCount() - sessionStoreOperations);
+                    levels.add(level);
+                    logger.info("Profile {}: {}, gc={}ms ({} collections), threads={} (peak {})", profileName,
+                            levelResult, after.gcTimeInMillis - before.gcTimeInMillis, after.gcCount - before.gcCount,
+                            after.threads, after.peakThreads);
+                }
+            }
+        } finally {
+            tomcat.destroy();
+            tomcat.waitFor();
+        }
+        return result;
+    }
+
+    protected void runSetup(@Nonnull Map<String, String> genappEnvironment, @Nonnull Path logFile) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder processBuilder = new ProcessBuilder(java,
+                "-cp", clickstackDir.resolve("lib").toAbsolutePath() + File.separator + "*",
+                "com.cloudbees.clickstack.tomcat.Setup");
+        processBuilder.environment().putAll(genappEnvironment);
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(logFile.toFile());
+
+        long startTime = System.nanoTime();
+        int exitValue = processBuilder.start().waitFor();
+        Preconditions.checkState(exitValue == 0, "Setup failed with exit value %s, see %s", exitValue, logFile);
+        logger.info("Setup done in {}ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+
+    @Nonnull
+    protected Process startTomcat(@Nonnull Path controlDir, @Nonnull Map<String, String> genappEnvironment,
+                                  @Nonnull Path logFile) throws IOException {
+        ProcessBuilder processBuilder = new ProcessBuilder("bash", controlDir.resolve("start").toAbsolutePath().toString());
+        processBuilder.environment().putAll(genappEnvironment);
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(logFile.toFile());
+        return processBuilder.start();
+    }
+
+    /**
+     * Wait for Tomcat to answer on the first url of the profile, whatever the response status.
+     *
+     * @throws IllegalStateException if Tomcat exits or does not answer within {@link #startupTimeoutInSeconds}
+     */
+    protected void waitForStartup(@Nonnull Process tomcat, @Nonnull URL url) throws InterruptedException {
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.SECONDS.toNanos(startupTimeoutInSeconds);
+        while (System.nanoTime() < deadline) {
+            try {
+                int exitValue = tomcat.exitValue();
+                throw new IllegalStateException("Tomcat exited with exit value " + exitValue + " during startup");
+            } catch (IllegalThreadStateException e) {
+                // still running
+            }
+            try {
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                connection.setConnectTimeout(1000);
+                connection.setReadTimeout(30000);
+                int status = connection.getResponseCode();
+                connection.disconnect();
+                logger.info("Tomcat started in {}ms, {} returned {}",
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), url, status);
+                return;
+            } catch (IOException e) {
+                logger.trace("Tomcat not yet started", e);
+            }
+            Thread.sleep(500);
+        }
+        throw new IllegalStateException("Tomcat not started after " + startupTimeoutInSeconds + " seconds");
+    }
+
+    protected static int findFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    /**
+     * Garbage collection and thread counters of the Tomcat JVM.
+     */
+    protected static class JvmSnapshot {
+        long gcCount;
+        long gcTimeInMillis;
+        int threads;
+        int peakThreads;
+
+        @Nonnull
+        static JvmSnapshot take(@Nonnull MBeanServerConnection mbeanServer) throws Exception {
+            JvmSnapshot snapshot = new JvmSnapshot();
+            for (ObjectName garbageCollector : mbeanServer.queryNames(new ObjectName("java.lang:type=GarbageCollector,*"), null)) {
+                snapshot.gcCount += (Long) mbeanServer.getAttribute(garbageCollector, "CollectionCount");
+                snapshot.gcTimeInMillis += (Long) mbeanServer.getAttribute(garbageCollector, "CollectionTime");
+            }
+            ObjectName threading = new ObjectName("java.lang:type=Threading");
+            snapshot.threads = (Integer) mbeanServer.getAttribute(threading, "ThreadCount");
+            snapshot.peakThreads = (Integer) mbeanServer.getAttribute(threading, "PeakThreadCount");
+            return snapshot;
+        }
+    }
+}
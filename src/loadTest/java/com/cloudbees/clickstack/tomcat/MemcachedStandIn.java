@@ -0,0 +1,405 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in of a memcached server speaking the binary protocol used by the memcached-session-manager:
+ * get, set, add, replace, delete, touch and their quiet variants, noop, version, flush and SASL authentication (any
+ * credentials are accepted).
+ * <p/>
+ * Items are kept in memory without size limit, expiration times are honored.
+ */
+public class MemcachedStandIn implements Closeable {
+
+    private static final int HEADER_LENGTH = 24;
+    private static final int MAX_RELATIVE_EXPIRATION_IN_SECONDS = 60 * 60 * 24 * 30;
+
+    private static final byte MAGIC_REQUEST = (byte) 0x80;
+    private static final byte MAGIC_RESPONSE = (byte) 0x81;
+
+    private static final int GET = 0x00;
+    private static final int SET = 0x01;
+    private static final int ADD = 0x02;
+    private static final int REPLACE = 0x03;
+    private static final int DELETE = 0x04;
+    private static final int QUIT = 0x07;
+    private static final int FLUSH = 0x08;
+    private static final int GETQ = 0x09;
+    private static final int NOOP = 0x0a;
+    private static final int VERSION = 0x0b;
+    private static final int GETK = 0x0c;
+    private static final int GETKQ = 0x0d;
+    private static final int SETQ = 0x11;
+    private static final int ADDQ = 0x12;
+    private static final int REPLACEQ = 0x13;
+    private static final int DELETEQ = 0x14;
+    private static final int QUITQ = 0x17;
+    private static final int FLUSHQ = 0x18;
+    private static final int TOUCH = 0x1c;
+    private static final int GAT = 0x1d;
+    private static final int GATQ = 0x1e;
+    private static final int SASL_LIST_MECHS = 0x20;
+    private static final int SASL_AUTH = 0x21;
+    private static final int SASL_STEP = 0x22;
+
+    private static final short STATUS_NO_ERROR = 0x0000;
+    private static final short STATUS_KEY_NOT_FOUND = 0x0001;
+    private static final short STATUS_KEY_EXISTS = 0x0002;
+    private static final short STATUS_UNKNOWN_COMMAND = 0x0081;
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ServerSocket serverSocket;
+
+    /**
+     * items indexed by key, keys are decoded in ISO-8859-1 to preserve their bytes
+     */
+    private final Map<String, Item> items = new HashMap<>();
+
+    private final AtomicLong casSequence = new AtomicLong();
+
+    private final AtomicLong operations = new AtomicLong();
+
+    private volatile boolean closed;
+
+    public MemcachedStandIn() throws IOException {
+        serverSocket = new ServerSocket(0, 100, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread("memcached-stand-in-acceptor") {
+            @Override
+            public void run() {
+                accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("Memcached stand-in listening on 127.0.0.1:{}", getPort());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return number of commands processed since the creation of the stand-in
+     */
+    public long getOperationCount() {
+        return operations.get();
+    }
+
+    /**
+     * @return number of items stored, expired items included
+     */
+    public int getItemCount() {
+        synchronized (items) {
+            return items.size();
+        }
+    }
+
+    protected void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.warn("Exception accepting connection", e);
+                }
+                return;
+            }
+            Thread session = new Thread("memcached-stand-in-" + socket.getPort()) {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (EOFException | SocketException e) {
+                        logger.trace("Connection closed {}", socket, e);
+                    } catch (IOException | RuntimeException e) {
+                        logger.warn("Exception processing connection {}", socket, e);
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            };
+            session.setDaemon(true);
+            session.start();
+        }
+    }
+
+    protected void serve(@Nonnull Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] header = new byte[HEADER_LENGTH];
+        while (true) {
+            in.readFully(header);
+            DataInputStream headerIn = new DataInputStream(new ByteArrayInputStream(header));
+            byte magic = headerIn.readByte();
+            if (magic != MAGIC_REQUEST) {
+                throw new IOException("Invalid magic " + magic + ", only the binary protocol is supported");
+            }
+            Request request = new Request();
+            request.opcode = headerIn.readUnsignedByte();
+            int keyLength = headerIn.readUnsignedShort();
+            int extrasLength = headerIn.readUnsignedByte();
+            headerIn.readUnsignedByte(); // data type
+            headerIn.readUnsignedShort(); // vbucket
+            int bodyLength = headerIn.readInt();
+            request.opaque = headerIn.readInt();
+            request.cas = headerIn.readLong();
+            request.extras = new byte[extrasLength];
+            in.readFully(request.extras);
+            byte[] key = new byte[keyLength];
+            in.readFully(key);
+            request.key = new String(key, Charsets.ISO_8859_1);
+            request.value = new byte[bodyLength - extrasLength - keyLength];
+            in.readFully(request.value);
+
+            operations.incrementAndGet();
+            if (!process(request, out)) {
+                out.flush();
+                return;
+            }
+            // quiet commands are followed by a noop or a non quiet command, no need to flush them one by one
+            if (in.available() == 0) {
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * @return {@code false} if the connection must be closed
+     */
+    protected boolean process(@Nonnull Request request, @Nonnull DataOutputStream out) throws IOException {
+        switch (request.opcode) {
+            case GET:
+            case GETQ:
+            case GETK:
+            case GETKQ:
+            case GAT:
+            case GATQ: {
+                boolean quiet = request.opcode == GETQ || request.opcode == GETKQ || request.opcode == GATQ;
+                boolean withKey = request.opcode == GETK || request.opcode == GETKQ;
+                Item item;
+                synchronized (items) {
+                    item = getItem(request.key);
+                    if (item != null && (request.opcode == GAT || request.opcode == GATQ)) {
+                        item.expiresAt = toExpiresAt(readInt(request.extras, 0));
+                    }
+                }
+                if (item == null) {
+                    if (!quiet) {
+                        writeResponse(out, request, STATUS_KEY_NOT_FOUND, 0, new byte[0], withKey ? request.key : "", "Not found".getBytes(Charsets.UTF_8));
+                    }
+                } else {
+                    writeResponse(out, request, STATUS_NO_ERROR, item.cas, toBytes(item.flags), withKey ? request.key : "", item.value);
+                }
+                return true;
+            }
+            case SET:
+            case SETQ:
+            case ADD:
+            case ADDQ:
+            case REPLACE:
+            case REPLACEQ: {
+                boolean quiet = request.opcode == SETQ || request.opcode == ADDQ || request.opcode == REPLACEQ;
+                short status;
+                long cas = 0;
+                synchronized (items) {
+                    Item existing = getItem(request.key);
+                    if ((request.opcode == ADD || request.opcode == ADDQ) && existing != null) {
+                        status = STATUS_KEY_EXISTS;
+                    } else if ((request.opcode == REPLACE || request.opcode == REPLACEQ) && existing == null) {
+                        status = STATUS_KEY_NOT_FOUND;
+                    } else if (request.cas != 0 && existing == null) {
+                        status = STATUS_KEY_NOT_FOUND;
+                    } else if (request.cas != 0 && request.cas != existing.cas) {
+                        status = STATUS_KEY_EXISTS;
+                    } else {
+                        Item item = new Item();
+                        item.flags = readInt(request.extras, 0);
+                        item.expiresAt = toExpiresAt(readInt(request.extras, 4));
+                        item.value = request.value;
+                        item.cas = casSequence.incrementAndGet();
+                        items.put(request.key, item);
+                        status = STATUS_NO_ERROR;
+                        cas = item.cas;
+                    }
+                }
+                if (!quiet || status != STATUS_NO_ERROR) {
+                    writeResponse(out, request, status, cas, new byte[0], "", new byte[0]);
+                }
+                return true;
+            }
+            case DELETE:
+            case DELETEQ: {
+                Item removed;
+                synchronized (items) {
+                    removed = getItem(request.key);
+                    if (removed != null) {
+                        items.remove(request.key);
+                    }
+                }
+                if (removed == null) {
+                    writeResponse(out, request, STATUS_KEY_NOT_FOUND, 0, new byte[0], "", new byte[0]);
+                } else if (request.opcode == DELETE) {
+                    writeResponse(out, request, STATUS_NO_ERROR, 0, new byte[0], "", new byte[0]);
+                }
+                return true;
+            }
+            case TOUCH: {
+                Item item;
+                synchronized (items) {
+                    item = getItem(request.key);
+                    if (item != null) {
+                        item.expiresAt = toExpiresAt(readInt(request.extras, 0));
+                    }
+                }
+                writeResponse(out, request, item == null ? STATUS_KEY_NOT_FOUND : STATUS_NO_ERROR, 0, new byte[0], "", new byte[0]);
+                return true;
+            }
+            case FLUSH:
+            case FLUSHQ:
+                synchronized (items) {
+                    items.clear();
+                }
+                if (request.opcode == FLUSH) {
+                    writeResponse(out, request, STATUS_NO_ERROR, 0, new byte[0], "", new byte[0]);
+                }
+                return true;
+            case NOOP:
+                writeResponse(out, request, STATUS_NO_ERROR, 0, new byte[0], "", new byte[0]);
+                return true;
+            case VERSION:
+                writeResponse(out, request, STATUS_NO_ERROR, 0, new byte[0], "", "1.4.20".getBytes(Charsets.UTF_8));
+                return true;
+            case SASL_LIST_MECHS:
+                writeResponse(out, request, STATUS_NO_ERROR, 0, new byte[0], "", "PLAIN".getBytes(Charsets.UTF_8));
+                return true;
+            case SASL_AUTH:
+            case SASL_STEP:
+                writeResponse(out, request, STATUS_NO_ERROR, 0, new byte[0], "", "Authenticated".getBytes(Charsets.UTF_8));
+                return true;
+            case QUIT:
+            case QUITQ:
+                if (request.opcode == QUIT) {
+                    writeResponse(out, request, STATUS_NO_ERROR, 0, new byte[0], "", new byte[0]);
+                }
+                return false;
+            default:
+                logger.debug("Unsupported command 0x{}", Integer.toHexString(request.opcode));
+                writeResponse(out, request, STATUS_UNKNOWN_COMMAND, 0, new byte[0], "", "Unknown command".getBytes(Charsets.UTF_8));
+                return true;
+        }
+    }
+
+    /**
+     * Must be invoked with the lock of {@link #items}.
+     *
+     * @return the item or {@code null} if it does not exist or if it is expired
+     */
+    private Item getItem(@Nonnull String key) {
+        Item item = items.get(key);
+        if (item != null && item.expiresAt != 0 && item.expiresAt <= System.currentTimeMillis()) {
+            items.remove(key);
+            return null;
+        }
+        return item;
+    }
+
+    /**
+     * @param expiration seconds from now up to 30 days, unix time beyond
+     * @return expiration time in millis, 0 if the item never expires
+     */
+    private long toExpiresAt(int expiration) {
+        if (expiration == 0) {
+            return 0;
+        } else if (expiration <= MAX_RELATIVE_EXPIRATION_IN_SECONDS) {
+            return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expiration);
+        } else {
+            return TimeUnit.SECONDS.toMillis(expiration);
+        }
+    }
+
+    private void writeResponse(@Nonnull DataOutputStream out, @Nonnull Request request, short status, long cas,
+                               @Nonnull byte[] extras, @Nonnull String key, @Nonnull byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(Charsets.ISO_8859_1);
+        out.writeByte(MAGIC_RESPONSE);
+        out.writeByte(request.opcode);
+        out.writeShort(keyBytes.length);
+        out.writeByte(extras.length);
+        out.writeByte(0); // data type
+        out.writeShort(status);
+        out.writeInt(extras.length + keyBytes.length + value.length);
+        out.writeInt(request.opaque);
+        out.writeLong(cas);
+        out.write(extras);
+        out.write(keyBytes);
+        out.write(value);
+    }
+
+    private static int readInt(@Nonnull byte[] bytes, int offset) {
+        if (bytes.length < offset + 4) {
+            return 0;
+        }
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+    }
+
+    @Nonnull
+    private static byte[] toBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+    }
+
+    protected static class Request {
+        int opcode;
+        int opaque;
+        long cas;
+        byte[] extras;
+        String key;
+        byte[] value;
+    }
+
+    private static class Item {
+        int flags;
+        long expiresAt;
+        long cas;
+        byte[] value;
+    }
+}
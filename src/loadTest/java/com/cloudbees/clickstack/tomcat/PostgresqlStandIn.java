@@ -0,0 +1,398 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in of a PostgreSQL server speaking the version 3 frontend/backend protocol, just enough for the
+ * PostgreSQL JDBC driver and the tomcat-jdbc pool: trust authentication, simple and extended query protocols.
+ * <p/>
+ * There is no database behind: a query that returns rows ({@code SELECT}, {@code SHOW}, {@code WITH},
+ * {@code VALUES}) returns a single row with a single text column {@code "1"}, any other statement succeeds without
+ * updating anything. The latency of a query is the round trip over the loopback interface.
+ */
+public class PostgresqlStandIn implements Closeable {
+
+    private static final int PROTOCOL_VERSION_3 = 196608;
+    private static final int SSL_REQUEST_CODE = 80877103;
+    private static final int CANCEL_REQUEST_CODE = 80877102;
+    private static final int TEXT_OID = 25;
+    private static final Pattern PARAMETER = Pattern.compile("\\$(\\d+)");
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ServerSocket serverSocket;
+
+    private final AtomicLong connections = new AtomicLong();
+
+    private final AtomicLong queries = new AtomicLong();
+
+    private volatile boolean closed;
+
+    public PostgresqlStandIn() throws IOException {
+        serverSocket = new ServerSocket(0, 100, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread("postgresql-stand-in-acceptor") {
+            @Override
+            public void run() {
+                accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("PostgreSQL stand-in listening on 127.0.0.1:{}", getPort());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return number of connections opened since the creation of the stand-in
+     */
+    public long getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * @return number of queries executed since the creation of the stand-in
+     */
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    protected void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.warn("Exception accepting connection", e);
+                }
+                return;
+            }
+            connections.incrementAndGet();
+            Thread session = new Thread("postgresql-stand-in-" + socket.getPort()) {
+                @Override
+                public void run() {
+                    try {
+                        new Session(socket).run();
+                    } catch (EOFException | SocketException e) {
+                        logger.trace("Connection closed {}", socket, e);
+                    } catch (IOException | RuntimeException e) {
+                        logger.warn("Exception processing connection {}", socket, e);
+                    } finally {
+                        closeQuietly(socket);
+                    }
+                }
+            };
+            session.setDaemon(true);
+            session.start();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+    }
+
+    private static void closeQuietly(@Nonnull Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private class Session {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        /**
+         * query of the prepared statements and of the portals, the unnamed ones are stored under {@code ""}
+         */
+        private final Map<String, String> statements = new HashMap<>();
+        private final Map<String, String> portals = new HashMap<>();
+
+        private Session(@Nonnull Socket socket) throws IOException {
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        private void run() throws IOException {
+            if (!startup()) {
+                return;
+            }
+            while (true) {
+                char type = (char) in.readUnsignedByte();
+                byte[] body = new byte[in.readInt() - 4];
+                in.readFully(body);
+                DataInputStream message = new DataInputStream(new ByteArrayInputStream(body));
+                switch (type) {
+                    case 'Q': {
+                        String query = readString(message);
+                        queries.incrementAndGet();
+                        if (query.trim().isEmpty()) {
+                            writeMessage('I', new byte[0]);
+                        } else {
+                            if (returnsRows(query)) {
+                                writeRowDescription();
+                            }
+                            writeResult(query);
+                        }
+                        writeReadyForQuery();
+                        out.flush();
+                        break;
+                    }
+                    case 'P': {
+                        String name = readString(message);
+                        statements.put(name, readString(message));
+                        writeMessage('1', new byte[0]);
+                        break;
+                    }
+                    case 'B': {
+                        String portal = readString(message);
+                        String statement = readString(message);
+                        portals.put(portal, statements.get(statement));
+                        writeMessage('2', new byte[0]);
+                        break;
+                    }
+                    case 'D': {
+                        char target = (char) message.readUnsignedByte();
+                        String name = readString(message);
+                        String query = target == 'S' ? statements.get(name) : portals.get(name);
+                        if (target == 'S') {
+                            writeParameterDescription(query);
+                        }
+                        if (query != null && returnsRows(query)) {
+                            writeRowDescription();
+                        } else {
+                            writeMessage('n', new byte[0]);
+                        }
+                        break;
+                    }
+                    case 'E': {
+                        String query = portals.get(readString(message));
+                        queries.incrementAndGet();
+                        if (query == null || query.trim().isEmpty()) {
+                            writeMessage('I', new byte[0]);
+                        } else {
+                            writeResult(query);
+                        }
+                        break;
+                    }
+                    case 'C': {
+                        char target = (char) message.readUnsignedByte();
+                        String name = readString(message);
+                        (target == 'S' ? statements : portals).remove(name);
+                        writeMessage('3', new byte[0]);
+                        break;
+                    }
+                    case 'S':
+                        portals.clear();
+                        writeReadyForQuery();
+                        out.flush();
+                        break;
+                    case 'H':
+                        out.flush();
+                        break;
+                    case 'X':
+                        return;
+                    default:
+                        writeError("0A000", "Message '" + type + "' not supported by the stand-in");
+                        writeReadyForQuery();
+                        out.flush();
+                }
+            }
+        }
+
+        /**
+         * @return {@code false} if the connection must be closed (cancel request)
+         */
+        private boolean startup() throws IOException {
+            while (true) {
+                byte[] body = new byte[in.readInt() - 4];
+                in.readFully(body);
+                int code = new DataInputStream(new ByteArrayInputStream(body)).readInt();
+                if (code == SSL_REQUEST_CODE) {
+                    out.writeByte('N');
+                    out.flush();
+                } else if (code == CANCEL_REQUEST_CODE) {
+                    return false;
+                } else if (code == PROTOCOL_VERSION_3) {
+                    break;
+                } else {
+                    throw new IOException("Unsupported protocol version " + code);
+                }
+            }
+            // AuthenticationOk
+            writeMessage('R', toBytes(0));
+            writeParameterStatus("server_version", "9.3.0");
+            writeParameterStatus("server_encoding", "UTF8");
+            writeParameterStatus("client_encoding", "UTF8");
+            writeParameterStatus("DateStyle", "ISO, MDY");
+            writeParameterStatus("integer_datetimes", "on");
+            writeParameterStatus("standard_conforming_strings", "on");
+            writeParameterStatus("TimeZone", "UTC");
+            // BackendKeyData
+            ByteArrayOutputStream keyData = new ByteArrayOutputStream();
+            DataOutputStream keyDataOut = new DataOutputStream(keyData);
+            keyDataOut.writeInt((int) connections.get());
+            keyDataOut.writeInt(0);
+            writeMessage('K', keyData.toByteArray());
+            writeReadyForQuery();
+            out.flush();
+            return true;
+        }
+
+        private boolean returnsRows(@Nonnull String query) {
+            String keyword = getKeyword(query);
+            return keyword.equals("SELECT") || keyword.equals("SHOW") || keyword.equals("WITH") || keyword.equals("VALUES");
+        }
+
+        @Nonnull
+        private String getKeyword(@Nonnull String query) {
+            String trimmed = query.trim();
+            int end = 0;
+            while (end < trimmed.length() && Character.isLetter(trimmed.charAt(end))) {
+                end++;
+            }
+            return trimmed.substring(0, end).toUpperCase(Locale.ENGLISH);
+        }
+
+        private void writeResult(@Nonnull String query) throws IOException {
+            String keyword = getKeyword(query);
+            String tag;
+            if (returnsRows(query)) {
+                // DataRow: 1 column, value "1"
+                ByteArrayOutputStream row = new ByteArrayOutputStream();
+                DataOutputStream rowOut = new DataOutputStream(row);
+                rowOut.writeShort(1);
+                rowOut.writeInt(1);
+                rowOut.writeByte('1');
+                writeMessage('D', row.toByteArray());
+                tag = "SELECT 1";
+            } else if (keyword.equals("INSERT")) {
+                tag = "INSERT 0 1";
+            } else if (keyword.equals("UPDATE") || keyword.equals("DELETE")) {
+                tag = keyword + " 1";
+            } else {
+                tag = keyword;
+            }
+            writeMessage('C', toCString(tag));
+        }
+
+        private void writeRowDescription() throws IOException {
+            ByteArrayOutputStream description = new ByteArrayOutputStream();
+            DataOutputStream descriptionOut = new DataOutputStream(description);
+            descriptionOut.writeShort(1);
+            descriptionOut.write(toCString("?column?"));
+            descriptionOut.writeInt(0); // table oid
+            descriptionOut.writeShort(0); // column attribute number
+            descriptionOut.writeInt(TEXT_OID);
+            descriptionOut.writeShort(-1); // type size
+            descriptionOut.writeInt(-1); // type modifier
+            descriptionOut.writeShort(0); // text format
+            writeMessage('T', description.toByteArray());
+        }
+
+        private void writeParameterDescription(String query) throws IOException {
+            int parameters = 0;
+            if (query != null) {
+                Matcher matcher = PARAMETER.matcher(query);
+                while (matcher.find()) {
+                    parameters = Math.max(parameters, Integer.parseInt(matcher.group(1)));
+                }
+            }
+            ByteArrayOutputStream description = new ByteArrayOutputStream();
+            DataOutputStream descriptionOut = new DataOutputStream(description);
+            descriptionOut.writeShort(parameters);
+            for (int i = 0; i < parameters; i++) {
+                descriptionOut.writeInt(TEXT_OID);
+            }
+            writeMessage('t', description.toByteArray());
+        }
+
+        private void writeParameterStatus(@Nonnull String name, @Nonnull String value) throws IOException {
+            ByteArrayOutputStream status = new ByteArrayOutputStream();
+            status.write(toCString(name));
+            status.write(toCString(value));
+            writeMessage('S', status.toByteArray());
+        }
+
+        private void writeError(@Nonnull String sqlState, @Nonnull String message) throws IOException {
+            ByteArrayOutputStream error = new ByteArrayOutputStream();
+            error.write('S');
+            error.write(toCString("ERROR"));
+            error.write('C');
+            error.write(toCString(sqlState));
+            error.write('M');
+            error.write(toCString(message));
+            error.write(0);
+            writeMessage('E', error.toByteArray());
+        }
+
+        private void writeReadyForQuery() throws IOException {
+            writeMessage('Z', new byte[]{'I'});
+        }
+
+        private void writeMessage(char type, @Nonnull byte[] body) throws IOException {
+            out.writeByte(type);
+            out.writeInt(body.length + 4);
+            out.write(body);
+        }
+
+        @Nonnull
+        private String readString(@Nonnull DataInputStream message) throws IOException {
+            ByteArrayOutputStream string = new ByteArrayOutputStream();
+            int b;
+            while ((b = message.readUnsignedByte()) != 0) {
+                string.write(b);
+            }
+            return new String(string.toByteArray(), Charsets.UTF_8);
+        }
+
+        @Nonnull
+        private byte[] toCString(@Nonnull String value) {
+            byte[] bytes = value.getBytes(Charsets.UTF_8);
+            byte[] cString = new byte[bytes.length + 1];
+            System.arraycopy(bytes, 0, cString, 0, bytes.length);
+            return cString;
+        }
+
+        @Nonnull
+        private byte[] toBytes(int value) {
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+    }
+}
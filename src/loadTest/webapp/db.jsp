@@ -0,0 +1,14 @@
+<%@ page contentType="text/plain;charset=UTF-8" session="false" %>
+<%@ page import="javax.naming.InitialContext, javax.sql.DataSource, java.sql.Connection, java.sql.ResultSet, java.sql.Statement" %>
+<%-- borrows a connection of the "jdbc/loadtest" datasource and executes a query: measures the connection pool --%>
+<%
+    DataSource dataSource = (DataSource) new InitialContext().lookup("java:comp/env/jdbc/loadtest");
+    try (Connection connection = dataSource.getConnection();
+         Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("select 1")) {
+        resultSet.next();
+%>
+result=<%= resultSet.getString(1) %>
+<%
+    }
+%>
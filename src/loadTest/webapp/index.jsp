@@ -0,0 +1,16 @@
+<%@ page contentType="text/html;charset=UTF-8" session="false" %>
+<%-- dynamic page without session nor resource: measures the connector and the JSP engine --%>
+<html>
+<head>
+    <title>Load test</title>
+    <link rel="stylesheet" href="static/style.css">
+</head>
+<body>
+<h1>Load test</h1>
+<ul>
+    <% for (int i = 0; i < 100; i++) { %>
+    <li>Item <%= i %> - <%= Integer.toHexString(i * 31) %></li>
+    <% } %>
+</ul>
+</body>
+</html>
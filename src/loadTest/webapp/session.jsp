@@ -0,0 +1,8 @@
+<%@ page contentType="text/plain;charset=UTF-8" %>
+<%-- updates the session at each request: measures the session manager and the session store --%>
+<%
+    Integer counter = (Integer) session.getAttribute("counter");
+    counter = counter == null ? 1 : counter + 1;
+    session.setAttribute("counter", counter);
+%>
+counter=<%= counter %>
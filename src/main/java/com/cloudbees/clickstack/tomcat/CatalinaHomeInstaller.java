@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.util.Files2;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Install the tomcat package of the clickstack as the {@code apache-tomcat-*} catalina.home of the application,
+ * either extracted in the application directory or linked to a copy shared by the applications of the host.
+ * <p/>
+ * The catalina.home of a previous setup is deleted first: it is read-only and may come from another tomcat version.
+ */
+public class CatalinaHomeInstaller {
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    private final Path appDir;
+
+    public CatalinaHomeInstaller(@Nonnull Path appDir) {
+        this.appDir = appDir;
+    }
+
+    /**
+     * @param cacheDir host-level cache of the extracted tomcat packages ({@code setup.catalinaHome.cacheDir}),
+     *                 {@code null} to extract the tomcat package in the application directory
+     * @return the {@code apache-tomcat-*} catalina.home
+     */
+    @Nonnull
+    public Path install(@Nonnull Path tomcatPackagePath, @Nullable Path cacheDir) throws IOException {
+        deletePreviousCatalinaHomes();
+
+        Path catalinaHome;
+        if (cacheDir == null) {
+            unzip(tomcatPackagePath, appDir);
+            catalinaHome = Files2.findUniqueDirectoryBeginningWith(appDir, "apache-tomcat");
+            logger.debug("install() {}", catalinaHome);
+
+            Files2.chmodReadOnly(catalinaHome);
+        } else {
+            Path sharedCatalinaHome = installSharedCatalinaHome(tomcatPackagePath, cacheDir);
+            catalinaHome = linkSharedCatalinaHome(sharedCatalinaHome);
+            logger.debug("install() {} -> {}", catalinaHome, sharedCatalinaHome);
+        }
+
+        // some frameworks like Grails try to write in ${catalina.home}/logs
+        Path logsDir = Files.createDirectories(catalinaHome.resolve("logs"));
+        Files2.chmodAddReadWrite(logsDir);
+
+        Path workDir = Files.createDirectories(catalinaHome.resolve("work"));
+        Files2.chmodAddReadWrite(workDir);
+
+        Path tempDir = Files.createDirectories(catalinaHome.resolve("temp"));
+        Files2.chmodAddReadWrite(tempDir);
+
+        return catalinaHome;
+    }
+
+    /**
+     * Delete the {@code apache-tomcat-*} directories of the previous setups. The symlinks of a linked catalina.home
+     * are deleted, not the shared catalina.home they point to.
+     */
+    protected void deletePreviousCatalinaHomes() throws IOException {
+        try (DirectoryStream<Path> previousCatalinaHomes = Files.newDirectoryStream(appDir, "apache-tomcat*")) {
+            for (Path previousCatalinaHome : previousCatalinaHomes) {
+                logger.debug("Delete previous catalina.home {}", previousCatalinaHome);
+                Setup.deleteRecursively(previousCatalinaHome);
+            }
+        }
+    }
+
+    /**
+     * Unzip the tomcat package in the host-level cache {@code cacheDir}, under a directory named after the SHA-1 of the
+     * package, unless it has already been done by a previous deployment. The cache entry is populated in a temporary
+     * directory and then atomically renamed so that concurrent deployments never see a partially extracted tomcat.
+     *
+     * @return the read-only shared {@code apache-tomcat-*} directory
+     */
+    @Nonnull
+    protected Path installSharedCatalinaHome(@Nonnull Path tomcatPackagePath, @Nonnull Path cacheDir) throws IOException {
+        String checksum = com.google.common.io.Files.hash(tomcatPackagePath.toFile(), Hashing.sha1()).toString();
+        Path cacheEntry = cacheDir.resolve(checksum);
+
+        if (Files.isDirectory(cacheEntry)) {
+            logger.info("Use cached catalina.home {}", cacheEntry);
+        } else {
+            Files.createDirectories(cacheDir);
+            Path tmpCacheEntry = Files.createTempDirectory(cacheDir, checksum + ".");
+            try {
+                unzip(tomcatPackagePath, tmpCacheEntry);
+                // read-only before it becomes visible to the other deployments
+                Files2.chmodReadOnly(tmpCacheEntry);
+                move(tmpCacheEntry, cacheEntry);
+                logger.info("Add catalina.home {} to cache {}", tomcatPackagePath.getFileName(), cacheEntry);
+            } catch (IOException e) {
+                // renaming onto a non-empty directory fails with a FileAlreadyExistsException, a
+                // DirectoryNotEmptyException or a generic FileSystemException depending on the platform
+                if (!Files.isDirectory(cacheEntry)) {
+                    throw e;
+                }
+                logger.info("Use catalina.home {} cached by a concurrent deployment", cacheEntry);
+            } finally {
+                if (Files.exists(tmpCacheEntry)) {
+                    Setup.deleteRecursively(tmpCacheEntry);
+                }
+            }
+        }
+        return Files2.findUniqueDirectoryBeginningWith(cacheEntry, "apache-tomcat");
+    }
+
+    protected void move(@Nonnull Path tmpCacheEntry, @Nonnull Path cacheEntry) throws IOException {
+        Files.move(tmpCacheEntry, cacheEntry, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Create under {@code appDir} a {@code apache-tomcat-*} directory made of symlinks to the content of the shared
+     * catalina.home. The writable {@code logs}, {@code work} and {@code temp} directories are not linked, they are
+     * created per application by {@link #install(Path, Path)}.
+     */
+    @Nonnull
+    protected Path linkSharedCatalinaHome(@Nonnull Path sharedCatalinaHome) throws IOException {
+        Path linkedCatalinaHome = Files.createDirectories(appDir.resolve(sharedCatalinaHome.getFileName().toString()));
+        Set<String> writableDirectories = new HashSet<>(Arrays.asList("logs", "work", "temp"));
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(sharedCatalinaHome)) {
+            for (Path child : children) {
+                String name = child.getFileName().toString();
+                if (writableDirectories.contains(name)) {
+                    continue;
+                }
+                Path link = linkedCatalinaHome.resolve(name);
+                if (Files.isSymbolicLink(link)) {
+                    Files.delete(link);
+                } else if (Files.exists(link)) {
+                    throw new IllegalStateException("Cannot link shared catalina.home, " + link + " already exists");
+                }
+                Files.createSymbolicLink(link, child);
+            }
+        }
+        return linkedCatalinaHome;
+    }
+
+    /**
+     * Extract the given zip file, overridden by {@link Setup} to use the {@link ParallelZipExtractor}.
+     */
+    protected void unzip(@Nonnull Path zipFile, @Nonnull Path destDir) throws IOException {
+        Files2.unzip(zipFile, destDir);
+    }
+}
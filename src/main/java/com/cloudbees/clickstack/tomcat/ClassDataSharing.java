@@ -0,0 +1,317 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Application Class Data Sharing (AppCDS) archive of the classes loaded when Tomcat starts, created by a training
+ * start of the configured Tomcat.
+ * <p/>
+ * The training Tomcat is started with the control scripts configuration (except the jmxtrans agent) on a free port,
+ * receives one request on the application and is stopped:
+ * <ul>
+ * <li>Java 13+: the archive is dumped at exit with {@code -XX:ArchiveClassesAtExit}</li>
+ * <li>Java 10 to 12: the loaded classes are listed with {@code -XX:DumpLoadedClassList} and the archive is dumped with
+ * {@code -Xshare:dump}</li>
+ * <li>before Java 10: not supported, no archive</li>
+ * </ul>
+ * The archive is then verified by a second start with {@code -Xshare:on}, the startup times of both starts are logged.
+ * Any failure leaves the application without archive. A training JVM that does not stop within the timeout is killed,
+ * it would otherwise keep running beside the application, and the application is left without archive too; only a
+ * failure to kill it fails the setup.
+ */
+public class ClassDataSharing {
+
+    /**
+     * class path of the {@code config} file, the archive is only valid for this class path
+     */
+    private static final String CLASSPATH_OPTION = "-cp \\\"$java_classpath\\\"";
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    private final Path controlDir;
+    @Nonnull
+    private final Path archiveFile;
+    @Nonnull
+    private final Path logFile;
+    @Nonnull
+    private final String contextPath;
+    private final int javaMajorVersion;
+    private final int timeoutInSeconds;
+    /**
+     * a training JVM has been killed, its class list or archive can not be trusted
+     */
+    private boolean killed;
+
+    /**
+     * @param controlDir  control scripts folder, its {@code config} and {@code java-opts-*} files must be written
+     * @param contextPath name of the folder of the webapp in {@code catalina-base/webapps} ("ROOT", "myapp"...)
+     */
+    public ClassDataSharing(@Nonnull Path controlDir, @Nonnull Path archiveFile, @Nonnull Path logFile,
+                            @Nonnull String contextPath, int javaMajorVersion, int timeoutInSeconds) {
+        this.controlDir = Preconditions.checkNotNull(controlDir, "controlDir");
+        this.archiveFile = Preconditions.checkNotNull(archiveFile, "archiveFile");
+        this.logFile = Preconditions.checkNotNull(logFile, "logFile");
+        this.contextPath = Preconditions.checkNotNull(contextPath, "contextPath");
+        this.javaMajorVersion = javaMajorVersion;
+        this.timeoutInSeconds = timeoutInSeconds;
+    }
+
+    public boolean isSupported() {
+        return javaMajorVersion >= 10;
+    }
+
+    /**
+     * @return the JVM options that use the archive, an empty list if the archive could not be created
+     */
+    @Nonnull
+    public List<String> createArchive() throws IOException, InterruptedException {
+        Files.deleteIfExists(archiveFile);
+        if (!isSupported()) {
+            logger.info("Class data sharing archive not supported by Java {}, skip it", javaMajorVersion);
+            return Collections.emptyList();
+        }
+        Files.createDirectories(archiveFile.getParent());
+        Files.deleteIfExists(logFile);
+
+        long startupWithoutArchive;
+        if (javaMajorVersion >= 13) {
+            startupWithoutArchive = timeStartup("-XX:ArchiveClassesAtExit=" + archiveFile);
+        } else {
+            Path classListFile = archiveFile.resolveSibling(archiveFile.getFileName() + ".classlist");
+            startupWithoutArchive = timeStartup("-XX:DumpLoadedClassList=" + classListFile);
+            if (startupWithoutArchive != -1 && !killed) {
+                run("-Xshare:dump " + Joiner.on(' ').join(getArchiveOptions("-XX:SharedClassListFile=" + classListFile)) +
+                        " " + CLASSPATH_OPTION);
+            }
+            Files.deleteIfExists(classListFile);
+        }
+        if (killed) {
+            return discardKilledArchive();
+        }
+        if (startupWithoutArchive == -1 || !Files.exists(archiveFile)) {
+            logger.warn("Training start failed, no class data sharing archive (see {})", logFile);
+            Files.deleteIfExists(archiveFile);
+            return Collections.emptyList();
+        }
+
+        List<String> archiveOptions = getArchiveOptions();
+        long startupWithArchive = timeStartup("-Xshare:on " + Joiner.on(' ').join(archiveOptions));
+        if (killed) {
+            return discardKilledArchive();
+        }
+        if (startupWithArchive == -1) {
+            logger.warn("Tomcat does not start with the class data sharing archive, discard it (see {})", logFile);
+            Files.deleteIfExists(archiveFile);
+            return Collections.emptyList();
+        }
+        logger.info("Class data sharing archive {} ({}KB) created: startup in {}ms without archive, {}ms with archive",
+                archiveFile, Files.size(archiveFile) / 1024, startupWithoutArchive, startupWithArchive);
+        return archiveOptions;
+    }
+
+    @Nonnull
+    private List<String> discardKilledArchive() throws IOException {
+        logger.warn("Training JVM did not stop within {}s and has been killed, no class data sharing archive (see {})",
+                timeoutInSeconds, logFile);
+        Files.deleteIfExists(archiveFile);
+        return Collections.emptyList();
+    }
+
+    @Nonnull
+    protected List<String> getArchiveOptions(@Nonnull String... extraOptions) {
+        List<String> options = new ArrayList<>();
+        if (javaMajorVersion == 10) {
+            options.add("-XX:+UseAppCDS");
+        }
+        options.add("-XX:SharedArchiveFile=" + archiveFile);
+        options.addAll(Arrays.asList(extraOptions));
+        return options;
+    }
+
+    /**
+     * Start Tomcat, wait for its connector and for the response to a request on the application, then stop it.
+     *
+     * @return the startup time in millis, -1 if Tomcat did not start
+     */
+    protected long timeStartup(@Nonnull String extraJavaOpts) throws IOException, InterruptedException {
+        int port = findFreePort();
+        long startTime = System.nanoTime();
+        Process process = start(extraJavaOpts + " -Dport.http=" + port + " " + CLASSPATH_OPTION +
+                " org.apache.catalina.startup.Bootstrap start");
+        try {
+            long deadline = startTime + TimeUnit.SECONDS.toNanos(timeoutInSeconds);
+            while (!isListening(port)) {
+                if (hasExited(process) || System.nanoTime() > deadline) {
+                    return -1;
+                }
+                Thread.sleep(50);
+            }
+            // load the classes of the application
+            String url = "http://127.0.0.1:" + port + ("ROOT".equals(contextPath) ? "/" : "/" + contextPath + "/");
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(timeoutInSeconds * 1000);
+            connection.setReadTimeout(timeoutInSeconds * 1000);
+            int responseCode = connection.getResponseCode();
+            long startupTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+            logger.debug("Training start: {} in {}ms", responseCode, startupTime);
+            return startupTime;
+        } finally {
+            // SIGTERM: the shutdown hook of Tomcat stops it and the JVM dumps the archive on exit
+            process.destroy();
+            waitFor(process);
+        }
+    }
+
+    /**
+     * Run the JVM of the application with the given arguments and wait for its completion.
+     */
+    protected void run(@Nonnull String javaArguments) throws IOException, InterruptedException {
+        int exitCode = waitFor(start(javaArguments));
+        if (exitCode != 0) {
+            logger.warn("'java {}' exited with {}", javaArguments, exitCode);
+        }
+    }
+
+    /**
+     * Mimic the {@code start} control script without the jmxtrans agent.
+     */
+    @Nonnull
+    protected Process start(@Nonnull String javaArguments) throws IOException {
+        String script = "" +
+                ". \"$control_dir/functions/functions\"\n" +
+                ". \"$control_dir/config\"\n" +
+                "java_opts=''\n" +
+                "for f in $(ls $control_dir/java-opts-* | sort); do\n" +
+                "    case \"$f\" in\n" +
+                "        *-jmxtrans-agent|*-cds) ;;\n" +
+                "        *) java_opts=\"$java_opts $(cat $f)\" ;;\n" +
+                "    esac\n" +
+                "done\n" +
+                "export app_extra_files=$app_extra_files\n" +
+                "exec bash -c \"$java $java_opts $catalina_opts " + javaArguments + "\"\n";
+        logger.debug("Run {}", script);
+        ProcessBuilder processBuilder = new ProcessBuilder("bash", "-c", script);
+        processBuilder.environment().put("control_dir", controlDir.toString());
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.appendTo(logFile.toFile()));
+        return processBuilder.start();
+    }
+
+    /**
+     * @return the exit code of the process, killed if it does not stop within the timeout
+     * @throws IOException if the process can not be killed
+     */
+    private int waitFor(@Nonnull Process process) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutInSeconds);
+        while (!hasExited(process)) {
+            if (System.nanoTime() > deadline) {
+                kill(process);
+                killed = true;
+                break;
+            }
+            Thread.sleep(50);
+        }
+        return process.exitValue();
+    }
+
+    /**
+     * {@code kill -9} of the process, {@code Process.destroyForcibly()} is not available in Java 7.
+     */
+    protected void kill(@Nonnull Process process) throws IOException, InterruptedException {
+        long pid;
+        try {
+            // Process.pid() since Java 9, private field of the UNIXProcess before
+            pid = (Long) Process.class.getMethod("pid").invoke(process);
+        } catch (NoSuchMethodException e) {
+            try {
+                Field pidField = process.getClass().getDeclaredField("pid");
+                pidField.setAccessible(true);
+                pid = pidField.getInt(process);
+            } catch (ReflectiveOperationException | RuntimeException e2) {
+                throw new IOException("Cannot kill training JVM, pid of " + process + " not found", e2);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new IOException("Cannot kill training JVM, pid of " + process + " not found", e);
+        }
+        logger.warn("Training JVM {} does not stop, kill it", pid);
+        Process kill = new ProcessBuilder("kill", "-9", String.valueOf(pid)).redirectErrorStream(true).start();
+        try (InputStream in = kill.getInputStream()) {
+            ByteStreams.toByteArray(in);
+        }
+        kill.waitFor();
+        process.waitFor();
+    }
+
+    private static boolean hasExited(@Nonnull Process process) {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    private static boolean isListening(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("127.0.0.1", port), 100);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    /**
+     * Write the {@code java-opts-*} file that uses the archive, or delete it if there is no archive.
+     */
+    public static void writeJavaOpts(@Nonnull Path javaOptsFile, @Nonnull List<String> archiveOptions) throws IOException {
+        if (archiveOptions.isEmpty()) {
+            Files.deleteIfExists(javaOptsFile);
+        } else {
+            Files.write(javaOptsFile, Collections.singleton(Joiner.on(' ').join(archiveOptions)), Charsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * I/O implementation of the HTTP connector, selected with the {@code tomcat.engine} runtime parameter.
+ *
+ * @see <a href="http://tomcat.apache.org/tomcat-8.0-doc/config/http.html">Tomcat 8 HTTP Connector</a>
+ */
+public enum ConnectorEngine {
+    NIO("org.apache.coyote.http11.Http11NioProtocol"),
+    NIO2("org.apache.coyote.http11.Http11Nio2Protocol"),
+    APR("org.apache.coyote.http11.Http11AprProtocol");
+
+    /**
+     * Connector attributes that only apply to some engines, the other attributes are common to all the engines.
+     */
+    private static final Map<String, Set<ConnectorEngine>> SPECIFIC_ATTRIBUTES;
+
+    static {
+        Set<ConnectorEngine> nio = EnumSet.of(NIO);
+        Set<ConnectorEngine> nioAndNio2 = EnumSet.of(NIO, NIO2);
+        Set<ConnectorEngine> nio2 = EnumSet.of(NIO2);
+        Set<ConnectorEngine> apr = EnumSet.of(APR);
+        Set<ConnectorEngine> nioAndApr = EnumSet.of(NIO, APR);
+
+        ImmutableMap.Builder<String, Set<ConnectorEngine>> builder = ImmutableMap.builder();
+        for (String attribute : Arrays.asList("pollerThreadPriority", "selectorTimeout", "selectorPool.shared",
+                "selectorPool.maxSelectors", "selectorPool.maxSpareSelectors", "socket.keyCache")) {
+            builder.put(attribute, nio);
+        }
+        builder.put("pollerThreadCount", nioAndApr);
+        builder.put("useCaches", nio2);
+        for (String attribute : Arrays.asList("socket.directBuffer", "socket.appReadBufSize", "socket.appWriteBufSize",
+                "socket.bufferPool", "socket.bufferPoolSize", "socket.processorCache", "socket.eventCache",
+                "oomParachute",
+                /* JSSE */
+                "keystoreFile", "keystorePass", "keystoreType", "keystoreProvider", "keyAlias", "keyPass",
+                "truststoreFile", "truststorePass", "truststoreType", "truststoreProvider", "clientAuth",
+                "sslProtocol", "sslEnabledProtocols", "ciphers")) {
+            builder.put(attribute, nioAndNio2);
+        }
+        for (String attribute : Arrays.asList("deferAccept", "pollerSize", "pollTime", "sendfileSize",
+                "sendfileThreadCount", "ipv6v4",
+                /* OpenSSL */
+                "SSLCertificateFile", "SSLCertificateKeyFile", "SSLCertificateChainFile", "SSLPassword",
+                "SSLCACertificateFile", "SSLCACertificatePath", "SSLCipherSuite", "SSLProtocol",
+                "SSLHonorCipherOrder", "SSLVerifyClient", "SSLVerifyDepth")) {
+            builder.put(attribute, apr);
+        }
+        SPECIFIC_ATTRIBUTES = builder.build();
+    }
+
+    @Nonnull
+    private final String protocol;
+
+    ConnectorEngine(@Nonnull String protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * @return value of the {@code protocol} attribute of the {@code <Connector>}
+     */
+    @Nonnull
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * @return {@code true} if the given connector attribute is either common to all the engines or specific to this one
+     */
+    public boolean supports(@Nonnull String attribute) {
+        Set<ConnectorEngine> engines = SPECIFIC_ATTRIBUTES.get(attribute);
+        return engines == null || engines.contains(this);
+    }
+
+    /**
+     * @return the engine selected by the {@code tomcat.engine} runtime parameter, {@code null} if not defined
+     * @throws IllegalStateException if the value is not a known engine
+     */
+    @Nullable
+    public static ConnectorEngine fromMetadata(@Nonnull Metadata metadata) {
+        String engine = metadata.getRuntimeParameter("tomcat", "engine", null);
+        if (engine == null) {
+            return null;
+        }
+        try {
+            return valueOf(engine.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Invalid 'tomcat.engine' '" + engine + "', expected one of " +
+                    ImmutableSet.copyOf(values()).toString().toLowerCase());
+        }
+    }
+}
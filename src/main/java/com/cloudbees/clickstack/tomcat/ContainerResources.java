@@ -0,0 +1,231 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * CPU and memory available to the application, as limited by the cgroups (v1 or v2) of the container or, if there is
+ * no limit, by the host.
+ * <p/>
+ * The cgroup of the process is resolved from {@code /proc/self/cgroup} under {@code /sys/fs/cgroup}; inside a cgroup
+ * namespace, where this path does not exist, the limits are read at the root of the controller. Unreadable or
+ * malformed cgroup files are ignored and the host values are used.
+ */
+public class ContainerResources {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContainerResources.class);
+
+    public static final long MB = 1024 * 1024;
+
+    private final int cpus;
+    private final long memoryInBytes;
+
+    public ContainerResources(int cpus, long memoryInBytes) {
+        Preconditions.checkArgument(cpus > 0, "Invalid cpus %s", cpus);
+        Preconditions.checkArgument(memoryInBytes > 0, "Invalid memoryInBytes %s", memoryInBytes);
+        this.cpus = cpus;
+        this.memoryInBytes = memoryInBytes;
+    }
+
+    @Nonnull
+    public static ContainerResources detect() {
+        return detect(Paths.get("/proc/self/cgroup"), Paths.get("/sys/fs/cgroup"));
+    }
+
+    /**
+     * @param procSelfCgroup {@code /proc/self/cgroup}
+     * @param cgroupRoot     {@code /sys/fs/cgroup}
+     */
+    @Nonnull
+    public static ContainerResources detect(@Nonnull Path procSelfCgroup, @Nonnull Path cgroupRoot) {
+        int hostCpus = Runtime.getRuntime().availableProcessors();
+        long hostMemory = getHostMemory();
+        List<String> cgroups = readAllLines(procSelfCgroup);
+
+        int cpus = hostCpus;
+        Long quota = readCpuQuota(resolveCgroupDir(cgroups, cgroupRoot, "cpu"));
+        if (quota != null) {
+            cpus = Math.max(1, Math.min(hostCpus, (int) quota.longValue()));
+        }
+
+        long memory = hostMemory;
+        Long memoryLimit = readMemoryLimit(resolveCgroupDir(cgroups, cgroupRoot, "memory"));
+        if (memoryLimit != null && memoryLimit > 0 && memoryLimit < hostMemory) {
+            memory = memoryLimit;
+        }
+        ContainerResources resources = new ContainerResources(cpus, memory);
+        logger.debug("Detected {} (host: {} cpus, {}MB)", resources, hostCpus, hostMemory / MB);
+        return resources;
+    }
+
+    /**
+     * Directory of the cgroup of the process for the given controller.
+     * <p/>
+     * Lines of {@code /proc/self/cgroup} are {@code hierarchy-id:controllers:path}: a cgroup v1 line lists the
+     * controller, mounted under {@code cgroupRoot/<controller>}; the cgroup v2 line is {@code 0::path}, mounted at
+     * {@code cgroupRoot}. The v1 line wins on hybrid hosts where the controller is still bound to v1.
+     *
+     * @param cgroups lines of {@code /proc/self/cgroup}
+     * @return the directory of the cgroup, the directory of the controller if the cgroup path does not exist there
+     */
+    @Nonnull
+    protected static Path resolveCgroupDir(@Nonnull List<String> cgroups, @Nonnull Path cgroupRoot, @Nonnull String controller) {
+        Path controllerDir = null;
+        String cgroupPath = "/";
+        for (String line : cgroups) {
+            String[] tokens = line.split(":", 3);
+            if (tokens.length != 3) {
+                continue;
+            }
+            if (Arrays.asList(tokens[1].split(",")).contains(controller)) {
+                controllerDir = cgroupRoot.resolve(controller);
+                cgroupPath = tokens[2];
+                break;
+            } else if ("0".equals(tokens[0]) && tokens[1].isEmpty()) {
+                controllerDir = cgroupRoot;
+                cgroupPath = tokens[2];
+            }
+        }
+        if (controllerDir == null) {
+            controllerDir = Files.isDirectory(cgroupRoot.resolve(controller)) ? cgroupRoot.resolve(controller) : cgroupRoot;
+        }
+        String relativePath = cgroupPath.replaceFirst("^/+", "");
+        Path cgroupDir = relativePath.isEmpty() ? controllerDir : controllerDir.resolve(relativePath).normalize();
+        // inside a cgroup namespace, the cgroup of the process is mounted at the root of the controller
+        return cgroupDir.startsWith(controllerDir) && Files.isDirectory(cgroupDir) ? cgroupDir : controllerDir;
+    }
+
+    /**
+     * @param cpuDir cgroup directory of the {@code cpu} controller
+     * @return the cpu quota rounded up to the next integer, {@code null} if there is no quota or if it is malformed
+     */
+    @Nullable
+    protected static Long readCpuQuota(@Nonnull Path cpuDir) {
+        // cgroup v2: "$MAX $PERIOD" with "max" for no limit
+        String cpuMax = readFirstLine(cpuDir.resolve("cpu.max"));
+        try {
+            if (cpuMax != null) {
+                String[] tokens = cpuMax.trim().split("\\s+");
+                if (tokens.length != 2 || "max".equals(tokens[0])) {
+                    return null;
+                }
+                return divideRoundingUp(Long.parseLong(tokens[0]), Long.parseLong(tokens[1]));
+            }
+            // cgroup v1: quota is -1 for no limit
+            String quota = readFirstLine(cpuDir.resolve("cpu.cfs_quota_us"));
+            String period = readFirstLine(cpuDir.resolve("cpu.cfs_period_us"));
+            if (quota == null || period == null || Long.parseLong(quota.trim()) <= 0) {
+                return null;
+            }
+            return divideRoundingUp(Long.parseLong(quota.trim()), Long.parseLong(period.trim()));
+        } catch (NumberFormatException e) {
+            logger.warn("Ignore malformed cpu quota of cgroup {}: {}", cpuDir, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param memoryDir cgroup directory of the {@code memory} controller
+     * @return the memory limit in bytes, {@code null} if there is no limit or if it is malformed
+     */
+    @Nullable
+    protected static Long readMemoryLimit(@Nonnull Path memoryDir) {
+        try {
+            // cgroup v2: "max" for no limit
+            String memoryMax = readFirstLine(memoryDir.resolve("memory.max"));
+            if (memoryMax != null) {
+                return "max".equals(memoryMax.trim()) ? null : Long.valueOf(memoryMax.trim());
+            }
+            // cgroup v1: a huge value for no limit, the caller compares it with the physical memory
+            String limit = readFirstLine(memoryDir.resolve("memory.limit_in_bytes"));
+            return limit == null ? null : Long.valueOf(limit.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Ignore malformed memory limit of cgroup {}: {}", memoryDir, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return {@code null} if the divisor is not positive
+     */
+    @Nullable
+    private static Long divideRoundingUp(long dividend, long divisor) {
+        return divisor <= 0 ? null : (dividend + divisor - 1) / divisor;
+    }
+
+    private static long getHostMemory() {
+        OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+        if (operatingSystem instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) operatingSystem).getTotalPhysicalMemorySize();
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    @Nullable
+    private static String readFirstLine(@Nonnull Path file) {
+        List<String> lines = readAllLines(file);
+        return lines.isEmpty() ? null : lines.get(0);
+    }
+
+    @Nonnull
+    private static List<String> readAllLines(@Nonnull Path file) {
+        if (!Files.isReadable(file)) {
+            return Collections.emptyList();
+        }
+        try {
+            return Files.readAllLines(file, Charsets.UTF_8);
+        } catch (IOException e) {
+            logger.debug("Exception reading {}", file, e);
+            return Collections.emptyList();
+        }
+    }
+
+    public int getCpus() {
+        return cpus;
+    }
+
+    public long getMemoryInBytes() {
+        return memoryInBytes;
+    }
+
+    public long getMemoryInMegaBytes() {
+        return memoryInBytes / MB;
+    }
+
+    @Override
+    public String toString() {
+        return "ContainerResources{" +
+                "cpus=" + cpus +
+                ", memory=" + getMemoryInMegaBytes() + "MB" +
+                '}';
+    }
+}
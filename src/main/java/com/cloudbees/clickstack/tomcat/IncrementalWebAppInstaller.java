@@ -0,0 +1,165 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.util.Files2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Incremental deployment of the war enabled by the {@code setup.incremental=true} runtime parameter.
+ * <p/>
+ * The name, CRC and size of the entries of the war are compared with the {@link WebAppManifest} of the previous
+ * deployment: only added or modified entries are extracted and removed entries are deleted. Untouched files keep
+ * their last modified time so that the Tomcat and Jasper caches remain valid.
+ * <p/>
+ * The deployment is a full one if there is no usable manifest: the directory of the previous {@code contextPath} is
+ * deleted when the {@code contextPath} changed, the webapp directory is emptied when the manifest is corrupted.
+ */
+public class IncrementalWebAppInstaller {
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    private final Path webappsDir;
+    @Nonnull
+    private final Path manifestFile;
+    private final int unzipThreads;
+
+    private int skippedEntries;
+    private int rewrittenEntries;
+    private int deletedFiles;
+
+    /**
+     * @param webappsDir   {@code catalina-base/webapps}
+     * @param manifestFile manifest of the previous deployment
+     */
+    public IncrementalWebAppInstaller(@Nonnull Path webappsDir, @Nonnull Path manifestFile, int unzipThreads) {
+        this.webappsDir = webappsDir;
+        this.manifestFile = manifestFile;
+        this.unzipThreads = unzipThreads;
+    }
+
+    /**
+     * @return the webapp directory {@code webapps/<contextPath>}
+     */
+    @Nonnull
+    public Path install(@Nonnull Path warFile, @Nonnull String contextPath) throws IOException {
+        Path webAppDir = Files.createDirectories(webappsDir.resolve(contextPath));
+
+        List<ZipCentralDirectory.Entry> entries;
+        try {
+            entries = ZipCentralDirectory.read(warFile);
+        } catch (ZipException e) {
+            logger.warn("Fallback on full deployment of {}: {}", warFile, e.getMessage());
+            Files.deleteIfExists(manifestFile);
+            unzip(warFile, webAppDir);
+            return webAppDir;
+        }
+        WebAppManifest manifest = WebAppManifest.of(contextPath, entries);
+
+        WebAppManifest previousManifest = loadPreviousManifest(webAppDir);
+        if (previousManifest != null && !previousManifest.getContextPath().equals(contextPath)) {
+            logger.info("ContextPath changed from '{}' to '{}', full deployment", previousManifest.getContextPath(), contextPath);
+            deletePreviousWebAppDir(previousManifest.getContextPath(), webAppDir);
+            previousManifest = null;
+        }
+
+        List<ZipCentralDirectory.Entry> modifiedEntries = new ArrayList<>();
+        for (ZipCentralDirectory.Entry entry : entries) {
+            Path file = webAppDir.resolve(entry.getName());
+            if (!entry.isDirectory() && previousManifest != null && previousManifest.contains(entry) &&
+                    Files.isRegularFile(file) && Files.size(file) == entry.getSize()) {
+                skippedEntries++;
+            } else {
+                modifiedEntries.add(entry);
+            }
+        }
+
+        if (previousManifest != null) {
+            for (String name : manifest.removedFrom(previousManifest)) {
+                Path file = webAppDir.resolve(name).normalize();
+                if (file.startsWith(webAppDir) && Files.deleteIfExists(file)) {
+                    deletedFiles++;
+                }
+            }
+        }
+
+        ParallelZipExtractor.Result result = new ParallelZipExtractor(unzipThreads).extract(warFile, modifiedEntries, webAppDir);
+        rewrittenEntries = result.getFilesCount();
+        manifest.store(manifestFile);
+
+        logger.info("Incremental deployment of {}: {} entries skipped, {} rewritten, {} deleted",
+                warFile.getFileName(), skippedEntries, rewrittenEntries, deletedFiles);
+        return webAppDir;
+    }
+
+    /**
+     * @return {@code null} if there is no manifest or if it is corrupted, the manifest and the content of the webapp
+     * directory are then deleted as the files of the previous deployment are unknown
+     */
+    private WebAppManifest loadPreviousManifest(@Nonnull Path webAppDir) throws IOException {
+        try {
+            return WebAppManifest.load(manifestFile);
+        } catch (IOException e) {
+            logger.warn("Invalid manifest of the previous deployment, full deployment: {}", e.getMessage());
+            Files.delete(manifestFile);
+            Setup.deleteRecursively(webAppDir);
+            Files.createDirectories(webAppDir);
+            return null;
+        }
+    }
+
+    /**
+     * Delete the {@code webapps/<previousContextPath>} directory and the manifest of the previous deployment.
+     */
+    private void deletePreviousWebAppDir(@Nonnull String previousContextPath, @Nonnull Path webAppDir) throws IOException {
+        Path previousWebAppDir = webappsDir.resolve(previousContextPath).normalize();
+        if (previousWebAppDir.getParent() != null && previousWebAppDir.getParent().equals(webappsDir.normalize()) &&
+                !previousWebAppDir.equals(webAppDir.normalize()) && Files.isDirectory(previousWebAppDir)) {
+            logger.debug("Delete previous webapp directory {}", previousWebAppDir);
+            Setup.deleteRecursively(previousWebAppDir);
+        }
+        Files.delete(manifestFile);
+    }
+
+    /**
+     * Full extraction of the war, overridden by {@link Setup} to honor the {@code setup.unzip} runtime parameter.
+     */
+    protected void unzip(@Nonnull Path zipFile, @Nonnull Path destDir) throws IOException {
+        Files2.unzip(zipFile, destDir);
+    }
+
+    public int getSkippedEntries() {
+        return skippedEntries;
+    }
+
+    public int getRewrittenEntries() {
+        return rewrittenEntries;
+    }
+
+    public int getDeletedFiles() {
+        return deletedFiles;
+    }
+}
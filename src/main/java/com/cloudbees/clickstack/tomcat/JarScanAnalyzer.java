@@ -0,0 +1,261 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.util.XmlUtils;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Inspect once, at setup time, the jars that Tomcat scans at each startup ({@code WEB-INF/lib} and
+ * {@code catalina-base/lib}) to find those that contribute nothing:
+ * <ul>
+ * <li>TLD scan: jars without {@code META-INF/**.tld}</li>
+ * <li>pluggability scan: jars without {@code META-INF/web-fragment.xml} (ignored if {@code web.xml} is
+ * {@code metadata-complete}), without {@code ServletContainerInitializer} service and without classes referencing
+ * {@code javax.servlet.annotation} (ignored if {@code metadata-complete}) or {@code javax.websocket}, the types
+ * handled by the websocket initializer of Tomcat</li>
+ * </ul>
+ * The {@code @HandlesTypes} of an initializer provided by the application are not analyzed: if the application
+ * provides an initializer, in a jar or in {@code WEB-INF/classes}, no jar is excluded from the pluggability scan.
+ */
+public class JarScanAnalyzer {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final byte[][] PLUGGABILITY_CLASS_REFERENCES = {
+            "javax/websocket/".getBytes(ISO_8859_1)
+    };
+    private static final byte[][] ANNOTATION_CLASS_REFERENCES = {
+            "javax/servlet/annotation/".getBytes(ISO_8859_1),
+            "javax/websocket/".getBytes(ISO_8859_1)
+    };
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final int threads;
+
+    public JarScanAnalyzer(int threads) {
+        Preconditions.checkArgument(threads > 0, "Invalid threads count %s", threads);
+        this.threads = threads;
+    }
+
+    public static class Result {
+        private final SortedSet<String> jars = new TreeSet<>();
+        private final SortedSet<String> tldJars = new TreeSet<>();
+        private final SortedSet<String> pluggabilityJars = new TreeSet<>();
+        private final SortedSet<String> initializerJars = new TreeSet<>();
+        private boolean classesInitializer;
+        private boolean metadataComplete;
+
+        /**
+         * @return names of the analyzed jars
+         */
+        @Nonnull
+        public SortedSet<String> getJars() {
+            return jars;
+        }
+
+        /**
+         * @return names of the jars that contain TLDs
+         */
+        @Nonnull
+        public SortedSet<String> getTldJars() {
+            return tldJars;
+        }
+
+        /**
+         * @return names of the jars that contain web fragments, initializers or annotated classes
+         */
+        @Nonnull
+        public SortedSet<String> getPluggabilityJars() {
+            return pluggabilityJars;
+        }
+
+        /**
+         * @return names of the jars that declare a {@code ServletContainerInitializer}
+         */
+        @Nonnull
+        public SortedSet<String> getInitializerJars() {
+            return initializerJars;
+        }
+
+        /**
+         * @return {@code true} if {@code WEB-INF/classes} declares a {@code ServletContainerInitializer}
+         */
+        public boolean isClassesInitializer() {
+            return classesInitializer;
+        }
+
+        public boolean isMetadataComplete() {
+            return metadataComplete;
+        }
+
+        /**
+         * @return names of the jars to exclude from the TLD scan
+         */
+        @Nonnull
+        public SortedSet<String> getTldSkip() {
+            SortedSet<String> skip = new TreeSet<>(jars);
+            skip.removeAll(tldJars);
+            return skip;
+        }
+
+        /**
+         * @return names of the jars to exclude from the pluggability scan, empty if the application provides a
+         * {@code ServletContainerInitializer} in a jar or in {@code WEB-INF/classes}
+         */
+        @Nonnull
+        public SortedSet<String> getPluggabilitySkip() {
+            if (!initializerJars.isEmpty() || classesInitializer) {
+                return new TreeSet<>();
+            }
+            SortedSet<String> skip = new TreeSet<>(jars);
+            skip.removeAll(pluggabilityJars);
+            return skip;
+        }
+    }
+
+    /**
+     * @param webAppDir   exploded web application
+     * @param libDirs     other folders of jars scanned by Tomcat ({@code catalina-base/lib})
+     */
+    @Nonnull
+    public Result analyze(@Nonnull Path webAppDir, @Nonnull Path... libDirs) throws IOException, InterruptedException {
+        final Result result = new Result();
+        Path webXml = webAppDir.resolve("WEB-INF/web.xml");
+        if (Files.exists(webXml)) {
+            Document webXmlDocument = XmlUtils.loadXmlDocumentFromFile(webXml.toFile());
+            result.metadataComplete = "true".equalsIgnoreCase(webXmlDocument.getDocumentElement().getAttribute("metadata-complete"));
+        }
+        // also loaded by the WebappServiceLoader of Tomcat
+        result.classesInitializer = Files.exists(
+                webAppDir.resolve("WEB-INF/classes/META-INF/services/javax.servlet.ServletContainerInitializer"));
+
+        List<Path> jars = new ArrayList<>();
+        List<Path> dirs = new ArrayList<>();
+        dirs.add(webAppDir.resolve("WEB-INF/lib"));
+        dirs.addAll(Arrays.asList(libDirs));
+        for (Path dir : dirs) {
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.jar")) {
+                for (Path jar : stream) {
+                    jars.add(jar);
+                }
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("jar-scan-analyzer-%d").setDaemon(true).build());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (final Path jar : jars) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        analyzeJar(jar, result);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Exception analyzing jars of " + webAppDir, e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    protected void analyzeJar(@Nonnull Path jar, @Nonnull Result result) throws IOException {
+        String name = jar.getFileName().toString();
+        boolean tld = false;
+        boolean fragment = false;
+        boolean initializer = false;
+        boolean annotations = false;
+        byte[][] classReferences = result.metadataComplete ? PLUGGABILITY_CLASS_REFERENCES : ANNOTATION_CLASS_REFERENCES;
+        try (ZipFile zipFile = new ZipFile(jar.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String entryName = entry.getName();
+                if (entryName.startsWith("META-INF/") && entryName.endsWith(".tld")) {
+                    tld = true;
+                } else if (entryName.equals("META-INF/web-fragment.xml")) {
+                    fragment = true;
+                } else if (entryName.equals("META-INF/services/javax.servlet.ServletContainerInitializer")) {
+                    initializer = true;
+                } else if (!annotations && entryName.endsWith(".class")) {
+                    try (InputStream in = zipFile.getInputStream(entry)) {
+                        annotations = containsAny(ByteStreams.toByteArray(in), classReferences);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // let Tomcat scan (and report) the invalid jar
+            logger.warn("Exception analyzing {}, keep it in the jar scan", jar, e);
+            tld = fragment = true;
+        }
+        synchronized (result) {
+            result.jars.add(name);
+            if (tld) {
+                result.tldJars.add(name);
+            }
+            if ((fragment && !result.metadataComplete) || initializer || annotations) {
+                result.pluggabilityJars.add(name);
+            }
+            if (initializer) {
+                result.initializerJars.add(name);
+            }
+        }
+    }
+
+    static boolean containsAny(@Nonnull byte[] bytes, @Nonnull byte[][] patterns) {
+        for (byte[] pattern : patterns) {
+            outer:
+            for (int i = 0; i <= bytes.length - pattern.length; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (bytes[i + j] != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ahead-of-time compilation of the JSPs of the web application with Jasper's {@code JspC}, so that the first request
+ * on a JSP does not pay for its translation and compilation.
+ * <p/>
+ * The JSPs are spread over up to {@code threads} {@code JspC} processes that run in parallel with the class path of
+ * the {@code start} control script plus the jars of {@code catalina-home/lib} and {@code catalina-base/lib}. Each
+ * process gets an explicit max heap so that they all fit in the memory of the container. The classes are generated in
+ * the work directory of the context ({@code catalina-base/work/Catalina/localhost/ROOT}) in the {@code org.apache.jsp}
+ * package with the timestamp of their JSP: Jasper considers them up to date and loads them as is.
+ * <p/>
+ * The output of each process is written to {@code jspc-<n>.log} in the log directory.
+ */
+public class JspPrecompiler {
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Lines of the {@code JspC} log reported when a compilation fails
+     */
+    private static final int FAILURE_REPORT_LINES = 30;
+
+    @Nonnull
+    private final Path java;
+    @Nonnull
+    private final String classpath;
+    @Nonnull
+    private final Path logDir;
+    private final int threads;
+    private final long maxHeapInMb;
+
+    /**
+     * @param java        {@code java} executable of the application JVM
+     * @param classpath   class path that contains Jasper, its compiler and the Servlet, JSP and EL APIs
+     * @param maxHeapInMb max heap of each {@code JspC} JVM
+     */
+    public JspPrecompiler(@Nonnull Path java, @Nonnull String classpath, @Nonnull Path logDir, int threads, long maxHeapInMb) {
+        Preconditions.checkArgument(threads > 0, "Invalid threads count %s", threads);
+        Preconditions.checkArgument(maxHeapInMb > 0, "Invalid maxHeapInMb %s", maxHeapInMb);
+        this.java = Preconditions.checkNotNull(java, "java");
+        this.classpath = Preconditions.checkNotNull(classpath, "classpath");
+        this.logDir = Preconditions.checkNotNull(logDir, "logDir");
+        this.threads = threads;
+        this.maxHeapInMb = maxHeapInMb;
+    }
+
+    /**
+     * @param webAppDir exploded web application
+     * @param workDir   work directory of the context
+     * @return the number of compiled JSPs
+     * @throws IllegalStateException if a JSP does not compile, the message reports the end of the {@code JspC} logs
+     */
+    public int precompile(@Nonnull final Path webAppDir, @Nonnull final Path workDir) throws IOException, InterruptedException {
+        List<Path> jsps = findJsps(webAppDir);
+        if (jsps.isEmpty()) {
+            logger.debug("No JSP to precompile in {}", webAppDir);
+            return 0;
+        }
+        Files.createDirectories(workDir);
+        List<List<Path>> partitions = partition(jsps, threads);
+        long nanosBefore = System.nanoTime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(partitions.size(),
+                new ThreadFactoryBuilder().setNameFormat("jspc-%d").setDaemon(true).build());
+        List<String> failures = new ArrayList<>();
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < partitions.size(); i++) {
+                final List<Path> partition = partitions.get(i);
+                final Path logFile = logDir.resolve("jspc-" + i + ".log");
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return compile(webAppDir, workDir, partition, logFile);
+                    }
+                }));
+            }
+            for (Future<String> future : futures) {
+                try {
+                    String failure = future.get();
+                    if (failure != null) {
+                        failures.add(failure);
+                    }
+                } catch (ExecutionException e) {
+                    throw new IOException("Exception precompiling the JSPs of " + webAppDir, e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Precompilation of the JSPs of " + webAppDir + " failed\n" +
+                    Joiner.on('\n').join(failures));
+        }
+        logger.info("Precompiled {} JSPs of {} in {}ms with {} processes", jsps.size(), webAppDir,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanosBefore), partitions.size());
+        return jsps.size();
+    }
+
+    /**
+     * @return {@code null} if the JSPs are compiled, the failure report otherwise
+     */
+    @Nullable
+    protected String compile(@Nonnull Path webAppDir, @Nonnull Path workDir, @Nonnull List<Path> jsps,
+                             @Nonnull Path logFile) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(java.toString());
+        command.add("-Xmx" + maxHeapInMb + "m");
+        command.add("-cp");
+        command.add(classpath);
+        command.add("org.apache.jasper.JspC");
+        // first, to also exit with 1 on the errors of the following arguments
+        command.add("-die1");
+        command.add("-uriroot");
+        command.add(webAppDir.toString());
+        command.add("-d");
+        command.add(workDir.toString());
+        command.add("-compile");
+        command.add("-javaEncoding");
+        command.add("UTF-8");
+        for (Path jsp : jsps) {
+            command.add(jsp.toString());
+        }
+        logger.debug("Compile {} JSPs, see {}", jsps.size(), logFile);
+
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(webAppDir.toFile());
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.to(logFile.toFile()));
+        int exitCode = processBuilder.start().waitFor();
+        if (exitCode == 0) {
+            return null;
+        }
+        List<String> lines = Files.readAllLines(logFile, Charsets.UTF_8);
+        List<String> tail = lines.subList(Math.max(0, lines.size() - FAILURE_REPORT_LINES), lines.size());
+        return "JspC exited with " + exitCode + " compiling " + jsps.size() + " JSPs, end of " + logFile + ":\n" +
+                Joiner.on('\n').join(tail);
+    }
+
+    /**
+     * @return the {@code .jsp} and {@code .jspx} files of the web application, including the views of {@code WEB-INF}
+     * (fragments are {@code .jspf} files)
+     */
+    @Nonnull
+    protected static List<Path> findJsps(@Nonnull final Path webAppDir) throws IOException {
+        final List<Path> jsps = new ArrayList<>();
+        Files.walkFileTree(webAppDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path relative = webAppDir.relativize(dir);
+                if (relative.startsWith("WEB-INF/lib") || relative.startsWith("WEB-INF/classes")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(".jsp") || fileName.endsWith(".jspx")) {
+                    jsps.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(jsps);
+        return jsps;
+    }
+
+    /**
+     * Round robin distribution of the JSPs, neighbour JSPs of a folder often have similar sizes.
+     */
+    @Nonnull
+    protected static List<List<Path>> partition(@Nonnull List<Path> jsps, int count) {
+        int partitionsCount = Math.min(count, jsps.size());
+        List<List<Path>> partitions = new ArrayList<>(partitionsCount);
+        for (int i = 0; i < partitionsCount; i++) {
+            partitions.add(new ArrayList<Path>());
+        }
+        for (int i = 0; i < jsps.size(); i++) {
+            partitions.get(i % partitionsCount).add(jsps.get(i));
+        }
+        return partitions;
+    }
+}
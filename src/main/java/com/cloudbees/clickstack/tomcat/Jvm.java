@@ -0,0 +1,230 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Version and garbage collector of the JVM that runs the application, used to know the names of its memory pools
+ * and garbage collector MBeans.
+ */
+public class Jvm {
+
+    public enum GarbageCollector {
+        PARALLEL("-XX:+UseParallelGC", "PS Eden Space", "PS Survivor Space", "PS Old Gen", "PS Perm Gen", "PS Scavenge", "PS MarkSweep"),
+        CMS("-XX:+UseConcMarkSweepGC", "Par Eden Space", "Par Survivor Space", "CMS Old Gen", "CMS Perm Gen", "ParNew", "ConcurrentMarkSweep"),
+        G1("-XX:+UseG1GC", "G1 Eden Space", "G1 Survivor Space", "G1 Old Gen", "G1 Perm Gen", "G1 Young Generation", "G1 Old Generation"),
+        SERIAL("-XX:+UseSerialGC", "Eden Space", "Survivor Space", "Tenured Gen", "Perm Gen", "Copy", "MarkSweepCompact");
+
+        @Nonnull
+        private final String flag;
+        @Nonnull
+        private final String edenPool;
+        @Nonnull
+        private final String survivorPool;
+        @Nonnull
+        private final String oldPool;
+        @Nonnull
+        private final String permPool;
+        @Nonnull
+        private final String youngCollector;
+        @Nonnull
+        private final String oldCollector;
+
+        GarbageCollector(@Nonnull String flag, @Nonnull String edenPool, @Nonnull String survivorPool, @Nonnull String oldPool,
+                         @Nonnull String permPool, @Nonnull String youngCollector, @Nonnull String oldCollector) {
+            this.flag = flag;
+            this.edenPool = edenPool;
+            this.survivorPool = survivorPool;
+            this.oldPool = oldPool;
+            this.permPool = permPool;
+            this.youngCollector = youngCollector;
+            this.oldCollector = oldCollector;
+        }
+
+        /**
+         * @return the JVM option that selects this garbage collector
+         */
+        @Nonnull
+        public String getFlag() {
+            return flag;
+        }
+
+        /**
+         * @return the garbage collector selected by the given JVM options, {@code null} if none is selected
+         */
+        @Nullable
+        public static GarbageCollector fromJavaOpts(@Nonnull String javaOpts) {
+            GarbageCollector result = null;
+            for (String opt : javaOpts.trim().split("\\s+")) {
+                // the last flag wins, as with the JVM
+                if (opt.equals("-XX:+UseParallelGC") || opt.equals("-XX:+UseParallelOldGC")) {
+                    result = PARALLEL;
+                } else if (opt.equals("-XX:+UseConcMarkSweepGC")) {
+                    result = CMS;
+                } else if (opt.equals("-XX:+UseG1GC")) {
+                    result = G1;
+                } else if (opt.equals("-XX:+UseSerialGC")) {
+                    result = SERIAL;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return {@code true} if the given JVM options select a garbage collector ({@code -XX:+Use*GC}), including the
+         * collectors that are not listed here like ZGC, Shenandoah or Epsilon
+         */
+        public static boolean isSelectedByJavaOpts(@Nonnull String javaOpts) {
+            for (String opt : javaOpts.trim().split("\\s+")) {
+                if (opt.startsWith("-XX:+Use") && opt.endsWith("GC")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(Jvm.class);
+
+    private final int majorVersion;
+    @Nonnull
+    private final GarbageCollector garbageCollector;
+
+    public Jvm(int majorVersion, @Nonnull GarbageCollector garbageCollector) {
+        Preconditions.checkArgument(majorVersion > 0, "Invalid majorVersion %s", majorVersion);
+        this.majorVersion = majorVersion;
+        this.garbageCollector = Preconditions.checkNotNull(garbageCollector, "garbageCollector");
+    }
+
+    /**
+     * @param javaHome home of the JVM of the application, its version is read in {@code $JAVA_HOME/release}
+     * @param javaOpts options of the JVM of the application, the garbage collector is the default one of the JVM
+     *                 version if none is selected
+     */
+    @Nonnull
+    public static Jvm detect(@Nonnull Path javaHome, @Nonnull String javaOpts) {
+        int majorVersion = readMajorVersion(javaHome);
+        GarbageCollector garbageCollector = GarbageCollector.fromJavaOpts(javaOpts);
+        if (garbageCollector == null) {
+            garbageCollector = majorVersion >= 9 ? GarbageCollector.G1 : GarbageCollector.PARALLEL;
+        }
+        Jvm jvm = new Jvm(majorVersion, garbageCollector);
+        logger.debug("Detected {} for {}", jvm, javaHome);
+        return jvm;
+    }
+
+    /**
+     * @return the major version (7, 8, 11...) declared by the {@code JAVA_VERSION} of {@code $JAVA_HOME/release} or,
+     * if this file is missing, the version of the current JVM
+     */
+    protected static int readMajorVersion(@Nonnull Path javaHome) {
+        Path releaseFile = javaHome.resolve("release");
+        if (Files.isReadable(releaseFile)) {
+            try {
+                for (String line : Files.readAllLines(releaseFile, Charsets.UTF_8)) {
+                    if (line.startsWith("JAVA_VERSION=")) {
+                        return parseMajorVersion(line.substring("JAVA_VERSION=".length()).replace("\"", ""));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                logger.warn("Exception reading java version in {}", releaseFile, e);
+            }
+        }
+        String currentVersion = System.getProperty("java.specification.version");
+        logger.debug("No JAVA_VERSION found in {}, use version {} of the current JVM", releaseFile, currentVersion);
+        return parseMajorVersion(currentVersion);
+    }
+
+    /**
+     * @param version "1.7.0_55", "1.8", "11.0.2", "17"...
+     */
+    protected static int parseMajorVersion(@Nonnull String version) {
+        String[] tokens = version.trim().split("[._\\-+]");
+        int major = Integer.parseInt(tokens[0]);
+        return major == 1 && tokens.length > 1 ? Integer.parseInt(tokens[1]) : major;
+    }
+
+    public int getMajorVersion() {
+        return majorVersion;
+    }
+
+    @Nonnull
+    public GarbageCollector getGarbageCollector() {
+        return garbageCollector;
+    }
+
+    /**
+     * @return {@code true} if class metadata is in the Metaspace (Java 8+) rather than in the Perm Gen
+     */
+    public boolean hasMetaspace() {
+        return majorVersion >= 8;
+    }
+
+    /**
+     * @return names of the {@code java.lang:type=MemoryPool} MBeans
+     */
+    @Nonnull
+    public List<String> getMemoryPools() {
+        List<String> pools = new ArrayList<>();
+        if (majorVersion >= 9) {
+            // segmented code cache
+            pools.add("CodeHeap 'non-nmethods'");
+            pools.add("CodeHeap 'profiled nmethods'");
+            pools.add("CodeHeap 'non-profiled nmethods'");
+        } else {
+            pools.add("Code Cache");
+        }
+        pools.add(garbageCollector.edenPool);
+        pools.add(garbageCollector.survivorPool);
+        pools.add(garbageCollector.oldPool);
+        if (hasMetaspace()) {
+            pools.add("Metaspace");
+            pools.add("Compressed Class Space");
+        } else {
+            pools.add(garbageCollector.permPool);
+        }
+        return pools;
+    }
+
+    /**
+     * @return names of the {@code java.lang:type=GarbageCollector} MBeans
+     */
+    @Nonnull
+    public List<String> getGarbageCollectors() {
+        return ImmutableList.of(garbageCollector.youngCollector, garbageCollector.oldCollector);
+    }
+
+    @Override
+    public String toString() {
+        return "Jvm{" +
+                "majorVersion=" + majorVersion +
+                ", garbageCollector=" + garbageCollector +
+                '}';
+    }
+}
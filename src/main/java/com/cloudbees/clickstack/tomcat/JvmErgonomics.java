@@ -0,0 +1,274 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * JVM options sized for the {@link ContainerResources} rather than for the host, enabled by the
+ * {@code java.ergonomics=true} runtime parameter. Only the options that are not already defined by the user
+ * ({@code java.opts}) are added:
+ * <ul>
+ * <li>class metadata ({@code -XX:MaxMetaspaceSize} or {@code -XX:MaxPermSize}): an eighth of the memory, between
+ * 64MB and 512MB (256MB for the PermGen)</li>
+ * <li>code cache ({@code -XX:ReservedCodeCacheSize}): 32MB up to 512MB of memory, 64MB up to 1GB, 240MB above</li>
+ * <li>thread stack ({@code -Xss}): 512KB up to 1GB of memory, 1MB above</li>
+ * <li>heap ({@code -Xmx}, {@code -Xms}): the memory minus the non-heap budget, made of the class metadata, the code
+ * cache, the stacks of {@value #ESTIMATED_THREADS} threads and a headroom of 5% of the memory (at least 32MB) for the
+ * direct buffers, the GC data structures and the native allocations. The heap is never below a quarter of the
+ * memory</li>
+ * <li>garbage collector: serial with a single cpu or a heap below 256MB, otherwise parallel for the
+ * {@code java.gcProfile=throughput} profile and G1 (CMS before Java 8) for the default {@code latency} profile</li>
+ * <li>{@code -XX:ParallelGCThreads}: the number of cpus, {@code -XX:ConcGCThreads}: a quarter of the cpus for G1
+ * and CMS</li>
+ * </ul>
+ * A garbage collector selected by the user, including the ones unknown to {@link Jvm.GarbageCollector} like ZGC,
+ * Shenandoah or Epsilon, is kept and the collector threads are only sized for the collectors listed above.
+ */
+public class JvmErgonomics {
+
+    public enum GcProfile {
+        THROUGHPUT, LATENCY
+    }
+
+    /**
+     * Threads accounted in the memory budget: the 200 request threads of the default connector, the threads of the JVM
+     * and the background threads of Tomcat.
+     */
+    public static final int ESTIMATED_THREADS = 250;
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    private final ContainerResources resources;
+    private final int javaMajorVersion;
+    @Nonnull
+    private final GcProfile gcProfile;
+
+    public JvmErgonomics(@Nonnull ContainerResources resources, int javaMajorVersion, @Nonnull GcProfile gcProfile) {
+        this.resources = Preconditions.checkNotNull(resources, "resources");
+        this.javaMajorVersion = javaMajorVersion;
+        this.gcProfile = Preconditions.checkNotNull(gcProfile, "gcProfile");
+    }
+
+    /**
+     * @param userJavaOpts options explicitly defined by the user, never overridden
+     * @return the added options indexed by setting name ("maxHeap", "garbageCollector"...), in command line order
+     */
+    @Nonnull
+    public Map<String, String> computeOptions(@Nonnull String userJavaOpts) {
+        List<String> userOpts = userJavaOpts.trim().isEmpty() ? Collections.<String>emptyList() : Arrays.asList(userJavaOpts.trim().split("\\s+"));
+        long memoryInMb = resources.getMemoryInMegaBytes();
+        int cpus = resources.getCpus();
+        Map<String, String> options = new LinkedHashMap<>();
+
+        long metaspaceInMb;
+        if (javaMajorVersion >= 8) {
+            metaspaceInMb = getSizeInMb(userOpts, "-XX:MaxMetaspaceSize=");
+            if (metaspaceInMb == -1) {
+                metaspaceInMb = clamp(memoryInMb / 8, 64, 512);
+                options.put("maxMetaspace", "-XX:MaxMetaspaceSize=" + metaspaceInMb + "m");
+            }
+        } else {
+            metaspaceInMb = getSizeInMb(userOpts, "-XX:MaxPermSize=");
+            if (metaspaceInMb == -1) {
+                metaspaceInMb = clamp(memoryInMb / 8, 64, 256);
+                options.put("maxPermGen", "-XX:MaxPermSize=" + metaspaceInMb + "m");
+            }
+        }
+
+        long codeCacheInMb = getSizeInMb(userOpts, "-XX:ReservedCodeCacheSize=");
+        if (codeCacheInMb == -1) {
+            codeCacheInMb = memoryInMb <= 512 ? 32 : memoryInMb <= 1024 ? 64 : 240;
+            options.put("codeCache", "-XX:ReservedCodeCacheSize=" + codeCacheInMb + "m");
+        }
+
+        long threadStackInKb = Math.max(getSizeInKb(userOpts, "-Xss"), getSizeInKb(userOpts, "-XX:ThreadStackSize="));
+        if (threadStackInKb == -1) {
+            threadStackInKb = memoryInMb <= 1024 ? 512 : 1024;
+            options.put("threadStack", threadStackInKb == 512 ? "-Xss512k" : "-Xss1m");
+        }
+
+        long heapInMb;
+        if (isDefined(userOpts, "-Xmx", "-XX:MaxHeapSize=", "-XX:MaxRAMFraction=", "-XX:MaxRAMPercentage=")) {
+            heapInMb = -1;
+        } else {
+            long nonHeapInMb = getNonHeapBudgetInMb(memoryInMb, metaspaceInMb, codeCacheInMb, threadStackInKb);
+            heapInMb = Math.max(memoryInMb - nonHeapInMb, Math.max(memoryInMb / 4, 16));
+            if (heapInMb + nonHeapInMb > memoryInMb) {
+                logger.warn("Non-heap budget of {}MB leaves less than a quarter of the {}MB of the container for the heap, " +
+                        "use {}MB of heap", nonHeapInMb, memoryInMb, heapInMb);
+            }
+            Map<String, String> heapOptions = new LinkedHashMap<>();
+            heapOptions.put("maxHeap", "-Xmx" + heapInMb + "m");
+            if (!isDefined(userOpts, "-Xms", "-XX:InitialHeapSize=", "-XX:InitialRAMPercentage=")) {
+                // the memory of the container is reserved anyway, avoid heap resizing
+                heapOptions.put("initialHeap", "-Xms" + heapInMb + "m");
+            }
+            // heap first on the command line
+            heapOptions.putAll(options);
+            options = heapOptions;
+        }
+
+        Jvm.GarbageCollector garbageCollector = Jvm.GarbageCollector.fromJavaOpts(userJavaOpts);
+        if (garbageCollector == null && Jvm.GarbageCollector.isSelectedByJavaOpts(userJavaOpts)) {
+            // ZGC, Shenandoah, Epsilon...: keep the defaults of the JVM for the collector threads
+            logger.debug("Garbage collector selected by the user options {}", userJavaOpts);
+        } else if (garbageCollector == null) {
+            // heap size unknown if defined by the user: assume it is big enough for a multi-threaded collector
+            if (cpus == 1 || (heapInMb != -1 && heapInMb < 256)) {
+                garbageCollector = Jvm.GarbageCollector.SERIAL;
+            } else if (gcProfile == GcProfile.THROUGHPUT) {
+                garbageCollector = Jvm.GarbageCollector.PARALLEL;
+            } else {
+                garbageCollector = javaMajorVersion >= 8 ? Jvm.GarbageCollector.G1 : Jvm.GarbageCollector.CMS;
+            }
+            options.put("garbageCollector", garbageCollector.getFlag());
+        }
+
+        if (garbageCollector != null && garbageCollector != Jvm.GarbageCollector.SERIAL) {
+            if (!isDefined(userOpts, "-XX:ParallelGCThreads=")) {
+                options.put("parallelGcThreads", "-XX:ParallelGCThreads=" + cpus);
+            }
+            if ((garbageCollector == Jvm.GarbageCollector.G1 || garbageCollector == Jvm.GarbageCollector.CMS) &&
+                    !isDefined(userOpts, "-XX:ConcGCThreads=")) {
+                options.put("concGcThreads", "-XX:ConcGCThreads=" + Math.max(1, (cpus + 3) / 4));
+            }
+        }
+
+        logger.debug("Computed {} for {}, java {}, {} gc profile", options.values(), resources, javaMajorVersion, gcProfile);
+        return options;
+    }
+
+    /**
+     * @return the user options followed by the options computed by {@link #computeOptions(String)}
+     */
+    @Nonnull
+    public static String join(@Nonnull String userJavaOpts, @Nonnull Map<String, String> options) {
+        if (options.isEmpty()) {
+            return userJavaOpts;
+        }
+        String computedOpts = Joiner.on(' ').join(options.values());
+        return userJavaOpts.trim().isEmpty() ? computedOpts : userJavaOpts.trim() + " " + computedOpts;
+    }
+
+    @Nonnull
+    public static GcProfile parseGcProfile(@Nonnull String gcProfile) {
+        try {
+            return GcProfile.valueOf(gcProfile.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Invalid java.gcProfile '" + gcProfile + "', expected 'throughput' or 'latency'", e);
+        }
+    }
+
+    /**
+     * @param javaOpts options of the JVM
+     * @param resources used for the default max heap of the JVM, a quarter of the memory
+     * @return the max heap in bytes defined by the last {@code -Xmx} or {@code -XX:MaxHeapSize=} of the options
+     */
+    public static long getMaxHeapInBytes(@Nonnull String javaOpts, @Nonnull ContainerResources resources) {
+        long maxHeap = resources.getMemoryInBytes() / 4;
+        for (String opt : javaOpts.trim().split("\\s+")) {
+            String size;
+            if (opt.startsWith("-Xmx")) {
+                size = opt.substring("-Xmx".length());
+            } else if (opt.startsWith("-XX:MaxHeapSize=")) {
+                size = opt.substring("-XX:MaxHeapSize=".length());
+            } else {
+                continue;
+            }
+            maxHeap = parseSize(size);
+        }
+        return maxHeap;
+    }
+
+    /**
+     * @param size "512m", "2G", "1048576"...
+     */
+    protected static long parseSize(@Nonnull String size) {
+        String value = size.trim().toLowerCase(Locale.ENGLISH);
+        long multiplier = 1;
+        switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+            case 'k':
+                multiplier = 1024;
+                break;
+            case 'm':
+                multiplier = 1024 * 1024;
+                break;
+            case 'g':
+                multiplier = 1024 * 1024 * 1024;
+                break;
+            default:
+                return Long.parseLong(value);
+        }
+        return Long.parseLong(value.substring(0, value.length() - 1)) * multiplier;
+    }
+
+    /**
+     * @return the memory used outside of the heap by a JVM with the given sizes, headroom included
+     */
+    protected static long getNonHeapBudgetInMb(long memoryInMb, long metaspaceInMb, long codeCacheInMb, long threadStackInKb) {
+        long threadStacksInMb = ESTIMATED_THREADS * threadStackInKb / 1024;
+        long headroomInMb = Math.max(memoryInMb / 20, 32);
+        return metaspaceInMb + codeCacheInMb + threadStacksInMb + headroomInMb;
+    }
+
+    /**
+     * @return the size defined by the last user option starting with the given prefix, -1 if none is defined
+     */
+    private static long getSizeInKb(@Nonnull List<String> userOpts, @Nonnull String prefix) {
+        long sizeInKb = -1;
+        for (String opt : userOpts) {
+            if (opt.startsWith(prefix)) {
+                String size = opt.substring(prefix.length());
+                // -XX:ThreadStackSize is in KB
+                sizeInKb = prefix.equals("-XX:ThreadStackSize=") ? Long.parseLong(size) : parseSize(size) / 1024;
+            }
+        }
+        return sizeInKb;
+    }
+
+    private static long getSizeInMb(@Nonnull List<String> userOpts, @Nonnull String prefix) {
+        long sizeInKb = getSizeInKb(userOpts, prefix);
+        return sizeInKb == -1 ? -1 : sizeInKb / 1024;
+    }
+
+    private static boolean isDefined(@Nonnull List<String> userOpts, @Nonnull String... prefixes) {
+        for (String opt : userOpts) {
+            for (String prefix : prefixes) {
+                if (opt.startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(value, max));
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.util.Files2;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Install the jars of the clickstack ({@code deps/tomcat-lib*}, {@code deps/javaagent-lib}, {@code deps/control-lib})
+ * in the application directory.
+ * <p/>
+ * With {@link Strategy#LINK}, each file is cloned with a reflink ({@code cp --reflink=always}, copy-on-write
+ * filesystems like btrfs or xfs), then hardlinked and only copied if both fail (e.g. across filesystems). A failing
+ * strategy is not tried again for the following files. Linked jars are shared with the clickstack: they cost no disk
+ * I/O and their pages are shared in the OS page cache by all the applications of the host. Hardlinked jars share their
+ * inode, and thus their permissions, with the clickstack: they must not be made writable, see {@link #isHardlinked(Path)}.
+ * <p/>
+ * Thread safe.
+ */
+public class LibraryInstaller {
+
+    public enum Strategy {
+        LINK, COPY
+    }
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    private final Strategy strategy;
+
+    private volatile boolean reflinkSupported = System.getProperty("os.name", "").toLowerCase().contains("linux");
+    private volatile boolean hardlinkSupported = true;
+
+    private final AtomicInteger reflinkedFiles = new AtomicInteger();
+    private final AtomicInteger hardlinkedFiles = new AtomicInteger();
+    private final AtomicInteger copiedFiles = new AtomicInteger();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final Set<Path> hardlinkedPaths = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    public LibraryInstaller(@Nonnull Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    @Nonnull
+    public static Strategy parseStrategy(@Nonnull String strategy) {
+        try {
+            return Strategy.valueOf(strategy.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Invalid setup.libraries '" + strategy + "', expected 'link' or 'copy'", e);
+        }
+    }
+
+    /**
+     * Equivalent of {@link Files2#copyDirectoryContent(Path, Path)}.
+     */
+    public void installDirectoryContent(@Nonnull final Path srcDir, @Nonnull final Path destDir) throws IOException {
+        Files.walkFileTree(srcDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(destDir.resolve(srcDir.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                installFile(file, destDir.resolve(srcDir.relativize(file).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Equivalent of {@link Files2#copyArtifactToDirectory(Path, String, Path)}.
+     *
+     * @return the installed jar
+     */
+    @Nonnull
+    public Path installArtifact(@Nonnull Path srcDir, @Nonnull String artifactId, @Nonnull Path destDir) throws IOException {
+        Path artifact = Files2.findArtifact(srcDir, artifactId, "jar");
+        Path destFile = destDir.resolve(artifact.getFileName().toString());
+        installFile(artifact, destFile);
+        return destFile;
+    }
+
+    public void installFile(@Nonnull Path srcFile, @Nonnull Path destFile) throws IOException {
+        if (strategy == Strategy.LINK) {
+            if (Files.exists(destFile) && Files.isSameFile(srcFile, destFile)) {
+                hardlinkedFiles.incrementAndGet();
+                hardlinkedPaths.add(destFile.toAbsolutePath());
+                return;
+            }
+            if (reflinkSupported) {
+                if (reflink(srcFile, destFile)) {
+                    reflinkedFiles.incrementAndGet();
+                    return;
+                }
+                logger.debug("Reflink not supported from {} to {}, disable it", srcFile, destFile);
+                reflinkSupported = false;
+            }
+            if (hardlinkSupported) {
+                try {
+                    Files.deleteIfExists(destFile);
+                    hardlink(srcFile, destFile);
+                    hardlinkedFiles.incrementAndGet();
+                    hardlinkedPaths.add(destFile.toAbsolutePath());
+                    return;
+                } catch (IOException | UnsupportedOperationException e) {
+                    logger.debug("Hardlink not supported from {} to {}, disable it: {}", srcFile, destFile, e.toString());
+                    hardlinkSupported = false;
+                }
+            }
+        }
+        Files.copy(srcFile, destFile, StandardCopyOption.REPLACE_EXISTING);
+        copiedFiles.incrementAndGet();
+        bytesWritten.addAndGet(Files.size(destFile));
+    }
+
+    protected void hardlink(@Nonnull Path srcFile, @Nonnull Path destFile) throws IOException {
+        Files.createLink(destFile, srcFile);
+    }
+
+    /**
+     * Copy-on-write clone of the file, there is no Java API for it.
+     */
+    protected boolean reflink(@Nonnull Path srcFile, @Nonnull Path destFile) throws IOException {
+        Process process = new ProcessBuilder("cp", "--reflink=always", "-f", srcFile.toString(), destFile.toString())
+                .redirectErrorStream(true)
+                .start();
+        try (InputStream in = process.getInputStream()) {
+            ByteStreams.toByteArray(in);
+            return process.waitFor() == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted cloning " + srcFile, e);
+        } finally {
+            process.destroy();
+        }
+    }
+
+    /**
+     * @return {@code true} if the given file has been installed as a hardlink to a file of the clickstack
+     */
+    public boolean isHardlinked(@Nonnull Path file) {
+        return hardlinkedPaths.contains(file.toAbsolutePath());
+    }
+
+    public int getReflinkedFiles() {
+        return reflinkedFiles.get();
+    }
+
+    public int getHardlinkedFiles() {
+        return hardlinkedFiles.get();
+    }
+
+    public int getCopiedFiles() {
+        return copiedFiles.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryInstaller{" +
+                "strategy=" + strategy +
+                ", reflinked=" + reflinkedFiles +
+                ", hardlinked=" + hardlinkedFiles +
+                ", copied=" + copiedFiles +
+                ", bytesWritten=" + bytesWritten +
+                '}';
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Multi-threaded zip extractor.
+ * <p/>
+ * The central directory is read once with {@link ZipCentralDirectory}, then the entries are spread over a bounded
+ * pool of workers, the biggest entries first. Each worker reads the zip file through a shared {@link FileChannel}
+ * with positional reads and writes to a pre-sized target file:
+ * <ul>
+ * <li>{@link ZipEntry#DEFLATED} entries are inflated and their CRC is verified,</li>
+ * <li>{@link ZipEntry#STORED} entries (typically the already compressed jars of {@code WEB-INF/lib}) are copied
+ * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.</li>
+ * </ul>
+ */
+public class ParallelZipExtractor {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final int threads;
+
+    public static class Result {
+        private final int filesCount;
+        private final long bytesWritten;
+
+        public Result(int filesCount, long bytesWritten) {
+            this.filesCount = filesCount;
+            this.bytesWritten = bytesWritten;
+        }
+
+        public int getFilesCount() {
+            return filesCount;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+    }
+
+    public ParallelZipExtractor(int threads) {
+        Preconditions.checkArgument(threads > 0, "Invalid threads count %s", threads);
+        this.threads = threads;
+    }
+
+    @Nonnull
+    public Result extract(@Nonnull Path zipFile, @Nonnull Path destDir) throws IOException {
+        return extract(zipFile, ZipCentralDirectory.read(zipFile), destDir);
+    }
+
+    /**
+     * Extract the given entries of {@code zipFile} in {@code destDir}, existing files are overwritten.
+     *
+     * @param entries entries of the zip file as returned by {@link ZipCentralDirectory#read(Path)}, may be a subset of them
+     */
+    @Nonnull
+    public Result extract(@Nonnull final Path zipFile, @Nonnull Collection<ZipCentralDirectory.Entry> entries, @Nonnull Path destDir) throws IOException {
+        long nanosBefore = System.nanoTime();
+        final Path normalizedDestDir = destDir.toAbsolutePath().normalize();
+
+        // create all the directories upfront to prevent workers from racing on them
+        List<ZipCentralDirectory.Entry> files = new ArrayList<>(entries.size());
+        Set<Path> directories = new TreeSet<>();
+        for (ZipCentralDirectory.Entry entry : entries) {
+            Path target = resolve(normalizedDestDir, entry);
+            if (entry.isDirectory()) {
+                directories.add(target);
+            } else {
+                directories.add(target.getParent());
+                files.add(entry);
+            }
+        }
+        for (Path directory : directories) {
+            Files.createDirectories(directory);
+        }
+
+        // biggest entries first for a better balance of the workers
+        Collections.sort(files, new Comparator<ZipCentralDirectory.Entry>() {
+            @Override
+            public int compare(ZipCentralDirectory.Entry e1, ZipCentralDirectory.Entry e2) {
+                return Long.compare(e2.getCompressedSize(), e1.getCompressedSize());
+            }
+        });
+
+        int workers = Math.max(1, Math.min(threads, files.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(workers,
+                new ThreadFactoryBuilder().setNameFormat("unzip-%d").setDaemon(true).build());
+        long bytesWritten = 0;
+        try (final FileChannel zipChannel = FileChannel.open(zipFile, StandardOpenOption.READ)) {
+            CompletionService<Long> completionService = new ExecutorCompletionService<>(executor);
+            for (final ZipCentralDirectory.Entry entry : files) {
+                completionService.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return extractEntry(zipChannel, entry, resolve(normalizedDestDir, entry));
+                    }
+                });
+            }
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    bytesWritten += completionService.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("Exception extracting " + zipFile, cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted extracting " + zipFile, e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        logger.info("Extracted {} files ({} bytes) of {} in {}ms with {} threads",
+                files.size(), bytesWritten, zipFile.getFileName(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanosBefore), workers);
+        return new Result(files.size(), bytesWritten);
+    }
+
+    /**
+     * Resolve the target of the given entry, rejecting entries that would be extracted outside of {@code destDir}.
+     */
+    @Nonnull
+    protected Path resolve(@Nonnull Path destDir, @Nonnull ZipCentralDirectory.Entry entry) throws ZipException {
+        Path target = destDir.resolve(entry.getName()).normalize();
+        if (!target.startsWith(destDir)) {
+            throw new ZipException("Entry '" + entry.getName() + "' is outside of the target directory " + destDir);
+        }
+        return target;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    protected long extractEntry(@Nonnull FileChannel zipChannel, @Nonnull ZipCentralDirectory.Entry entry, @Nonnull Path target) throws IOException {
+        long dataOffset = ZipCentralDirectory.getDataOffset(zipChannel, entry);
+
+        try (RandomAccessFile file = new RandomAccessFile(target.toFile(), "rw")) {
+            file.setLength(entry.getSize());
+            FileChannel out = file.getChannel();
+            switch (entry.getMethod()) {
+                case ZipEntry.STORED:
+                    return transfer(zipChannel, dataOffset, entry, out);
+                case ZipEntry.DEFLATED:
+                    return inflate(zipChannel, dataOffset, entry, out);
+                default:
+                    throw new ZipException("Unsupported compression method " + entry.getMethod() + " for " + entry.getName());
+            }
+        }
+    }
+
+    protected long transfer(@Nonnull FileChannel zipChannel, long dataOffset, @Nonnull ZipCentralDirectory.Entry entry, @Nonnull FileChannel out) throws IOException {
+        long transferred = 0;
+        while (transferred < entry.getSize()) {
+            long count = zipChannel.transferTo(dataOffset + transferred, entry.getSize() - transferred, out);
+            if (count <= 0) {
+                throw new EOFException("Unexpected end of data for " + entry.getName());
+            }
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    protected long inflate(@Nonnull FileChannel zipChannel, long dataOffset, @Nonnull ZipCentralDirectory.Entry entry, @Nonnull FileChannel out) throws IOException {
+        byte[] input = new byte[(int) Math.min(BUFFER_SIZE, Math.max(entry.getCompressedSize(), 1))];
+        byte[] output = new byte[(int) Math.min(BUFFER_SIZE, Math.max(entry.getSize(), 1))];
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        long read = 0;
+        long written = 0;
+        boolean dummyByteProvided = false;
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (read < entry.getCompressedSize()) {
+                        ByteBuffer buffer = ByteBuffer.wrap(input, 0, (int) Math.min(input.length, entry.getCompressedSize() - read));
+                        while (buffer.hasRemaining()) {
+                            if (zipChannel.read(buffer, dataOffset + read + buffer.position()) < 0) {
+                                throw new EOFException("Unexpected end of data for " + entry.getName());
+                            }
+                        }
+                        inflater.setInput(input, 0, buffer.position());
+                        read += buffer.position();
+                    } else if (!dummyByteProvided) {
+                        // "nowrap" inflaters may need an extra dummy byte, see Inflater(boolean)
+                        inflater.setInput(new byte[1]);
+                        dummyByteProvided = true;
+                    } else {
+                        throw new EOFException("Unexpected end of compressed data for " + entry.getName());
+                    }
+                }
+                int count = inflater.inflate(output);
+                if (count == 0 && inflater.needsDictionary()) {
+                    throw new ZipException("Preset dictionary not supported for " + entry.getName());
+                }
+                crc.update(output, 0, count);
+                ByteBuffer buffer = ByteBuffer.wrap(output, 0, count);
+                while (buffer.hasRemaining()) {
+                    written += out.write(buffer);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid compressed data for " + entry.getName() + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        if (written != entry.getSize() || crc.getValue() != entry.getCrc()) {
+            throw new ZipException("Corrupted entry " + entry.getName() + ": size=" + written + "/" + entry.getSize() +
+                    ", crc=" + Long.toHexString(crc.getValue()) + "/" + Long.toHexString(entry.getCrc()));
+        }
+        return written;
+    }
+}
@@ -22,6 +22,7 @@ import com.cloudbees.clickstack.plugin.java.JavaPluginResult;
 import com.cloudbees.clickstack.util.CommandLineUtils;
 import com.cloudbees.clickstack.util.Files2;
 import com.cloudbees.clickstack.util.Manifests;
+import com.cloudbees.clickstack.util.XmlUtils;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
@@ -29,6 +30,7 @@ import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterables;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -36,15 +38,21 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.InetAddress;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Properties;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.zip.ZipException;
 
 public class Setup {
 
+    /**
+     * JSP compilers run in parallel by default, each is a JVM that compiles with all the cpus it gets
+     */
+    protected static final int MAX_JSPC_THREADS = 4;
+
     protected final Logger logger = LoggerFactory.getLogger(getClass());
     @Nonnull
     final Path appDir;
@@ -72,11 +80,28 @@ public class Setup {
     final Metadata metadata;
     @Nonnull
     final Environment env;
+    @Nonnull
+    final LibraryInstaller libraryInstaller;
+    /**
+     * cpus and memory of the container, the thread pools of the setup are sized for them rather than for the host
+     */
+    @Nonnull
+    final ContainerResources containerResources;
     /**
      * initialised by {@link #installCatalinaHome()}
      */
     @Nullable
     Path catalinaHome;
+    /**
+     * jar of the clickstack jmxtrans-agent output writers, initialised by {@link #installJmxTransAgent()}
+     */
+    @Nullable
+    Path jmxtransExtrasJarFile;
+    /**
+     * options computed by {@link JvmErgonomics}, initialised by {@link #writeJavaOpts()}
+     */
+    @Nonnull
+    Map<String, String> ergonomicsJavaOpts = Collections.emptyMap();
 
 
     public Setup(@Nonnull Environment env, @Nonnull Metadata metadata, @Nonnull Path javaHome) throws IOException {
@@ -110,9 +135,14 @@ public class Setup {
 
         this.metadata = metadata;
 
+        String librariesStrategy = metadata.getRuntimeParameter("setup", "libraries", LibraryInstaller.Strategy.LINK.name());
+        this.libraryInstaller = new LibraryInstaller(LibraryInstaller.parseStrategy(librariesStrategy));
+
         this.javaHome = Preconditions.checkNotNull(javaHome, "javaHome");
         Preconditions.checkArgument(Files.exists(javaHome), "JavaHome does not exist %s", javaHome);
 
+        this.containerResources = ContainerResources.detect();
+
         logger.debug("warFile: {}", warFile.toAbsolutePath());
         logger.debug("catalinaBase: {}", catalinaBase.toAbsolutePath());
         logger.debug("agentLibDir: {}", agentLibDir.toAbsolutePath());
@@ -127,7 +157,10 @@ public class Setup {
                     Manifests.getAttribute(Setup.class, "Implementation-Artifact"),
                     Manifests.getAttribute(Setup.class, "Implementation-Date"),
                     FileSystems.getDefault().getPath(".").toAbsolutePath());
-            Environment env = CommandLineUtils.argumentsToEnvironment(args);
+            List<String> arguments = new ArrayList<>(Arrays.asList(args));
+            // full setup, even if nothing changed since the previous setup
+            boolean force = arguments.remove("--force");
+            Environment env = CommandLineUtils.argumentsToEnvironment(arguments.toArray(new String[arguments.size()]));
             Path metadataPath = env.genappDir.resolve("metadata.json");
             Metadata metadata = Metadata.Builder.fromFile(metadataPath);
 
@@ -135,7 +168,7 @@ public class Setup {
             JavaPluginResult javaPluginResult = javaPlugin.setup(metadata, env);
 
             Setup setup = new Setup(env, metadata, javaPluginResult.getJavaHome());
-            setup.setup();
+            setup.setup(force);
         } catch (Exception e) {
             String hostname;
             try {
@@ -148,22 +181,397 @@ public class Setup {
     }
 
     public void setup() throws Exception {
-        installCatalinaHome();
-        installSkeleton();
-        Path catalinaBase = installCatalinaBase();
-        installEnvClickstackProvided();
-        installCloudBeesJavaAgent();
-        installJmxTransAgent();
-        writeJavaOpts();
-        writeConfig();
-        installControlScripts();
-        installTomcatJavaOpts();
+        setup(false);
+    }
 
-        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
-        setupTomcatConfigurationFiles.buildTomcatConfigurationFiles(catalinaBase);
+    /**
+     * @param force {@code true} to run all the stages, {@code false} to skip the stages that are unchanged since the
+     *              previous setup of the application
+     */
+    public void setup(boolean force) throws Exception {
+        SetupPipeline pipeline = createPipeline().withFingerprints(appDir.resolve("setup-fingerprints.properties"), force);
+        try {
+            pipeline.run();
+        } finally {
+            writeSetupReport(pipeline);
+        }
+        logger.info("Libraries installed: {}", libraryInstaller);
         logger.info("Clickstack successfully installed");
     }
 
+    /**
+     * Stages of the setup, in the order of a sequential setup. The tomcat package, the war and the libraries are
+     * installed in parallel.
+     * <p/>
+     * The sources read by the stages are {@code metadata} ({@code metadata.json}), {@code war}, {@code clickstack}
+     * (content of the clickstack directory), {@code jvm} (JVM selected by the {@link JavaPlugin} and resources of the
+     * container) and {@code environment} (directories and port).
+     */
+    @Nonnull
+    protected SetupPipeline createPipeline() throws IOException {
+        int threads = Integer.parseInt(metadata.getRuntimeParameter("setup", "threads",
+                String.valueOf(Math.max(2, containerResources.getCpus()))));
+        SetupPipeline pipeline = new SetupPipeline(threads);
+        Path metadataFile = genappDir.resolve("metadata.json");
+        pipeline.source("metadata", Files.exists(metadataFile) ? SetupPipeline.fingerprintOf(metadataFile) : String.valueOf(metadata));
+        pipeline.source("war", SetupPipeline.fingerprintOf(warFile));
+        pipeline.source("clickstack", SetupPipeline.fingerprintOf(clickstackDir));
+        Path javaRelease = javaHome.resolve("release");
+        pipeline.source("jvm", javaHome.toRealPath() + ", " +
+                (Files.exists(javaRelease) ? SetupPipeline.fingerprintOf(javaRelease) : System.getProperty("java.version")) + ", " +
+                containerResources);
+        pipeline.source("environment", Arrays.asList(appDir, genappDir, controlDir, clickstackDir, env.packageDir,
+                env.appPort, env.appId).toString());
+        pipeline.add(new SetupPipeline.Stage("installCatalinaHome") {
+            @Override
+            protected void run() throws Exception {
+                installCatalinaHome();
+            }
+
+            @Override
+            protected void skip() throws Exception {
+                catalinaHome = Files2.findUniqueDirectoryBeginningWith(appDir, "apache-tomcat");
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Collections.singleton(catalinaHome);
+            }
+
+            @Override
+            protected Collection<Path> getRuntimePaths() throws IOException {
+                // writable directories of the catalina.home, see CatalinaHomeInstaller
+                List<Path> runtimePaths = new ArrayList<>();
+                try (DirectoryStream<Path> catalinaHomes = Files.newDirectoryStream(appDir, "apache-tomcat*")) {
+                    for (Path catalinaHome : catalinaHomes) {
+                        runtimePaths.addAll(Arrays.asList(catalinaHome.resolve("logs"), catalinaHome.resolve("work"),
+                                catalinaHome.resolve("temp")));
+                    }
+                }
+                return runtimePaths;
+            }
+        }.inputs("metadata", "clickstack").outputs("catalinaHome"));
+        pipeline.add(new SetupPipeline.Stage("installSkeleton") {
+            @Override
+            protected void run() throws Exception {
+                installSkeleton();
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Arrays.asList(catalinaBase.resolve("conf"), controlDir);
+            }
+
+            @Override
+            protected Collection<Path> getRuntimePaths() {
+                // created by the HostConfig of Tomcat at startup
+                return Collections.singleton(catalinaBase.resolve("conf/Catalina"));
+            }
+        }.inputs("clickstack", "environment").outputs("skeleton", "catalinaBaseConf", "metricsConfiguration"));
+        pipeline.add(new SetupPipeline.Stage("installCatalinaBase") {
+            @Override
+            protected void run() throws Exception {
+                installCatalinaBase();
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Arrays.asList(catalinaBase.resolve("webapps"), catalinaBase.resolve("lib"), appExtraFilesDir);
+            }
+        }.inputs("metadata", "war", "clickstack", "skeleton", "catalinaBaseConf").outputs("webapp", "catalinaBaseLib", "catalinaBaseConf"));
+        pipeline.add(new SetupPipeline.Stage("precompileJsps") {
+            @Override
+            protected void run() throws Exception {
+                precompileJsps();
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                // Tomcat compiles the JSPs in the same directory at runtime
+                return isJspPrecompilationEnabled() ?
+                        Collections.singleton(catalinaBase.resolve("work")) : Collections.<Path>emptyList();
+            }
+
+            @Override
+            protected Collection<Path> getRuntimePaths() {
+                // compiled JSPs and persisted sessions, the stage runs again only if the webapp or the jvm changes
+                return Collections.singleton(catalinaBase.resolve("work"));
+            }
+        }.inputs("metadata", "jvm", "catalinaHome", "webapp", "catalinaBaseLib").outputs("jspClasses"));
+        pipeline.add(new SetupPipeline.Stage("installEnvClickstackProvided") {
+            @Override
+            protected void run() throws Exception {
+                installEnvClickstackProvided();
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Collections.singleton(controlDir.resolve("env-clickstack-provided"));
+            }
+        }.inputs("metadata", "environment", "skeleton").outputs("envClickstackProvided"));
+        pipeline.add(new SetupPipeline.Stage("installCloudBeesJavaAgent") {
+            @Override
+            protected void run() throws Exception {
+                installCloudBeesJavaAgent();
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Arrays.asList(agentLibDir, controlDir.resolve("java-opts-20-javaagent"));
+            }
+        }.inputs("metadata", "clickstack", "envClickstackProvided").outputs("cloudbeesJavaAgent", "agentLib"));
+        // java opts first: the garbage collector they select determines the collected metrics
+        pipeline.add(new SetupPipeline.Stage("writeJavaOpts") {
+            @Override
+            protected void run() throws Exception {
+                writeJavaOpts();
+            }
+
+            @Override
+            protected void skip() {
+                ergonomicsJavaOpts = computeErgonomicsJavaOpts();
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Collections.singleton(controlDir.resolve("java-opts-10-core"));
+            }
+        }.inputs("metadata", "jvm", "skeleton").outputs("javaOpts"));
+        pipeline.add(new SetupPipeline.Stage("installJmxTransAgent") {
+            @Override
+            protected void run() throws Exception {
+                installJmxTransAgent();
+            }
+
+            @Override
+            protected void skip() throws Exception {
+                jmxtransExtrasJarFile = Files2.findArtifact(agentLibDir, "tomcat-clickstack-jmxtrans-extras", "jar");
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Arrays.asList(agentLibDir, catalinaBase.resolve("conf/tomcat-metrics.xml"), controlDir.resolve("java-opts-60-jmxtrans-agent"));
+            }
+        }.inputs("metadata", "clickstack", "jvm", "skeleton", "javaOpts", "metricsConfiguration").outputs("metricsConfiguration", "agentLib"));
+        pipeline.add(new SetupPipeline.Stage("writeConfig") {
+            @Override
+            protected void run() throws Exception {
+                writeConfig();
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Collections.singleton(controlDir.resolve("config"));
+            }
+        }.inputs("metadata", "jvm", "environment", "catalinaHome", "javaOpts", "agentLib").outputs("config"));
+        pipeline.add(new SetupPipeline.Stage("installControlScripts") {
+            @Override
+            protected void run() throws Exception {
+                installControlScripts();
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Collections.singleton(genappDir.resolve("lib"));
+            }
+        }.inputs("metadata", "clickstack", "skeleton").outputs("controlScripts"));
+        pipeline.add(new SetupPipeline.Stage("installTomcatJavaOpts") {
+            @Override
+            protected void run() throws Exception {
+                installTomcatJavaOpts();
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Collections.singleton(controlDir.resolve("java-opts-20-tomcat-opts"));
+            }
+        }.inputs("environment", "catalinaHome", "skeleton").outputs("tomcatJavaOpts"));
+        pipeline.add(new SetupPipeline.Stage("installTomcatNative") {
+            @Override
+            protected void run() throws Exception {
+                installTomcatNative();
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Arrays.asList(appDir.resolve("tomcat-native-lib"), controlDir.resolve("java-opts-25-tomcat-native"));
+            }
+        }.inputs("metadata", "clickstack", "skeleton").outputs("tomcatNative"));
+        pipeline.add(new SetupPipeline.Stage("buildTomcatConfigurationFiles") {
+            @Override
+            protected void run() throws Exception {
+                new SetupTomcatConfigurationFiles(metadata).buildTomcatConfigurationFiles(catalinaBase);
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Arrays.asList(catalinaBase.resolve("conf/server.xml"), catalinaBase.resolve("conf/context.xml"));
+            }
+        }.inputs("metadata", "jvm", "catalinaBaseConf").outputs("catalinaBaseConf"));
+        pipeline.add(new SetupPipeline.Stage("precompressStaticAssets") {
+            @Override
+            protected void run() throws Exception {
+                precompressStaticAssets();
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Collections.singleton(catalinaBase.resolve("webapps"));
+            }
+        }.inputs("metadata", "jvm", "webapp", "javaOpts", "catalinaBaseConf").outputs("precompressedAssets", "catalinaBaseConf"));
+        pipeline.add(new SetupPipeline.Stage("installJarScanFilter") {
+            @Override
+            protected void run() throws Exception {
+                installJarScanFilter();
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Collections.singleton(catalinaBase.resolve("conf/context.xml"));
+            }
+        }.inputs("metadata", "webapp", "catalinaBaseLib", "catalinaBaseConf").outputs("catalinaBaseConf"));
+        // training start of the fully configured Tomcat
+        pipeline.add(new SetupPipeline.Stage("installClassDataSharingArchive") {
+            @Override
+            protected void run() throws Exception {
+                installClassDataSharingArchive();
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Arrays.asList(appDir.resolve("cds"), controlDir.resolve("java-opts-15-cds"));
+            }
+        }.inputs("metadata", "jvm", "config", "controlScripts", "tomcatJavaOpts", "tomcatNative", "cloudbeesJavaAgent",
+                "metricsConfiguration", "catalinaBaseConf", "jspClasses", "precompressedAssets").outputs("cdsArchive"));
+        return pipeline;
+    }
+
+    /**
+     * Write the timings and the bytes written of the stages in {@code setup-report.json} of the log directory to track
+     * the setup time from one deployment, and one clickstack release, to another.
+     */
+    protected void writeSetupReport(@Nonnull SetupPipeline pipeline) {
+        Path reportFile = logDir.resolve("setup-report.json");
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("clickstack", Manifests.getAttribute(Setup.class, "Implementation-Artifact"));
+        attributes.put("date", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date()));
+        try {
+            pipeline.writeReport(reportFile, attributes);
+            logger.info("Setup report written in {}", reportFile);
+        } catch (IOException e) {
+            // don't hide the exception of a failed setup
+            logger.warn("Exception writing setup report {}", reportFile, e);
+        }
+    }
+
+    /**
+     * When the {@code setup.precompress=true} runtime parameter is set, write the {@code .gz} of the compressible
+     * static assets, let the {@code DefaultServlet} serve them and size the static resources cache of
+     * {@code context.xml} for the static assets and the heap.
+     *
+     * @see StaticAssetsPrecompressor
+     */
+    public void precompressStaticAssets() throws Exception {
+        if (!"true".equalsIgnoreCase(metadata.getRuntimeParameter("setup", "precompress", "false"))) {
+            return;
+        }
+        Path webAppDir = catalinaBase.resolve("webapps").resolve(getContextPath());
+        logger.debug("precompressStaticAssets() {}", webAppDir);
+
+        StaticAssetsPrecompressor.Result staticAssets = new StaticAssetsPrecompressor(getUnzipThreads()).precompress(webAppDir);
+        logger.info("Static assets precompressed: {}", staticAssets);
+
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+        setupTomcatConfigurationFiles.enablePrecompressedStaticAssets(catalinaBase.resolve("conf/web.xml"));
+
+        long maxHeapInBytes = JvmErgonomics.getMaxHeapInBytes(getJavaOpts(), containerResources);
+        setupTomcatConfigurationFiles.addStaticResourcesCache(staticAssets, maxHeapInBytes, catalinaBase.resolve("conf/context.xml"));
+    }
+
+    /**
+     * Analyze the jars scanned by Tomcat at startup and add a {@code <JarScanFilter>} that skips the useless ones to
+     * {@code context.xml}, unless the {@code tomcat.jarScanFilter=false} runtime parameter is set.
+     *
+     * @see JarScanAnalyzer
+     */
+    public void installJarScanFilter() throws Exception {
+        if ("false".equalsIgnoreCase(metadata.getRuntimeParameter("tomcat", "jarScanFilter", "true"))) {
+            return;
+        }
+        Path webAppDir = catalinaBase.resolve("webapps").resolve(getContextPath());
+        logger.debug("installJarScanFilter() {}", webAppDir);
+
+        JarScanAnalyzer.Result analysis = new JarScanAnalyzer(getUnzipThreads()).analyze(webAppDir, catalinaBase.resolve("lib"));
+        new SetupTomcatConfigurationFiles(metadata).addJarScanFilter(analysis, catalinaBase.resolve("conf/context.xml"));
+    }
+
+    /**
+     * Compile the JSPs of the application in the work directory of its context when the {@code setup.jspc=true}
+     * runtime parameter is set, with {@code setup.jspc.threads} (default: cpus of the container, at most
+     * {@value #MAX_JSPC_THREADS}) parallel compilers. Each {@code JspC} JVM gets an explicit max heap: a share of the
+     * container memory left by the setup JVM, between 64MB and 512MB. A JSP that does not compile fails the deployment.
+     *
+     * @see JspPrecompiler
+     */
+    public void precompileJsps() throws IOException, InterruptedException {
+        if (!isJspPrecompilationEnabled()) {
+            return;
+        }
+        Path webAppDir = catalinaBase.resolve("webapps").resolve(getContextPath());
+        Path workDir = catalinaBase.resolve("work/Catalina/localhost").resolve(getContextPath());
+        logger.debug("precompileJsps() {} -> {}", webAppDir, workDir);
+
+        // class path of the start script plus the jars of the common class loader (jasper, ecj, servlet api...)
+        // and ant that is not bundled with tomcat
+        String classpath = "" +
+                catalinaHome.resolve("bin/bootstrap.jar") + ":" +
+                catalinaHome.resolve("bin/tomcat-juli.jar") + ":" +
+                catalinaHome.resolve("lib") + "/*:" +
+                catalinaBase.resolve("lib") + "/*:" +
+                Files2.findArtifact(clickstackDir.resolve("deps/control-lib"), "ant", "jar");
+        int threads = Integer.parseInt(metadata.getRuntimeParameter("setup", "jspc.threads",
+                String.valueOf(Math.min(containerResources.getCpus(), MAX_JSPC_THREADS))));
+        // half of the memory left by the setup JVM, the rest is for the non-heap memory of the JspC JVMs
+        long availableMemoryInMb = containerResources.getMemoryInMegaBytes() - Runtime.getRuntime().maxMemory() / ContainerResources.MB;
+        long maxHeapInMb = Math.max(64, Math.min(availableMemoryInMb / 2 / threads, 512));
+        new JspPrecompiler(javaHome.resolve("bin/java"), classpath, logDir, threads, maxHeapInMb).precompile(webAppDir, workDir);
+        Files2.chmodAddReadWrite(workDir);
+    }
+
+    /**
+     * @return {@code true} if the {@code setup.jspc=true} runtime parameter is set
+     */
+    protected boolean isJspPrecompilationEnabled() {
+        return "true".equalsIgnoreCase(metadata.getRuntimeParameter("setup", "jspc", "false"));
+    }
+
+    /**
+     * @return {@code true} if the {@code java.cds=true} runtime parameter is set
+     */
+    protected boolean isClassDataSharingEnabled() {
+        return "true".equalsIgnoreCase(metadata.getRuntimeParameter("java", "cds", "false"));
+    }
+
+    /**
+     * Create the Application Class Data Sharing archive of the classes loaded at startup and the
+     * {@code java-opts-15-cds} file that uses it.
+     *
+     * @see ClassDataSharing
+     */
+    public void installClassDataSharingArchive() throws IOException, InterruptedException {
+        Path javaOptsFile = controlDir.resolve("java-opts-15-cds");
+        if (!isClassDataSharingEnabled()) {
+            Files.deleteIfExists(javaOptsFile);
+            return;
+        }
+        logger.debug("installClassDataSharingArchive() {}", javaOptsFile);
+
+        int timeoutInSeconds = Integer.parseInt(metadata.getRuntimeParameter("java", "cds.timeoutInSeconds", "180"));
+        ClassDataSharing classDataSharing = new ClassDataSharing(controlDir, appDir.resolve("cds/tomcat.jsa"),
+                logDir.resolve("cds-training.log"), getContextPath(), Jvm.readMajorVersion(javaHome), timeoutInSeconds);
+        ClassDataSharing.writeJavaOpts(javaOptsFile, classDataSharing.createArchive());
+    }
+
     public void installSkeleton() throws IOException {
         logger.debug("installSkeleton() {}", appDir);
 
@@ -185,25 +593,89 @@ public class Setup {
         Files.write(optsFile, Collections.singleton(opts), Charsets.UTF_8);
     }
 
+    /**
+     * Install the Tomcat Native library (libtcnative) required by {@code tomcat.engine=apr}. The library is searched
+     * in the {@code deps/tomcat-native-lib} folder of the clickstack and then in the usual system locations.
+     *
+     * @throws IllegalStateException if APR is selected and the library is not found
+     */
+    public void installTomcatNative() throws IOException {
+        if (ConnectorEngine.fromMetadata(metadata) != ConnectorEngine.APR) {
+            return;
+        }
+        Path optsFile = controlDir.resolve("java-opts-25-tomcat-native");
+        logger.debug("installTomcatNative() {}", optsFile);
+
+        String libraryName = System.mapLibraryName("tcnative-1");
+        Path libraryDir = null;
+        Path clickstackNativeLibDir = clickstackDir.resolve("deps/tomcat-native-lib");
+        if (Files.exists(clickstackNativeLibDir.resolve(libraryName))) {
+            libraryDir = Files.createDirectories(appDir.resolve("tomcat-native-lib"));
+            libraryInstaller.installDirectoryContent(clickstackNativeLibDir, libraryDir);
+        } else {
+            for (String systemLibraryDir : Arrays.asList("/usr/lib", "/usr/lib64", "/usr/lib/x86_64-linux-gnu",
+                    "/usr/local/lib", "/usr/local/apr/lib", "/opt/local/lib")) {
+                if (Files.exists(Paths.get(systemLibraryDir, libraryName))) {
+                    libraryDir = Paths.get(systemLibraryDir);
+                    break;
+                }
+            }
+        }
+        if (libraryDir == null) {
+            throw new IllegalStateException("'tomcat.engine=apr' requires the Tomcat Native library " + libraryName +
+                    ", not found in " + clickstackNativeLibDir + " nor in the system library directories");
+        }
+        logger.info("Use Tomcat Native library {}", libraryDir.resolve(libraryName));
+
+        Files.write(optsFile, Collections.singleton("-Djava.library.path=\"" + libraryDir + "\""), Charsets.UTF_8);
+    }
+
     public void installCatalinaHome() throws Exception {
 
         Path tomcatPackagePath = Files2.findArtifact(clickstackDir, "tomcat", "zip");
-        Files2.unzip(tomcatPackagePath, appDir);
-        catalinaHome = Files2.findUniqueDirectoryBeginningWith(appDir, "apache-tomcat");
+        String cacheDir = metadata.getRuntimeParameter("setup", "catalinaHome.cacheDir", null);
+        catalinaHome = new CatalinaHomeInstaller(appDir) {
+            @Override
+            protected void unzip(@Nonnull Path zipFile, @Nonnull Path destDir) throws IOException {
+                Setup.this.unzip(zipFile, destDir);
+            }
+        }.install(tomcatPackagePath, cacheDir == null ? null : Paths.get(cacheDir));
         logger.debug("installCatalinaHome() {}", catalinaHome);
+    }
 
-        Files2.chmodReadOnly(catalinaHome);
-
-        // some frameworks like Grails try to write in ${catalina.home}/logs
-        Path logsDir = Files.createDirectories(catalinaHome.resolve("logs"));
-        Files2.chmodAddReadWrite(logsDir);
-
-        Path workDir = Files.createDirectories(catalinaHome.resolve("work"));
-        Files2.chmodAddReadWrite(workDir);
+    /**
+     * Delete the given file or directory tree without following symlinks. Directories made read-only by
+     * {@link Files2#chmodReadOnly(Path)} are made writable by their owner so that their entries can be deleted.
+     */
+    protected static void deleteRecursively(@Nonnull Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                PosixFileAttributeView view = Files.getFileAttributeView(dir, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+                if (view != null) {
+                    Set<PosixFilePermission> permissions = view.readAttributes().permissions();
+                    if (permissions.add(PosixFilePermission.OWNER_WRITE) | permissions.add(PosixFilePermission.OWNER_EXECUTE)) {
+                        view.setPermissions(permissions);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
 
-        Path tempDir = Files.createDirectories(catalinaHome.resolve("temp"));
-        Files2.chmodAddReadWrite(tempDir);
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
 
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
     }
 
     public Path installCatalinaBase() throws IOException {
@@ -213,29 +685,28 @@ public class Setup {
 
         Files.createDirectories(catalinaBase.resolve("logs"));
 
-        String contextPath = metadata.getRuntimeParameter("webapp", "contextPath", null);
-        if (contextPath == null) {
-            contextPath = "ROOT";
-        } else {
-            if (contextPath.startsWith("/")) {
-                contextPath = contextPath.substring(1);
-            }
-            if(contextPath.isEmpty()) {
-                contextPath = "ROOT";
-            }
+        String contextPath = getContextPath();
+        if (!"ROOT".equals(contextPath)) {
             logger.info("Deploy application under custom contextPath '/{}'", contextPath);
         }
 
         // WEB APP
         Path rootWebAppDir = Files.createDirectories(catalinaBase.resolve("webapps").resolve(contextPath));
-        Files2.unzip(warFile, rootWebAppDir);
+        boolean incremental = "true".equalsIgnoreCase(metadata.getRuntimeParameter("setup", "incremental", "false"));
+        Path webAppManifestFile = appDir.resolve("catalina-base.manifest");
+        if (incremental) {
+            installWebAppIncrementally(contextPath, rootWebAppDir, webAppManifestFile);
+        } else {
+            Files.deleteIfExists(webAppManifestFile);
+            unzip(warFile, rootWebAppDir);
+        }
 
         // CONFIGURATION FILES
         Path webAppBundledContextXmlFile = rootWebAppDir.resolve("META-INF/context.xml");
         Path catalinaBaseContextXml = this.catalinaBase.resolve("conf/context.xml");
         if (Files.exists(webAppBundledContextXmlFile) && !Files.isDirectory(webAppBundledContextXmlFile)) {
             logger.info("Copy application provided context.xml");
-            Files.move(catalinaBaseContextXml, catalinaBase.resolve("conf/context-initial.xml"));
+            Files.move(catalinaBaseContextXml, catalinaBase.resolve("conf/context-initial.xml"), StandardCopyOption.REPLACE_EXISTING);
             Files.copy(webAppBundledContextXmlFile, catalinaBaseContextXml);
         }
 
@@ -243,26 +714,26 @@ public class Setup {
         Path catalinaBaseServerXml = this.catalinaBase.resolve("conf/server.xml");
         if (Files.exists(webAppBundledServerXmlFile) && !Files.isDirectory(webAppBundledServerXmlFile)) {
             logger.info("Copy application provided server.xml");
-            Files.move(catalinaBaseServerXml, catalinaBase.resolve("conf/server-initial.xml"));
+            Files.move(catalinaBaseServerXml, catalinaBase.resolve("conf/server-initial.xml"), StandardCopyOption.REPLACE_EXISTING);
             Files.copy(webAppBundledServerXmlFile, catalinaBaseServerXml);
         }
 
         Path webAppBundledExtraFiles = rootWebAppDir.resolve("META-INF/extra-files");
         if (Files.exists(webAppBundledExtraFiles) && Files.isDirectory(webAppBundledExtraFiles)) {
             logger.info("Copy application provided extra files");
-            Files2.copyDirectoryContent(webAppBundledExtraFiles, this.appExtraFilesDir);
+            copyDirectoryContent(webAppBundledExtraFiles, this.appExtraFilesDir, incremental);
         }
 
         Path webAppBundledExtraLibs = rootWebAppDir.resolve("META-INF/lib");
         if (Files.exists(webAppBundledExtraLibs) && Files.isDirectory(webAppBundledExtraLibs)) {
             logger.info("Copy application provided extra libs");
-            Files2.copyDirectoryContent(webAppBundledExtraLibs, this.catalinaBase.resolve("lib"));
+            copyDirectoryContent(webAppBundledExtraLibs, this.catalinaBase.resolve("lib"), incremental);
         }
 
         // LIBRARIES
 
         Path targetLibDir = Files.createDirectories(catalinaBase.resolve("lib"));
-        Files2.copyDirectoryContent(clickstackDir.resolve("deps/tomcat-lib"), targetLibDir);
+        libraryInstaller.installDirectoryContent(clickstackDir.resolve("deps/tomcat-lib"), targetLibDir);
 
         // JDBC Drivers
         Collection<Database> mysqlDatabases = Collections2.filter(metadata.getResources(Database.class), new Predicate<Database>() {
@@ -273,7 +744,7 @@ public class Setup {
         });
         if (!mysqlDatabases.isEmpty()) {
             logger.debug("Add mysql jars");
-            Files2.copyDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-mysql"), targetLibDir);
+            libraryInstaller.installDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-mysql"), targetLibDir);
         }
 
         Collection<Database> postgresqlDatabases = Collections2.filter(metadata.getResources(Database.class), new Predicate<Database>() {
@@ -283,40 +754,168 @@ public class Setup {
             }
         });
         if (!postgresqlDatabases.isEmpty()) {
-            Files2.copyDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-postgresql"), targetLibDir);
+            libraryInstaller.installDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-postgresql"), targetLibDir);
         }
 
         // Mail
         if (!metadata.getResources(Email.class).isEmpty()) {
             logger.debug("Add mail jars");
-            Files2.copyDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-mail"), targetLibDir);
+            libraryInstaller.installDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-mail"), targetLibDir);
         }
 
         // Memcache
         if (!metadata.getResources(SessionStore.class).isEmpty()) {
             logger.debug("Add memcache jars");
-            Files2.copyDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-memcache"), targetLibDir);
+            libraryInstaller.installDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-memcache"), targetLibDir);
         }
 
 
-        Files2.chmodAddReadWrite(catalinaBase);
+        chmodAddReadWriteExceptHardlinks(catalinaBase);
 
         return catalinaBase;
     }
 
+    /**
+     * Equivalent of {@link Files2#chmodAddReadWrite(Path)} that skips the jars hardlinked by the {@link LibraryInstaller}:
+     * they share their inode with the clickstack and must stay read-only.
+     */
+    protected void chmodAddReadWriteExceptHardlinks(@Nonnull Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                PosixFileAttributeView view = Files.getFileAttributeView(dir, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+                if (view != null) {
+                    Set<PosixFilePermission> permissions = view.readAttributes().permissions();
+                    permissions.addAll(Arrays.asList(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+                            PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.GROUP_READ,
+                            PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_EXECUTE));
+                    view.setPermissions(permissions);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && libraryInstaller.isHardlinked(file)) {
+                    logger.trace("Keep hardlinked {} read-only", file);
+                } else if (!attrs.isSymbolicLink()) {
+                    Files2.chmodAddReadWrite(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @return name of the folder of the webapp in {@code catalina-base/webapps}, "ROOT" unless the
+     * {@code webapp.contextPath} runtime parameter is set
+     */
+    @Nonnull
+    protected String getContextPath() {
+        return SetupTomcatConfigurationFiles.getContextPath(metadata);
+    }
+
+    /**
+     * Extract the given zip file with a {@link ParallelZipExtractor} or, if the {@code setup.unzip=serial} runtime
+     * parameter is set or if the zip file is not supported by the parallel extractor, with {@link Files2#unzip(Path, Path)}.
+     */
+    protected void unzip(@Nonnull Path zipFile, @Nonnull Path destDir) throws IOException {
+        String mode = metadata.getRuntimeParameter("setup", "unzip", "parallel");
+        if ("serial".equalsIgnoreCase(mode)) {
+            logger.debug("unzip({}) serially", zipFile);
+            Files2.unzip(zipFile, destDir);
+            return;
+        }
+
+        List<ZipCentralDirectory.Entry> entries;
+        try {
+            entries = ZipCentralDirectory.read(zipFile);
+        } catch (ZipException e) {
+            logger.warn("Fallback on serial unzip for {}: {}", zipFile, e.getMessage());
+            Files2.unzip(zipFile, destDir);
+            return;
+        }
+        new ParallelZipExtractor(getUnzipThreads()).extract(zipFile, entries, destDir);
+    }
+
+    protected int getUnzipThreads() {
+        return Integer.parseInt(metadata.getRuntimeParameter("setup", "unzip.threads",
+                String.valueOf(containerResources.getCpus())));
+    }
+
+    /**
+     * Incremental deployment of the war enabled by the {@code setup.incremental=true} runtime parameter.
+     *
+     * @see IncrementalWebAppInstaller
+     */
+    protected void installWebAppIncrementally(@Nonnull String contextPath, @Nonnull Path webAppDir, @Nonnull Path manifestFile) throws IOException {
+        new IncrementalWebAppInstaller(webAppDir.getParent(), manifestFile, getUnzipThreads()) {
+            @Override
+            protected void unzip(@Nonnull Path zipFile, @Nonnull Path destDir) throws IOException {
+                Setup.this.unzip(zipFile, destDir);
+            }
+        }.install(warFile, contextPath);
+    }
+
+    /**
+     * @param onlyIfChanged if {@code true}, files whose content is unchanged are not copied and keep their last modified time
+     */
+    protected void copyDirectoryContent(@Nonnull final Path srcDir, @Nonnull final Path destDir, boolean onlyIfChanged) throws IOException {
+        if (!onlyIfChanged) {
+            Files2.copyDirectoryContent(srcDir, destDir);
+            return;
+        }
+        Files.walkFileTree(srcDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(destDir.resolve(srcDir.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path destFile = destDir.resolve(srcDir.relativize(file).toString());
+                if (Files.isRegularFile(destFile) && Files.size(destFile) == attrs.size() &&
+                        com.google.common.io.Files.equal(file.toFile(), destFile.toFile())) {
+                    logger.debug("Skip unchanged {}", destFile);
+                } else {
+                    Files.copy(file, destFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
     public void installJmxTransAgent() throws IOException {
         logger.debug("installJmxTransAgent() {}", agentLibDir);
 
-        Path jmxtransAgentJarFile = Files2.copyArtifactToDirectory(clickstackDir.resolve("deps/javaagent-lib"), "jmxtrans-agent", agentLibDir);
+        Path jmxtransAgentJarFile = libraryInstaller.installArtifact(clickstackDir.resolve("deps/javaagent-lib"), "jmxtrans-agent", agentLibDir);
         Path jmxtransAgentConfigurationFile = catalinaBase.resolve("conf/tomcat-metrics.xml");
         Preconditions.checkState(Files.exists(jmxtransAgentConfigurationFile), "File %s does not exist", jmxtransAgentConfigurationFile);
+
+        Jvm jvm = Jvm.detect(javaHome, getJavaOpts());
+        Document jmxtransAgentConfiguration = XmlUtils.loadXmlDocumentFromFile(jmxtransAgentConfigurationFile.toFile());
+        TomcatMetricsConfiguration metricsConfiguration = new TomcatMetricsConfiguration(metadata, getContextPath(), jvm);
+        metricsConfiguration.addQueries(jmxtransAgentConfiguration);
+        if (TomcatMetricsConfiguration.isPrometheusEnabled(metadata)) {
+            metricsConfiguration.addPrometheusOutputWriter(jmxtransAgentConfiguration);
+            logger.info("Metrics exposed in Prometheus format on 127.0.0.1:{}", metadata.getRuntimeParameter("metrics", "prometheus.port", "9404"));
+        }
+        try (OutputStream out = Files.newOutputStream(jmxtransAgentConfigurationFile)) {
+            XmlUtils.flush(jmxtransAgentConfiguration, out);
+        }
+        logger.info("Metrics collected for {}", jvm);
         Path jmxtransAgentDataFile = logDir.resolve("tomcat-metrics.data");
+        // RingFileOutputWriter, read by the stats-appstat control script
+        jmxtransExtrasJarFile = libraryInstaller.installArtifact(clickstackDir.resolve("deps/javaagent-lib"), "tomcat-clickstack-jmxtrans-extras", agentLibDir);
+        Path jmxtransAgentRingFile = logDir.resolve("tomcat-metrics.ring");
 
         Path agentOptsFile = controlDir.resolve("java-opts-60-jmxtrans-agent");
 
         String agentOptsFileData =
                 "-javaagent:" + jmxtransAgentJarFile.toString() + "=" + jmxtransAgentConfigurationFile.toString() +
-                        " -Dtomcat_metrics_data_file=" + jmxtransAgentDataFile.toString();
+                        " -Dtomcat_metrics_data_file=" + jmxtransAgentDataFile.toString() +
+                        " -Dtomcat_metrics_ring_file=" + jmxtransAgentRingFile.toString();
 
         Files.write(agentOptsFile, Collections.singleton(agentOptsFileData), Charsets.UTF_8);
     }
@@ -324,7 +923,7 @@ public class Setup {
     public void installCloudBeesJavaAgent() throws IOException {
         logger.debug("installCloudBeesJavaAgent() {}", agentLibDir);
 
-        Path cloudbeesJavaAgentJarFile = Files2.copyArtifactToDirectory(clickstackDir.resolve("deps/javaagent-lib"), "cloudbees-clickstack-javaagent", this.agentLibDir);
+        Path cloudbeesJavaAgentJarFile = libraryInstaller.installArtifact(clickstackDir.resolve("deps/javaagent-lib"), "cloudbees-clickstack-javaagent", this.agentLibDir);
         Path agentOptsFile = controlDir.resolve("java-opts-20-javaagent");
 
         Path envFile = controlDir.resolve("env");
@@ -350,8 +949,33 @@ public class Setup {
         Path javaOptsFile = controlDir.resolve("java-opts-10-core");
         logger.debug("writeJavaOpts() {}", javaOptsFile);
 
-        String javaOpts = metadata.getRuntimeParameter("java", "opts", "");
-        Files.write(javaOptsFile, Collections.singleton(javaOpts), Charsets.UTF_8);
+        ergonomicsJavaOpts = computeErgonomicsJavaOpts();
+        Files.write(javaOptsFile, Collections.singleton(getJavaOpts()), Charsets.UTF_8);
+    }
+
+    /**
+     * @return the options computed by the {@link JvmErgonomics} if the {@code java.ergonomics=true} runtime parameter is
+     * set, an empty map otherwise
+     */
+    @Nonnull
+    protected Map<String, String> computeErgonomicsJavaOpts() {
+        if (!"true".equalsIgnoreCase(metadata.getRuntimeParameter("java", "ergonomics", "false"))) {
+            return Collections.emptyMap();
+        }
+        ContainerResources resources = containerResources;
+        JvmErgonomics.GcProfile gcProfile = JvmErgonomics.parseGcProfile(metadata.getRuntimeParameter("java", "gcProfile", "latency"));
+        Map<String, String> options = new JvmErgonomics(resources, Jvm.readMajorVersion(javaHome), gcProfile)
+                .computeOptions(metadata.getRuntimeParameter("java", "opts", ""));
+        logger.info("JVM ergonomics for {} and {} gc profile: {}", resources, gcProfile, options);
+        return options;
+    }
+
+    /**
+     * @return the options of {@code java-opts-10-core}: {@code java.opts} completed by the {@link JvmErgonomics}
+     */
+    @Nonnull
+    protected String getJavaOpts() {
+        return JvmErgonomics.join(metadata.getRuntimeParameter("java", "opts", ""), ergonomicsJavaOpts);
     }
 
     public void writeConfig() throws IOException {
@@ -378,10 +1002,24 @@ public class Setup {
 
         String classpath = "" +
                 catalinaHome.resolve("bin/bootstrap.jar") + ":" +
-                catalinaHome.resolve("bin/tomcat-juli.jar") + ":" +
-                catalinaHome.resolve("lib");
+                catalinaHome.resolve("bin/tomcat-juli.jar");
+        if (!isClassDataSharingEnabled()) {
+            // class data sharing rejects non-empty directories in the class path, the common class loader of Tomcat
+            // loads the jars of this directory anyway
+            classpath += ":" + catalinaHome.resolve("lib");
+        }
+        if (jmxtransExtrasJarFile != null) {
+            // the output writers must be visible from the system class loader that loads the jmxtrans-agent
+            classpath += ":" + jmxtransExtrasJarFile;
+            writer.println("metrics_reader_classpath=\"" + jmxtransExtrasJarFile + "\"");
+        }
         writer.println("java_classpath=\"" + classpath + "\"");
 
+        // audit of the options added by JvmErgonomics
+        for (Map.Entry<String, String> option : ergonomicsJavaOpts.entrySet()) {
+            writer.println("java_ergonomics_" + option.getKey() + "=\"" + option.getValue() + "\"");
+        }
+
         writer.close();
     }
 
@@ -416,8 +1054,9 @@ public class Setup {
         Path genappLibDir = genappDir.resolve("lib");
         Files.createDirectories(genappLibDir);
 
-        Path jmxInvokerPath = Files2.copyArtifactToDirectory(clickstackDir.resolve("deps/control-lib"), "cloudbees-jmx-invoker", genappLibDir);
-        // create symlink without version to simplify jmx_invoker script
+        Path jmxInvokerPath = libraryInstaller.installArtifact(clickstackDir.resolve("deps/control-lib"), "cloudbees-jmx-invoker", genappLibDir);
+        // create symlink without version to simplify jmx_invoker script, replaced if the setup is run again
+        Files.deleteIfExists(genappLibDir.resolve("cloudbees-jmx-invoker-jar-with-dependencies.jar"));
         Files.createSymbolicLink(genappLibDir.resolve("cloudbees-jmx-invoker-jar-with-dependencies.jar"), jmxInvokerPath);
     }
 }
@@ -0,0 +1,565 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Stages of the setup declared with the resources they read ({@code inputs}) and write ({@code outputs}), run in
+ * parallel on a bounded executor in dependency order.
+ * <p/>
+ * Dependencies follow the declaration order, as if the stages were run one after another: a stage runs after the
+ * previously declared stages that write one of its inputs or outputs and after those that read one of its outputs.
+ * An input must be a {@link #source(String, String) source} or the output of a previously declared stage.
+ * <p/>
+ * The first failure stops the scheduling of the stages and is rethrown by {@link #run()}, the stages that are
+ * running are interrupted. The wall time and the bytes written (growth of the {@link Stage#getOutputPaths()}) of
+ * each stage are reported by {@link #writeReport(Path, Map)}.
+ * <p/>
+ * With {@link #withFingerprints(Path, boolean)}, a stage is skipped when the fingerprint of the {@link #source(String,
+ * String) sources} it reads is the one of the previous successful run and its output paths are unchanged since then.
+ * A stage that runs makes the stages that depend on it run and, if it updates a resource in place, the stages that
+ * produce this resource run too.
+ */
+public class SetupPipeline {
+
+    public enum Status {
+        PENDING, RUNNING, SUCCESS, FAILURE, SKIPPED
+    }
+
+    public abstract static class Stage {
+        @Nonnull
+        private final String name;
+        @Nonnull
+        private final Set<String> inputs = new LinkedHashSet<>();
+        @Nonnull
+        private final Set<String> outputs = new LinkedHashSet<>();
+        @Nonnull
+        private final Set<Stage> dependencies = new LinkedHashSet<>();
+        private volatile Status status = Status.PENDING;
+        private volatile long startInMillis = -1;
+        private volatile long durationInMillis = -1;
+        private volatile long bytesWritten;
+
+        protected Stage(@Nonnull String name) {
+            this.name = Preconditions.checkNotNull(name, "name");
+        }
+
+        @Nonnull
+        public Stage inputs(@Nonnull String... resources) {
+            inputs.addAll(Arrays.asList(resources));
+            return this;
+        }
+
+        @Nonnull
+        public Stage outputs(@Nonnull String... resources) {
+            outputs.addAll(Arrays.asList(resources));
+            return this;
+        }
+
+        protected abstract void run() throws Exception;
+
+        /**
+         * Invoked instead of {@link #run()} when the stage is skipped, restores the state that the following stages
+         * expect from {@link #run()}.
+         */
+        protected void skip() throws Exception {
+        }
+
+        /**
+         * @return files and folders written by the stage, evaluated before and after the stage to measure the bytes it
+         * writes, {@code null} elements are ignored
+         */
+        @Nonnull
+        protected Collection<Path> getOutputPaths() {
+            return Collections.emptyList();
+        }
+
+        /**
+         * @return files and folders of the {@link #getOutputPaths()} that Tomcat or the application write at runtime
+         * (e.g. {@code conf/Catalina/localhost} created by the {@code HostConfig}), excluded from the fingerprint of
+         * the outputs so that a restart does not run the stage again
+         */
+        @Nonnull
+        protected Collection<Path> getRuntimePaths() throws IOException {
+            return Collections.emptyList();
+        }
+
+        @Nonnull
+        public String getName() {
+            return name;
+        }
+
+        @Nonnull
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the start of the stage relative to the start of the pipeline, -1 if not started
+         */
+        public long getStartInMillis() {
+            return startInMillis;
+        }
+
+        /**
+         * @return the wall time of the stage, -1 if not completed
+         */
+        public long getDurationInMillis() {
+            return durationInMillis;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final int threads;
+    @Nonnull
+    private final List<Stage> stages = new ArrayList<>();
+    @Nonnull
+    private final Map<String, String> sources = new LinkedHashMap<>();
+    @Nullable
+    private Path fingerprintsFile;
+    private boolean force;
+    private long startInNanos;
+    private volatile long durationInMillis = -1;
+
+    public SetupPipeline(int threads) {
+        Preconditions.checkArgument(threads > 0, "Invalid threads count %s", threads);
+        this.threads = threads;
+    }
+
+    /**
+     * Declare a resource that is not produced by a stage (metadata, application package...) and can be read by the
+     * stages declared afterwards.
+     *
+     * @param fingerprint changes when the content of the resource changes
+     */
+    @Nonnull
+    public SetupPipeline source(@Nonnull String resource, @Nonnull String fingerprint) {
+        sources.put(Preconditions.checkNotNull(resource, "resource"), Preconditions.checkNotNull(fingerprint, "fingerprint"));
+        return this;
+    }
+
+    /**
+     * Skip the unchanged stages of the run recorded in {@code fingerprintsFile}, the fingerprints of the stages are
+     * recorded in this file after a successful run.
+     *
+     * @param force {@code true} to run all the stages anyway
+     */
+    @Nonnull
+    public SetupPipeline withFingerprints(@Nonnull Path fingerprintsFile, boolean force) {
+        this.fingerprintsFile = Preconditions.checkNotNull(fingerprintsFile, "fingerprintsFile");
+        this.force = force;
+        return this;
+    }
+
+    @Nonnull
+    public SetupPipeline add(@Nonnull Stage stage) {
+        Set<String> producedResources = new HashSet<>(sources.keySet());
+        for (Stage previous : stages) {
+            Preconditions.checkArgument(!previous.name.equals(stage.name), "Duplicate stage %s", stage.name);
+            producedResources.addAll(previous.outputs);
+            if (!Sets.intersection(stage.inputs, previous.outputs).isEmpty() ||
+                    !Sets.intersection(stage.outputs, previous.outputs).isEmpty() ||
+                    !Sets.intersection(stage.outputs, previous.inputs).isEmpty()) {
+                stage.dependencies.add(previous);
+            }
+        }
+        Set<String> missingInputs = Sets.difference(stage.inputs, producedResources);
+        Preconditions.checkArgument(missingInputs.isEmpty(), "Inputs %s of stage %s are neither sources nor produced by a previous stage",
+                missingInputs, stage.name);
+        stages.add(stage);
+        return this;
+    }
+
+    @Nonnull
+    public List<Stage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * @throws Exception the exception of the first failed stage
+     */
+    public void run() throws Exception {
+        startInNanos = System.nanoTime();
+        final Set<Stage> stagesToRun = getStagesToRun();
+        Map<Stage, Integer> remainingDependencies = new HashMap<>();
+        Map<Stage, List<Stage>> dependents = new HashMap<>();
+        for (Stage stage : stages) {
+            remainingDependencies.put(stage, stage.dependencies.size());
+            dependents.put(stage, new ArrayList<Stage>());
+            for (Stage dependency : stage.dependencies) {
+                dependents.get(dependency).add(stage);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("setup-stage-%d").setDaemon(true).build());
+        CompletionService<Stage> completionService = new ExecutorCompletionService<>(executor);
+        try {
+            int running = 0;
+            for (Stage stage : stages) {
+                if (stage.dependencies.isEmpty()) {
+                    submit(stage, stagesToRun.contains(stage), completionService);
+                    running++;
+                }
+            }
+            while (running > 0) {
+                Future<Stage> future = completionService.take();
+                running--;
+                Stage completed;
+                try {
+                    completed = future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw (Error) cause;
+                }
+                for (Stage dependent : dependents.get(completed)) {
+                    int remaining = remainingDependencies.get(dependent) - 1;
+                    remainingDependencies.put(dependent, remaining);
+                    if (remaining == 0) {
+                        submit(dependent, stagesToRun.contains(dependent), completionService);
+                        running++;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            durationInMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startInNanos);
+        }
+        if (fingerprintsFile != null) {
+            storeFingerprints(fingerprintsFile);
+        }
+        logger.debug("Setup pipeline of {} stages completed in {}ms with {} threads, {} skipped", stages.size(),
+                durationInMillis, threads, stages.size() - stagesToRun.size());
+    }
+
+    /**
+     * @return all the stages if there is no fingerprint to compare to, otherwise the stages whose fingerprint or
+     * output paths changed and the stages they impact
+     */
+    @Nonnull
+    protected Set<Stage> getStagesToRun() throws IOException {
+        Set<Stage> stagesToRun = new LinkedHashSet<>();
+        Properties previousFingerprints = null;
+        if (fingerprintsFile != null && Files.exists(fingerprintsFile)) {
+            previousFingerprints = new Properties();
+            try (InputStream in = Files.newInputStream(fingerprintsFile)) {
+                previousFingerprints.load(in);
+            }
+            // recorded again after a successful run only
+            Files.delete(fingerprintsFile);
+        }
+        if (previousFingerprints == null || force) {
+            stagesToRun.addAll(stages);
+            return stagesToRun;
+        }
+        for (Stage stage : stages) {
+            if (!getFingerprint(stage).equals(previousFingerprints.getProperty(stage.name + ".fingerprint"))) {
+                logger.debug("Stage {}: sources changed", stage);
+                stagesToRun.add(stage);
+            } else if (!outputsUnchanged(previousFingerprints, stage)) {
+                logger.debug("Stage {}: outputs changed", stage);
+                stagesToRun.add(stage);
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Stage stage : stages) {
+                if (!stagesToRun.contains(stage) && isImpactedBy(stage, stagesToRun)) {
+                    logger.debug("Stage {}: impacted by the stages to run", stage);
+                    stagesToRun.add(stage);
+                    changed = true;
+                }
+            }
+        }
+        return stagesToRun;
+    }
+
+    /**
+     * @return {@code true} if the given stage depends on one of the stages to run or produces a resource that one of
+     * them updates in place
+     */
+    private static boolean isImpactedBy(@Nonnull Stage stage, @Nonnull Set<Stage> stagesToRun) {
+        for (Stage stageToRun : stagesToRun) {
+            if (stage.dependencies.contains(stageToRun)) {
+                return true;
+            }
+            Set<String> updatedInPlace = Sets.intersection(stageToRun.inputs, stageToRun.outputs);
+            if (stageToRun.dependencies.contains(stage) && !Sets.intersection(updatedInPlace, stage.outputs).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return hash of the name of the stage and of the fingerprints of the sources it reads
+     */
+    @Nonnull
+    protected String getFingerprint(@Nonnull Stage stage) {
+        Hasher hasher = Hashing.sha1().newHasher().putString(stage.name, Charsets.UTF_8);
+        for (String input : stage.inputs) {
+            String sourceFingerprint = sources.get(input);
+            if (sourceFingerprint != null) {
+                hasher.putString(input, Charsets.UTF_8).putString(sourceFingerprint, Charsets.UTF_8);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    private boolean outputsUnchanged(@Nonnull Properties previousFingerprints, @Nonnull Stage stage) throws IOException {
+        String outputPaths = previousFingerprints.getProperty(stage.name + ".outputPaths", "");
+        List<Path> paths = new ArrayList<>();
+        for (String outputPath : Splitter.on(File.pathSeparatorChar).omitEmptyStrings().split(outputPaths)) {
+            Path path = Paths.get(outputPath);
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                return false;
+            }
+            paths.add(path);
+        }
+        return outputsFingerprintOf(paths, stage.getRuntimePaths()).equals(previousFingerprints.getProperty(stage.name + ".outputs"));
+    }
+
+    /**
+     * Record the fingerprint of the stages and of their output paths at the end of the run.
+     */
+    protected void storeFingerprints(@Nonnull Path fingerprintsFile) throws IOException {
+        Properties fingerprints = new Properties();
+        for (Stage stage : stages) {
+            List<Path> paths = new ArrayList<>();
+            for (Path path : stage.getOutputPaths()) {
+                if (path != null && Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                    paths.add(path.toAbsolutePath());
+                }
+            }
+            fingerprints.setProperty(stage.name + ".fingerprint", getFingerprint(stage));
+            fingerprints.setProperty(stage.name + ".outputPaths", Joiner.on(File.pathSeparatorChar).join(paths));
+            fingerprints.setProperty(stage.name + ".outputs", outputsFingerprintOf(paths, stage.getRuntimePaths()));
+        }
+        Path tmpFile = fingerprintsFile.resolveSibling(fingerprintsFile.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmpFile)) {
+            fingerprints.store(out, "Generated by tomcat-clickstack, delete to force a full setup");
+        }
+        Files.move(tmpFile, fingerprintsFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void submit(@Nonnull final Stage stage, final boolean run, @Nonnull CompletionService<Stage> completionService) {
+        completionService.submit(new Callable<Stage>() {
+            @Override
+            public Stage call() throws Exception {
+                if (!run) {
+                    stage.skip();
+                    stage.status = Status.SKIPPED;
+                    logger.info("Skip unchanged stage {}", stage);
+                    return stage;
+                }
+                long bytesBefore = sizeOf(stage.getOutputPaths());
+                long stageStartInNanos = System.nanoTime();
+                stage.startInMillis = TimeUnit.NANOSECONDS.toMillis(stageStartInNanos - startInNanos);
+                stage.status = Status.RUNNING;
+                logger.debug("Start stage {}", stage);
+                try {
+                    stage.run();
+                } catch (Exception | Error e) {
+                    stage.status = Status.FAILURE;
+                    throw e;
+                } finally {
+                    stage.durationInMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stageStartInNanos);
+                }
+                stage.bytesWritten = sizeOf(stage.getOutputPaths()) - bytesBefore;
+                stage.status = Status.SUCCESS;
+                logger.debug("Stage {} completed in {}ms, {} bytes written", stage, stage.durationInMillis, stage.bytesWritten);
+                return stage;
+            }
+        });
+    }
+
+    /**
+     * @return hash of the content of the given file or of the relative paths and the content of the regular files of
+     * the given folder
+     */
+    @Nonnull
+    public static String fingerprintOf(@Nonnull final Path path) throws IOException {
+        final SortedMap<String, Path> files = new TreeMap<>();
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile()) {
+                    files.put(path.relativize(file).toString(), file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (Map.Entry<String, Path> file : files.entrySet()) {
+            hasher.putString(file.getKey(), Charsets.UTF_8);
+            hasher.putBytes(com.google.common.io.Files.hash(file.getValue().toFile(), Hashing.sha1()).asBytes());
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Cheap fingerprint of the output paths of a stage, the content of the files is not read: an edit that keeps the
+     * size of a file changes its last modified time. The last modified time of the directories is ignored, it changes
+     * when Tomcat writes in an excluded subtree.
+     *
+     * @param excludedPaths files and folders ignored with their content
+     * @return hash of the path of the files, directories and symbolic links of the given files and folders and of the
+     * size and the last modified time of the files and symbolic links, symbolic links are not followed
+     */
+    @Nonnull
+    protected static String outputsFingerprintOf(@Nonnull Collection<Path> paths, @Nonnull Collection<Path> excludedPaths) throws IOException {
+        final Set<Path> excluded = new HashSet<>();
+        for (Path excludedPath : excludedPaths) {
+            if (excludedPath != null) {
+                excluded.add(excludedPath.toAbsolutePath().normalize());
+            }
+        }
+        final Hasher hasher = Hashing.sha1().newHasher();
+        for (Path path : paths) {
+            Files.walkFileTree(path.toAbsolutePath().normalize(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (excluded.contains(dir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    hasher.putString(dir.toString(), Charsets.UTF_8);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!excluded.contains(file)) {
+                        hasher.putString(file.toString(), Charsets.UTF_8)
+                                .putLong(attrs.size())
+                                .putLong(attrs.lastModifiedTime().toMillis());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @return the size of the regular files of the given files and folders, symbolic links are not followed
+     */
+    protected static long sizeOf(@Nonnull Collection<Path> paths) throws IOException {
+        final long[] size = {0};
+        for (Path path : paths) {
+            if (path == null || !Files.exists(path)) {
+                continue;
+            }
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile()) {
+                        size[0] += attrs.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return size[0];
+    }
+
+    /**
+     * Write the JSON report of the pipeline:
+     * <pre><code>
+     * {
+     *   "clickstack": "com.cloudbees.clickstack:tomcat8-clickstack:1.0.0", (attributes)
+     *   "threads": 4,
+     *   "durationInMillis": 2345,
+     *   "stages": [
+     *     {"name": "installCatalinaHome", "status": "SUCCESS", "dependencies": [], "startInMillis": 0,
+     *      "durationInMillis": 812, "bytesWritten": 13207125},
+     *     ...
+     *   ]
+     * }
+     * </code></pre>
+     *
+     * @param attributes written first, {@code null} values are ignored
+     */
+    public void writeReport(@Nonnull Path reportFile, @Nonnull Map<String, String> attributes) throws IOException {
+        try (OutputStream out = Files.newOutputStream(reportFile)) {
+            JsonGenerator json = new JsonFactory().createGenerator(out, JsonEncoding.UTF8);
+            json.useDefaultPrettyPrinter();
+            json.writeStartObject();
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                if (attribute.getValue() != null) {
+                    json.writeStringField(attribute.getKey(), attribute.getValue());
+                }
+            }
+            json.writeNumberField("threads", threads);
+            json.writeNumberField("durationInMillis", durationInMillis);
+            json.writeArrayFieldStart("stages");
+            for (Stage stage : stages) {
+                json.writeStartObject();
+                json.writeStringField("name", stage.name);
+                json.writeStringField("status", stage.status.name());
+                json.writeArrayFieldStart("dependencies");
+                for (Stage dependency : stage.dependencies) {
+                    json.writeString(dependency.name);
+                }
+                json.writeEndArray();
+                json.writeNumberField("startInMillis", stage.startInMillis);
+                json.writeNumberField("durationInMillis", stage.durationInMillis);
+                json.writeNumberField("bytesWritten", stage.bytesWritten);
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+            json.close();
+        }
+    }
+}
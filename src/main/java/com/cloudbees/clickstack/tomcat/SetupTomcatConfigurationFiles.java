@@ -3,6 +3,7 @@ package com.cloudbees.clickstack.tomcat;
 import com.cloudbees.clickstack.domain.metadata.*;
 import com.cloudbees.clickstack.util.Strings2;
 import com.cloudbees.clickstack.util.XmlUtils;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
@@ -12,13 +13,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.xml.parsers.ParserConfigurationException;
-import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -38,11 +45,41 @@ public class SetupTomcatConfigurationFiles {
             "fairQueue", "abandonWhenPercentageFull", "maxAge", "useEquals", "suspectTimeout", "rollbackOnReturn",
             "commitOnReturn", "alternateUsernameAllowed", "useDisposableConnectionFacade", "logValidationErrors",
             "propagateInterruptState");
+    /**
+     * Properties of the database that configure the {@code jdbcInterceptors} generated by
+     * {@link #addJdbcInterceptorsProfile(Database, Element)} rather than attributes of the datasource.
+     */
+    private Set<String> jdbcInterceptorsProfileProperties = Sets.newHashSet("jdbcInterceptorsProfile",
+            "slowQueryThreshold", "statementCacheMax");
+    /**
+     * Attributes of the {@code <Connector>} that must be set on its {@code <Executor>} when it uses one.
+     */
+    private Set<String> executorAttributes = Sets.newHashSet("maxThreads", "minSpareThreads", "maxQueueSize",
+            "maxIdleTime", "threadPriority");
+
+    /**
+     * lazily initialised by {@link #getContainerResources()}
+     */
+    @Nullable
+    private ContainerResources containerResources;
 
     public SetupTomcatConfigurationFiles(Metadata metadata) {
         this.metadata = metadata;
     }
 
+    public SetupTomcatConfigurationFiles(Metadata metadata, ContainerResources containerResources) {
+        this.metadata = metadata;
+        this.containerResources = containerResources;
+    }
+
+    @Nonnull
+    protected ContainerResources getContainerResources() {
+        if (containerResources == null) {
+            containerResources = ContainerResources.detect();
+        }
+        return containerResources;
+    }
+
     protected SetupTomcatConfigurationFiles addDatabase(Database database, Document serverDocument, Document contextXmlDocument) {
         logger.info("Add DataSource name={}, url={}", database.getName(), database.getUrl());
         Element e = contextXmlDocument.createElement("Resource");
@@ -57,12 +94,16 @@ public class SetupTomcatConfigurationFiles {
         // by default, use use tomcat-jdbc-pool
         e.setAttribute("factory", "org.apache.tomcat.jdbc.pool.DataSourceFactory");
 
-        int maxActive = database.getMaxConnections();
-        int maxIdle = Math.max(maxActive / 2, 1);
-        e.setAttribute("maxActive", String.valueOf(maxActive));
-        e.setAttribute("maxIdle", String.valueOf(maxIdle));
-        e.setAttribute("minIdle", "1");
-        e.setAttribute("initialSize", "1");
+        if ("auto".equalsIgnoreCase(metadata.getRuntimeParameter("tomcat", "jdbcPoolSizing", "default"))) {
+            autoSizeDataSource(database, e, serverDocument, contextXmlDocument);
+        } else {
+            int maxActive = database.getMaxConnections();
+            int maxIdle = Math.max(maxActive / 2, 1);
+            e.setAttribute("maxActive", String.valueOf(maxActive));
+            e.setAttribute("maxIdle", String.valueOf(maxIdle));
+            e.setAttribute("minIdle", "1");
+            e.setAttribute("initialSize", "1");
+        }
 
         // test on borrow and while idle to release idle connections
         e.setAttribute("testOnBorrow", "false");
@@ -70,11 +111,13 @@ public class SetupTomcatConfigurationFiles {
         e.setAttribute("validationQuery", database.getValidationQuery());
         e.setAttribute("validationInterval", "60000"); // 60 secs
 
+        addJdbcInterceptorsProfile(database, e);
+
         // all the parameters can be overwritten
         for (Map.Entry<String, String> entry : database.getProperties().entrySet()) {
             if (databaseProperties.contains(entry.getKey())) {
                 e.setAttribute(entry.getKey(), entry.getValue());
-            } else {
+            } else if (!jdbcInterceptorsProfileProperties.contains(entry.getKey())) {
                 logger.debug("Ignore unknown datasource property '{}'", entry);
             }
         }
@@ -83,22 +126,161 @@ public class SetupTomcatConfigurationFiles {
         return this;
     }
 
+    /**
+     * Interceptors enabled by the {@code jdbcInterceptorsProfile=performance} property of the database, an explicit
+     * {@code jdbcInterceptors} property still wins.
+     * <ul>
+     * <li>{@code ConnectionState}: cache autoCommit, readOnly, transactionIsolation and catalog to skip the round trips
+     * to the database server</li>
+     * <li>{@code StatementCache}: reuse the prepared statements of the connection, {@code statementCacheMax} (default
+     * 50) per connection</li>
+     * <li>{@code ResetAbandonedTimer}: reset the abandon timer on each query so that long transactions are not
+     * reported as leaks</li>
+     * <li>{@code SlowQueryStatsReport}: {@code SlowQueryReportJmx} with queries slower than {@code slowQueryThreshold}
+     * milliseconds (default 1000) reported as slow and counters collected in {@code tomcat-metrics.xml}</li>
+     * </ul>
+     */
+    protected void addJdbcInterceptorsProfile(@Nonnull Database database, @Nonnull Element dataSource) {
+        Map<String, String> properties = database.getProperties();
+        String profile = properties.get("jdbcInterceptorsProfile");
+        if (profile == null || "none".equalsIgnoreCase(profile)) {
+            return;
+        }
+        if (!"performance".equalsIgnoreCase(profile)) {
+            throw new IllegalStateException("Invalid 'jdbcInterceptorsProfile' '" + profile + "' for database '" +
+                    database.getName() + "', expected one of [none, performance]");
+        }
+        String slowQueryThreshold = properties.containsKey("slowQueryThreshold") ? properties.get("slowQueryThreshold") : "1000";
+        String statementCacheMax = properties.containsKey("statementCacheMax") ? properties.get("statementCacheMax") : "50";
+
+        String jdbcInterceptors = "ConnectionState;" +
+                "StatementCache(prepared=true,callable=false,max=" + statementCacheMax + ");" +
+                "ResetAbandonedTimer;" +
+                "com.cloudbees.tomcat.jdbc.SlowQueryStatsReport(threshold=" + slowQueryThreshold +
+                ",maxQueries=100,notifyPool=false,dataSource=jdbc/" + database.getName() + ")";
+        logger.info("DataSource name={}: jdbcInterceptors={}", database.getName(), jdbcInterceptors);
+        dataSource.setAttribute("jdbcInterceptors", jdbcInterceptors);
+        dataSource.setAttribute("jmxEnabled", "true");
+    }
+
+    /**
+     * Pool sizing enabled by the {@code tomcat.jdbcPoolSizing=auto} runtime parameter.
+     * <ul>
+     * <li>The {@link Database#getMaxConnections()} budget of a database server is split between the datasources
+     * pointing to this server</li>
+     * <li>{@code maxActive}: the share of the budget, no more than the request threads of the connector</li>
+     * <li>{@code maxIdle}: {@code maxActive} to keep the connections opened for the next burst</li>
+     * <li>{@code minIdle} and {@code initialSize}: half of {@code maxActive}, created at startup in the background by a
+     * {@code PrefillDataSourcesListener}</li>
+     * <li>{@code maxWait}: 5s rather than 10s when more than 4 request threads compete for each connection to fail
+     * fast rather than piling up requests</li>
+     * </ul>
+     */
+    protected void autoSizeDataSource(@Nonnull Database database, @Nonnull Element dataSource, @Nonnull Document serverDocument, @Nonnull Document contextXmlDocument) {
+        String server = getDatabaseServer(database);
+        int budget = database.getMaxConnections();
+        int dataSourcesSharingServer = 0;
+        for (Database other : metadata.getResources(Database.class)) {
+            if (server.equals(getDatabaseServer(other))) {
+                budget = Math.min(budget, other.getMaxConnections());
+                dataSourcesSharingServer++;
+            }
+        }
+        int threads = getConnectorMaxThreads(serverDocument);
+
+        int maxActive = Math.max(Math.min(budget / Math.max(dataSourcesSharingServer, 1), threads), 1);
+        int minIdle = Math.max(maxActive / 2, 1);
+        int maxWait = threads > 4 * maxActive ? 5000 : 10000;
+
+        logger.info("Size DataSource name={} for {} request threads and {} connections shared by {} datasources on {}: " +
+                        "maxActive={}, maxIdle={}, minIdle={}, initialSize={}, maxWait={}", database.getName(), threads,
+                budget, dataSourcesSharingServer, server, maxActive, maxActive, minIdle, minIdle, maxWait);
+
+        dataSource.setAttribute("maxActive", String.valueOf(maxActive));
+        dataSource.setAttribute("maxIdle", String.valueOf(maxActive));
+        dataSource.setAttribute("minIdle", String.valueOf(minIdle));
+        dataSource.setAttribute("initialSize", String.valueOf(minIdle));
+        dataSource.setAttribute("maxWait", String.valueOf(maxWait));
+
+        // prefill the pool when the context starts
+        Element prefillListener = null;
+        for (Node node = contextXmlDocument.getDocumentElement().getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && "Listener".equals(node.getNodeName()) &&
+                    "com.cloudbees.tomcat.jdbc.PrefillDataSourcesListener".equals(((Element) node).getAttribute("className"))) {
+                prefillListener = (Element) node;
+            }
+        }
+        if (prefillListener == null) {
+            prefillListener = contextXmlDocument.createElement("Listener");
+            prefillListener.setAttribute("className", "com.cloudbees.tomcat.jdbc.PrefillDataSourcesListener");
+            contextXmlDocument.getDocumentElement().appendChild(prefillListener);
+        }
+        String dataSources = prefillListener.getAttribute("dataSources");
+        prefillListener.setAttribute("dataSources", (dataSources.isEmpty() ? "" : dataSources + ",") + "jdbc/" + database.getName());
+    }
+
+    /**
+     * @return "host:port" of the database server or the url if it can not be parsed
+     */
+    @Nonnull
+    protected String getDatabaseServer(@Nonnull Database database) {
+        try {
+            URI uri = new URI(database.getUrl());
+            if (uri.getHost() != null) {
+                return uri.getHost() + ":" + uri.getPort();
+            }
+        } catch (URISyntaxException e) {
+            logger.debug("Unparsable url for database {}", database.getName(), e);
+        }
+        return database.getUrl();
+    }
+
+    /**
+     * @return the max number of request threads of the connector or of its executor, 200 by default
+     */
+    protected int getConnectorMaxThreads(@Nonnull Document serverXmlDocument) {
+        Element connector = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Connector");
+        Element threadPool = connector;
+        String executorName = connector.getAttribute("executor");
+        if (!executorName.isEmpty()) {
+            threadPool = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Executor[@name='" + executorName + "']");
+        }
+        String maxThreads = threadPool.getAttribute("maxThreads");
+        return maxThreads.isEmpty() ? 200 : Integer.parseInt(maxThreads);
+    }
+
     protected SetupTomcatConfigurationFiles addSyslogAccessLogValve(Metadata metadata, Document serverDocument, Document contextXmlDocument) {
         // Syslog Access Log Valve
         if (!"true".equalsIgnoreCase(metadata.getRuntimeParameter("accessLog", "syslog", "false"))) {
             return this;
         }
 
-        logger.info("Add Syslog Access Log Valve");
+        String pattern = metadata.getRuntimeParameter("accessLog", "pattern", "combined");
+        boolean async = "true".equalsIgnoreCase(metadata.getRuntimeParameter("accessLog", "syslog.async", "false"));
+        if (async && !"common".equals(pattern) && !"combined".equals(pattern)) {
+            logger.warn("Asynchronous syslog access log only supports 'common' and 'combined' patterns, " +
+                    "use synchronous Syslog Access Log Valve for pattern '{}'", pattern);
+            async = false;
+        }
 
         Element e = serverDocument.createElement("Valve");
-        e.setAttribute("className", "com.cloudbees.tomcat.valves.SyslogAccessLogValve");
+        if (async) {
+            logger.info("Add Async Syslog Access Log Valve");
+            // see com.cloudbees.tomcat.valves.AsyncSyslogAccessLogValve
+            e.setAttribute("className", "com.cloudbees.tomcat.valves.AsyncSyslogAccessLogValve");
+            e.setAttribute("protocol", metadata.getRuntimeParameter("accessLog", "syslog.protocol", "udp"));
+            e.setAttribute("bufferSize", metadata.getRuntimeParameter("accessLog", "syslog.bufferSize", "8192"));
+            e.setAttribute("overflowPolicy", metadata.getRuntimeParameter("accessLog", "syslog.overflowPolicy", "drop"));
+        } else {
+            logger.info("Add Syslog Access Log Valve");
+            e.setAttribute("className", "com.cloudbees.tomcat.valves.SyslogAccessLogValve");
+        }
 
         e.setAttribute("appName", metadata.getRuntimeParameter("accessLog", "syslog.appName", "access_log"));
         e.setAttribute("hostname", metadata.getRuntimeParameter("accessLog", "syslog.appHostname", "${SYSLOG_APP_HOSTNAME}"));
         e.setAttribute("syslogServerHostname", metadata.getRuntimeParameter("accessLog", "syslog.syslogServerHost", "${SYSLOG_HOST}"));
         e.setAttribute("syslogServerPort", metadata.getRuntimeParameter("accessLog", "syslog.syslogServerPort", "${SYSLOG_PORT}"));
-        e.setAttribute("pattern", metadata.getRuntimeParameter("accessLog", "pattern", "combined"));
+        e.setAttribute("pattern", pattern);
         e.setAttribute("requestAttributesEnabled", "true");
 
         Element remoteIpValve = XmlUtils.getUniqueElement(serverDocument, "//Valve[@className='org.apache.catalina.valves.RemoteIpValve']");
@@ -108,6 +290,82 @@ public class SetupTomcatConfigurationFiles {
         return this;
     }
 
+    /**
+     * @return {@code true} if the {@code tomcat.latencyHistogram=true} runtime parameter is set
+     */
+    protected static boolean isLatencyHistogramEnabled(@Nonnull Metadata metadata) {
+        return "true".equalsIgnoreCase(metadata.getRuntimeParameter("tomcat", "latencyHistogram", "false"));
+    }
+
+    protected SetupTomcatConfigurationFiles addLatencyHistogramValve(Metadata metadata, Document serverXmlDocument, Document contextXmlDocument) {
+        if (!isLatencyHistogramEnabled(metadata)) {
+            return this;
+        }
+        logger.info("Add LatencyHistogramValve");
+
+        Element latencyHistogramValve = serverXmlDocument.createElement("Valve");
+        latencyHistogramValve.setAttribute("className", "com.cloudbees.tomcat.valves.LatencyHistogramValve");
+        latencyHistogramValve.setAttribute("intervalInSeconds", String.valueOf(TomcatMetricsConfiguration.COLLECT_INTERVAL_IN_SECONDS));
+
+        Element remoteIpValve = null;
+        NodeList valves = serverXmlDocument.getElementsByTagName("Valve");
+        for (int i = 0; i < valves.getLength() && remoteIpValve == null; i++) {
+            Element valve = (Element) valves.item(i);
+            if ("org.apache.catalina.valves.RemoteIpValve".equals(valve.getAttribute("className"))) {
+                remoteIpValve = valve;
+            }
+        }
+        if (remoteIpValve != null) {
+            XmlUtils.insertSiblingAfter(latencyHistogramValve, remoteIpValve);
+        } else {
+            // server.xml provided by the application without RemoteIpValve, first valve of the Host
+            Element host = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Engine/Host");
+            Node firstElement = host.getFirstChild();
+            while (firstElement != null && !(firstElement instanceof Element)) {
+                firstElement = firstElement.getNextSibling();
+            }
+            host.insertBefore(latencyHistogramValve, firstElement);
+        }
+        return this;
+    }
+
+    /**
+     * @return {@code true} if the {@code requestMetrics} runtime section is defined
+     */
+    protected static boolean isRequestMetricsEnabled(@Nonnull Metadata metadata) {
+        return metadata.getRuntimeProperty("requestMetrics") != null;
+    }
+
+    /**
+     * Per route request metrics configured by the {@code requestMetrics} runtime section: {@code patterns},
+     * {@code topPrefixes}, {@code prefixDepth} and {@code stripes}.
+     */
+    protected SetupTomcatConfigurationFiles addRequestMetricsValve(Metadata metadata, Document serverXmlDocument, Document contextXmlDocument) {
+        RuntimeProperty runtimeProperty = metadata.getRuntimeProperty("requestMetrics");
+        if (runtimeProperty == null) {
+            return this;
+        }
+        logger.info("Add RequestMetricsValve");
+
+        Set<String> requestMetricsProperties = new HashSet<>(Arrays.asList(
+                "patterns", "topPrefixes", "prefixDepth", "stripes"));
+
+        Element requestMetricsValve = serverXmlDocument.createElement("Valve");
+        requestMetricsValve.setAttribute("className", "com.cloudbees.tomcat.valves.RequestMetricsValve");
+
+        for (Map.Entry<String, String> entry : runtimeProperty.entrySet()) {
+            if (requestMetricsProperties.contains(entry.getKey())) {
+                requestMetricsValve.setAttribute(entry.getKey(), entry.getValue());
+            } else {
+                logger.debug("requestMetricsValve: ignore unknown property '" + entry.getKey() + "'");
+            }
+        }
+
+        Element remoteIpValve = XmlUtils.getUniqueElement(serverXmlDocument, "//Valve[@className='org.apache.catalina.valves.RemoteIpValve']");
+        XmlUtils.insertSiblingAfter(requestMetricsValve, remoteIpValve);
+        return this;
+    }
+
     protected SetupTomcatConfigurationFiles addEmail(Email email, Document serverDocument, Document contextXmlDocument) {
         logger.info("Add MailSession user={}", email.getUsername());
         Element e = contextXmlDocument.createElement("Resource");
@@ -213,11 +471,226 @@ public class SetupTomcatConfigurationFiles {
         });
 
         Element connector = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Connector");
+        Element executor = null;
+        if ("true".equalsIgnoreCase(metadata.getRuntimeParameter(section, "autoTune", "false"))) {
+            executor = autoTuneConnector(connector, serverXmlDocument);
+        }
+
         for (Map.Entry<String, String> property : connectorProperties) {
             String attributeName = Strings2.substringAfterFirst(property.getKey(), '.');
-            connector.setAttribute(attributeName, property.getValue());
+            if (executor != null && executorAttributes.contains(attributeName)) {
+                // the thread pool attributes of the connector are ignored when it uses an executor
+                executor.setAttribute(attributeName, property.getValue());
+            } else {
+                connector.setAttribute(attributeName, property.getValue());
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Size a shared {@code <Executor>} and the connector according to the {@link ContainerResources}.
+     * <ul>
+     * <li>{@code maxThreads}: 50 per cpu, between 25 and 400, with at most 1 thread per 2MB of memory, unless defined
+     * by {@code tomcat.connector.maxThreads}</li>
+     * <li>{@code minSpareThreads}: 4 per cpu, at most a quarter of {@code maxThreads}</li>
+     * <li>{@code maxQueueSize}: twice {@code maxThreads} to reject requests rather than queuing them forever</li>
+     * <li>{@code acceptCount}: {@code maxThreads}</li>
+     * <li>{@code maxConnections}: 10 idle keep-alive connections per thread, at most 10,000</li>
+     * <li>{@code keepAliveTimeout}: shortened to 10s when {@code maxConnections} is below 2,000</li>
+     * </ul>
+     * The other attributes are derived from the effective {@code maxThreads} and can themselves be overridden by
+     * {@code tomcat.connector.*}.
+     *
+     * @return the created executor or {@code null} if the connector already references an executor
+     */
+    @Nullable
+    protected Element autoTuneConnector(@Nonnull Element connector, @Nonnull Document serverXmlDocument) {
+        if (!connector.getAttribute("executor").isEmpty() ||
+                metadata.getRuntimeParameter("tomcat", "connector.executor", null) != null) {
+            logger.info("Connector already uses an executor, skip auto tuning");
+            return null;
+        }
+        ContainerResources resources = getContainerResources();
+
+        int maxThreads;
+        String explicitMaxThreads = metadata.getRuntimeParameter("tomcat", "connector.maxThreads", null);
+        if (explicitMaxThreads == null) {
+            maxThreads = Math.min(Math.max(resources.getCpus() * 50, 25), 400);
+            maxThreads = (int) Math.max(Math.min(maxThreads, resources.getMemoryInMegaBytes() / 2), 1);
+        } else {
+            maxThreads = Integer.parseInt(explicitMaxThreads.trim());
+            Preconditions.checkArgument(maxThreads > 0, "Invalid tomcat.connector.maxThreads '%s'", explicitMaxThreads);
+        }
+        int minSpareThreads = Math.max(Math.min(resources.getCpus() * 4, maxThreads / 4), 1);
+        int maxQueueSize = maxThreads * 2;
+        int acceptCount = maxThreads;
+        int maxConnections = Math.min(maxThreads * 10, 10000);
+        int keepAliveTimeout = maxConnections < 2000 ? 10000 : 20000;
+
+        logger.info("Auto tune connector for {}: maxThreads={}, minSpareThreads={}, maxQueueSize={}, " +
+                        "acceptCount={}, maxConnections={}, keepAliveTimeout={}", resources, maxThreads,
+                minSpareThreads, maxQueueSize, acceptCount, maxConnections, keepAliveTimeout);
+
+        Element executor = serverXmlDocument.createElement("Executor");
+        executor.setAttribute("name", "tomcatThreadPool");
+        executor.setAttribute("namePrefix", "catalina-exec-");
+        executor.setAttribute("maxThreads", String.valueOf(maxThreads));
+        executor.setAttribute("minSpareThreads", String.valueOf(minSpareThreads));
+        executor.setAttribute("maxQueueSize", String.valueOf(maxQueueSize));
+        connector.getParentNode().insertBefore(executor, connector);
+
+        connector.setAttribute("executor", "tomcatThreadPool");
+        connector.setAttribute("acceptCount", String.valueOf(acceptCount));
+        connector.setAttribute("maxConnections", String.valueOf(maxConnections));
+        connector.setAttribute("keepAliveTimeout", String.valueOf(keepAliveTimeout));
+
+        return executor;
+    }
+
+    /**
+     * Apply the I/O engine selected by the {@code tomcat.engine} runtime parameter to the connector: protocol, sendfile
+     * and, for APR, the {@code AprLifecycleListener}. Must be invoked after
+     * {@link #updateConnectorConfiguration(Metadata, Document)}, attributes explicitly defined by
+     * {@code tomcat.connector.*} are preserved.
+     *
+     * @throws IllegalStateException if a {@code tomcat.connector.*} attribute does not apply to the selected engine
+     */
+    protected SetupTomcatConfigurationFiles updateConnectorEngine(Metadata metadata, Document serverXmlDocument) {
+        ConnectorEngine engine = ConnectorEngine.fromMetadata(metadata);
+        if (engine == null) {
+            return this;
+        }
+        logger.info("Use connector engine {}", engine);
+
+        RuntimeProperty runtimeProperty = metadata.getRuntimeProperty("tomcat");
+        for (Map.Entry<String, String> property : runtimeProperty.entrySet()) {
+            if (property.getKey().startsWith("connector.")) {
+                String attributeName = Strings2.substringAfterFirst(property.getKey(), '.');
+                if (!engine.supports(attributeName)) {
+                    throw new IllegalStateException("Invalid 'tomcat." + property.getKey() + "', attribute '" +
+                            attributeName + "' does not apply to 'tomcat.engine=" + engine.name().toLowerCase() + "'");
+                }
+            }
+        }
+
+        Element connector = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Connector");
+        String explicitProtocol = metadata.getRuntimeParameter("tomcat", "connector.protocol", null);
+        if (explicitProtocol != null) {
+            logger.warn("Ignore 'tomcat.engine={}', protocol explicitly defined by 'tomcat.connector.protocol={}'",
+                    engine.name().toLowerCase(), explicitProtocol);
+        } else {
+            connector.setAttribute("protocol", engine.getProtocol());
+        }
+
+        // sendfile for large static resources, smaller ones are written by the DefaultServlet
+        if (!connector.hasAttribute("useSendfile")) {
+            connector.setAttribute("useSendfile", "true");
+        }
+
+        if (engine == ConnectorEngine.APR) {
+            if (!connector.hasAttribute("sendfileSize")) {
+                // one sendfile slot per connection
+                String maxConnections = connector.getAttribute("maxConnections");
+                connector.setAttribute("sendfileSize", maxConnections.isEmpty() ? "1024" : maxConnections);
+            }
+
+            Element server = serverXmlDocument.getDocumentElement();
+            Element lastListener = null;
+            for (Node node = server.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (node instanceof Element && "Listener".equals(node.getNodeName())) {
+                    if ("org.apache.catalina.core.AprLifecycleListener".equals(((Element) node).getAttribute("className"))) {
+                        return this;
+                    }
+                    lastListener = (Element) node;
+                }
+            }
+            Element aprLifecycleListener = serverXmlDocument.createElement("Listener");
+            aprLifecycleListener.setAttribute("className", "org.apache.catalina.core.AprLifecycleListener");
+            aprLifecycleListener.setAttribute("SSLEngine", "on");
+            if (lastListener == null) {
+                server.insertBefore(aprLifecycleListener, server.getFirstChild());
+            } else {
+                XmlUtils.insertSiblingAfter(aprLifecycleListener, lastListener);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return {@code true} if the {@code tomcat.mode=production} runtime parameter is set
+     */
+    public static boolean isProductionMode(@Nonnull Metadata metadata) {
+        String mode = metadata.getRuntimeParameter("tomcat", "mode", "development");
+        Preconditions.checkArgument("development".equalsIgnoreCase(mode) || "production".equalsIgnoreCase(mode),
+                "Invalid tomcat.mode '%s', expected 'development' or 'production'", mode);
+        return "production".equalsIgnoreCase(mode);
+    }
+
+    /**
+     * @return name of the folder of the webapp in {@code catalina-base/webapps} ("ROOT", "myapp"...) defined by the
+     * {@code webapp.contextPath} runtime parameter
+     */
+    @Nonnull
+    public static String getContextPath(@Nonnull Metadata metadata) {
+        String contextPath = metadata.getRuntimeParameter("webapp", "contextPath", null);
+        if (contextPath == null) {
+            return "ROOT";
+        }
+        if (contextPath.startsWith("/")) {
+            contextPath = contextPath.substring(1);
+        }
+        return contextPath.isEmpty() ? "ROOT" : contextPath;
+    }
+
+    /**
+     * With {@code tomcat.mode=production}, the application is never redeployed after the setup:
+     * <ul>
+     * <li>the Host neither deploys nor watches {@code webapps}, the application is declared with an explicit
+     * {@code <Context>}</li>
+     * <li>the Host starts its contexts with one thread per cpu</li>
+     * <li>the {@code <WatchedResource>} of {@code context.xml} are removed</li>
+     * <li>the background processor of the Engine, that still expires sessions and evicts the static resources cache,
+     * runs every 30 seconds instead of 10 ({@code tomcat.backgroundProcessorDelay})</li>
+     * </ul>
+     * The {@code META-INF/context.xml} of the application is not read for a {@code <Context>} declared in
+     * {@code server.xml}, it is already copied in {@code conf/context.xml} by the setup.
+     */
+    protected SetupTomcatConfigurationFiles applyProductionMode(Metadata metadata, Document serverXmlDocument, Document contextXmlDocument) {
+        if (!isProductionMode(metadata)) {
+            return this;
+        }
+        Element host = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Engine/Host");
+        host.setAttribute("autoDeploy", "false");
+        host.setAttribute("deployOnStartup", "false");
+        host.setAttribute("startStopThreads", String.valueOf(getContainerResources().getCpus()));
+
+        String contextPath = getContextPath(metadata);
+        if (host.getElementsByTagName("Context").getLength() == 0) {
+            Element context = serverXmlDocument.createElement("Context");
+            context.setAttribute("path", "ROOT".equals(contextPath) ? "" : "/" + contextPath);
+            context.setAttribute("docBase", contextPath);
+            host.appendChild(context);
+        } else {
+            logger.info("server.xml already declares a Context, don't declare context '{}'", contextPath);
         }
 
+        String backgroundProcessorDelay = metadata.getRuntimeParameter("tomcat", "backgroundProcessorDelay", "30");
+        Preconditions.checkState(backgroundProcessorDelay.matches("\\d+"), "Invalid tomcat.backgroundProcessorDelay '%s'", backgroundProcessorDelay);
+        Element engine = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Engine");
+        engine.setAttribute("backgroundProcessorDelay", backgroundProcessorDelay);
+
+        // live list, shrinks as the elements are removed
+        NodeList watchedResources = contextXmlDocument.getElementsByTagName("WatchedResource");
+        int removedWatchedResources = watchedResources.getLength();
+        for (int i = removedWatchedResources - 1; i >= 0; i--) {
+            Node watchedResource = watchedResources.item(i);
+            watchedResource.getParentNode().removeChild(watchedResource);
+        }
+
+        logger.info("Production mode: no deployment scan, startStopThreads={}, backgroundProcessorDelay={}s, " +
+                "{} WatchedResource removed", host.getAttribute("startStopThreads"), backgroundProcessorDelay, removedWatchedResources);
         return this;
     }
 
@@ -257,6 +730,135 @@ public class SetupTomcatConfigurationFiles {
         return this;
     }
 
+    /**
+     * Restrict the jar scan of Tomcat to the jars that contain TLDs, web fragments, initializers or annotated
+     * classes. The default skip list of {@code catalina.properties} is preserved. Nothing is done if the
+     * {@code context.xml} already defines a {@code <JarScanner>}.
+     *
+     * @see JarScanAnalyzer
+     */
+    protected SetupTomcatConfigurationFiles addJarScanFilter(@Nonnull JarScanAnalyzer.Result analysis, @Nonnull Document contextXmlDocument) {
+        if (contextXmlDocument.getElementsByTagName("JarScanner").getLength() > 0) {
+            logger.info("context.xml already defines a JarScanner, skip jar scan filter");
+            return this;
+        }
+        SortedSet<String> tldSkip = analysis.getTldSkip();
+        SortedSet<String> pluggabilitySkip = analysis.getPluggabilitySkip();
+        logger.info("Jar scan of {} jars: TLD scan of {} jars, pluggability scan of {} jars{}", analysis.getJars().size(),
+                analysis.getJars().size() - tldSkip.size(), analysis.getJars().size() - pluggabilitySkip.size(),
+                analysis.isMetadataComplete() ? " (metadata-complete)" : "");
+        if (!analysis.getInitializerJars().isEmpty()) {
+            logger.info("ServletContainerInitializers provided by {}, scan all jars for pluggability", analysis.getInitializerJars());
+        }
+        if (analysis.isClassesInitializer()) {
+            logger.info("ServletContainerInitializer provided by WEB-INF/classes, scan all jars for pluggability");
+        }
+        if (tldSkip.isEmpty() && pluggabilitySkip.isEmpty()) {
+            return this;
+        }
+        logger.info("Skip TLD scan of {}", tldSkip);
+        logger.info("Skip pluggability scan of {}", pluggabilitySkip);
+
+        Element jarScanner = contextXmlDocument.createElement("JarScanner");
+        Element jarScanFilter = contextXmlDocument.createElement("JarScanFilter");
+        // the skip lists replace the "jarsToSkip" default of catalina.properties
+        String defaultSkip = "${tomcat.util.scan.StandardJarScanFilter.jarsToSkip}";
+        if (!tldSkip.isEmpty()) {
+            jarScanFilter.setAttribute("tldSkip", defaultSkip + "," + Joiner.on(',').join(tldSkip));
+        }
+        if (!pluggabilitySkip.isEmpty()) {
+            jarScanFilter.setAttribute("pluggabilitySkip", defaultSkip + "," + Joiner.on(',').join(pluggabilitySkip));
+        }
+        jarScanner.appendChild(jarScanFilter);
+        contextXmlDocument.getDocumentElement().appendChild(jarScanner);
+        return this;
+    }
+
+    /**
+     * Serve the {@code .gz} sibling of the static assets to the clients that accept gzip: {@code gzip} init-param of
+     * the {@code DefaultServlet} of Tomcat 8.0 (renamed {@code precompressed} in Tomcat 8.5).
+     *
+     * @see StaticAssetsPrecompressor
+     */
+    protected SetupTomcatConfigurationFiles enablePrecompressedStaticAssets(@Nonnull Document webXmlDocument) {
+        XmlUtils.checkRootElement(webXmlDocument, "web-app");
+        Element defaultServlet = null;
+        NodeList servlets = webXmlDocument.getElementsByTagName("servlet");
+        for (int i = 0; i < servlets.getLength(); i++) {
+            Element servlet = (Element) servlets.item(i);
+            if ("org.apache.catalina.servlets.DefaultServlet".equals(getChildText(servlet, "servlet-class"))) {
+                defaultServlet = servlet;
+            }
+        }
+        Preconditions.checkState(defaultServlet != null, "No DefaultServlet declared in web.xml");
+
+        String namespace = webXmlDocument.getDocumentElement().getNamespaceURI();
+        NodeList initParams = defaultServlet.getElementsByTagName("init-param");
+        for (int i = 0; i < initParams.getLength(); i++) {
+            Element initParam = (Element) initParams.item(i);
+            if ("gzip".equals(getChildText(initParam, "param-name"))) {
+                initParam.getElementsByTagName("param-value").item(0).setTextContent("true");
+                return this;
+            }
+        }
+        Element initParam = webXmlDocument.createElementNS(namespace, "init-param");
+        Element paramName = webXmlDocument.createElementNS(namespace, "param-name");
+        paramName.setTextContent("gzip");
+        initParam.appendChild(paramName);
+        Element paramValue = webXmlDocument.createElementNS(namespace, "param-value");
+        paramValue.setTextContent("true");
+        initParam.appendChild(paramValue);
+        // init-params precede load-on-startup
+        NodeList loadOnStartup = defaultServlet.getElementsByTagName("load-on-startup");
+        defaultServlet.insertBefore(initParam, loadOnStartup.getLength() == 0 ? null : loadOnStartup.item(0));
+        logger.info("DefaultServlet serves precompressed static assets");
+        return this;
+    }
+
+    @Nullable
+    private static String getChildText(@Nonnull Element element, @Nonnull String childName) {
+        NodeList children = element.getElementsByTagName(childName);
+        return children.getLength() == 0 ? null : children.item(0).getTextContent().trim();
+    }
+
+    /**
+     * Size the cache of the static resources ({@code <Resources cacheMaxSize>}, in kB) to hold the static assets and
+     * their {@code .gz} plus 25% for the other resources: no less than the 10MB default of Tomcat and no more than
+     * 10% of the heap. {@code cacheObjectMaxSize} is raised from its 512kB default to cache the biggest assets,
+     * within the limit of Tomcat ({@code cacheMaxSize / 20}). Attributes defined by the application are kept.
+     *
+     * @param maxHeapInBytes max heap of the JVM
+     */
+    protected SetupTomcatConfigurationFiles addStaticResourcesCache(@Nonnull StaticAssetsPrecompressor.Result staticAssets,
+                                                                    long maxHeapInBytes, @Nonnull Document contextXmlDocument) {
+        long defaultCacheMaxSizeInKb = 10240;
+        long defaultCacheObjectMaxSizeInKb = 512;
+
+        long footprintInKb = staticAssets.getFootprintBytes() * 5 / 4 / 1024;
+        long cacheMaxSizeInKb = Math.max(defaultCacheMaxSizeInKb, Math.min(footprintInKb, maxHeapInBytes / 10 / 1024));
+        long largestAssetInKb = staticAssets.getLargestAssetBytes() / 1024 + 1;
+        long cacheObjectMaxSizeInKb = Math.min(Math.max(defaultCacheObjectMaxSizeInKb, largestAssetInKb), cacheMaxSizeInKb / 20);
+
+        Element resources;
+        NodeList resourcesList = contextXmlDocument.getDocumentElement().getElementsByTagName("Resources");
+        if (resourcesList.getLength() == 0) {
+            resources = contextXmlDocument.createElement("Resources");
+            contextXmlDocument.getDocumentElement().appendChild(resources);
+        } else {
+            resources = (Element) resourcesList.item(0);
+        }
+        if (!resources.hasAttribute("cacheMaxSize")) {
+            resources.setAttribute("cacheMaxSize", String.valueOf(cacheMaxSizeInKb));
+        }
+        if (!resources.hasAttribute("cacheObjectMaxSize") && cacheObjectMaxSizeInKb > defaultCacheObjectMaxSizeInKb) {
+            resources.setAttribute("cacheObjectMaxSize", String.valueOf(cacheObjectMaxSizeInKb));
+        }
+        logger.info("Static resources cache: cacheMaxSize={}kB, cacheObjectMaxSize={}kB for static assets {}",
+                resources.getAttribute("cacheMaxSize"), resources.hasAttribute("cacheObjectMaxSize") ?
+                        resources.getAttribute("cacheObjectMaxSize") : defaultCacheObjectMaxSizeInKb, staticAssets);
+        return this;
+    }
+
     protected void buildTomcatConfiguration(Metadata metadata, Document serverXmlDocument, Document contextXmlDocument) throws ParserConfigurationException {
 
         String message = "File generated by tomcat-clickstack at " + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date());
@@ -264,6 +866,11 @@ public class SetupTomcatConfigurationFiles {
         serverXmlDocument.appendChild(serverXmlDocument.createComment(message));
         contextXmlDocument.appendChild(contextXmlDocument.createComment(message));
 
+        // connector first, the sizing of the datasources depends on its threads
+        updateConnectorConfiguration(metadata, serverXmlDocument);
+        updateConnectorEngine(metadata, serverXmlDocument);
+        applyProductionMode(metadata, serverXmlDocument, contextXmlDocument);
+
         for (Resource resource : metadata.getResources().values()) {
             if (resource instanceof Database) {
                 addDatabase((Database) resource, serverXmlDocument, contextXmlDocument);
@@ -276,7 +883,9 @@ public class SetupTomcatConfigurationFiles {
         addPrivateAppValve(metadata, serverXmlDocument, contextXmlDocument);
         addRemoteAddrValve(metadata, serverXmlDocument, contextXmlDocument);
         addSyslogAccessLogValve(metadata, serverXmlDocument, contextXmlDocument);
-        updateConnectorConfiguration(metadata, serverXmlDocument);
+        addRequestMetricsValve(metadata, serverXmlDocument, contextXmlDocument);
+        // inserted last, right after the RemoteIpValve, to time the other valves
+        addLatencyHistogramValve(metadata, serverXmlDocument, contextXmlDocument);
     }
 
     public void buildTomcatConfigurationFiles(Path catalinaBase) throws Exception {
@@ -288,18 +897,95 @@ public class SetupTomcatConfigurationFiles {
         Path contextXmlPath = catalinaBase.resolve("conf/context.xml");
         Preconditions.checkArgument(Files.exists(contextXmlPath), "Given context.xml does not exist %s", contextXmlPath);
 
-        Document contextXmlDocument = XmlUtils.loadXmlDocumentFromFile(contextXmlPath.toFile());
+        Document contextXmlDocument = loadConfigurationFile(contextXmlPath, true);
         XmlUtils.checkRootElement(contextXmlDocument, "Context");
 
 
         Path serverXmlPath = catalinaBase.resolve("conf/server.xml");
         Preconditions.checkArgument(Files.exists(serverXmlPath), "Given server.xml does not exist %s", serverXmlPath);
 
-        Document serverXmlDocument = XmlUtils.loadXmlDocumentFromFile(serverXmlPath.toFile());
+        Document serverXmlDocument = loadConfigurationFile(serverXmlPath, true);
 
         this.buildTomcatConfiguration(metadata, serverXmlDocument, contextXmlDocument);
 
-        XmlUtils.flush(contextXmlDocument, new FileOutputStream(contextXmlPath.toFile()));
-        XmlUtils.flush(serverXmlDocument, new FileOutputStream(serverXmlPath.toFile()));
+        storeConfigurationFile(contextXmlPath, contextXmlDocument);
+        storeConfigurationFile(serverXmlPath, serverXmlDocument);
+    }
+
+    /**
+     * {@link #enablePrecompressedStaticAssets(Document)} on the given {@code web.xml} file.
+     */
+    public void enablePrecompressedStaticAssets(@Nonnull Path webXmlPath) throws Exception {
+        // the text of the init-params is read and may be changed
+        Document webXmlDocument = loadConfigurationFile(webXmlPath, false);
+        enablePrecompressedStaticAssets(webXmlDocument);
+        storeConfigurationFile(webXmlPath, webXmlDocument);
+    }
+
+    /**
+     * {@link #addStaticResourcesCache(StaticAssetsPrecompressor.Result, long, Document)} on the given
+     * {@code context.xml} file.
+     */
+    public void addStaticResourcesCache(@Nonnull StaticAssetsPrecompressor.Result staticAssets, long maxHeapInBytes,
+                                        @Nonnull Path contextXmlPath) throws Exception {
+        Document contextXmlDocument = loadConfigurationFile(contextXmlPath, true);
+        addStaticResourcesCache(staticAssets, maxHeapInBytes, contextXmlDocument);
+        storeConfigurationFile(contextXmlPath, contextXmlDocument);
+    }
+
+    /**
+     * {@link #addJarScanFilter(JarScanAnalyzer.Result, Document)} on the given {@code context.xml} file.
+     */
+    public void addJarScanFilter(@Nonnull JarScanAnalyzer.Result analysis, @Nonnull Path contextXmlPath) throws Exception {
+        Document contextXmlDocument = loadConfigurationFile(contextXmlPath, true);
+        addJarScanFilter(analysis, contextXmlDocument);
+        storeConfigurationFile(contextXmlPath, contextXmlDocument);
+    }
+
+    /**
+     * @return {@code true} if the {@code tomcat.configurationEngine=stax} runtime parameter is set
+     * @see StreamingXmlRewriter
+     */
+    public static boolean isStreamingConfigurationEngine(@Nonnull Metadata metadata) {
+        String engine = metadata.getRuntimeParameter("tomcat", "configurationEngine", "dom");
+        Preconditions.checkArgument("dom".equalsIgnoreCase(engine) || "stax".equalsIgnoreCase(engine),
+                "Invalid tomcat.configurationEngine '%s', expected 'dom' or 'stax'", engine);
+        return "stax".equalsIgnoreCase(engine);
+    }
+
+    /**
+     * @param elementsOnly with the streaming engine, {@code true} if the configuration logic only reads and edits
+     *                     elements and attributes
+     * @return the DOM document of the given configuration file or, with the streaming engine, its projection that
+     * preserves the comments and the formatting when it is {@link #storeConfigurationFile(Path, Document) stored}
+     * @see StreamingXmlRewriter#project(InputStream, boolean)
+     */
+    @Nonnull
+    protected Document loadConfigurationFile(@Nonnull Path xmlPath, boolean elementsOnly) throws Exception {
+        if (isStreamingConfigurationEngine(metadata)) {
+            try (InputStream in = Files.newInputStream(xmlPath)) {
+                return StreamingXmlRewriter.project(in, elementsOnly);
+            }
+        }
+        return XmlUtils.loadXmlDocumentFromFile(xmlPath.toFile());
+    }
+
+    /**
+     * @param document loaded by {@link #loadConfigurationFile(Path, boolean)}
+     */
+    protected void storeConfigurationFile(@Nonnull Path xmlPath, @Nonnull Document document) throws Exception {
+        if (!isStreamingConfigurationEngine(metadata)) {
+            try (OutputStream out = Files.newOutputStream(xmlPath)) {
+                XmlUtils.flush(document, out);
+            }
+            return;
+        }
+        Path tmp = xmlPath.resolveSibling(xmlPath.getFileName() + ".tmp");
+        try (InputStream in = Files.newInputStream(xmlPath);
+             OutputStream out = Files.newOutputStream(tmp)) {
+            StreamingXmlRewriter.rewrite(in, document, out);
+        }
+        Files.move(tmp, xmlPath, StandardCopyOption.REPLACE_EXISTING);
+        logger.debug("Rewrote {} with the streaming engine", xmlPath);
     }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Write, once at setup time, a gzipped sibling ({@code app.js.gz}) of the compressible static assets of the web
+ * application that the {@code DefaultServlet} serves as is, with {@code Content-Encoding: gzip}, to the clients that
+ * accept it.
+ * <ul>
+ * <li>assets: the files outside of {@code WEB-INF} and {@code META-INF}</li>
+ * <li>compressible: text based extensions ({@code .html}, {@code .css}, {@code .js}, {@code .svg}...) of at least
+ * {@value #MIN_COMPRESSIBLE_SIZE} bytes, the {@code .gz} is discarded if it saves less than 10%</li>
+ * <li>a {@code .gz} provided by the application, or written by a previous setup and not older than its asset, is
+ * kept</li>
+ * </ul>
+ * The {@link Result} gives the static footprint used to size the static resources cache of Tomcat.
+ */
+public class StaticAssetsPrecompressor {
+
+    /**
+     * Below this size, the gzip header and the extra response header outweigh the savings
+     */
+    static final int MIN_COMPRESSIBLE_SIZE = 1024;
+
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = ImmutableSet.of(
+            "html", "htm", "css", "js", "mjs", "json", "map", "xml", "svg", "txt", "csv", "ico", "ttf", "otf", "eot",
+            "webmanifest");
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final int threads;
+
+    public StaticAssetsPrecompressor(int threads) {
+        Preconditions.checkArgument(threads > 0, "Invalid threads count %s", threads);
+        this.threads = threads;
+    }
+
+    public static class Result {
+        private final AtomicInteger assetsCount = new AtomicInteger();
+        private final AtomicLong assetsBytes = new AtomicLong();
+        private final AtomicLong largestAssetBytes = new AtomicLong();
+        private final AtomicInteger compressedCount = new AtomicInteger();
+        private final AtomicLong compressedBytes = new AtomicLong();
+
+        /**
+         * @return number of static assets, {@code .gz} excluded
+         */
+        public int getAssetsCount() {
+            return assetsCount.get();
+        }
+
+        /**
+         * @return size of the static assets, {@code .gz} excluded
+         */
+        public long getAssetsBytes() {
+            return assetsBytes.get();
+        }
+
+        /**
+         * @return size of the biggest asset or {@code .gz}
+         */
+        public long getLargestAssetBytes() {
+            return largestAssetBytes.get();
+        }
+
+        /**
+         * @return number of assets that have a {@code .gz} sibling
+         */
+        public int getCompressedCount() {
+            return compressedCount.get();
+        }
+
+        /**
+         * @return size of the {@code .gz} siblings
+         */
+        public long getCompressedBytes() {
+            return compressedBytes.get();
+        }
+
+        /**
+         * @return bytes that the static resources cache needs to hold all the assets and their {@code .gz}
+         */
+        public long getFootprintBytes() {
+            return getAssetsBytes() + getCompressedBytes();
+        }
+
+        private void addAsset(long size) {
+            assetsCount.incrementAndGet();
+            assetsBytes.addAndGet(size);
+            updateLargest(size);
+        }
+
+        private void addCompressed(long size) {
+            compressedCount.incrementAndGet();
+            compressedBytes.addAndGet(size);
+            updateLargest(size);
+        }
+
+        private void updateLargest(long size) {
+            long largest = largestAssetBytes.get();
+            while (size > largest && !largestAssetBytes.compareAndSet(largest, size)) {
+                largest = largestAssetBytes.get();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "{" +
+                    "assets=" + getAssetsCount() + " (" + getAssetsBytes() / 1024 + "kB)" +
+                    ", compressed=" + getCompressedCount() + " (" + getCompressedBytes() / 1024 + "kB)" +
+                    '}';
+        }
+    }
+
+    @Nonnull
+    public Result precompress(@Nonnull final Path webAppDir) throws IOException, InterruptedException {
+        final Result result = new Result();
+        final List<Path> compressibles = new ArrayList<>();
+        Files.walkFileTree(webAppDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path relative = webAppDir.relativize(dir);
+                if (relative.startsWith("WEB-INF") || relative.startsWith("META-INF")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (file.getFileName().toString().endsWith(".gz")) {
+                    // counted with their asset
+                    return FileVisitResult.CONTINUE;
+                }
+                result.addAsset(attrs.size());
+                if (isCompressible(file, attrs.size())) {
+                    compressibles.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        long nanosBefore = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("static-assets-precompressor-%d").setDaemon(true).build());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (final Path file : compressibles) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        compress(file, result);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Exception precompressing static assets of " + webAppDir, e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.debug("Precompressed {} of {} in {}ms", result, webAppDir,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanosBefore));
+        return result;
+    }
+
+    protected static boolean isCompressible(@Nonnull Path file, long size) {
+        if (size < MIN_COMPRESSIBLE_SIZE) {
+            return false;
+        }
+        String fileName = file.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        return dot != -1 && COMPRESSIBLE_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    protected void compress(@Nonnull Path file, @Nonnull Result result) throws IOException {
+        Path gzFile = file.resolveSibling(file.getFileName() + ".gz");
+        if (Files.exists(gzFile) && Files.getLastModifiedTime(gzFile).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+            result.addCompressed(Files.size(gzFile));
+            return;
+        }
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".gz.tmp");
+        try {
+            try (OutputStream out = new BestCompressionGZIPOutputStream(Files.newOutputStream(tmpFile))) {
+                Files.copy(file, out);
+            }
+            long size = Files.size(file);
+            long compressedSize = Files.size(tmpFile);
+            if (compressedSize > size * 0.9) {
+                Files.deleteIfExists(gzFile);
+                return;
+            }
+            Files.move(tmpFile, gzFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // same validators for both representations
+            Files.setLastModifiedTime(gzFile, Files.getLastModifiedTime(file));
+            result.addCompressed(compressedSize);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * Compressed once, served many times: favor the ratio over the speed.
+     */
+    private static class BestCompressionGZIPOutputStream extends GZIPOutputStream {
+        BestCompressionGZIPOutputStream(OutputStream out) throws IOException {
+            super(out, 64 * 1024);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+}
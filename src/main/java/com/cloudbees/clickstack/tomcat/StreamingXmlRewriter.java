@@ -0,0 +1,513 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Preconditions;
+import org.w3c.dom.*;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.*;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * Streaming alternative to the load / modify / serialize of a DOM document that preserves the comments and the
+ * formatting of the original XML (Tomcat's {@code server.xml} and {@code context.xml}).
+ * <ol>
+ * <li>{@link #project(InputStream, boolean)} reads the XML with StAX into a projection: a DOM document of the
+ * elements and attributes in which each element remembers its position in the original XML. The configuration
+ * logic ({@link SetupTomcatConfigurationFiles}) runs unchanged on the projection</li>
+ * <li>{@link #rewrite(InputStream, Document, OutputStream)} diffs the projection with the original positions into
+ * declarative edits (insert a node before, after or at the end of an original element, update the attributes of an
+ * original element, remove an original element) and applies them while the original XML streams from input to
+ * output</li>
+ * </ol>
+ * Comments, text and whitespace between the tags are kept and inserted nodes are indented like their siblings; the
+ * tags themselves are re-serialized by StAX (quotes, line breaks between attributes). The text of an original element
+ * without child elements can be changed if the projection keeps the text. Moving an original element is not
+ * supported.
+ */
+public class StreamingXmlRewriter {
+
+    private static final String INDEX = StreamingXmlRewriter.class.getName() + ".index";
+    private static final String PARENT_INDEX = StreamingXmlRewriter.class.getName() + ".parentIndex";
+    private static final String ATTRIBUTES = StreamingXmlRewriter.class.getName() + ".attributes";
+    private static final String ORIGINAL = StreamingXmlRewriter.class.getName() + ".original";
+    private static final String ELEMENTS_COUNT = StreamingXmlRewriter.class.getName() + ".elementsCount";
+    private static final String TEXT = StreamingXmlRewriter.class.getName() + ".text";
+    private static final int DOCUMENT_INDEX = -1;
+
+    private StreamingXmlRewriter() {
+    }
+
+    /**
+     * @param elementsOnly {@code true} to skip the text and the comments, they are streamed from the original XML by
+     *                     {@link #rewrite(InputStream, Document, OutputStream)} anyway
+     */
+    @Nonnull
+    public static Document project(@Nonnull InputStream in, boolean elementsOnly) throws XMLStreamException {
+        Document document;
+        try {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+        XMLStreamReader reader = newInputFactory().createXMLStreamReader(in);
+        try {
+            Deque<Node> parents = new ArrayDeque<>();
+            parents.push(document);
+            int index = 0;
+            while (reader.hasNext()) {
+                Node parent = parents.peek();
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        Element element = document.createElement(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+                        Map<String, String> attributes = new LinkedHashMap<>();
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            String name = qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i));
+                            element.setAttribute(name, reader.getAttributeValue(i));
+                            attributes.put(name, reader.getAttributeValue(i));
+                        }
+                        element.setUserData(INDEX, index++, null);
+                        element.setUserData(PARENT_INDEX, parent == document ? DOCUMENT_INDEX : parent.getUserData(INDEX), null);
+                        element.setUserData(ATTRIBUTES, attributes, null);
+                        if (!elementsOnly) {
+                            element.setUserData(TEXT, "", null);
+                        }
+                        parent.appendChild(element);
+                        parents.push(element);
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        parents.pop();
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (!elementsOnly && parent != document) {
+                            Text text = document.createTextNode(reader.getText());
+                            text.setUserData(ORIGINAL, Boolean.TRUE, null);
+                            parent.appendChild(text);
+                            String originalText = (String) parent.getUserData(TEXT);
+                            parent.setUserData(TEXT, originalText == null ? reader.getText() : originalText + reader.getText(), null);
+                        }
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        if (!elementsOnly) {
+                            Comment comment = document.createComment(reader.getText());
+                            comment.setUserData(ORIGINAL, Boolean.TRUE, null);
+                            parent.appendChild(comment);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            document.setUserData(ELEMENTS_COUNT, index, null);
+        } finally {
+            reader.close();
+        }
+        return document;
+    }
+
+    /**
+     * @param in         the original XML of the projection
+     * @param projection the projection of {@code in}, modified
+     */
+    public static void rewrite(@Nonnull InputStream in, @Nonnull Document projection, @Nonnull OutputStream out) throws XMLStreamException {
+        Edits edits = new Edits(projection);
+        XMLStreamReader reader = newInputFactory().createXMLStreamReader(in);
+        String encoding = reader.getCharacterEncodingScheme() == null ? "UTF-8" : reader.getCharacterEncodingScheme();
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, encoding);
+        try {
+            boolean startOfDocument = true;
+            if (reader.getVersion() != null) {
+                writer.writeStartDocument(encoding, reader.getVersion());
+                startOfDocument = false;
+            }
+            int index = 0;
+            int skippedDepth = 0;
+            StartElement pendingStartElement = null;
+            boolean emptyElement = false;
+            Deque<Integer> openElements = new ArrayDeque<>();
+            Map<Integer, String> indentations = new HashMap<>();
+            Map<Integer, String> lastChildIndentations = new HashMap<>();
+            StringBuilder whitespace = new StringBuilder();
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (skippedDepth > 0) {
+                    // removed element
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        index++;
+                        skippedDepth++;
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        skippedDepth--;
+                    }
+                    continue;
+                }
+                if (pendingStartElement != null) {
+                    // written with the next event to keep the empty elements empty
+                    emptyElement = event == XMLStreamConstants.END_ELEMENT && edits.get(edits.appended, pendingStartElement.index).isEmpty() &&
+                            !edits.texts.containsKey(pendingStartElement.index);
+                    pendingStartElement.write(writer, emptyElement);
+                    pendingStartElement = null;
+                }
+                if (openElements.isEmpty() && whitespace.length() == 0 && event != XMLStreamConstants.END_DOCUMENT && !startOfDocument) {
+                    // the whitespace of the prolog and of the epilog is not reported
+                    whitespace.append('\n');
+                }
+                startOfDocument = false;
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT: {
+                        int elementIndex = index++;
+                        if (edits.removed.contains(elementIndex)) {
+                            // drop the indentation of the removed element
+                            whitespace.setLength(0);
+                            skippedDepth = 1;
+                            break;
+                        }
+                        String indentation = indentation(whitespace);
+                        writeWhitespace(whitespace, writer);
+                        for (Node node : edits.get(edits.insertedBefore, elementIndex)) {
+                            writeNode(node, writer);
+                            writer.writeCharacters(indentation);
+                        }
+                        pendingStartElement = new StartElement(reader, elementIndex, edits.attributes.get(elementIndex));
+                        if (!openElements.isEmpty()) {
+                            lastChildIndentations.put(openElements.peek(), indentation);
+                        }
+                        openElements.push(elementIndex);
+                        indentations.put(elementIndex, indentation);
+                        break;
+                    }
+                    case XMLStreamConstants.END_ELEMENT: {
+                        int elementIndex = openElements.pop();
+                        String text = edits.texts.get(elementIndex);
+                        if (text != null) {
+                            writer.writeCharacters(text);
+                        }
+                        String indentation = indentations.remove(elementIndex);
+                        String childIndentation = lastChildIndentations.remove(elementIndex);
+                        if (childIndentation == null) {
+                            childIndentation = indentation + "    ";
+                        }
+                        for (Node node : edits.get(edits.appended, elementIndex)) {
+                            writer.writeCharacters(childIndentation);
+                            writeNode(node, writer);
+                        }
+                        if (whitespace.length() == 0 && !edits.get(edits.appended, elementIndex).isEmpty()) {
+                            whitespace.append(indentation);
+                        }
+                        writeWhitespace(whitespace, writer);
+                        if (!emptyElement) {
+                            writer.writeEndElement();
+                        }
+                        emptyElement = false;
+                        for (Node node : edits.get(edits.insertedAfter, elementIndex)) {
+                            writer.writeCharacters(indentation);
+                            writeNode(node, writer);
+                        }
+                        break;
+                    }
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                        if (!openElements.isEmpty() && edits.texts.containsKey(openElements.peek())) {
+                            // replaced text
+                            break;
+                        }
+                        if (reader.isWhiteSpace()) {
+                            // written with the next event, dropped if it is a removed element
+                            whitespace.append(reader.getText());
+                        } else {
+                            writeWhitespace(whitespace, writer);
+                            writer.writeCharacters(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.CDATA:
+                        if (!openElements.isEmpty() && edits.texts.containsKey(openElements.peek())) {
+                            break;
+                        }
+                        writeWhitespace(whitespace, writer);
+                        writer.writeCData(reader.getText());
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        writeWhitespace(whitespace, writer);
+                        writer.writeComment(reader.getText());
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        writeWhitespace(whitespace, writer);
+                        writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                        break;
+                    case XMLStreamConstants.DTD:
+                        writeWhitespace(whitespace, writer);
+                        writer.writeDTD(reader.getText());
+                        break;
+                    case XMLStreamConstants.ENTITY_REFERENCE:
+                        writeWhitespace(whitespace, writer);
+                        writer.writeEntityRef(reader.getLocalName());
+                        break;
+                    case XMLStreamConstants.END_DOCUMENT:
+                        writeWhitespace(whitespace, writer);
+                        for (Node node : edits.get(edits.appended, DOCUMENT_INDEX)) {
+                            writer.writeCharacters("\n");
+                            writeNode(node, writer);
+                        }
+                        writer.writeEndDocument();
+                        break;
+                    default:
+                        break;
+                }
+            }
+            writer.flush();
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    @Nonnull
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return inputFactory;
+    }
+
+    @Nonnull
+    private static String qualifiedName(@Nullable String prefix, @Nonnull String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    /**
+     * @return the end of the whitespace that precedes an element, from its last line break
+     */
+    @Nonnull
+    private static String indentation(@Nonnull CharSequence whitespace) {
+        String value = whitespace.toString();
+        int lineBreak = value.lastIndexOf('\n');
+        return lineBreak == -1 ? "\n" : value.substring(lineBreak);
+    }
+
+    private static void writeWhitespace(@Nonnull StringBuilder whitespace, @Nonnull XMLStreamWriter writer) throws XMLStreamException {
+        if (whitespace.length() > 0) {
+            writer.writeCharacters(whitespace.toString());
+            whitespace.setLength(0);
+        }
+    }
+
+    private static void writeNode(@Nonnull Node node, @Nonnull XMLStreamWriter writer) throws XMLStreamException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                if (node.hasChildNodes()) {
+                    writer.writeStartElement(node.getNodeName());
+                } else {
+                    writer.writeEmptyElement(node.getNodeName());
+                }
+                NamedNodeMap attributes = node.getAttributes();
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    writer.writeAttribute(attributes.item(i).getNodeName(), attributes.item(i).getNodeValue());
+                }
+                if (node.hasChildNodes()) {
+                    for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                        writeNode(child, writer);
+                    }
+                    writer.writeEndElement();
+                }
+                break;
+            case Node.TEXT_NODE:
+                writer.writeCharacters(node.getNodeValue());
+                break;
+            case Node.CDATA_SECTION_NODE:
+                writer.writeCData(node.getNodeValue());
+                break;
+            case Node.COMMENT_NODE:
+                writer.writeComment(node.getNodeValue());
+                break;
+            default:
+                throw new IllegalStateException("Unsupported inserted node " + node);
+        }
+    }
+
+    /**
+     * Start tag of an original element, with its edited attributes.
+     */
+    private static class StartElement {
+        final int index;
+        final String prefix;
+        final String localName;
+        final String namespaceUri;
+        final Map<String, String> namespaces = new LinkedHashMap<>();
+        final Map<String, String> attributes;
+
+        StartElement(@Nonnull XMLStreamReader reader, int index, @Nullable Map<String, String> editedAttributes) {
+            this.index = index;
+            this.prefix = reader.getPrefix() == null ? "" : reader.getPrefix();
+            this.localName = reader.getLocalName();
+            this.namespaceUri = reader.getNamespaceURI() == null ? "" : reader.getNamespaceURI();
+            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                namespaces.put(reader.getNamespacePrefix(i) == null ? "" : reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+            }
+            if (editedAttributes == null) {
+                attributes = new LinkedHashMap<>();
+                for (int i = 0; i < reader.getAttributeCount(); i++) {
+                    attributes.put(qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+                }
+            } else {
+                attributes = editedAttributes;
+            }
+        }
+
+        void write(@Nonnull XMLStreamWriter writer, boolean empty) throws XMLStreamException {
+            if (empty) {
+                writer.writeEmptyElement(prefix, localName, namespaceUri);
+            } else {
+                writer.writeStartElement(prefix, localName, namespaceUri);
+            }
+            for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+                if (namespace.getKey().isEmpty()) {
+                    writer.writeDefaultNamespace(namespace.getValue());
+                } else {
+                    writer.writeNamespace(namespace.getKey(), namespace.getValue());
+                }
+            }
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                writer.writeAttribute(attribute.getKey(), attribute.getValue());
+            }
+        }
+    }
+
+    /**
+     * Differences between the projection and the original XML, indexed by the position of the original elements.
+     */
+    private static class Edits {
+        final Map<Integer, List<Node>> insertedBefore = new HashMap<>();
+        final Map<Integer, List<Node>> insertedAfter = new HashMap<>();
+        final Map<Integer, List<Node>> appended = new HashMap<>();
+        final Map<Integer, Map<String, String>> attributes = new HashMap<>();
+        final Map<Integer, String> texts = new HashMap<>();
+        final Set<Integer> removed = new HashSet<>();
+
+        Edits(@Nonnull Document projection) {
+            Integer elementsCount = (Integer) projection.getUserData(ELEMENTS_COUNT);
+            Preconditions.checkArgument(elementsCount != null, "Document is not a projection");
+            for (int i = 0; i < elementsCount; i++) {
+                removed.add(i);
+            }
+            diff(projection, DOCUMENT_INDEX);
+        }
+
+        private void diff(@Nonnull Node parent, int parentIndex) {
+            for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+                Integer index = (Integer) node.getUserData(INDEX);
+                if (index != null) {
+                    Preconditions.checkState(Integer.valueOf(parentIndex).equals(node.getUserData(PARENT_INDEX)),
+                            "Moving element <%s> is not supported", node.getNodeName());
+                    removed.remove(index);
+                    diffAttributes((Element) node, index);
+                    if (!diffText((Element) node, index)) {
+                        diff(node, index);
+                    }
+                } else if (node.getUserData(ORIGINAL) == null) {
+                    Element previous = originalSibling(node, false);
+                    Element next = originalSibling(node, true);
+                    if (previous != null) {
+                        add(insertedAfter, (Integer) previous.getUserData(INDEX), node);
+                    } else if (next != null) {
+                        add(insertedBefore, (Integer) next.getUserData(INDEX), node);
+                    } else {
+                        add(appended, parentIndex, node);
+                    }
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void diffAttributes(@Nonnull Element element, int index) {
+            Map<String, String> original = (Map<String, String>) element.getUserData(ATTRIBUTES);
+            Map<String, String> current = new LinkedHashMap<>();
+            // original order first
+            for (String name : original.keySet()) {
+                if (element.hasAttribute(name)) {
+                    current.put(name, element.getAttribute(name));
+                }
+            }
+            NamedNodeMap domAttributes = element.getAttributes();
+            for (int i = 0; i < domAttributes.getLength(); i++) {
+                Node attribute = domAttributes.item(i);
+                if (!current.containsKey(attribute.getNodeName())) {
+                    current.put(attribute.getNodeName(), attribute.getNodeValue());
+                }
+            }
+            if (!current.equals(original)) {
+                attributes.put(index, current);
+            }
+        }
+
+        /**
+         * @return {@code true} if the text of the given element without child elements is changed
+         */
+        private boolean diffText(@Nonnull Element element, int index) {
+            String original = (String) element.getUserData(TEXT);
+            if (original == null) {
+                // projection without text
+                return false;
+            }
+            StringBuilder current = new StringBuilder();
+            for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    return false;
+                } else if (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                    current.append(child.getNodeValue());
+                }
+            }
+            if (current.toString().equals(original)) {
+                return false;
+            }
+            texts.put(index, current.toString());
+            return true;
+        }
+
+        @Nullable
+        private static Element originalSibling(@Nonnull Node node, boolean next) {
+            for (Node sibling = next ? node.getNextSibling() : node.getPreviousSibling(); sibling != null;
+                 sibling = next ? sibling.getNextSibling() : sibling.getPreviousSibling()) {
+                if (sibling.getUserData(INDEX) != null) {
+                    return (Element) sibling;
+                }
+            }
+            return null;
+        }
+
+        private static void add(@Nonnull Map<Integer, List<Node>> edits, int index, @Nonnull Node node) {
+            List<Node> nodes = edits.get(index);
+            if (nodes == null) {
+                nodes = new ArrayList<>();
+                edits.put(index, nodes);
+            }
+            nodes.add(node);
+        }
+
+        @Nonnull
+        List<Node> get(@Nonnull Map<Integer, List<Node>> edits, int index) {
+            List<Node> nodes = edits.get(index);
+            return nodes == null ? Collections.<Node>emptyList() : nodes;
+        }
+    }
+}
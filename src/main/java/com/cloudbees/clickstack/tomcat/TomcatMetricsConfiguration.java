@@ -0,0 +1,197 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Database;
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.cloudbees.clickstack.util.XmlUtils;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Generate the jmxtrans-agent queries of {@code tomcat-metrics.xml} that depend on the deployment: memory pools and
+ * garbage collectors of the JVM, datasources, request latency and routes, context path of the application.
+ * <p/>
+ * The queries that are common to all the deployments (OS, heap, threads, connector...) remain in the
+ * {@code tomcat-metrics.xml} of the clickstack, the generated queries are appended to its {@code <queries>} element.
+ */
+public class TomcatMetricsConfiguration {
+
+    /**
+     * {@code collectIntervalInSeconds} of {@code tomcat-metrics.xml}
+     */
+    public static final int COLLECT_INTERVAL_IN_SECONDS = 20;
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    private final Metadata metadata;
+    @Nonnull
+    private final String contextName;
+    @Nonnull
+    private final Collection<Database> databases;
+    @Nonnull
+    private final Jvm jvm;
+
+    /**
+     * @param contextPath name of the folder of the webapp in {@code catalina-base/webapps} ("ROOT", "myapp"...)
+     */
+    public TomcatMetricsConfiguration(@Nonnull Metadata metadata, @Nonnull String contextPath, @Nonnull Jvm jvm) {
+        this.metadata = metadata;
+        this.contextName = "ROOT".equals(contextPath) ? "/" : "/" + contextPath;
+        this.databases = new ArrayList<>(metadata.getResources(Database.class));
+        this.jvm = jvm;
+    }
+
+    public void addQueries(@Nonnull Document jmxtransAgentDocument) {
+        XmlUtils.checkRootElement(jmxtransAgentDocument, "jmxtrans-agent");
+        Element queries = XmlUtils.getUniqueElement(jmxtransAgentDocument, "/jmxtrans-agent/queries");
+
+        addComment(queries, "MEMORY POOLS");
+        for (String pool : jvm.getMemoryPools()) {
+            String objectName = "java.lang:type=MemoryPool,name=" + pool;
+            String alias = "memory_" + toAlias(pool);
+            addQuery(queries, objectName, "Usage", "used", null, alias + "_used");
+            addQuery(queries, objectName, "Usage", "committed", null, alias + "_committed");
+            addQuery(queries, objectName, "PeakUsage", "used", null, alias + "_peakUsed");
+            addQuery(queries, objectName, "PeakUsage", "committed", null, alias + "_peakCommitted");
+        }
+
+        addComment(queries, "GARBAGE COLLECTOR");
+        for (String collector : jvm.getGarbageCollectors()) {
+            String objectName = "java.lang:type=GarbageCollector,name=" + collector;
+            String alias = "gc_" + toAlias(collector);
+            addQuery(queries, objectName, "CollectionCount", null, "counter", alias + "_collection_count");
+            addQuery(queries, objectName, "CollectionTime", null, "counter", alias + "_collection_time");
+        }
+
+        if (!databases.isEmpty()) {
+            addComment(queries, "DATA SOURCE");
+            addQuery(queries, "Catalina:type=DataSource,context=" + contextName + ",host=localhost,class=javax.sql.DataSource,name=*",
+                    "numActive", null, null, "datasource_%name%_numActive");
+            addQuery(queries, "Catalina:type=DataSource,context=" + contextName + ",host=localhost,class=javax.sql.DataSource,name=*",
+                    "numIdle", null, null, "datasource_%name%_numIdle");
+            addQuery(queries, "tomcat.jdbc:type=ConnectionPool,engine=Catalina,context=" + contextName + ",host=localhost," +
+                    "class=org.apache.tomcat.jdbc.pool.DataSource,name=*", "WaitCount", null, null, "datasource_%name%_numWait");
+            for (Database database : databases) {
+                if (!"performance".equalsIgnoreCase(database.getProperties().get("jdbcInterceptorsProfile"))) {
+                    continue;
+                }
+                // see com.cloudbees.tomcat.jdbc.DataSourceQueryStats
+                String objectName = "tomcat.jdbc:type=QueryStats,name=\"jdbc/" + database.getName() + "\"";
+                addQuery(queries, objectName, "SlowQueryCount", null, "counter", "datasource_%name%_slowQueries");
+                addQuery(queries, objectName, "FailedQueryCount", null, "counter", "datasource_%name%_failedQueries");
+                addQuery(queries, objectName, "MaxQueryTime", null, null, "datasource_%name%_maxQueryTime");
+            }
+        }
+
+        if (SetupTomcatConfigurationFiles.isLatencyHistogramEnabled(metadata)) {
+            addComment(queries, "REQUEST LATENCY");
+            // see com.cloudbees.tomcat.valves.LatencyHistogramValve
+            String objectName = "com.cloudbees.tomcat:type=RequestLatency,host=localhost";
+            addQuery(queries, objectName, "P50", null, null, "request_latency_p50");
+            addQuery(queries, objectName, "P90", null, null, "request_latency_p90");
+            addQuery(queries, objectName, "P99", null, null, "request_latency_p99");
+            addQuery(queries, objectName, "P999", null, null, "request_latency_p999");
+            addQuery(queries, objectName, "Max", null, null, "request_latency_max");
+        }
+
+        if (SetupTomcatConfigurationFiles.isRequestMetricsEnabled(metadata)) {
+            addComment(queries, "REQUEST METRICS PER ROUTE");
+            // see com.cloudbees.tomcat.valves.RequestMetricsValve, routes are created at runtime
+            String objectName = "com.cloudbees.tomcat:type=RequestMetrics,host=localhost,route=*";
+            addQuery(queries, objectName, "RequestCount", null, "counter", "route_%route%_requestCount");
+            addQuery(queries, objectName, "ErrorCount", null, "counter", "route_%route%_errorCount");
+            addQuery(queries, objectName, "ProcessingTime", null, "counter", "route_%route%_processingTime");
+            addQuery(queries, objectName, "MaxTime", null, null, "route_%route%_maxTime");
+        }
+
+        addComment(queries, "APPLICATION");
+        String managerObjectName = "Catalina:type=Manager,context=" + contextName + ",host=localhost";
+        addQuery(queries, managerObjectName, "activeSessions", null, null, "application_activeSessions");
+        addQuery(queries, managerObjectName, "expiredSessions", null, "counter", "application_expiredSessions");
+        addQuery(queries, managerObjectName, "sessionCounter", null, "counter", "application_createdSessions");
+
+        logger.debug("Generated jmxtrans-agent queries for context {}, {} datasources and {}", contextName, databases.size(), jvm);
+    }
+
+    /**
+     * @return {@code true} if the {@code metrics.prometheus=true} runtime parameter is set
+     */
+    public static boolean isPrometheusEnabled(@Nonnull Metadata metadata) {
+        return "true".equalsIgnoreCase(metadata.getRuntimeParameter("metrics", "prometheus", "false"));
+    }
+
+    /**
+     * Expose the metrics in Prometheus format on {@code 127.0.0.1:${metrics.prometheus.port}} (default 9404).
+     *
+     * @see com.cloudbees.jmxtrans.agent.PrometheusOutputWriter
+     */
+    public void addPrometheusOutputWriter(@Nonnull Document jmxtransAgentDocument) {
+        XmlUtils.checkRootElement(jmxtransAgentDocument, "jmxtrans-agent");
+        String port = metadata.getRuntimeParameter("metrics", "prometheus.port", "9404");
+        Preconditions.checkState(port.matches("\\d+"), "Invalid metrics.prometheus.port '%s'", port);
+
+        Element outputWriter = jmxtransAgentDocument.createElement("outputWriter");
+        outputWriter.setAttribute("class", "com.cloudbees.jmxtrans.agent.PrometheusOutputWriter");
+        Element host = jmxtransAgentDocument.createElement("host");
+        host.setTextContent("127.0.0.1");
+        outputWriter.appendChild(host);
+        Element portElement = jmxtransAgentDocument.createElement("port");
+        portElement.setTextContent(port);
+        outputWriter.appendChild(portElement);
+
+        Element collectInterval = XmlUtils.getUniqueElement(jmxtransAgentDocument, "/jmxtrans-agent/collectIntervalInSeconds");
+        jmxtransAgentDocument.getDocumentElement().insertBefore(outputWriter, collectInterval);
+        logger.debug("Expose metrics in Prometheus format on 127.0.0.1:{}", port);
+    }
+
+    /**
+     * "PS Eden Space" -> "ps_eden_space", "CodeHeap 'non-nmethods'" -> "codeheap_non_nmethods"
+     */
+    @Nonnull
+    protected static String toAlias(@Nonnull String name) {
+        return name.toLowerCase(Locale.ENGLISH).replaceAll("[^a-z0-9]+", "_").replaceAll("^_|_$", "");
+    }
+
+    protected void addComment(@Nonnull Element queries, @Nonnull String comment) {
+        queries.appendChild(queries.getOwnerDocument().createComment(" " + comment + " "));
+    }
+
+    protected void addQuery(@Nonnull Element queries, @Nonnull String objectName, @Nonnull String attribute,
+                            @Nullable String key, @Nullable String type, @Nonnull String resultAlias) {
+        Element query = queries.getOwnerDocument().createElement("query");
+        query.setAttribute("objectName", objectName);
+        query.setAttribute("attribute", attribute);
+        if (key != null) {
+            query.setAttribute("key", key);
+        }
+        if (type != null) {
+            query.setAttribute("type", type);
+        }
+        query.setAttribute("resultAlias", resultAlias);
+        queries.appendChild(query);
+    }
+}
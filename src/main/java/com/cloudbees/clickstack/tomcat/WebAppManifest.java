@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Name, CRC and size of the files extracted from a war, used to redeploy only the entries that changed.
+ * <p/>
+ * Stored as a text file:
+ * <pre><code>
+ * contextPath=ROOT
+ * 1c291ca3 1234 WEB-INF/web.xml
+ * ...
+ * </code></pre>
+ */
+public class WebAppManifest {
+
+    private static final String CONTEXT_PATH_PREFIX = "contextPath=";
+
+    @Nonnull
+    private final String contextPath;
+    /**
+     * entry name -> "crc size"
+     */
+    @Nonnull
+    private final SortedMap<String, String> entries;
+
+    public WebAppManifest(@Nonnull String contextPath, @Nonnull SortedMap<String, String> entries) {
+        this.contextPath = contextPath;
+        this.entries = entries;
+    }
+
+    @Nonnull
+    public static WebAppManifest of(@Nonnull String contextPath, @Nonnull Collection<ZipCentralDirectory.Entry> zipEntries) {
+        SortedMap<String, String> entries = new TreeMap<>();
+        for (ZipCentralDirectory.Entry entry : zipEntries) {
+            if (!entry.isDirectory()) {
+                entries.put(entry.getName(), signature(entry.getCrc(), entry.getSize()));
+            }
+        }
+        return new WebAppManifest(contextPath, entries);
+    }
+
+    /**
+     * @return {@code null} if the given file does not exist
+     */
+    @Nullable
+    public static WebAppManifest load(@Nonnull Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        String contextPath = null;
+        SortedMap<String, String> entries = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, Charsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(CONTEXT_PATH_PREFIX)) {
+                    contextPath = line.substring(CONTEXT_PATH_PREFIX.length());
+                } else if (!line.isEmpty()) {
+                    List<String> tokens = Splitter.on(' ').limit(3).splitToList(line);
+                    if (tokens.size() != 3) {
+                        throw new IOException("Invalid line '" + line + "' in " + file);
+                    }
+                    entries.put(tokens.get(2), tokens.get(0) + " " + tokens.get(1));
+                }
+            }
+        }
+        if (contextPath == null) {
+            throw new IOException("Missing '" + CONTEXT_PATH_PREFIX + "' in " + file);
+        }
+        return new WebAppManifest(contextPath, entries);
+    }
+
+    /**
+     * Write this manifest in a temporary file that is then renamed to {@code file}.
+     */
+    public void store(@Nonnull Path file) throws IOException {
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(tmpFile, Charsets.UTF_8))) {
+            writer.println(CONTEXT_PATH_PREFIX + contextPath);
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                writer.println(entry.getValue() + " " + entry.getKey());
+            }
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Nonnull
+    public String getContextPath() {
+        return contextPath;
+    }
+
+    /**
+     * @return {@code true} if the entry is listed in this manifest with the given crc and size
+     */
+    public boolean contains(@Nonnull ZipCentralDirectory.Entry entry) {
+        return signature(entry.getCrc(), entry.getSize()).equals(entries.get(entry.getName()));
+    }
+
+    /**
+     * @return names of the files of the given {@code previous} manifest that are no longer in this one
+     */
+    @Nonnull
+    public Set<String> removedFrom(@Nonnull WebAppManifest previous) {
+        Set<String> removed = new TreeSet<>(previous.entries.keySet());
+        removed.removeAll(entries.keySet());
+        return removed;
+    }
+
+    @Nonnull
+    private static String signature(long crc, long size) {
+        return Long.toHexString(crc) + " " + size;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+
+import javax.annotation.Nonnull;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip file in one pass, without inflating anything.
+ * <p/>
+ * Gives access to the name, compression method, CRC, sizes and local header offset of each entry so that entries
+ * can be extracted independently from each other. Zip64 archives and encrypted entries are rejected with a
+ * {@link ZipException}, callers are expected to fall back on a regular {@link java.util.zip.ZipInputStream}.
+ */
+public class ZipCentralDirectory {
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_LENGTH = 22;
+    private static final int CENTRAL_FILE_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_FILE_HEADER_LENGTH = 46;
+    private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_FILE_HEADER_LENGTH = 30;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final Charset CP437 = Charset.forName("IBM437");
+
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        public Entry(@Nonnull String name, int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        @Nonnull
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @see java.util.zip.ZipEntry#STORED
+         * @see java.util.zip.ZipEntry#DEFLATED
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "name='" + name + '\'' +
+                    ", method=" + method +
+                    ", size=" + size +
+                    ", compressedSize=" + compressedSize +
+                    '}';
+        }
+    }
+
+    private ZipCentralDirectory() {
+    }
+
+    @Nonnull
+    public static List<Entry> read(@Nonnull Path zipFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(zipFile, StandardOpenOption.READ)) {
+            return read(channel, zipFile);
+        }
+    }
+
+    @Nonnull
+    public static List<Entry> read(@Nonnull FileChannel channel, @Nonnull Object source) throws IOException {
+        long fileSize = channel.size();
+
+        // END OF CENTRAL DIRECTORY, located at the end of the file and followed by an optional comment
+        int tailLength = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_LENGTH + MAX_COMMENT_LENGTH);
+        ByteBuffer tail = readFully(channel, fileSize - tailLength, tailLength);
+        int eocd = -1;
+        for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new ZipException("End of central directory not found in " + source);
+        }
+        int entriesCount = tail.getShort(eocd + 10) & 0xFFFF;
+        long centralDirectorySize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+        long centralDirectoryOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (entriesCount == 0xFFFF || centralDirectorySize == 0xFFFFFFFFL || centralDirectoryOffset == 0xFFFFFFFFL) {
+            throw new ZipException("Zip64 archives are not supported: " + source);
+        }
+        if (centralDirectoryOffset + centralDirectorySize > fileSize) {
+            throw new ZipException("Invalid central directory offset in " + source);
+        }
+
+        // CENTRAL DIRECTORY
+        ByteBuffer centralDirectory = readFully(channel, centralDirectoryOffset, (int) centralDirectorySize);
+        List<Entry> entries = new ArrayList<>(entriesCount);
+        int position = 0;
+        for (int i = 0; i < entriesCount; i++) {
+            if (position + CENTRAL_FILE_HEADER_LENGTH > centralDirectorySize || centralDirectory.getInt(position) != CENTRAL_FILE_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central file header #" + i + " in " + source);
+            }
+            int flags = centralDirectory.getShort(position + 8) & 0xFFFF;
+            int method = centralDirectory.getShort(position + 10) & 0xFFFF;
+            long crc = centralDirectory.getInt(position + 16) & 0xFFFFFFFFL;
+            long compressedSize = centralDirectory.getInt(position + 20) & 0xFFFFFFFFL;
+            long size = centralDirectory.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = centralDirectory.getShort(position + 28) & 0xFFFF;
+            int extraLength = centralDirectory.getShort(position + 30) & 0xFFFF;
+            int commentLength = centralDirectory.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = centralDirectory.getInt(position + 42) & 0xFFFFFFFFL;
+
+            byte[] nameBytes = new byte[nameLength];
+            centralDirectory.position(position + CENTRAL_FILE_HEADER_LENGTH);
+            centralDirectory.get(nameBytes);
+            String name = new String(nameBytes, (flags & FLAG_UTF8) == 0 ? CP437 : Charsets.UTF_8);
+
+            if ((flags & FLAG_ENCRYPTED) != 0) {
+                throw new ZipException("Encrypted entries are not supported: " + name + " in " + source);
+            }
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) {
+                throw new ZipException("Zip64 entries are not supported: " + name + " in " + source);
+            }
+
+            entries.add(new Entry(name, method, crc, compressedSize, size, localHeaderOffset));
+            position += CENTRAL_FILE_HEADER_LENGTH + nameLength + extraLength + commentLength;
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Offset of the first byte of the (compressed) data of the given entry. The local file header is read because its
+     * "extra field" may differ from the one of the central directory.
+     */
+    public static long getDataOffset(@Nonnull FileChannel channel, @Nonnull Entry entry) throws IOException {
+        ByteBuffer localHeader = readFully(channel, entry.getLocalHeaderOffset(), LOCAL_FILE_HEADER_LENGTH);
+        if (localHeader.getInt(0) != LOCAL_FILE_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local file header for " + entry.getName());
+        }
+        int nameLength = localHeader.getShort(26) & 0xFFFF;
+        int extraLength = localHeader.getShort(28) & 0xFFFF;
+        return entry.getLocalHeaderOffset() + LOCAL_FILE_HEADER_LENGTH + nameLength + extraLength;
+    }
+
+    @Nonnull
+    private static ByteBuffer readFully(@Nonnull FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of zip file at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.cloudbees.clickstack.util.Files2;
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CatalinaHomeInstallerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path appDir;
+    private Path clickstackDir;
+
+    @Before
+    public void before() throws Exception {
+        appDir = temporaryFolder.newFolder("app").toPath();
+        clickstackDir = temporaryFolder.newFolder("clickstack").toPath();
+    }
+
+    @Test
+    public void install_replaces_the_read_only_catalina_home_of_another_tomcat_version() throws Exception {
+        Path catalinaHome = new CatalinaHomeInstaller(appDir).install(tomcatPackage("8.0.5"), null);
+        chmodReadOnly(catalinaHome);
+
+        catalinaHome = new CatalinaHomeInstaller(appDir).install(tomcatPackage("8.0.9"), null);
+
+        assertThat(catalinaHomes(), is(Collections.singletonList("apache-tomcat-8.0.9")));
+        assertThat(Files.exists(catalinaHome.resolve("lib/catalina.jar")), is(true));
+        assertThat(Files.isDirectory(catalinaHome.resolve("logs")), is(true));
+    }
+
+    /**
+     * Same stage declaration as {@link Setup#createPipeline()}, run three times with fingerprints: local catalina.home,
+     * then shared catalina.home ({@code setup.catalinaHome.cacheDir}), then local catalina.home of another tomcat
+     * version.
+     */
+    @Test
+    public void setup_rerun_with_different_metadata_and_tomcat_version() throws Exception {
+        Path fingerprintsFile = appDir.resolve("setup-fingerprints.properties");
+        Path cacheDir = temporaryFolder.newFolder("cache").toPath();
+
+        Path catalinaHome = runInstallCatalinaHomeStage("{}", tomcatPackage("8.0.5"), fingerprintsFile);
+        assertThat(catalinaHomes(), is(Collections.singletonList("apache-tomcat-8.0.5")));
+        assertThat(Files.isSymbolicLink(catalinaHome.resolve("lib")), is(false));
+        chmodReadOnly(catalinaHome);
+
+        String sharedMetadata = "{'setup': {'catalinaHome.cacheDir': '" + cacheDir + "'}}";
+        catalinaHome = runInstallCatalinaHomeStage(sharedMetadata, tomcatPackage("8.0.5"), fingerprintsFile);
+        assertThat(catalinaHomes(), is(Collections.singletonList("apache-tomcat-8.0.5")));
+        assertThat(Files.isSymbolicLink(catalinaHome.resolve("lib")), is(true));
+        assertThat(Files.isDirectory(catalinaHome.resolve("logs")), is(true));
+
+        Files.delete(clickstackDir.resolve("tomcat-8.0.5.zip"));
+        catalinaHome = runInstallCatalinaHomeStage("{}", tomcatPackage("8.0.9"), fingerprintsFile);
+        assertThat(catalinaHomes(), is(Collections.singletonList("apache-tomcat-8.0.9")));
+        assertThat(Files.isSymbolicLink(catalinaHome.resolve("lib")), is(false));
+
+        // deleting the linked catalina.home does not delete the shared one
+        try (DirectoryStream<Path> cacheEntries = Files.newDirectoryStream(cacheDir)) {
+            for (Path cacheEntry : cacheEntries) {
+                assertThat(Files.exists(cacheEntry.resolve("apache-tomcat-8.0.5/lib/catalina.jar")), is(true));
+            }
+        }
+    }
+
+    @Test
+    public void shared_catalina_home_cache_hit() throws Exception {
+        Path cacheDir = temporaryFolder.newFolder("cache").toPath();
+        Path tomcatPackagePath = tomcatPackage("8.0.5");
+        CountingCatalinaHomeInstaller firstInstaller = new CountingCatalinaHomeInstaller(appDir);
+        Path firstCatalinaHome = firstInstaller.install(tomcatPackagePath, cacheDir);
+
+        Path otherAppDir = temporaryFolder.newFolder("other-app").toPath();
+        CountingCatalinaHomeInstaller otherInstaller = new CountingCatalinaHomeInstaller(otherAppDir);
+        Path otherCatalinaHome = otherInstaller.install(tomcatPackagePath, cacheDir);
+
+        assertThat(firstInstaller.unzips.get(), is(1));
+        assertThat(otherInstaller.unzips.get(), is(0));
+        assertThat(Files.readSymbolicLink(otherCatalinaHome.resolve("lib")), is(Files.readSymbolicLink(firstCatalinaHome.resolve("lib"))));
+        assertThat(cacheEntries(cacheDir).size(), is(1));
+    }
+
+    @Test
+    public void shared_catalina_home_race_lost_to_a_concurrent_deployment() throws Exception {
+        final Path cacheDir = temporaryFolder.newFolder("cache").toPath();
+        final Path tomcatPackagePath = tomcatPackage("8.0.5");
+        CatalinaHomeInstaller installer = new CatalinaHomeInstaller(appDir) {
+            @Override
+            protected void move(@Nonnull Path tmpCacheEntry, @Nonnull Path cacheEntry) throws IOException {
+                // the concurrent deployment renames its temporary directory first
+                Path concurrentCacheEntry = Files.createTempDirectory(cacheDir, "concurrent.");
+                Files2.unzip(tomcatPackagePath, concurrentCacheEntry);
+                Files.move(concurrentCacheEntry, cacheEntry, StandardCopyOption.ATOMIC_MOVE);
+                // generic exception thrown by some platforms
+                throw new FileSystemException(tmpCacheEntry.toString(), cacheEntry.toString(), "Directory not empty");
+            }
+        };
+
+        Path catalinaHome = installer.install(tomcatPackagePath, cacheDir);
+
+        assertThat(Files.exists(catalinaHome.resolve("lib/catalina.jar")), is(true));
+        // the temporary directory of the losing deployment is deleted
+        assertThat(cacheEntries(cacheDir).size(), is(1));
+    }
+
+    @Test(expected = FileSystemException.class)
+    public void shared_catalina_home_move_failure_is_reported() throws Exception {
+        Path cacheDir = temporaryFolder.newFolder("cache").toPath();
+        CatalinaHomeInstaller installer = new CatalinaHomeInstaller(appDir) {
+            @Override
+            protected void move(@Nonnull Path tmpCacheEntry, @Nonnull Path cacheEntry) throws IOException {
+                throw new FileSystemException(tmpCacheEntry.toString(), cacheEntry.toString(), "Read-only file system");
+            }
+        };
+        try {
+            installer.install(tomcatPackage("8.0.5"), cacheDir);
+        } finally {
+            assertThat(cacheEntries(cacheDir).size(), is(0));
+        }
+    }
+
+    @Test
+    public void link_shared_catalina_home() throws Exception {
+        Path sharedCatalinaHome = temporaryFolder.newFolder("shared").toPath().resolve("apache-tomcat-8.0.5");
+        Files2.unzip(tomcatPackage("8.0.5"), sharedCatalinaHome.getParent());
+        CatalinaHomeInstaller installer = new CatalinaHomeInstaller(appDir);
+
+        Path catalinaHome = installer.linkSharedCatalinaHome(sharedCatalinaHome);
+        // links of a previous setup are replaced
+        catalinaHome = installer.linkSharedCatalinaHome(sharedCatalinaHome);
+
+        assertThat(catalinaHome, is(appDir.resolve("apache-tomcat-8.0.5")));
+        assertThat(Files.readSymbolicLink(catalinaHome.resolve("lib")), is(sharedCatalinaHome.resolve("lib")));
+        assertThat(Files.readSymbolicLink(catalinaHome.resolve("bin")), is(sharedCatalinaHome.resolve("bin")));
+        // writable directories are not shared
+        assertThat(Files.exists(catalinaHome.resolve("logs"), LinkOption.NOFOLLOW_LINKS), is(false));
+        assertThat(Files.exists(catalinaHome.resolve("temp"), LinkOption.NOFOLLOW_LINKS), is(false));
+
+        Files.delete(catalinaHome.resolve("conf"));
+        Files.createDirectory(catalinaHome.resolve("conf"));
+        try {
+            installer.linkSharedCatalinaHome(sharedCatalinaHome);
+            fail("a directory of the application must not be replaced by a link");
+        } catch (IllegalStateException e) {
+            assertThat(Files.isDirectory(catalinaHome.resolve("conf"), LinkOption.NOFOLLOW_LINKS), is(true));
+        }
+    }
+
+    private List<Path> cacheEntries(Path cacheDir) throws IOException {
+        List<Path> cacheEntries = new ArrayList<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(cacheDir)) {
+            for (Path child : children) {
+                cacheEntries.add(child);
+            }
+        }
+        return cacheEntries;
+    }
+
+    private static class CountingCatalinaHomeInstaller extends CatalinaHomeInstaller {
+        final AtomicInteger unzips = new AtomicInteger();
+
+        CountingCatalinaHomeInstaller(Path appDir) {
+            super(appDir);
+        }
+
+        @Override
+        protected void unzip(@Nonnull Path zipFile, @Nonnull Path destDir) throws IOException {
+            unzips.incrementAndGet();
+            super.unzip(zipFile, destDir);
+        }
+    }
+
+    private Path runInstallCatalinaHomeStage(String metadataJson, final Path tomcatPackagePath, Path fingerprintsFile) throws Exception {
+        final Metadata metadata = Metadata.Builder.fromJsonString(metadataJson, true);
+        final Path[] catalinaHome = new Path[1];
+        SetupPipeline pipeline = new SetupPipeline(1)
+                .source("metadata", metadataJson)
+                .source("clickstack", SetupPipeline.fingerprintOf(clickstackDir))
+                .withFingerprints(fingerprintsFile, false);
+        pipeline.add(new SetupPipeline.Stage("installCatalinaHome") {
+            @Override
+            protected void run() throws Exception {
+                String cacheDir = metadata.getRuntimeParameter("setup", "catalinaHome.cacheDir", null);
+                catalinaHome[0] = new CatalinaHomeInstaller(appDir).install(tomcatPackagePath, cacheDir == null ? null : Paths.get(cacheDir));
+            }
+
+            @Override
+            protected Collection<Path> getOutputPaths() {
+                return Collections.singleton(catalinaHome[0]);
+            }
+        }.inputs("metadata", "clickstack").outputs("catalinaHome"));
+        pipeline.run();
+
+        assertThat(pipeline.getStages().get(0).getStatus(), is(SetupPipeline.Status.SUCCESS));
+        return catalinaHome[0];
+    }
+
+    private Path tomcatPackage(String version) throws IOException {
+        Path tomcatPackagePath = clickstackDir.resolve("tomcat-" + version + ".zip");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(tomcatPackagePath))) {
+            for (String entry : new String[]{"bin/catalina.sh", "conf/server.xml", "lib/catalina.jar", "logs/", "temp/"}) {
+                zip.putNextEntry(new ZipEntry("apache-tomcat-" + version + "/" + entry));
+                if (!entry.endsWith("/")) {
+                    zip.write(entry.getBytes(Charsets.UTF_8));
+                }
+                zip.closeEntry();
+            }
+        }
+        return tomcatPackagePath;
+    }
+
+    private List<String> catalinaHomes() throws IOException {
+        List<String> catalinaHomes = new ArrayList<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(appDir, "apache-tomcat*")) {
+            for (Path child : children) {
+                catalinaHomes.add(child.getFileName().toString());
+            }
+        }
+        return catalinaHomes;
+    }
+
+    /**
+     * Like {@link com.cloudbees.clickstack.util.Files2#chmodReadOnly(Path)}
+     */
+    private void chmodReadOnly(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!attrs.isSymbolicLink()) {
+                    Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("r--r--r--"));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("r-xr-xr-x"));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ClassDataSharingTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path controlDir;
+    private Path archiveFile;
+    private Path logFile;
+
+    @Before
+    public void before() throws Exception {
+        controlDir = temporaryFolder.newFolder(".genapp", "control").toPath();
+        archiveFile = temporaryFolder.getRoot().toPath().resolve("cds/tomcat.jsa");
+        logFile = temporaryFolder.getRoot().toPath().resolve("cds/training.log");
+    }
+
+    @Test
+    public void archive_options_java_10() {
+        List<String> options = new ClassDataSharing(controlDir, archiveFile, logFile, "ROOT", 10, 60)
+                .getArchiveOptions("-Xshare:dump");
+
+        assertThat(options, is(Arrays.asList("-XX:+UseAppCDS", "-XX:SharedArchiveFile=" + archiveFile, "-Xshare:dump")));
+    }
+
+    @Test
+    public void archive_options_java_11() {
+        List<String> options = new ClassDataSharing(controlDir, archiveFile, logFile, "ROOT", 11, 60).getArchiveOptions();
+
+        assertThat(options, is(Collections.singletonList("-XX:SharedArchiveFile=" + archiveFile)));
+    }
+
+    @Test
+    public void archive_options_java_13() {
+        List<String> options = new ClassDataSharing(controlDir, archiveFile, logFile, "ROOT", 13, 60).getArchiveOptions();
+
+        assertThat(options, is(Collections.singletonList("-XX:SharedArchiveFile=" + archiveFile)));
+    }
+
+    @Test
+    public void unsupported_java_version_deletes_the_previous_archive() throws Exception {
+        Files.createDirectories(archiveFile.getParent());
+        Files.write(archiveFile, "previous archive".getBytes(Charsets.UTF_8));
+
+        ClassDataSharing classDataSharing = new ClassDataSharing(controlDir, archiveFile, logFile, "ROOT", 8, 60);
+
+        assertThat(classDataSharing.isSupported(), is(false));
+        assertThat(classDataSharing.createArchive(), is(Collections.<String>emptyList()));
+        assertThat(Files.exists(archiveFile), is(false));
+    }
+
+    @Test
+    public void hung_training_jvm_is_killed_and_leaves_no_archive() throws Exception {
+        ClassDataSharing classDataSharing = new ClassDataSharing(controlDir, archiveFile, logFile, "ROOT", 13, 1) {
+            @Override
+            protected Process start(String javaArguments) throws IOException {
+                // ignores the SIGTERM of Process.destroy()
+                return new ProcessBuilder("bash", "-c", "trap '' TERM; exec sleep 30").start();
+            }
+        };
+
+        assertThat(classDataSharing.createArchive(), is(Collections.<String>emptyList()));
+        assertThat(Files.exists(archiveFile), is(false));
+    }
+
+    @Test
+    public void java_opts_file_is_written() throws Exception {
+        Path javaOptsFile = controlDir.resolve("java-opts-15-cds");
+
+        ClassDataSharing.writeJavaOpts(javaOptsFile, Arrays.asList("-XX:SharedArchiveFile=" + archiveFile, "-Xshare:auto"));
+
+        assertThat(new String(Files.readAllBytes(javaOptsFile), Charsets.UTF_8),
+                is("-XX:SharedArchiveFile=" + archiveFile + " -Xshare:auto\n"));
+    }
+
+    @Test
+    public void java_opts_file_is_deleted_without_archive() throws Exception {
+        Path javaOptsFile = controlDir.resolve("java-opts-15-cds");
+        Files.write(javaOptsFile, "-XX:SharedArchiveFile=/previous.jsa".getBytes(Charsets.UTF_8));
+
+        ClassDataSharing.writeJavaOpts(javaOptsFile, Collections.<String>emptyList());
+
+        assertThat(Files.exists(javaOptsFile), is(false));
+    }
+}
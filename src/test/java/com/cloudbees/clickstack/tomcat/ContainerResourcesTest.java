@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ContainerResourcesTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path procSelfCgroup;
+    private Path cgroupRoot;
+    private ContainerResources host;
+
+    @Before
+    public void before() throws Exception {
+        procSelfCgroup = temporaryFolder.getRoot().toPath().resolve("proc-self-cgroup");
+        cgroupRoot = temporaryFolder.newFolder("sys", "fs", "cgroup").toPath();
+        host = ContainerResources.detect(procSelfCgroup, cgroupRoot);
+    }
+
+    @Test
+    public void cgroup_v2_of_the_process() throws Exception {
+        write(procSelfCgroup, "0::/system.slice/app.scope");
+        write(cgroupRoot.resolve("cpu.max"), "max 100000");
+        write(cgroupRoot.resolve("memory.max"), "max");
+        write(cgroupRoot.resolve("system.slice/app.scope/cpu.max"), "50000 100000");
+        write(cgroupRoot.resolve("system.slice/app.scope/memory.max"), String.valueOf(256 * ContainerResources.MB));
+
+        ContainerResources resources = ContainerResources.detect(procSelfCgroup, cgroupRoot);
+
+        assertThat(resources.getCpus(), is(1));
+        assertThat(resources.getMemoryInMegaBytes(), is(256L));
+    }
+
+    @Test
+    public void cgroup_v1_of_the_process() throws Exception {
+        write(procSelfCgroup, "11:memory:/docker/0123456789ab\n4:cpu,cpuacct:/docker/0123456789ab\n0::/init.scope");
+        write(cgroupRoot.resolve("cpu/cpu.cfs_quota_us"), "-1");
+        write(cgroupRoot.resolve("cpu/cpu.cfs_period_us"), "100000");
+        write(cgroupRoot.resolve("cpu/docker/0123456789ab/cpu.cfs_quota_us"), "100000");
+        write(cgroupRoot.resolve("cpu/docker/0123456789ab/cpu.cfs_period_us"), "100000");
+        write(cgroupRoot.resolve("memory/memory.limit_in_bytes"), "9223372036854771712");
+        write(cgroupRoot.resolve("memory/docker/0123456789ab/memory.limit_in_bytes"), String.valueOf(256 * ContainerResources.MB));
+
+        ContainerResources resources = ContainerResources.detect(procSelfCgroup, cgroupRoot);
+
+        assertThat(resources.getCpus(), is(1));
+        assertThat(resources.getMemoryInMegaBytes(), is(256L));
+    }
+
+    @Test
+    public void cgroup_namespace_limits_are_at_the_root_of_the_controller() throws Exception {
+        write(procSelfCgroup, "11:memory:/docker/0123456789ab\n4:cpu,cpuacct:/docker/0123456789ab");
+        write(cgroupRoot.resolve("cpu/cpu.cfs_quota_us"), "100000");
+        write(cgroupRoot.resolve("cpu/cpu.cfs_period_us"), "100000");
+        write(cgroupRoot.resolve("memory/memory.limit_in_bytes"), String.valueOf(256 * ContainerResources.MB));
+
+        ContainerResources resources = ContainerResources.detect(procSelfCgroup, cgroupRoot);
+
+        assertThat(resources.getCpus(), is(1));
+        assertThat(resources.getMemoryInMegaBytes(), is(256L));
+    }
+
+    @Test
+    public void malformed_cgroup_files_fall_back_to_the_host() throws Exception {
+        write(procSelfCgroup, "0::/");
+        write(cgroupRoot.resolve("cpu.max"), "unlimited 100000");
+        write(cgroupRoot.resolve("memory.max"), "256M");
+
+        ContainerResources resources = ContainerResources.detect(procSelfCgroup, cgroupRoot);
+
+        assertThat(resources.getCpus(), is(host.getCpus()));
+        assertThat(resources.getMemoryInBytes(), is(host.getMemoryInBytes()));
+    }
+
+    private static void write(Path file, String content) throws Exception {
+        Files.createDirectories(file.getParent());
+        Files.write(file, (content + "\n").getBytes(Charsets.UTF_8));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class IncrementalWebAppInstallerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path webappsDir;
+    private Path manifestFile;
+
+    @Before
+    public void before() throws Exception {
+        webappsDir = temporaryFolder.newFolder("catalina-base", "webapps").toPath();
+        manifestFile = temporaryFolder.getRoot().toPath().resolve("catalina-base.manifest");
+    }
+
+    @Test
+    public void first_deployment_extracts_all_the_entries() throws Exception {
+        IncrementalWebAppInstaller installer = new IncrementalWebAppInstaller(webappsDir, manifestFile, 2);
+        Path webAppDir = installer.install(war("app-1.war", "index.html", "v1", "WEB-INF/web.xml", "<web-app/>"), "ROOT");
+
+        assertThat(webAppDir, is(webappsDir.resolve("ROOT")));
+        assertThat(installer.getSkippedEntries(), is(0));
+        assertThat(installer.getRewrittenEntries(), is(2));
+        assertThat(read(webAppDir.resolve("index.html")), is("v1"));
+        assertThat(WebAppManifest.load(manifestFile).getContextPath(), is("ROOT"));
+    }
+
+    @Test
+    public void added_modified_and_removed_entries() throws Exception {
+        Path webAppDir = new IncrementalWebAppInstaller(webappsDir, manifestFile, 2).install(war("app-1.war",
+                "index.html", "v1", "WEB-INF/web.xml", "<web-app/>", "removed.html", "removed"), "ROOT");
+        FileTime lastModifiedTime = FileTime.fromMillis(System.currentTimeMillis() - 3600 * 1000);
+        Files.setLastModifiedTime(webAppDir.resolve("WEB-INF/web.xml"), lastModifiedTime);
+
+        IncrementalWebAppInstaller installer = new IncrementalWebAppInstaller(webappsDir, manifestFile, 2);
+        installer.install(war("app-2.war",
+                "index.html", "v2", "WEB-INF/web.xml", "<web-app/>", "added.html", "added"), "ROOT");
+
+        assertThat(installer.getSkippedEntries(), is(1));
+        assertThat(installer.getRewrittenEntries(), is(2));
+        assertThat(installer.getDeletedFiles(), is(1));
+        assertThat(read(webAppDir.resolve("index.html")), is("v2"));
+        assertThat(read(webAppDir.resolve("added.html")), is("added"));
+        assertThat(Files.exists(webAppDir.resolve("removed.html")), is(false));
+        // untouched files keep their last modified time
+        assertThat(Files.getLastModifiedTime(webAppDir.resolve("WEB-INF/web.xml")), is(lastModifiedTime));
+    }
+
+    @Test
+    public void locally_modified_file_is_rewritten() throws Exception {
+        Path warFile = war("app-1.war", "index.html", "v1");
+        Path webAppDir = new IncrementalWebAppInstaller(webappsDir, manifestFile, 2).install(warFile, "ROOT");
+        Files.write(webAppDir.resolve("index.html"), "modified".getBytes(Charsets.UTF_8));
+
+        IncrementalWebAppInstaller installer = new IncrementalWebAppInstaller(webappsDir, manifestFile, 2);
+        installer.install(warFile, "ROOT");
+
+        assertThat(installer.getRewrittenEntries(), is(1));
+        assertThat(read(webAppDir.resolve("index.html")), is("v1"));
+    }
+
+    @Test
+    public void corrupted_manifest_triggers_a_full_deployment() throws Exception {
+        Path webAppDir = new IncrementalWebAppInstaller(webappsDir, manifestFile, 2).install(war("app-1.war",
+                "index.html", "v1", "removed.html", "removed"), "ROOT");
+        Files.write(manifestFile, "contextPath=ROOT\ngarbage\n".getBytes(Charsets.UTF_8));
+
+        IncrementalWebAppInstaller installer = new IncrementalWebAppInstaller(webappsDir, manifestFile, 2);
+        installer.install(war("app-2.war", "index.html", "v1"), "ROOT");
+
+        assertThat(installer.getSkippedEntries(), is(0));
+        assertThat(installer.getRewrittenEntries(), is(1));
+        // the files of the unknown previous deployment are deleted
+        assertThat(Files.exists(webAppDir.resolve("removed.html")), is(false));
+        assertThat(WebAppManifest.load(manifestFile).getContextPath(), is("ROOT"));
+    }
+
+    @Test
+    public void context_path_change_deletes_the_previous_webapp() throws Exception {
+        Path previousWebAppDir = new IncrementalWebAppInstaller(webappsDir, manifestFile, 2).install(war("app-1.war",
+                "index.html", "v1"), "ROOT");
+
+        IncrementalWebAppInstaller installer = new IncrementalWebAppInstaller(webappsDir, manifestFile, 2);
+        Path webAppDir = installer.install(war("app-2.war", "index.html", "v1"), "myapp");
+
+        assertThat(webAppDir, is(webappsDir.resolve("myapp")));
+        assertThat(installer.getSkippedEntries(), is(0));
+        assertThat(read(webAppDir.resolve("index.html")), is("v1"));
+        assertThat(Files.exists(previousWebAppDir), is(false));
+        assertThat(WebAppManifest.load(manifestFile).getContextPath(), is("myapp"));
+    }
+
+    /**
+     * @param namesAndContents name of the first entry, content of the first entry, name of the second entry...
+     */
+    private Path war(String fileName, String... namesAndContents) throws Exception {
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            entries.put(namesAndContents[i], namesAndContents[i + 1]);
+        }
+        Path warFile = temporaryFolder.getRoot().toPath().resolve(fileName);
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(warFile))) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue().getBytes(Charsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        return warFile;
+    }
+
+    private static String read(Path file) throws Exception {
+        return new String(Files.readAllBytes(file), Charsets.UTF_8);
+    }
+}
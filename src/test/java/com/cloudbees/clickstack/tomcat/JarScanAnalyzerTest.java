@@ -0,0 +1,129 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.cloudbees.clickstack.util.XmlUtils;
+import com.google.common.base.Charsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.xmlmatchers.XmlMatchers.isEquivalentTo;
+import static org.xmlmatchers.transform.XmlConverters.the;
+
+public class JarScanAnalyzerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private void createJar(Path file, String... entriesAndContents) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(file))) {
+            for (int i = 0; i < entriesAndContents.length; i += 2) {
+                out.putNextEntry(new ZipEntry(entriesAndContents[i]));
+                out.write(entriesAndContents[i + 1].getBytes(Charsets.ISO_8859_1));
+                out.closeEntry();
+            }
+        }
+    }
+
+    private Path createWebApp(String webXml) throws IOException {
+        Path webAppDir = temporaryFolder.newFolder("ROOT").toPath();
+        Path lib = webAppDir.resolve("WEB-INF/lib");
+        createJar(lib.resolve("commons-lang.jar"), "org/apache/commons/lang/StringUtils.class", "\u00ca\u00fe\u00ba\u00be java/lang/String");
+        createJar(lib.resolve("jstl.jar"), "META-INF/c.tld", "<taglib/>");
+        createJar(lib.resolve("my-fragment.jar"), "META-INF/web-fragment.xml", "<web-fragment/>");
+        createJar(lib.resolve("my-servlets.jar"), "com/acme/MyServlet.class", "\u00ca\u00fe\u00ba\u00be Ljavax/servlet/annotation/WebServlet;");
+        createJar(lib.resolve("my-websocket.jar"), "com/acme/MyEndpoint.class", "\u00ca\u00fe\u00ba\u00be Ljavax/websocket/server/ServerEndpoint;");
+        Files.write(webAppDir.resolve("WEB-INF/web.xml"), webXml.getBytes(Charsets.UTF_8));
+        return webAppDir;
+    }
+
+    @Test
+    public void skip_jars_without_tld_nor_pluggability() throws Exception {
+        Path webAppDir = createWebApp("<web-app version='3.0'/>");
+        Path catalinaBaseLib = temporaryFolder.newFolder("lib").toPath();
+        createJar(catalinaBaseLib.resolve("mysql-connector-java.jar"), "com/mysql/jdbc/Driver.class", "\u00ca\u00fe\u00ba\u00be");
+
+        JarScanAnalyzer.Result result = new JarScanAnalyzer(2).analyze(webAppDir, catalinaBaseLib);
+
+        assertThat(result.getJars().size(), is(6));
+        assertThat(result.getTldSkip(), contains("commons-lang.jar", "my-fragment.jar", "my-servlets.jar", "my-websocket.jar", "mysql-connector-java.jar"));
+        assertThat(result.getPluggabilitySkip(), contains("commons-lang.jar", "jstl.jar", "mysql-connector-java.jar"));
+
+        Document contextXml = XmlUtils.loadXmlDocumentFromStream(new ByteArrayInputStream("<Context/>".getBytes(Charsets.UTF_8)));
+        new SetupTomcatConfigurationFiles(Metadata.Builder.fromJsonString("{}", true)).addJarScanFilter(result, contextXml);
+        Element jarScanner = XmlUtils.getUniqueElement(contextXml, "/Context/JarScanner");
+        assertThat(the(jarScanner), isEquivalentTo(the("" +
+                "<JarScanner><JarScanFilter " +
+                "tldSkip='${tomcat.util.scan.StandardJarScanFilter.jarsToSkip},commons-lang.jar,my-fragment.jar,my-servlets.jar,my-websocket.jar,mysql-connector-java.jar' " +
+                "pluggabilitySkip='${tomcat.util.scan.StandardJarScanFilter.jarsToSkip},commons-lang.jar,jstl.jar,mysql-connector-java.jar'/>" +
+                "</JarScanner>")));
+    }
+
+    @Test
+    public void metadata_complete_ignores_fragments_and_servlet_annotations() throws Exception {
+        Path webAppDir = createWebApp("<web-app version='3.0' metadata-complete='true'/>");
+
+        JarScanAnalyzer.Result result = new JarScanAnalyzer(2).analyze(webAppDir);
+
+        assertThat(result.isMetadataComplete(), is(true));
+        // the websocket initializer of Tomcat still looks for endpoints
+        assertThat(result.getPluggabilityJars(), contains("my-websocket.jar"));
+    }
+
+    @Test
+    public void application_initializer_disables_pluggability_skip() throws Exception {
+        Path webAppDir = createWebApp("<web-app version='3.0'/>");
+        createJar(webAppDir.resolve("WEB-INF/lib/spring-web.jar"),
+                "META-INF/services/javax.servlet.ServletContainerInitializer", "org.springframework.web.SpringServletContainerInitializer");
+
+        JarScanAnalyzer.Result result = new JarScanAnalyzer(2).analyze(webAppDir);
+
+        assertThat(result.getInitializerJars(), contains("spring-web.jar"));
+        assertThat(result.getPluggabilitySkip(), is(empty()));
+    }
+
+    @Test
+    public void application_initializer_in_classes_disables_pluggability_skip() throws Exception {
+        Path webAppDir = createWebApp("<web-app version='3.0'/>");
+        Path services = Files.createDirectories(webAppDir.resolve("WEB-INF/classes/META-INF/services"));
+        Files.write(services.resolve("javax.servlet.ServletContainerInitializer"),
+                "com.acme.MyServletContainerInitializer".getBytes(Charsets.UTF_8));
+
+        JarScanAnalyzer.Result result = new JarScanAnalyzer(2).analyze(webAppDir);
+
+        assertThat(result.isClassesInitializer(), is(true));
+        assertThat(result.getInitializerJars(), is(empty()));
+        assertThat(result.getPluggabilitySkip(), is(empty()));
+        // the TLD scan is still restricted
+        assertThat(result.getTldSkip(), contains("commons-lang.jar", "my-fragment.jar", "my-servlets.jar", "my-websocket.jar"));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class JspPrecompilerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void find_jsps() throws Exception {
+        Path webAppDir = temporaryFolder.newFolder("ROOT").toPath();
+        for (String file : Arrays.asList("index.jsp", "admin/page.jspx", "WEB-INF/views/view.jsp", "header.jspf",
+                "WEB-INF/tags/my.tag", "WEB-INF/classes/skipped.jsp", "css/style.css")) {
+            Path path = webAppDir.resolve(file);
+            Files.createDirectories(path.getParent());
+            Files.createFile(path);
+        }
+
+        List<Path> jsps = JspPrecompiler.findJsps(webAppDir);
+
+        assertThat(jsps, contains(webAppDir.resolve("WEB-INF/views/view.jsp"), webAppDir.resolve("admin/page.jspx"),
+                webAppDir.resolve("index.jsp")));
+    }
+
+    @Test
+    public void partition_round_robin() throws Exception {
+        Path a = temporaryFolder.getRoot().toPath().resolve("a.jsp");
+        Path b = a.resolveSibling("b.jsp");
+        Path c = a.resolveSibling("c.jsp");
+
+        List<List<Path>> partitions = JspPrecompiler.partition(Arrays.asList(a, b, c), 2);
+        assertThat(partitions.size(), is(2));
+        assertThat(partitions.get(0), contains(a, c));
+        assertThat(partitions.get(1), contains(b));
+
+        // no empty partition
+        assertThat(JspPrecompiler.partition(Arrays.asList(a, b, c), 8).size(), is(3));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class JvmErgonomicsTest {
+
+    @Test
+    public void small_container_java8() {
+        ContainerResources resources = new ContainerResources(2, 1024 * ContainerResources.MB);
+        Map<String, String> options = new JvmErgonomics(resources, 8, JvmErgonomics.GcProfile.LATENCY).computeOptions("");
+
+        assertThat(JvmErgonomics.join("", options), is("-Xmx656m -Xms656m -XX:MaxMetaspaceSize=128m " +
+                "-XX:ReservedCodeCacheSize=64m -Xss512k -XX:+UseG1GC -XX:ParallelGCThreads=2 -XX:ConcGCThreads=1"));
+        Jvm jvm = Jvm.detect(Paths.get(System.getProperty("java.home")), JvmErgonomics.join("", options));
+        assertThat(jvm.getGarbageCollector(), is(Jvm.GarbageCollector.G1));
+    }
+
+    @Test
+    public void user_options_are_never_overridden() {
+        ContainerResources resources = new ContainerResources(4, 4096 * ContainerResources.MB);
+        String userOpts = "-Xmx2g -XX:MaxPermSize=128m -XX:+UseConcMarkSweepGC -XX:ParallelGCThreads=8 -Dfoo=bar";
+        Map<String, String> options = new JvmErgonomics(resources, 7, JvmErgonomics.GcProfile.THROUGHPUT).computeOptions(userOpts);
+
+        assertThat(options.keySet(), contains("codeCache", "threadStack", "concGcThreads"));
+        assertThat(JvmErgonomics.join(userOpts, options), is(userOpts + " -XX:ReservedCodeCacheSize=240m -Xss1m -XX:ConcGCThreads=1"));
+    }
+
+    @Test
+    public void garbage_collectors_unknown_to_the_ergonomics_are_user_defined() {
+        ContainerResources resources = new ContainerResources(4, 4096 * ContainerResources.MB);
+        for (String userOpts : new String[]{"-XX:+UseZGC", "-XX:+UnlockExperimentalVMOptions -XX:+UseShenandoahGC", "-XX:+UseEpsilonGC -Dfoo=bar"}) {
+            Map<String, String> options = new JvmErgonomics(resources, 11, JvmErgonomics.GcProfile.LATENCY).computeOptions(userOpts);
+
+            assertThat(userOpts, options.keySet(), contains("maxHeap", "initialHeap", "maxMetaspace", "codeCache", "threadStack"));
+        }
+    }
+
+    @Test
+    public void single_cpu_uses_serial_gc_and_java7_perm_gen() {
+        ContainerResources resources = new ContainerResources(1, 512 * ContainerResources.MB);
+        Map<String, String> options = new JvmErgonomics(resources, 7, JvmErgonomics.GcProfile.LATENCY).computeOptions("-Xms128m");
+
+        assertThat(options.get("maxHeap"), is("-Xmx259m"));
+        assertThat(options.get("initialHeap"), nullValue());
+        assertThat(options.get("maxPermGen"), is("-XX:MaxPermSize=64m"));
+        assertThat(options.get("garbageCollector"), is("-XX:+UseSerialGC"));
+        assertThat(options.containsKey("parallelGcThreads"), is(false));
+    }
+
+    @Test
+    public void heap_and_non_heap_budgets_fit_in_the_container() {
+        for (long memoryInMb : new long[]{512, 768, 1024, 1536, 2048, 3072, 4096, 8192, 16384}) {
+            for (int javaMajorVersion : new int[]{7, 8}) {
+                ContainerResources resources = new ContainerResources(2, memoryInMb * ContainerResources.MB);
+                String javaOpts = JvmErgonomics.join("", new JvmErgonomics(resources, javaMajorVersion, JvmErgonomics.GcProfile.LATENCY).computeOptions(""));
+
+                long budgetInBytes = 0;
+                long threadStackInBytes = 0;
+                for (String opt : javaOpts.split(" ")) {
+                    if (opt.startsWith("-Xmx")) {
+                        budgetInBytes += JvmErgonomics.parseSize(opt.substring("-Xmx".length()));
+                    } else if (opt.startsWith("-XX:MaxMetaspaceSize=") || opt.startsWith("-XX:MaxPermSize=") ||
+                            opt.startsWith("-XX:ReservedCodeCacheSize=")) {
+                        budgetInBytes += JvmErgonomics.parseSize(opt.substring(opt.indexOf('=') + 1));
+                    } else if (opt.startsWith("-Xss")) {
+                        threadStackInBytes = JvmErgonomics.parseSize(opt.substring("-Xss".length()));
+                    }
+                }
+                budgetInBytes += JvmErgonomics.ESTIMATED_THREADS * threadStackInBytes;
+
+                assertThat(javaOpts, budgetInBytes, lessThan(resources.getMemoryInBytes()));
+                // at most 32MB or 5% of the memory are left unbudgeted
+                assertThat(javaOpts, budgetInBytes, greaterThan(resources.getMemoryInBytes() - Math.max(memoryInMb / 20, 32) * ContainerResources.MB - ContainerResources.MB));
+            }
+        }
+    }
+
+    @Test
+    public void heap_budget_accounts_for_user_non_heap_options() {
+        ContainerResources resources = new ContainerResources(2, 4096 * ContainerResources.MB);
+        Map<String, String> defaults = new JvmErgonomics(resources, 8, JvmErgonomics.GcProfile.LATENCY).computeOptions("");
+        Map<String, String> options = new JvmErgonomics(resources, 8, JvmErgonomics.GcProfile.LATENCY).computeOptions("-XX:MaxMetaspaceSize=1g -Xss2m");
+
+        assertThat(defaults.get("maxHeap"), is("-Xmx2890m"));
+        // 512MB more metaspace, 250 threads x 1MB more stack
+        assertThat(options.get("maxHeap"), is("-Xmx2128m"));
+    }
+
+    @Test
+    public void max_heap_of_java_opts() {
+        ContainerResources resources = new ContainerResources(2, 2048 * ContainerResources.MB);
+
+        assertThat(JvmErgonomics.getMaxHeapInBytes("", resources), is(512 * ContainerResources.MB));
+        assertThat(JvmErgonomics.getMaxHeapInBytes("-Xms64m -Xmx1g", resources), is(1024 * ContainerResources.MB));
+        assertThat(JvmErgonomics.getMaxHeapInBytes("-Xmx1g -XX:MaxHeapSize=268435456", resources), is(256 * ContainerResources.MB));
+    }
+}
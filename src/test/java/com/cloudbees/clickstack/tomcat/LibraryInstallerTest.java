@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class LibraryInstallerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path srcDir;
+    private Path destDir;
+
+    @Before
+    public void before() throws Exception {
+        srcDir = temporaryFolder.newFolder("tomcat-lib").toPath();
+        destDir = temporaryFolder.newFolder("catalina-base-lib").toPath();
+        for (String jar : new String[]{"a.jar", "b.jar", "c.jar"}) {
+            Files.write(srcDir.resolve(jar), jar.getBytes(Charsets.UTF_8));
+        }
+        Files.createDirectories(srcDir.resolve("native"));
+        Files.write(srcDir.resolve("native/libtcnative-1.so"), "so".getBytes(Charsets.UTF_8));
+    }
+
+    @Test
+    public void copy_strategy() throws Exception {
+        LibraryInstaller libraryInstaller = new LibraryInstaller(LibraryInstaller.Strategy.COPY);
+        libraryInstaller.installDirectoryContent(srcDir, destDir);
+
+        assertThat(libraryInstaller.getCopiedFiles(), is(4));
+        assertThat(libraryInstaller.getBytesWritten(), is(3L * 5 + 2));
+        assertThat(Files.isSameFile(srcDir.resolve("a.jar"), destDir.resolve("a.jar")), is(false));
+        assertThat(Files.exists(destDir.resolve("native/libtcnative-1.so")), is(true));
+        assertThat(libraryInstaller.isHardlinked(destDir.resolve("a.jar")), is(false));
+    }
+
+    @Test
+    public void link_strategy_hardlinks_when_reflink_is_not_supported() throws Exception {
+        RecordingLibraryInstaller libraryInstaller = new RecordingLibraryInstaller(false, true);
+        libraryInstaller.installDirectoryContent(srcDir, destDir);
+
+        // reflink is disabled after the first failure, it is not even tried outside of linux
+        assertThat(libraryInstaller.reflinks.get(), lessThanOrEqualTo(1));
+        assertThat(libraryInstaller.getHardlinkedFiles(), is(4));
+        assertThat(libraryInstaller.getBytesWritten(), is(0L));
+        assertThat(Files.isSameFile(srcDir.resolve("a.jar"), destDir.resolve("a.jar")), is(true));
+        assertThat(libraryInstaller.isHardlinked(destDir.resolve("a.jar")), is(true));
+    }
+
+    @Test
+    public void link_strategy_copies_when_neither_reflink_nor_hardlink_are_supported() throws Exception {
+        RecordingLibraryInstaller libraryInstaller = new RecordingLibraryInstaller(false, false);
+        libraryInstaller.installDirectoryContent(srcDir, destDir);
+
+        // each strategy is disabled after its first failure
+        assertThat(libraryInstaller.reflinks.get(), lessThanOrEqualTo(1));
+        assertThat(libraryInstaller.hardlinks.get(), is(1));
+        assertThat(libraryInstaller.getCopiedFiles(), is(4));
+        assertThat(Files.isSameFile(srcDir.resolve("a.jar"), destDir.resolve("a.jar")), is(false));
+        assertThat(libraryInstaller.isHardlinked(destDir.resolve("a.jar")), is(false));
+    }
+
+    @Test
+    public void link_strategy_skips_files_already_linked() throws Exception {
+        new RecordingLibraryInstaller(false, true).installDirectoryContent(srcDir, destDir);
+
+        // setup of the same application with a new installer
+        RecordingLibraryInstaller libraryInstaller = new RecordingLibraryInstaller(false, true);
+        libraryInstaller.installDirectoryContent(srcDir, destDir);
+
+        assertThat(libraryInstaller.reflinks.get(), is(0));
+        assertThat(libraryInstaller.hardlinks.get(), is(0));
+        assertThat(libraryInstaller.getHardlinkedFiles(), is(4));
+        assertThat(libraryInstaller.isHardlinked(destDir.resolve("b.jar")), is(true));
+    }
+
+    @Test
+    public void link_strategy_replaces_copied_files() throws Exception {
+        new LibraryInstaller(LibraryInstaller.Strategy.COPY).installDirectoryContent(srcDir, destDir);
+
+        RecordingLibraryInstaller libraryInstaller = new RecordingLibraryInstaller(false, true);
+        libraryInstaller.installDirectoryContent(srcDir, destDir);
+
+        assertThat(libraryInstaller.getHardlinkedFiles(), is(4));
+        assertThat(Files.isSameFile(srcDir.resolve("c.jar"), destDir.resolve("c.jar")), is(true));
+    }
+
+    @Test
+    public void parse_strategy() {
+        assertThat(LibraryInstaller.parseStrategy("copy"), is(LibraryInstaller.Strategy.COPY));
+        assertThat(LibraryInstaller.parseStrategy(" Link "), is(LibraryInstaller.Strategy.LINK));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void invalid_strategy() {
+        LibraryInstaller.parseStrategy("symlink");
+    }
+
+    /**
+     * Simulates the support of reflinks and hardlinks by the filesystem.
+     */
+    private static class RecordingLibraryInstaller extends LibraryInstaller {
+        final AtomicInteger reflinks = new AtomicInteger();
+        final AtomicInteger hardlinks = new AtomicInteger();
+        private final boolean reflinkSupported;
+        private final boolean hardlinkSupported;
+
+        RecordingLibraryInstaller(boolean reflinkSupported, boolean hardlinkSupported) {
+            super(Strategy.LINK);
+            this.reflinkSupported = reflinkSupported;
+            this.hardlinkSupported = hardlinkSupported;
+        }
+
+        @Override
+        protected boolean reflink(@Nonnull Path srcFile, @Nonnull Path destFile) throws IOException {
+            reflinks.incrementAndGet();
+            return reflinkSupported && super.reflink(srcFile, destFile);
+        }
+
+        @Override
+        protected void hardlink(@Nonnull Path srcFile, @Nonnull Path destFile) throws IOException {
+            hardlinks.incrementAndGet();
+            if (!hardlinkSupported) {
+                throw new IOException("Invalid cross-device link");
+            }
+            super.hardlink(srcFile, destFile);
+        }
+    }
+}
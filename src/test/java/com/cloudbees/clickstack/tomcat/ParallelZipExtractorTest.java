@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelZipExtractorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void extract_stored_and_deflated_entries() throws Exception {
+        byte[] jar = new byte[300 * 1024];
+        new Random(1).nextBytes(jar);
+        byte[] text = new byte[200 * 1024];
+        Arrays.fill(text, (byte) 'a');
+
+        Path zipFile = temporaryFolder.newFile("app.war").toPath();
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zipFile))) {
+            out.putNextEntry(new ZipEntry("WEB-INF/"));
+            out.closeEntry();
+            putStoredEntry(out, "WEB-INF/lib/my-lib.jar", jar);
+            out.putNextEntry(new ZipEntry("WEB-INF/web.xml"));
+            out.write(text);
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("index.jsp"));
+            out.closeEntry();
+        }
+
+        Path destDir = temporaryFolder.newFolder("ROOT").toPath();
+        ParallelZipExtractor.Result result = new ParallelZipExtractor(4).extract(zipFile, destDir);
+
+        assertThat(result.getFilesCount(), is(3));
+        assertThat(result.getBytesWritten(), is((long) (jar.length + text.length)));
+        assertTrue(Arrays.equals(jar, Files.readAllBytes(destDir.resolve("WEB-INF/lib/my-lib.jar"))));
+        assertTrue(Arrays.equals(text, Files.readAllBytes(destDir.resolve("WEB-INF/web.xml"))));
+        assertThat(Files.size(destDir.resolve("index.jsp")), is(0L));
+    }
+
+    @Test(expected = ZipException.class)
+    public void reject_entry_outside_of_dest_dir() throws Exception {
+        Path zipFile = temporaryFolder.newFile("evil.zip").toPath();
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zipFile))) {
+            out.putNextEntry(new ZipEntry("../evil.txt"));
+            out.write("evil".getBytes(Charsets.UTF_8));
+            out.closeEntry();
+        }
+
+        new ParallelZipExtractor(2).extract(zipFile, temporaryFolder.newFolder("ROOT").toPath());
+    }
+
+    private void putStoredEntry(ZipOutputStream out, String name, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipException;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SetupPipelineTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static class RecordingStage extends SetupPipeline.Stage {
+        private final List<String> events;
+
+        RecordingStage(String name, List<String> events) {
+            super(name);
+            this.events = events;
+        }
+
+        @Override
+        protected void run() throws Exception {
+            synchronized (events) {
+                events.add(getName());
+            }
+        }
+    }
+
+    @Test
+    public void dependencies_follow_declaration_order() throws Exception {
+        List<String> events = new ArrayList<>();
+        SetupPipeline pipeline = new SetupPipeline(4)
+                .add(new RecordingStage("unzipTomcat", events).outputs("catalinaHome"))
+                .add(new RecordingStage("unzipWar", events).outputs("webapp", "conf"))
+                .add(new RecordingStage("writeConfig", events).inputs("catalinaHome"))
+                .add(new RecordingStage("updateConf", events).inputs("conf").outputs("conf"))
+                .add(new RecordingStage("analyzeWebapp", events).inputs("webapp", "conf").outputs("conf"));
+
+        pipeline.run();
+
+        assertThat(events.size(), is(5));
+        assertThat(events.indexOf("unzipTomcat") < events.indexOf("writeConfig"), is(true));
+        assertThat(events.indexOf("unzipWar") < events.indexOf("updateConf"), is(true));
+        assertThat(events.indexOf("updateConf") < events.indexOf("analyzeWebapp"), is(true));
+        for (SetupPipeline.Stage stage : pipeline.getStages()) {
+            assertThat(stage.getStatus(), is(SetupPipeline.Status.SUCCESS));
+        }
+    }
+
+    @Test
+    public void independent_stages_run_in_parallel() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        SetupPipeline pipeline = new SetupPipeline(2);
+        for (String name : new String[]{"unzipTomcat", "unzipWar"}) {
+            pipeline.add(new SetupPipeline.Stage(name) {
+                @Override
+                protected void run() throws Exception {
+                    latch.countDown();
+                    // deadlock if the stages run one after another
+                    assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+                }
+            }.outputs(name));
+        }
+        pipeline.run();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void input_must_be_produced_by_a_previous_stage() {
+        new SetupPipeline(2)
+                .add(new RecordingStage("writeConfig", new ArrayList<String>()).inputs("catalinaHome"))
+                .add(new RecordingStage("unzipTomcat", new ArrayList<String>()).outputs("catalinaHome"));
+    }
+
+    @Test
+    public void fail_fast_and_report() throws Exception {
+        final Path outputDir = temporaryFolder.newFolder("webapps").toPath();
+        List<String> events = new ArrayList<>();
+        SetupPipeline pipeline = new SetupPipeline(2)
+                .add(new SetupPipeline.Stage("unzipWar") {
+                    @Override
+                    protected void run() throws Exception {
+                        Files.write(outputDir.resolve("index.html"), new byte[1000]);
+                    }
+
+                    @Override
+                    protected Collection<Path> getOutputPaths() {
+                        return Collections.singleton(outputDir);
+                    }
+                }.outputs("webapp"))
+                .add(new SetupPipeline.Stage("buildConfiguration") {
+                    @Override
+                    protected void run() throws Exception {
+                        throw new IllegalStateException("invalid server.xml");
+                    }
+                }.inputs("webapp").outputs("conf"))
+                .add(new RecordingStage("startTraining", events).inputs("conf"));
+
+        try {
+            pipeline.run();
+            fail();
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("invalid server.xml"));
+        }
+        assertThat(events.isEmpty(), is(true));
+
+        Path reportFile = temporaryFolder.getRoot().toPath().resolve("setup-report.json");
+        pipeline.writeReport(reportFile, ImmutableMap.of("clickstack", "tomcat8-clickstack"));
+        JsonNode report = new ObjectMapper().readTree(reportFile.toFile());
+        assertThat(report.get("clickstack").asText(), is("tomcat8-clickstack"));
+        assertThat(report.get("threads").asInt(), is(2));
+        JsonNode unzipWar = report.get("stages").get(0);
+        assertThat(unzipWar.get("status").asText(), is("SUCCESS"));
+        assertThat(unzipWar.get("bytesWritten").asLong(), is(1000L));
+        JsonNode buildConfiguration = report.get("stages").get(1);
+        assertThat(buildConfiguration.get("status").asText(), is("FAILURE"));
+        assertThat(buildConfiguration.get("dependencies").get(0).asText(), is("unzipWar"));
+        assertThat(report.get("stages").get(2).get("status").asText(), is("PENDING"));
+    }
+
+    @Test
+    public void unchanged_stages_are_skipped() throws Exception {
+        Path fingerprintsFile = temporaryFolder.getRoot().toPath().resolve("setup-fingerprints.properties");
+        Path webappDir = temporaryFolder.newFolder("webapp").toPath();
+
+        assertThat(runFingerprintedPipeline(fingerprintsFile, webappDir, "war-1", "metadata-1", false),
+                is(Arrays.asList("analyzeWebapp", "copySkeleton", "unzipTomcat", "unzipWar", "updateConf")));
+        assertThat(runFingerprintedPipeline(fingerprintsFile, webappDir, "war-1", "metadata-1", false),
+                is(Collections.<String>emptyList()));
+
+        // new war: the webapp and what reads it
+        assertThat(runFingerprintedPipeline(fingerprintsFile, webappDir, "war-2", "metadata-1", false),
+                is(Arrays.asList("analyzeWebapp", "unzipWar")));
+        // new metadata: the configuration updated in place is copied again before its update
+        assertThat(runFingerprintedPipeline(fingerprintsFile, webappDir, "war-2", "metadata-2", false),
+                is(Arrays.asList("copySkeleton", "updateConf")));
+
+        Files.delete(webappDir.resolve("index.html"));
+        assertThat(runFingerprintedPipeline(fingerprintsFile, webappDir, "war-2", "metadata-2", false),
+                is(Arrays.asList("analyzeWebapp", "unzipWar")));
+
+        // edit that keeps the size of the file
+        Path indexHtml = webappDir.resolve("index.html");
+        Files.write(indexHtml, new byte[100]);
+        Files.setLastModifiedTime(indexHtml, FileTime.fromMillis(Files.getLastModifiedTime(indexHtml).toMillis() - 60000));
+        assertThat(runFingerprintedPipeline(fingerprintsFile, webappDir, "war-2", "metadata-2", false),
+                is(Arrays.asList("analyzeWebapp", "unzipWar")));
+
+        assertThat(runFingerprintedPipeline(fingerprintsFile, webappDir, "war-2", "metadata-2", true).size(), is(5));
+    }
+
+    @Test
+    public void restart_of_tomcat_does_not_change_the_outputs() throws Exception {
+        Path fingerprintsFile = temporaryFolder.getRoot().toPath().resolve("setup-fingerprints.properties");
+        Path catalinaBase = temporaryFolder.newFolder("catalina-base").toPath();
+
+        assertThat(runTomcatPipeline(fingerprintsFile, catalinaBase).size(), is(2));
+
+        // first start of tomcat
+        Files.createDirectories(catalinaBase.resolve("conf/Catalina/localhost"));
+        Files.write(catalinaBase.resolve("conf/Catalina/localhost/ROOT.xml"), new byte[10]);
+        Files.createDirectories(catalinaBase.resolve("work/Catalina/localhost/ROOT/org/apache/jsp"));
+        Files.write(catalinaBase.resolve("work/Catalina/localhost/ROOT/SESSIONS.ser"), new byte[10]);
+        Files.write(catalinaBase.resolve("work/Catalina/localhost/ROOT/org/apache/jsp/hello_jsp.class"), new byte[10]);
+
+        assertThat(runTomcatPipeline(fingerprintsFile, catalinaBase), is(Collections.<String>emptyList()));
+
+        // the files written by the stages are still fingerprinted
+        Files.write(catalinaBase.resolve("conf/server.xml"), new byte[200]);
+        assertThat(runTomcatPipeline(fingerprintsFile, catalinaBase), is(Arrays.asList("installSkeleton", "precompileJsps")));
+    }
+
+    /**
+     * @return the sorted names of the stages that ran
+     */
+    private List<String> runTomcatPipeline(Path fingerprintsFile, final Path catalinaBase) throws Exception {
+        List<String> events = new ArrayList<>();
+        new SetupPipeline(2)
+                .source("clickstack", "clickstack-1")
+                .withFingerprints(fingerprintsFile, false)
+                .add(new RecordingStage("installSkeleton", events) {
+                    @Override
+                    protected void run() throws Exception {
+                        super.run();
+                        Files.createDirectories(catalinaBase.resolve("conf"));
+                        Files.write(catalinaBase.resolve("conf/server.xml"), new byte[100]);
+                    }
+
+                    @Override
+                    protected Collection<Path> getOutputPaths() {
+                        return Collections.singleton(catalinaBase.resolve("conf"));
+                    }
+
+                    @Override
+                    protected Collection<Path> getRuntimePaths() {
+                        return Collections.singleton(catalinaBase.resolve("conf/Catalina"));
+                    }
+                }.inputs("clickstack").outputs("catalinaBaseConf"))
+                .add(new RecordingStage("precompileJsps", events) {
+                    @Override
+                    protected void run() throws Exception {
+                        super.run();
+                        Path jspDir = Files.createDirectories(catalinaBase.resolve("work/Catalina/localhost/ROOT/org/apache/jsp"));
+                        Files.write(jspDir.resolve("index_jsp.class"), new byte[100]);
+                    }
+
+                    @Override
+                    protected Collection<Path> getOutputPaths() {
+                        return Collections.singleton(catalinaBase.resolve("work"));
+                    }
+
+                    @Override
+                    protected Collection<Path> getRuntimePaths() {
+                        return Collections.singleton(catalinaBase.resolve("work"));
+                    }
+                }.inputs("catalinaBaseConf").outputs("jspClasses"))
+                .run();
+        Collections.sort(events);
+        return events;
+    }
+
+    @Test
+    public void failed_run_is_not_fingerprinted() throws Exception {
+        Path fingerprintsFile = temporaryFolder.getRoot().toPath().resolve("setup-fingerprints.properties");
+        Path webappDir = temporaryFolder.newFolder("webapp").toPath();
+        runFingerprintedPipeline(fingerprintsFile, webappDir, "war-1", "metadata-1", false);
+        assertThat(Files.exists(fingerprintsFile), is(true));
+
+        SetupPipeline pipeline = new SetupPipeline(2)
+                .source("war", "war-2")
+                .withFingerprints(fingerprintsFile, false)
+                .add(new SetupPipeline.Stage("unzipWar") {
+                    @Override
+                    protected void run() throws Exception {
+                        throw new ZipException("invalid war");
+                    }
+                }.inputs("war").outputs("webapp"));
+        try {
+            pipeline.run();
+            fail();
+        } catch (ZipException e) {
+            // expected
+        }
+        assertThat(Files.exists(fingerprintsFile), is(false));
+    }
+
+    /**
+     * @return the sorted names of the stages that ran
+     */
+    private List<String> runFingerprintedPipeline(Path fingerprintsFile, final Path webappDir, String war, String metadata,
+                                                  boolean force) throws Exception {
+        List<String> events = new ArrayList<>();
+        new SetupPipeline(2)
+                .source("war", war)
+                .source("metadata", metadata)
+                .withFingerprints(fingerprintsFile, force)
+                .add(new RecordingStage("unzipTomcat", events).outputs("catalinaHome"))
+                .add(new RecordingStage("copySkeleton", events).outputs("conf"))
+                .add(new RecordingStage("unzipWar", events) {
+                    @Override
+                    protected void run() throws Exception {
+                        super.run();
+                        Files.write(webappDir.resolve("index.html"), new byte[100]);
+                    }
+
+                    @Override
+                    protected Collection<Path> getOutputPaths() {
+                        return Collections.singleton(webappDir);
+                    }
+                }.inputs("war").outputs("webapp"))
+                .add(new RecordingStage("updateConf", events).inputs("metadata", "conf").outputs("conf"))
+                .add(new RecordingStage("analyzeWebapp", events).inputs("webapp"))
+                .run();
+        Collections.sort(events);
+        return events;
+    }
+}
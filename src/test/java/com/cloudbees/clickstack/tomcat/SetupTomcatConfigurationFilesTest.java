@@ -25,11 +25,14 @@ import org.junit.Before;
 import org.junit.Test;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileSystem;
 
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.xmlmatchers.XmlMatchers.isEquivalentTo;
 import static org.xmlmatchers.transform.XmlConverters.the;
@@ -39,13 +42,17 @@ import static org.xmlmatchers.transform.XmlConverters.the;
  */
 public class SetupTomcatConfigurationFilesTest {
 
-    private Document serverXml;
-    private Document contextXml;
+    protected Document serverXml;
+    protected Document contextXml;
 
     @Before
     public void before() throws Exception {
-        serverXml = XmlUtils.loadXmlDocumentFromStream(Thread.currentThread().getContextClassLoader().getResourceAsStream("server.xml"));
-        contextXml = XmlUtils.loadXmlDocumentFromStream(Thread.currentThread().getContextClassLoader().getResourceAsStream("context.xml"));
+        serverXml = loadXml("server.xml");
+        contextXml = loadXml("context.xml");
+    }
+
+    protected Document loadXml(String resource) throws Exception {
+        return XmlUtils.loadXmlDocumentFromStream(Thread.currentThread().getContextClassLoader().getResourceAsStream(resource));
     }
 
     @Test
@@ -118,6 +125,95 @@ public class SetupTomcatConfigurationFilesTest {
 
     }
 
+    @Test
+    public void latency_histogram_valve_follows_remote_ip_valve() throws Exception {
+        Metadata metadata = Metadata.Builder.fromJsonString("{'tomcat': {'latencyHistogram': 'true'}}", true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        setupTomcatConfigurationFiles.addLatencyHistogramValve(metadata, serverXml, contextXml);
+
+        Element remoteIpValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='org.apache.catalina.valves.RemoteIpValve']");
+        Element latencyHistogramValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='com.cloudbees.tomcat.valves.LatencyHistogramValve']");
+        assertThat(the(latencyHistogramValve), isEquivalentTo(the("" +
+                "<Valve className='com.cloudbees.tomcat.valves.LatencyHistogramValve' intervalInSeconds='20' />")));
+        Node next = remoteIpValve.getNextSibling();
+        while (!(next instanceof Element)) {
+            next = next.getNextSibling();
+        }
+        assertThat(next, sameInstance((Node) latencyHistogramValve));
+    }
+
+    @Test
+    public void latency_histogram_valve_is_disabled_by_default() throws Exception {
+        Metadata metadata = Metadata.Builder.fromJsonString("{}", true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        setupTomcatConfigurationFiles.addLatencyHistogramValve(metadata, serverXml, contextXml);
+
+        assertThat(serverXml.getElementsByTagName("Valve").getLength(), is(1));
+    }
+
+    @Test
+    public void latency_histogram_valve_without_remote_ip_valve() throws Exception {
+        // server.xml provided by the application
+        Element remoteIpValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='org.apache.catalina.valves.RemoteIpValve']");
+        remoteIpValve.getParentNode().removeChild(remoteIpValve);
+        Metadata metadata = Metadata.Builder.fromJsonString("{'tomcat': {'latencyHistogram': 'true'}}", true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        setupTomcatConfigurationFiles.addLatencyHistogramValve(metadata, serverXml, contextXml);
+
+        Element host = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine/Host");
+        Element latencyHistogramValve = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine/Host/Valve[@className='com.cloudbees.tomcat.valves.LatencyHistogramValve']");
+        Node first = host.getFirstChild();
+        while (!(first instanceof Element)) {
+            first = first.getNextSibling();
+        }
+        assertThat(first, sameInstance((Node) latencyHistogramValve));
+    }
+
+    @Test
+    public void add_request_metrics_valve() throws Exception {
+        String json = "{ \n" +
+                "'requestMetrics': { \n" +
+                "    'patterns': '/api/users/*,*.jsp', \n" +
+                "    'topPrefixes': '10', \n" +
+                "    'unknown': 'foo' \n" +
+                "}\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        setupTomcatConfigurationFiles.addRequestMetricsValve(metadata, serverXml, contextXml);
+
+        Element requestMetricsValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='com.cloudbees.tomcat.valves.RequestMetricsValve']");
+        assertThat(the(requestMetricsValve), isEquivalentTo(the("" +
+                "<Valve className='com.cloudbees.tomcat.valves.RequestMetricsValve' patterns='/api/users/*,*.jsp' topPrefixes='10' />")));
+    }
+
+    @Test
+    public void add_async_syslog_access_log_valve() throws Exception {
+        String json = "{ \n" +
+                "'accessLog': { \n" +
+                "    'syslog': 'true', \n" +
+                "    'syslog.async': 'true', \n" +
+                "    'syslog.protocol': 'tcp', \n" +
+                "    'syslog.overflowPolicy': 'block' \n" +
+                "}\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        setupTomcatConfigurationFiles.addSyslogAccessLogValve(metadata, serverXml, contextXml);
+
+        Element accessLogValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='com.cloudbees.tomcat.valves.AsyncSyslogAccessLogValve']");
+        assertThat(the(accessLogValve), isEquivalentTo(the("" +
+                "<Valve className='com.cloudbees.tomcat.valves.AsyncSyslogAccessLogValve' protocol='tcp' bufferSize='8192' " +
+                "overflowPolicy='block' appName='access_log' hostname='${SYSLOG_APP_HOSTNAME}' " +
+                "syslogServerHostname='${SYSLOG_HOST}' syslogServerPort='${SYSLOG_PORT}' pattern='combined' " +
+                "requestAttributesEnabled='true' />")));
+    }
+
     private void test_remote_addr_valve(String metadataDotJson, String expectedXml) throws IOException {
         Metadata metadata = Metadata.Builder.fromJsonString(metadataDotJson, true);
         SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
@@ -243,6 +339,46 @@ public class SetupTomcatConfigurationFilesTest {
         test_add_datasource(bindingName, json, xml);
     }
 
+    @Test
+    public void add_mysql_data_source_with_performance_interceptors() throws Exception {
+
+        String bindingName = "mydb";
+
+        String json = "{ \n" +
+                "'cb-db': { \n" +
+                "    'DATABASE_PASSWORD': 'test', \n" +
+                "    'DATABASE_URL': 'mysql://mysql.mycompany.com:3306/test', \n" +
+                "    'DATABASE_USERNAME': 'test', \n" +
+                "    '__resource_name__': '" + bindingName + "', \n" +
+                "    '__resource_type__': 'database', \n" +
+                "    'jdbcInterceptorsProfile': 'performance', \n" +
+                "    'slowQueryThreshold': '500' \n" +
+                "}\n" +
+                "}";
+        String xml = "" +
+                "<Resource auth='Container' \n" +
+                "   driverClassName='com.mysql.jdbc.Driver' \n" +
+                "   factory='org.apache.tomcat.jdbc.pool.DataSourceFactory' \n" +
+                "   initialSize='1' \n" +
+                "   jdbcInterceptors='ConnectionState;StatementCache(prepared=true,callable=false,max=50);ResetAbandonedTimer;" +
+                "com.cloudbees.tomcat.jdbc.SlowQueryStatsReport(threshold=500,maxQueries=100,notifyPool=false,dataSource=jdbc/mydb)' \n" +
+                "   jmxEnabled='true' \n" +
+                "   maxActive='19' \n" +
+                "   maxIdle='9' \n" +
+                "   minIdle='1' \n" +
+                "   name='jdbc/" + bindingName + "' \n" +
+                "   password='test' \n" +
+                "   testOnBorrow='false' \n" +
+                "   testWhileIdle='true' \n" +
+                "   type='javax.sql.DataSource' \n" +
+                "   url='jdbc:mysql://mysql.mycompany.com:3306/test' \n" +
+                "   username='test' \n" +
+                "   validationInterval='60000' \n" +
+                "   validationQuery='select 1'/>";
+
+        test_add_datasource(bindingName, json, xml);
+    }
+
     private void test_add_datasource(String bindingName, String json, String xml) throws IOException {
         Metadata metadata = Metadata.Builder.fromJsonString(json, true);
         SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
@@ -469,4 +605,213 @@ public class SetupTomcatConfigurationFilesTest {
                 "    redirectPort='8443'/>";
         assertThat(the(connector), isEquivalentTo(the(xml)));
     }
+
+    @Test
+    public void auto_tune_http_connector() throws IOException {
+        // prepare
+
+        String json = "{ \n" +
+                " 'tomcat': { \n" +
+                " 'autoTune': 'true', \n" +
+                " 'connector.maxThreads': '150', \n" +
+                " 'connector.maxPostSize': '10485760' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata,
+                new ContainerResources(2, 1024 * ContainerResources.MB));
+
+        // run
+        setupTomcatConfigurationFiles.updateConnectorConfiguration(metadata, serverXml);
+
+        // XmlUtils.flush(serverXml, System.out);
+
+        // verify
+        Element executor = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Executor");
+        String expectedExecutorXml = "" +
+                "<Executor name='tomcatThreadPool' namePrefix='catalina-exec-' \n" +
+                "    maxThreads='150' \n" +
+                "    minSpareThreads='8' \n" +
+                "    maxQueueSize='300'/>";
+        assertThat(the(executor), isEquivalentTo(the(expectedExecutorXml)));
+
+        Element connector = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Connector");
+        String expectedConnectorXml = "" +
+                "<Connector port='${port.http}' protocol='HTTP/1.1' \n" +
+                "    URIEncoding='UTF-8' \n" +
+                "    executor='tomcatThreadPool' \n" +
+                "    acceptCount='150' \n" +
+                "    maxConnections='1500' \n" +
+                "    keepAliveTimeout='10000' \n" +
+                "    maxPostSize='10485760' \n" +
+                "    connectionTimeout='20000' \n" +
+                "    redirectPort='8443'/>";
+        assertThat(the(connector), isEquivalentTo(the(expectedConnectorXml)));
+    }
+
+    @Test
+    public void http_connector_apr_engine() throws IOException {
+        // prepare
+
+        String json = "{ \n" +
+                " 'tomcat': { \n" +
+                " 'engine': 'apr', \n" +
+                " 'connector.pollTime': '2000', \n" +
+                " 'connector.pollerThreadCount': '2' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        // run
+        setupTomcatConfigurationFiles.updateConnectorConfiguration(metadata, serverXml);
+        setupTomcatConfigurationFiles.updateConnectorEngine(metadata, serverXml);
+
+        // XmlUtils.flush(serverXml, System.out);
+
+        // verify
+        Element connector = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Connector");
+        String xml = "" +
+                "<Connector port='${port.http}' protocol='org.apache.coyote.http11.Http11AprProtocol' \n" +
+                "    URIEncoding='UTF-8' \n" +
+                "    pollTime='2000' \n" +
+                "    pollerThreadCount='2' \n" +
+                "    useSendfile='true' \n" +
+                "    sendfileSize='1024' \n" +
+                "    connectionTimeout='20000' \n" +
+                "    redirectPort='8443'/>";
+        assertThat(the(connector), isEquivalentTo(the(xml)));
+
+        XmlUtils.getUniqueElement(serverXml, "/Server/Listener[@className='org.apache.catalina.core.AprLifecycleListener']");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void http_connector_nio_engine_rejects_apr_attribute() throws IOException {
+        // prepare
+
+        String json = "{ \n" +
+                " 'tomcat': { \n" +
+                " 'engine': 'nio', \n" +
+                " 'connector.pollTime': '2000' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        // run
+        setupTomcatConfigurationFiles.updateConnectorEngine(metadata, serverXml);
+    }
+
+    @Test
+    public void auto_size_data_sources_sharing_a_server() throws Exception {
+
+        String json = "{ \n" +
+                "'tomcat': { \n" +
+                "    'jdbcPoolSizing': 'auto' \n" +
+                "}, \n" +
+                "'cb-db1': { \n" +
+                "    'DATABASE_PASSWORD': 'test', \n" +
+                "    'DATABASE_URL': 'mysql://mysql.mycompany.com:3306/test1', \n" +
+                "    'DATABASE_USERNAME': 'test', \n" +
+                "    '__resource_name__': 'mydb1', \n" +
+                "    '__resource_type__': 'database' \n" +
+                "}, \n" +
+                "'cb-db2': { \n" +
+                "    'DATABASE_PASSWORD': 'test', \n" +
+                "    'DATABASE_URL': 'mysql://mysql.mycompany.com:3306/test2', \n" +
+                "    'DATABASE_USERNAME': 'test', \n" +
+                "    '__resource_name__': 'mydb2', \n" +
+                "    '__resource_type__': 'database' \n" +
+                "}\n" +
+                "}";
+        String xml = "" +
+                "<Resource auth='Container' \n" +
+                "   driverClassName='com.mysql.jdbc.Driver' \n" +
+                "   factory='org.apache.tomcat.jdbc.pool.DataSourceFactory' \n" +
+                "   initialSize='4' \n" +
+                "   maxActive='9' \n" +
+                "   maxIdle='9' \n" +
+                "   maxWait='5000' \n" +
+                "   minIdle='4' \n" +
+                "   name='jdbc/mydb1' \n" +
+                "   password='test' \n" +
+                "   testOnBorrow='false' \n" +
+                "   testWhileIdle='true' \n" +
+                "   type='javax.sql.DataSource' \n" +
+                "   url='jdbc:mysql://mysql.mycompany.com:3306/test1' \n" +
+                "   username='test' \n" +
+                "   validationInterval='60000' \n" +
+                "   validationQuery='select 1'/>";
+
+        test_add_datasource("mydb1", json, xml);
+
+        Element prefillListener = XmlUtils.getUniqueElement(contextXml, "//Listener[@className='com.cloudbees.tomcat.jdbc.PrefillDataSourcesListener']");
+        assertThat(the(prefillListener), isEquivalentTo(the("" +
+                "<Listener className='com.cloudbees.tomcat.jdbc.PrefillDataSourcesListener' dataSources='jdbc/mydb1'/>")));
+    }
+
+    @Test
+    public void production_mode() throws Exception {
+        String json = "{ \n" +
+                " 'tomcat': { \n" +
+                " 'mode': 'production' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata,
+                new ContainerResources(4, 1024 * ContainerResources.MB));
+
+        setupTomcatConfigurationFiles.applyProductionMode(metadata, serverXml, contextXml);
+
+        Element host = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine/Host");
+        assertThat(host.getAttribute("autoDeploy"), is("false"));
+        assertThat(host.getAttribute("deployOnStartup"), is("false"));
+        assertThat(host.getAttribute("startStopThreads"), is("4"));
+        Element context = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine/Host/Context");
+        assertThat(the(context), isEquivalentTo(the("<Context path='' docBase='ROOT'/>")));
+        Element engine = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine");
+        assertThat(engine.getAttribute("backgroundProcessorDelay"), is("30"));
+
+        assertThat(contextXml.getElementsByTagName("WatchedResource").getLength(), is(0));
+    }
+
+    @Test
+    public void production_mode_custom_context_path() throws Exception {
+        String json = "{ \n" +
+                " 'tomcat': { \n" +
+                " 'mode': 'production', \n" +
+                " 'backgroundProcessorDelay': '60' \n" +
+                " }, \n" +
+                " 'webapp': { \n" +
+                " 'contextPath': '/myapp' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata,
+                new ContainerResources(2, 1024 * ContainerResources.MB));
+
+        setupTomcatConfigurationFiles.applyProductionMode(metadata, serverXml, contextXml);
+
+        Element context = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine/Host/Context");
+        assertThat(the(context), isEquivalentTo(the("<Context path='/myapp' docBase='myapp'/>")));
+        Element engine = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine");
+        assertThat(engine.getAttribute("backgroundProcessorDelay"), is("60"));
+    }
+
+    @Test
+    public void development_mode_keeps_deployment_scan() throws Exception {
+        Metadata metadata = Metadata.Builder.fromJsonString("{}", true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        setupTomcatConfigurationFiles.applyProductionMode(metadata, serverXml, contextXml);
+
+        Element host = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine/Host");
+        assertThat(host.getAttribute("autoDeploy"), is("true"));
+        assertThat(host.hasAttribute("deployOnStartup"), is(false));
+        assertThat(host.getElementsByTagName("Context").getLength(), is(0));
+        assertThat(contextXml.getElementsByTagName("WatchedResource").getLength(), is(1));
+    }
 }
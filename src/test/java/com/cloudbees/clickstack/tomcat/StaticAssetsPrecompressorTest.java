@@ -0,0 +1,132 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.cloudbees.clickstack.util.XmlUtils;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.xmlmatchers.XmlMatchers.isEquivalentTo;
+import static org.xmlmatchers.transform.XmlConverters.the;
+
+public class StaticAssetsPrecompressorTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(Charsets.UTF_8));
+    }
+
+    @Test
+    public void precompress_compressible_assets() throws Exception {
+        Path webAppDir = temporaryFolder.newFolder("ROOT").toPath();
+        String js = Strings.repeat("function hello() { return 'hello world'; }\n", 100);
+        write(webAppDir.resolve("js/app.js"), js);
+        write(webAppDir.resolve("css/small.css"), "body { margin: 0; }");
+        write(webAppDir.resolve("img/logo.png"), Strings.repeat("x", 2000));
+        write(webAppDir.resolve("WEB-INF/views/index.html"), Strings.repeat("<p>hello</p>", 200));
+
+        StaticAssetsPrecompressor.Result result = new StaticAssetsPrecompressor(2).precompress(webAppDir);
+
+        assertThat(result.getAssetsCount(), is(3));
+        assertThat(result.getCompressedCount(), is(1));
+        assertThat(Files.exists(webAppDir.resolve("css/small.css.gz")), is(false));
+        assertThat(Files.exists(webAppDir.resolve("img/logo.png.gz")), is(false));
+        assertThat(Files.exists(webAppDir.resolve("WEB-INF/views/index.html.gz")), is(false));
+        Path gzFile = webAppDir.resolve("js/app.js.gz");
+        assertThat(Files.getLastModifiedTime(gzFile), is(Files.getLastModifiedTime(webAppDir.resolve("js/app.js"))));
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(gzFile))) {
+            assertThat(new String(ByteStreams.toByteArray(in), Charsets.UTF_8), is(js));
+        }
+        assertThat(result.getFootprintBytes(), is(js.length() + 19 + 2000 + Files.size(gzFile)));
+
+        // second setup: the .gz is kept and still counted
+        StaticAssetsPrecompressor.Result rerun = new StaticAssetsPrecompressor(2).precompress(webAppDir);
+        assertThat(rerun.getCompressedBytes(), is(result.getCompressedBytes()));
+    }
+
+    @Test
+    public void static_resources_cache_sizing() throws Exception {
+        Path webAppDir = temporaryFolder.newFolder("ROOT").toPath();
+        write(webAppDir.resolve("js/app.js"), Strings.repeat("x", (int) (16 * MB)));
+        StaticAssetsPrecompressor.Result result = new StaticAssetsPrecompressor(2).precompress(webAppDir);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(Metadata.Builder.fromJsonString("{}", true));
+
+        // 16MB + the .gz + 25% and a 16MB asset
+        Document contextXml = XmlUtils.loadXmlDocumentFromStream(new ByteArrayInputStream("<Context/>".getBytes(Charsets.UTF_8)));
+        setupTomcatConfigurationFiles.addStaticResourcesCache(result, 1024 * MB, contextXml);
+        Element resources = XmlUtils.getUniqueElement(contextXml, "/Context/Resources");
+        long cacheMaxSize = Long.parseLong(resources.getAttribute("cacheMaxSize"));
+        assertThat(cacheMaxSize, is(result.getFootprintBytes() * 5 / 4 / 1024));
+        assertThat(resources.getAttribute("cacheObjectMaxSize"), is(String.valueOf(cacheMaxSize / 20)));
+
+        // small heap: Tomcat defaults
+        contextXml = XmlUtils.loadXmlDocumentFromStream(new ByteArrayInputStream("<Context/>".getBytes(Charsets.UTF_8)));
+        setupTomcatConfigurationFiles.addStaticResourcesCache(result, 64 * MB, contextXml);
+        assertThat(the(XmlUtils.getUniqueElement(contextXml, "/Context/Resources")), isEquivalentTo(the("<Resources cacheMaxSize='10240'/>")));
+
+        // attributes of the application are kept
+        contextXml = XmlUtils.loadXmlDocumentFromStream(new ByteArrayInputStream("<Context><Resources cacheMaxSize='4096'/></Context>".getBytes(Charsets.UTF_8)));
+        setupTomcatConfigurationFiles.addStaticResourcesCache(result, 64 * MB, contextXml);
+        assertThat(the(XmlUtils.getUniqueElement(contextXml, "/Context/Resources")), isEquivalentTo(the("<Resources cacheMaxSize='4096'/>")));
+    }
+
+    @Test
+    public void enable_precompressed_default_servlet() throws Exception {
+        String webXml = "" +
+                "<web-app xmlns='http://java.sun.com/xml/ns/javaee' version='3.0'>\n" +
+                "    <servlet>\n" +
+                "        <servlet-name>default</servlet-name>\n" +
+                "        <servlet-class>org.apache.catalina.servlets.DefaultServlet</servlet-class>\n" +
+                "        <init-param><param-name>listings</param-name><param-value>false</param-value></init-param>\n" +
+                "        <load-on-startup>1</load-on-startup>\n" +
+                "    </servlet>\n" +
+                "</web-app>";
+        Document webXmlDocument = XmlUtils.loadXmlDocumentFromStream(new ByteArrayInputStream(webXml.getBytes(Charsets.UTF_8)));
+
+        new SetupTomcatConfigurationFiles(Metadata.Builder.fromJsonString("{}", true)).enablePrecompressedStaticAssets(webXmlDocument);
+
+        // web.xml has a default namespace, compare the elements by name
+        Element servlet = (Element) webXmlDocument.getElementsByTagName("servlet").item(0);
+        NodeList initParams = servlet.getElementsByTagName("init-param");
+        assertThat(initParams.getLength(), is(2));
+        Element gzip = (Element) initParams.item(1);
+        assertThat(gzip.getElementsByTagName("param-name").item(0).getTextContent(), is("gzip"));
+        assertThat(gzip.getElementsByTagName("param-value").item(0).getTextContent(), is("true"));
+        assertThat(gzip.getNextSibling().getNodeName(), is("load-on-startup"));
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.cloudbees.clickstack.util.XmlUtils;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.xmlmatchers.XmlMatchers.isEquivalentTo;
+import static org.xmlmatchers.transform.XmlConverters.the;
+
+/**
+ * Runs the {@link SetupTomcatConfigurationFilesTest} cases on projections and verifies after each of them that
+ * {@link StreamingXmlRewriter#rewrite(InputStream, Document, OutputStream)} of the original XML gives the modified
+ * projection.
+ */
+public class StreamingXmlRewriterTest extends SetupTomcatConfigurationFilesTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Override
+    protected Document loadXml(String resource) throws Exception {
+        try (InputStream in = getResource(resource)) {
+            // keep the text and the comments to compare the whole documents
+            return StreamingXmlRewriter.project(in, false);
+        }
+    }
+
+    @After
+    public void rewrite_gives_the_modified_projection() throws Exception {
+        assertRewriteGivesProjection("server.xml", serverXml);
+        assertRewriteGivesProjection("context.xml", contextXml);
+    }
+
+    @Test
+    public void unchanged_document_is_preserved() throws Exception {
+        String original = new String(ByteStreams.toByteArray(getResource("context.xml")), Charsets.UTF_8);
+
+        String rewritten = rewrite(original, StreamingXmlRewriter.project(new ByteArrayInputStream(original.getBytes(Charsets.UTF_8)), true));
+
+        assertThat(rewritten.substring(rewritten.indexOf("?>")), is(original.substring(original.indexOf("?>"))));
+    }
+
+    @Test
+    public void edits_keep_comments_and_formatting() throws Exception {
+        String xml = "" +
+                "<Server port='8005'>\n" +
+                "    <!-- listeners -->\n" +
+                "    <Listener className='a' />\n" +
+                "    <Service name='Catalina'>\n" +
+                "        <Connector port='8080' protocol='HTTP/1.1' />\n" +
+                "        <Engine name='Catalina' />\n" +
+                "    </Service>\n" +
+                "</Server>";
+        Document projection = StreamingXmlRewriter.project(new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8)), true);
+        Element connector = XmlUtils.getUniqueElement(projection, "//Connector");
+        connector.setAttribute("port", "8081");
+        connector.setAttribute("maxThreads", "50");
+        connector.removeAttribute("protocol");
+        Element executor = projection.createElement("Executor");
+        executor.setAttribute("name", "tomcatThreadPool");
+        connector.getParentNode().insertBefore(executor, connector);
+        Element valve = projection.createElement("Valve");
+        XmlUtils.getUniqueElement(projection, "//Engine").appendChild(valve);
+        projection.getDocumentElement().removeChild(XmlUtils.getUniqueElement(projection, "//Listener"));
+
+        String rewritten = rewrite(xml, projection);
+
+        assertThat(rewritten, is("" +
+                "<Server port=\"8005\">\n" +
+                "    <!-- listeners -->\n" +
+                "    <Service name=\"Catalina\">\n" +
+                "        <Executor name=\"tomcatThreadPool\"/>\n" +
+                "        <Connector port=\"8081\" maxThreads=\"50\"/>\n" +
+                "        <Engine name=\"Catalina\">\n" +
+                "            <Valve/>\n" +
+                "        </Engine>\n" +
+                "    </Service>\n" +
+                "</Server>"));
+    }
+
+    @Test
+    public void text_of_an_element_without_children_is_replaced() throws Exception {
+        String xml = "" +
+                "<web-app>\n" +
+                "    <!-- default servlet -->\n" +
+                "    <init-param>\n" +
+                "        <param-name>gzip</param-name>\n" +
+                "        <param-value> false </param-value>\n" +
+                "        <description/>\n" +
+                "    </init-param>\n" +
+                "</web-app>";
+        Document projection = StreamingXmlRewriter.project(new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8)), false);
+        projection.getElementsByTagName("param-value").item(0).setTextContent("true");
+        projection.getElementsByTagName("description").item(0).setTextContent("precompressed");
+
+        String rewritten = rewrite(xml, projection);
+
+        assertThat(rewritten, is("" +
+                "<web-app>\n" +
+                "    <!-- default servlet -->\n" +
+                "    <init-param>\n" +
+                "        <param-name>gzip</param-name>\n" +
+                "        <param-value>true</param-value>\n" +
+                "        <description>precompressed</description>\n" +
+                "    </init-param>\n" +
+                "</web-app>"));
+    }
+
+    @Test
+    public void configuration_files_edited_after_the_setup_keep_comments() throws Exception {
+        Path webXmlPath = temporaryFolder.getRoot().toPath().resolve("web.xml");
+        Files.write(webXmlPath, ("" +
+                "<web-app xmlns='http://java.sun.com/xml/ns/javaee' version='3.0'>\n" +
+                "    <!-- default servlet -->\n" +
+                "    <servlet>\n" +
+                "        <servlet-name>default</servlet-name>\n" +
+                "        <servlet-class>org.apache.catalina.servlets.DefaultServlet</servlet-class>\n" +
+                "        <load-on-startup>1</load-on-startup>\n" +
+                "    </servlet>\n" +
+                "</web-app>").getBytes(Charsets.UTF_8));
+        Path contextXmlPath = temporaryFolder.getRoot().toPath().resolve("context.xml");
+        Files.write(contextXmlPath, ("" +
+                "<Context>\n" +
+                "    <!-- resources -->\n" +
+                "    <WatchedResource>WEB-INF/web.xml</WatchedResource>\n" +
+                "</Context>").getBytes(Charsets.UTF_8));
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(
+                Metadata.Builder.fromJsonString("{'tomcat': {'configurationEngine': 'stax'}}", true));
+
+        setupTomcatConfigurationFiles.enablePrecompressedStaticAssets(webXmlPath);
+        setupTomcatConfigurationFiles.addStaticResourcesCache(new StaticAssetsPrecompressor.Result(), 1024L * 1024 * 1024, contextXmlPath);
+
+        String webXml = new String(Files.readAllBytes(webXmlPath), Charsets.UTF_8);
+        assertThat(webXml, containsString("    <!-- default servlet -->\n"));
+        assertThat(webXml, containsString("" +
+                "        <servlet-class>org.apache.catalina.servlets.DefaultServlet</servlet-class>\n" +
+                "        <init-param><param-name>gzip</param-name><param-value>true</param-value></init-param>\n" +
+                "        <load-on-startup>1</load-on-startup>\n"));
+        String contextXml = new String(Files.readAllBytes(contextXmlPath), Charsets.UTF_8);
+        assertThat(contextXml, containsString("" +
+                "    <!-- resources -->\n" +
+                "    <WatchedResource>WEB-INF/web.xml</WatchedResource>\n" +
+                "    <Resources cacheMaxSize=\"10240\"/>\n"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void root_element_of_context_xml_is_checked_on_the_projection() throws Exception {
+        Path catalinaBase = temporaryFolder.getRoot().toPath();
+        Files.createDirectories(catalinaBase.resolve("conf"));
+        Files.write(catalinaBase.resolve("conf/context.xml"), "<Server/>".getBytes(Charsets.UTF_8));
+        Files.write(catalinaBase.resolve("conf/server.xml"), "<Server/>".getBytes(Charsets.UTF_8));
+
+        new SetupTomcatConfigurationFiles(Metadata.Builder.fromJsonString("{'tomcat': {'configurationEngine': 'stax'}}", true))
+                .buildTomcatConfigurationFiles(catalinaBase);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void moved_element_is_rejected() throws Exception {
+        String xml = "<Server><Service><Engine/></Service></Server>";
+        Document projection = StreamingXmlRewriter.project(new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8)), true);
+        projection.getDocumentElement().appendChild(XmlUtils.getUniqueElement(projection, "//Engine"));
+
+        rewrite(xml, projection);
+    }
+
+    private void assertRewriteGivesProjection(String resource, Document projection) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = getResource(resource)) {
+            StreamingXmlRewriter.rewrite(in, projection, out);
+        }
+        Document rewritten = XmlUtils.loadXmlDocumentFromStream(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(the(removeWhitespace(rewritten)), isEquivalentTo(the(removeWhitespace((Document) projection.cloneNode(true)))));
+    }
+
+    private String rewrite(String xml, Document projection) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingXmlRewriter.rewrite(new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8)), projection, out);
+        return new String(out.toByteArray(), Charsets.UTF_8);
+    }
+
+    /**
+     * The rewriter indents the inserted nodes, the DOM does not.
+     */
+    private static Document removeWhitespace(Document document) {
+        removeWhitespace((Node) document);
+        return document;
+    }
+
+    private static void removeWhitespace(Node node) {
+        Node child = node.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.TEXT_NODE && child.getNodeValue().trim().isEmpty()) {
+                node.removeChild(child);
+            } else {
+                removeWhitespace(child);
+            }
+            child = next;
+        }
+    }
+
+    private static InputStream getResource(String resource) {
+        return Thread.currentThread().getContextClassLoader().getResourceAsStream(resource);
+    }
+}
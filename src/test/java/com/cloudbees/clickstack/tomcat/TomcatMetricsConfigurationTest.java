@@ -0,0 +1,125 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.cloudbees.clickstack.util.XmlUtils;
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayInputStream;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.xmlmatchers.XmlMatchers.isEquivalentTo;
+import static org.xmlmatchers.transform.XmlConverters.the;
+
+public class TomcatMetricsConfigurationTest {
+
+    private Document jmxtransAgentXml;
+
+    @Before
+    public void before() throws Exception {
+        String xml = "" +
+                "<jmxtrans-agent>\n" +
+                "    <queries>\n" +
+                "        <query objectName='java.lang:type=Threading' attribute='ThreadCount' resultAlias='threads_count'/>\n" +
+                "    </queries>\n" +
+                "    <collectIntervalInSeconds>20</collectIntervalInSeconds>\n" +
+                "</jmxtrans-agent>";
+        jmxtransAgentXml = XmlUtils.loadXmlDocumentFromStream(new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8)));
+    }
+
+    @Test
+    public void java7_parallel_gc_root_context() throws Exception {
+        Jvm jvm = new Jvm(7, Jvm.GarbageCollector.PARALLEL);
+
+        Metadata metadata = Metadata.Builder.fromJsonString("{}", true);
+
+        new TomcatMetricsConfiguration(metadata, "ROOT", jvm).addQueries(jmxtransAgentXml);
+
+        Element permGen = XmlUtils.getUniqueElement(jmxtransAgentXml, "//query[@resultAlias='memory_ps_perm_gen_used']");
+        assertThat(the(permGen), isEquivalentTo(the("" +
+                "<query objectName='java.lang:type=MemoryPool,name=PS Perm Gen' attribute='Usage' key='used' " +
+                "resultAlias='memory_ps_perm_gen_used'/>")));
+        Element scavenge = XmlUtils.getUniqueElement(jmxtransAgentXml, "//query[@resultAlias='gc_ps_scavenge_collection_count']");
+        assertThat(the(scavenge), isEquivalentTo(the("" +
+                "<query objectName='java.lang:type=GarbageCollector,name=PS Scavenge' attribute='CollectionCount' type='counter' " +
+                "resultAlias='gc_ps_scavenge_collection_count'/>")));
+        Element activeSessions = XmlUtils.getUniqueElement(jmxtransAgentXml, "//query[@resultAlias='application_activeSessions']");
+        assertThat(activeSessions.getAttribute("objectName"), is("Catalina:type=Manager,context=/,host=localhost"));
+
+        // no datasource, no request latency
+        assertThat(jmxtransAgentXml.getElementsByTagName("query").getLength(), is(1 + 5 * 4 + 2 * 2 + 3));
+    }
+
+    @Test
+    public void java8_g1_custom_context_with_datasource() throws Exception {
+        String json = "{ \n" +
+                "'cb-db': { \n" +
+                "    'DATABASE_PASSWORD': 'test', \n" +
+                "    'DATABASE_URL': 'mysql://mysql.mycompany.com:3306/test', \n" +
+                "    'DATABASE_USERNAME': 'test', \n" +
+                "    '__resource_name__': 'mydb', \n" +
+                "    '__resource_type__': 'database', \n" +
+                "    'jdbcInterceptorsProfile': 'performance' \n" +
+                "},\n" +
+                "'tomcat': {'latencyHistogram': 'true'}\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        Jvm.GarbageCollector garbageCollector = Jvm.GarbageCollector.fromJavaOpts("-Xmx512m -XX:+UseParallelGC -XX:+UseG1GC");
+        assertThat(garbageCollector, is(Jvm.GarbageCollector.G1));
+        Jvm jvm = new Jvm(8, garbageCollector);
+
+        new TomcatMetricsConfiguration(metadata, "myapp", jvm).addQueries(jmxtransAgentXml);
+
+        XmlUtils.getUniqueElement(jmxtransAgentXml, "//query[@resultAlias='memory_g1_old_gen_used']");
+        XmlUtils.getUniqueElement(jmxtransAgentXml, "//query[@resultAlias='memory_metaspace_used']");
+        XmlUtils.getUniqueElement(jmxtransAgentXml, "//query[@resultAlias='gc_g1_young_generation_collection_time']");
+        assertThat(jmxtransAgentXml.getElementsByTagName("query").getLength(), is(1 + 6 * 4 + 2 * 2 + 3 + 3 + 5 + 3));
+
+        Element numActive = XmlUtils.getUniqueElement(jmxtransAgentXml, "//query[@resultAlias='datasource_%name%_numActive']");
+        assertThat(numActive.getAttribute("objectName"), is("Catalina:type=DataSource,context=/myapp,host=localhost,class=javax.sql.DataSource,name=*"));
+        Element slowQueries = XmlUtils.getUniqueElement(jmxtransAgentXml, "//query[@resultAlias='datasource_%name%_slowQueries']");
+        assertThat(slowQueries.getAttribute("objectName"), is("tomcat.jdbc:type=QueryStats,name=\"jdbc/mydb\""));
+        XmlUtils.getUniqueElement(jmxtransAgentXml, "//query[@resultAlias='request_latency_p999']");
+    }
+
+    @Test
+    public void prometheus_output_writer() throws Exception {
+        Metadata metadata = Metadata.Builder.fromJsonString("{'metrics': {'prometheus': 'true', 'prometheus.port': '9500'}}", true);
+        assertThat(TomcatMetricsConfiguration.isPrometheusEnabled(metadata), is(true));
+
+        new TomcatMetricsConfiguration(metadata, "ROOT", new Jvm(8, Jvm.GarbageCollector.G1)).addPrometheusOutputWriter(jmxtransAgentXml);
+
+        Element outputWriter = XmlUtils.getUniqueElement(jmxtransAgentXml, "/jmxtrans-agent/outputWriter");
+        assertThat(the(outputWriter), isEquivalentTo(the("" +
+                "<outputWriter class='com.cloudbees.jmxtrans.agent.PrometheusOutputWriter'>" +
+                "<host>127.0.0.1</host><port>9500</port>" +
+                "</outputWriter>")));
+    }
+
+    @Test
+    public void parse_java_versions() {
+        assertThat(Jvm.parseMajorVersion("1.7.0_55"), is(7));
+        assertThat(Jvm.parseMajorVersion("1.8"), is(8));
+        assertThat(Jvm.parseMajorVersion("11.0.2"), is(11));
+        assertThat(Jvm.parseMajorVersion("17"), is(17));
+    }
+}
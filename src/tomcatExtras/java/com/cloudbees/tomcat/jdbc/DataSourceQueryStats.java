@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.jdbc;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Query counters of a datasource, fed by the {@link SlowQueryStatsReport} interceptors of all its connections and
+ * exposed as {@code tomcat.jdbc:type=QueryStats,name="jdbc/mydb"} for jmxtrans-agent.
+ * <p/>
+ * Thread safe.
+ */
+public class DataSourceQueryStats implements DataSourceQueryStatsMBean {
+
+    private static final Log log = LogFactory.getLog(DataSourceQueryStats.class);
+
+    private static final ConcurrentMap<String, DataSourceQueryStats> statsByDataSource = new ConcurrentHashMap<>();
+
+    private final String dataSource;
+    private final AtomicLong queryCount = new AtomicLong();
+    private final AtomicLong slowQueryCount = new AtomicLong();
+    private final AtomicLong failedQueryCount = new AtomicLong();
+    private final AtomicLong queryTime = new AtomicLong();
+    private final AtomicLong maxQueryTime = new AtomicLong();
+
+    protected DataSourceQueryStats(String dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * @return the stats of the given datasource, created if needed
+     */
+    public static DataSourceQueryStats get(String dataSource) {
+        DataSourceQueryStats stats = statsByDataSource.get(dataSource);
+        if (stats == null) {
+            DataSourceQueryStats newStats = new DataSourceQueryStats(dataSource);
+            stats = statsByDataSource.putIfAbsent(dataSource, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    public void registerMBean() {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (!mbeanServer.isRegistered(objectName)) {
+                mbeanServer.registerMBean(this, objectName);
+            }
+        } catch (Exception e) {
+            log.warn("Exception registering query stats MBean of datasource '" + dataSource + "'", e);
+        }
+    }
+
+    public void unregisterMBean() {
+        statsByDataSource.remove(dataSource, this);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (mbeanServer.isRegistered(objectName)) {
+                mbeanServer.unregisterMBean(objectName);
+            }
+        } catch (Exception e) {
+            log.warn("Exception unregistering query stats MBean of datasource '" + dataSource + "'", e);
+        }
+    }
+
+    protected ObjectName getObjectName() throws Exception {
+        return new ObjectName("tomcat.jdbc:type=QueryStats,name=" + ObjectName.quote(dataSource));
+    }
+
+    public void query(long durationInMillis, boolean slow) {
+        queryCount.incrementAndGet();
+        if (slow) {
+            slowQueryCount.incrementAndGet();
+        }
+        queryTime.addAndGet(durationInMillis);
+        long max = maxQueryTime.get();
+        while (durationInMillis > max && !maxQueryTime.compareAndSet(max, durationInMillis)) {
+            max = maxQueryTime.get();
+        }
+    }
+
+    public void failedQuery() {
+        failedQueryCount.incrementAndGet();
+    }
+
+    @Override
+    public String getDataSource() {
+        return dataSource;
+    }
+
+    @Override
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    @Override
+    public long getSlowQueryCount() {
+        return slowQueryCount.get();
+    }
+
+    @Override
+    public long getFailedQueryCount() {
+        return failedQueryCount.get();
+    }
+
+    @Override
+    public long getQueryTime() {
+        return queryTime.get();
+    }
+
+    @Override
+    public long getMaxQueryTime() {
+        return maxQueryTime.get();
+    }
+
+    @Override
+    public void resetMaxQueryTime() {
+        maxQueryTime.set(0);
+    }
+}
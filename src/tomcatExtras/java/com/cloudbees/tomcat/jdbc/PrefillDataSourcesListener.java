@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.jdbc;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.core.NamingContextListener;
+import org.apache.catalina.core.StandardContext;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+
+/**
+ * Context {@link LifecycleListener} that looks up the given JNDI datasources in a background thread as soon as the
+ * context is started.
+ * <p/>
+ * Tomcat creates the datasources lazily on their first lookup, the pool and its {@code initialSize} connections are
+ * thus created by the first requests after a deployment. Creating them in the background instead prevents these
+ * requests from queuing on the creation of the connections.
+ * <p/>
+ * <code><pre>
+ * &lt;Context&gt;
+ *     &lt;Listener className="com.cloudbees.tomcat.jdbc.PrefillDataSourcesListener" dataSources="jdbc/mydb,jdbc/otherdb" /&gt;
+ *     ...
+ * &lt;/Context&gt;
+ * </pre></code>
+ */
+public class PrefillDataSourcesListener implements LifecycleListener {
+
+    private static final Log log = LogFactory.getLog(PrefillDataSourcesListener.class);
+
+    private String dataSources = "";
+
+    @Override
+    public void lifecycleEvent(LifecycleEvent event) {
+        if (!Lifecycle.AFTER_START_EVENT.equals(event.getType()) || !(event.getLifecycle() instanceof StandardContext)) {
+            return;
+        }
+        final StandardContext context = (StandardContext) event.getLifecycle();
+        Thread thread = new Thread("prefill-datasources[" + context.getName() + "]") {
+            @Override
+            public void run() {
+                prefill(context);
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    protected void prefill(StandardContext context) {
+        NamingContextListener namingContextListener = context.getNamingContextListener();
+        if (namingContextListener == null || namingContextListener.getEnvContext() == null) {
+            log.warn("Naming is disabled for context '" + context.getName() + "', skip prefilling of datasources");
+            return;
+        }
+        Thread currentThread = Thread.currentThread();
+        ClassLoader initialClassLoader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(context.getLoader().getClassLoader());
+        try {
+            for (String name : dataSources.split(",")) {
+                name = name.trim();
+                if (name.isEmpty()) {
+                    continue;
+                }
+                long nanosBefore = System.nanoTime();
+                try {
+                    Object dataSource = namingContextListener.getEnvContext().lookup(name);
+                    if (dataSource instanceof DataSource) {
+                        // ensure that the pool is created, tomcat-jdbc-pool then opens 'initialSize' connections
+                        Connection connection = ((DataSource) dataSource).getConnection();
+                        connection.close();
+                    }
+                    log.info("Datasource '" + name + "' of context '" + context.getName() + "' prefilled in " +
+                            (System.nanoTime() - nanosBefore) / 1000000 + "ms");
+                } catch (Exception e) {
+                    log.warn("Exception prefilling datasource '" + name + "' of context '" + context.getName() + "'", e);
+                }
+            }
+        } finally {
+            currentThread.setContextClassLoader(initialClassLoader);
+        }
+    }
+
+    /**
+     * @param dataSources comma separated list of JNDI names relative to {@code java:comp/env} (e.g. "jdbc/mydb")
+     */
+    public void setDataSources(String dataSources) {
+        this.dataSources = dataSources == null ? "" : dataSources;
+    }
+
+    public String getDataSources() {
+        return dataSources;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.jdbc;
+
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.PoolProperties;
+import org.apache.tomcat.jdbc.pool.interceptor.SlowQueryReportJmx;
+
+import java.util.Map;
+
+/**
+ * {@link SlowQueryReportJmx} that also counts the queries, slow queries and failed queries of the datasource and
+ * tracks its slowest query in a {@link DataSourceQueryStats} MBean.
+ * <p/>
+ * {@code SlowQueryReportJmx} only exposes the slowest queries as composite data that jmxtrans-agent can not collect.
+ * The JNDI name of the datasource is given by the {@code dataSource} property because the name of the pool is
+ * generated by tomcat-jdbc-pool.
+ * <p/>
+ * <code><pre>
+ * &lt;Resource name="jdbc/mydb" jdbcInterceptors="com.cloudbees.tomcat.jdbc.SlowQueryStatsReport(threshold=1000,dataSource=jdbc/mydb)" ... /&gt;
+ * </pre></code>
+ */
+public class SlowQueryStatsReport extends SlowQueryReportJmx {
+
+    public static final String DATA_SOURCE_PROPERTY = "dataSource";
+
+    private DataSourceQueryStats stats;
+
+    @Override
+    public void setProperties(Map<String, PoolProperties.InterceptorProperty> properties) {
+        super.setProperties(properties);
+        PoolProperties.InterceptorProperty dataSource = properties.get(DATA_SOURCE_PROPERTY);
+        stats = DataSourceQueryStats.get(dataSource == null ? "default" : dataSource.getValue());
+    }
+
+    @Override
+    public void poolStarted(ConnectionPool pool) {
+        super.poolStarted(pool);
+        if (stats != null) {
+            stats.registerMBean();
+        }
+    }
+
+    @Override
+    public void poolClosed(ConnectionPool pool) {
+        if (stats != null) {
+            stats.unregisterMBean();
+        }
+        super.poolClosed(pool);
+    }
+
+    @Override
+    protected String reportQuery(String query, Object[] args, String name, long start, long delta) {
+        if (stats != null) {
+            stats.query(delta, false);
+        }
+        return super.reportQuery(query, args, name, start, delta);
+    }
+
+    @Override
+    protected String reportSlowQuery(String query, Object[] args, String name, long start, long delta) {
+        if (stats != null) {
+            stats.query(delta, true);
+        }
+        return super.reportSlowQuery(query, args, name, start, delta);
+    }
+
+    @Override
+    protected String reportFailedQuery(String query, Object[] args, String name, long start, Throwable t) {
+        if (stats != null) {
+            stats.failedQuery();
+        }
+        return super.reportFailedQuery(query, args, name, start, t);
+    }
+}
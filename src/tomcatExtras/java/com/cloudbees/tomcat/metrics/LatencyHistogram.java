@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds with log-linear buckets in the spirit of HdrHistogram: 16 linear sub-buckets
+ * per power of two, i.e. a relative error below 6.25%, from 1 microsecond to 2^36 microseconds (about 19 hours).
+ * <p/>
+ * {@link #record(long)} is lock-free and allocation-free: it increments one slot of a preallocated array. Values are
+ * recorded in the active interval, {@link #rotate()} swaps it with the inactive one and returns a {@link Snapshot} of
+ * the interval that just ended. A writer/reader phaser ensures that the writers have left an interval before it is
+ * read.
+ * <p/>
+ * Thread safe.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final long MAX_VALUE = (1L << 36) - 1;
+    static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+    private volatile Interval active = new Interval();
+    private Interval inactive = new Interval();
+
+    /**
+     * Writer/reader phaser: writers increment {@code startEpoch} when they enter and the end epoch of their phase when
+     * they leave, the sign of {@code startEpoch} gives the phase (positive: even, negative: odd).
+     */
+    private final AtomicLong startEpoch = new AtomicLong(0);
+    private final AtomicLong evenEndEpoch = new AtomicLong(0);
+    private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param micros latency in microseconds, negative values are recorded as 0 and values greater than 2^36 as 2^36
+     */
+    public void record(long micros) {
+        long criticalValueAtEnter = startEpoch.getAndIncrement();
+        try {
+            active.record(micros);
+        } finally {
+            if (criticalValueAtEnter < 0) {
+                oddEndEpoch.getAndIncrement();
+            } else {
+                evenEndEpoch.getAndIncrement();
+            }
+        }
+    }
+
+    /**
+     * Start a new interval.
+     *
+     * @return the values recorded since the previous rotation
+     */
+    public synchronized Snapshot rotate() {
+        inactive.reset();
+        Interval ended = active;
+        active = inactive;
+        inactive = ended;
+        flipPhase();
+        return new Snapshot(ended);
+    }
+
+    /**
+     * Wait for the writers that entered before the flip, and may thus still record in the interval that just ended.
+     */
+    private void flipPhase() {
+        boolean nextPhaseIsEven = startEpoch.get() < 0;
+        long initialStartValue = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+        (nextPhaseIsEven ? evenEndEpoch : oddEndEpoch).lazySet(initialStartValue);
+        long startValueAtFlip = startEpoch.getAndSet(initialStartValue);
+        AtomicLong previousEndEpoch = nextPhaseIsEven ? oddEndEpoch : evenEndEpoch;
+        while (previousEndEpoch.get() != startValueAtFlip) {
+            Thread.yield();
+        }
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        value = Math.min(value, MAX_VALUE);
+        // keep the SUB_BUCKET_BITS + 1 most significant bits: mantissa is in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the highest value that is recorded in the given bucket
+     */
+    static long highestValueOf(int bucketIndex) {
+        if (bucketIndex < 2 * SUB_BUCKETS) {
+            return bucketIndex;
+        }
+        int shift = bucketIndex / SUB_BUCKETS - 1;
+        long mantissa = bucketIndex % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    private static class Interval {
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong max = new AtomicLong();
+
+        void record(long micros) {
+            counts.getAndIncrement(bucketIndex(micros));
+            long currentMax = max.get();
+            while (micros > currentMax && !max.compareAndSet(currentMax, micros)) {
+                currentMax = max.get();
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            max.set(0);
+        }
+    }
+
+    /**
+     * Immutable copy of an interval.
+     */
+    public static class Snapshot {
+        private final long[] counts = new long[BUCKETS];
+        private final long count;
+        private final long max;
+
+        private Snapshot(Interval interval) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = interval.counts.get(i);
+                total += counts[i];
+            }
+            this.count = total;
+            this.max = interval.max.get();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the exact max value, 0 if there is no value
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the value (highest value of its bucket, no more than {@link #getMax()}) below which {@code percentile}
+         * percents of the values are, 0 if there is no value
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100.0) / 100.0));
+            long cumulated = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulated += counts[i];
+                if (cumulated >= rank) {
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.metrics;
+
+/**
+ * Exposes a {@link LatencyHistogram} as an MBean, the histogram is rotated when it is read and the previous rotation
+ * is older than half of the {@code intervalInSeconds}.
+ * <p/>
+ * With the collect interval of jmxtrans-agent as {@code intervalInSeconds}, the histogram is thus rotated once per
+ * collect, by the read of the first attribute, and the following attributes are read from the same snapshot.
+ * <p/>
+ * Thread safe.
+ */
+public class RequestLatency implements RequestLatencyMBean {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final int intervalInSeconds;
+    private final long rotationPeriodInNanos;
+
+    private long lastRotationInNanos = System.nanoTime();
+    private LatencyHistogram.Snapshot snapshot;
+
+    public RequestLatency(int intervalInSeconds) {
+        this.intervalInSeconds = intervalInSeconds;
+        this.rotationPeriodInNanos = intervalInSeconds * 1000000000L / 2;
+        this.snapshot = histogram.rotate();
+    }
+
+    public void recordNanos(long nanos) {
+        histogram.record(nanos / 1000);
+    }
+
+    protected synchronized LatencyHistogram.Snapshot getSnapshot() {
+        long now = System.nanoTime();
+        if (now - lastRotationInNanos >= rotationPeriodInNanos) {
+            snapshot = histogram.rotate();
+            lastRotationInNanos = now;
+        }
+        return snapshot;
+    }
+
+    private static double toMillis(long micros) {
+        return micros / 1000.0;
+    }
+
+    @Override
+    public long getCount() {
+        return getSnapshot().getCount();
+    }
+
+    @Override
+    public double getP50() {
+        return toMillis(getSnapshot().getValueAtPercentile(50));
+    }
+
+    @Override
+    public double getP90() {
+        return toMillis(getSnapshot().getValueAtPercentile(90));
+    }
+
+    @Override
+    public double getP99() {
+        return toMillis(getSnapshot().getValueAtPercentile(99));
+    }
+
+    @Override
+    public double getP999() {
+        return toMillis(getSnapshot().getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public double getMax() {
+        return toMillis(getSnapshot().getMax());
+    }
+
+    @Override
+    public int getIntervalInSeconds() {
+        return intervalInSeconds;
+    }
+}
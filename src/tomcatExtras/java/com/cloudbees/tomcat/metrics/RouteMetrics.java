@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Request counters of a route (a group of URIs) striped by thread: each thread updates the counters of its stripe,
+ * padded to its own cache lines, so that the request threads do not contend on the same counters. Readers sum the
+ * stripes.
+ * <p/>
+ * Thread safe.
+ */
+public class RouteMetrics implements RouteMetricsMBean {
+
+    private static final int COUNT = 0;
+    private static final int ERRORS = 1;
+    private static final int TOTAL_MICROS = 2;
+    private static final int MAX_MICROS = 3;
+    /**
+     * 16 longs (128 bytes) per stripe to prevent false sharing between stripes
+     */
+    private static final int STRIPE_SIZE = 16;
+
+    private final String route;
+    private final int stripeMask;
+    private final AtomicLongArray counters;
+
+    /**
+     * @param stripes rounded up to a power of two
+     */
+    public RouteMetrics(String route, int stripes) {
+        this.route = route;
+        int powerOfTwo = Integer.highestOneBit(Math.max(stripes, 1) - 1) << 1;
+        this.stripeMask = Math.max(powerOfTwo, 1) - 1;
+        this.counters = new AtomicLongArray((stripeMask + 1) * STRIPE_SIZE);
+    }
+
+    public void record(long micros, boolean error) {
+        int offset = ((int) Thread.currentThread().getId() & stripeMask) * STRIPE_SIZE;
+        counters.getAndIncrement(offset + COUNT);
+        if (error) {
+            counters.getAndIncrement(offset + ERRORS);
+        }
+        counters.getAndAdd(offset + TOTAL_MICROS, micros);
+        long max = counters.get(offset + MAX_MICROS);
+        while (micros > max && !counters.compareAndSet(offset + MAX_MICROS, max, micros)) {
+            max = counters.get(offset + MAX_MICROS);
+        }
+    }
+
+    private long sum(int counter) {
+        long sum = 0;
+        for (int offset = 0; offset < counters.length(); offset += STRIPE_SIZE) {
+            sum += counters.get(offset + counter);
+        }
+        return sum;
+    }
+
+    @Override
+    public String getRoute() {
+        return route;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return sum(COUNT);
+    }
+
+    @Override
+    public long getErrorCount() {
+        return sum(ERRORS);
+    }
+
+    @Override
+    public long getProcessingTime() {
+        return sum(TOTAL_MICROS) / 1000;
+    }
+
+    @Override
+    public long getMaxTime() {
+        long max = 0;
+        for (int offset = 0; offset < counters.length(); offset += STRIPE_SIZE) {
+            max = Math.max(max, counters.get(offset + MAX_MICROS));
+        }
+        return max / 1000;
+    }
+
+    @Override
+    public void resetMaxTime() {
+        for (int offset = 0; offset < counters.length(); offset += STRIPE_SIZE) {
+            counters.set(offset + MAX_MICROS, 0);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.metrics;
+
+/**
+ * @see RouteMetrics
+ */
+public interface RouteMetricsMBean {
+
+    String getRoute();
+
+    long getRequestCount();
+
+    long getErrorCount();
+
+    /**
+     * @return cumulated processing time of the requests in milliseconds
+     */
+    long getProcessingTime();
+
+    /**
+     * @return processing time in milliseconds of the slowest request since the start or the previous
+     * {@link #resetMaxTime()}, reading it does not reset it so that several JMX clients see the same value
+     */
+    long getMaxTime();
+
+    void resetMaxTime();
+}
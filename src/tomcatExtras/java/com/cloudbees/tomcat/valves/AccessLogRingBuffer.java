@@ -0,0 +1,133 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer single-consumer ring buffer of preallocated {@link Record}s.
+ * <p/>
+ * A producer claims a sequence with a CAS ({@link #tryClaim()}), fills the record of the sequence and
+ * {@link #publish(long) publishes} it. The consumer {@link #peek() peeks} the next published record and
+ * {@link #release() releases} it once processed. No lock and no allocation.
+ */
+public class AccessLogRingBuffer {
+
+    /**
+     * Fields of an access log line, captured by the request thread and formatted by the consumer.
+     */
+    public static class Record {
+        long timestamp;
+        long durationInMillis;
+        int status;
+        long bytesSent;
+        String remoteAddr;
+        String remoteUser;
+        String method;
+        String requestUri;
+        String queryString;
+        String protocol;
+        String referer;
+        String userAgent;
+
+        void clear() {
+            remoteAddr = remoteUser = method = requestUri = queryString = protocol = referer = userAgent = null;
+        }
+    }
+
+    private final Record[] records;
+    private final int mask;
+    /**
+     * next sequence to claim
+     */
+    private final AtomicLong claimed = new AtomicLong();
+    /**
+     * {@code sequence + 1} of the record published in each slot
+     */
+    private final AtomicLongArray published;
+    /**
+     * next sequence to consume, only written by the consumer
+     */
+    private volatile long consumed;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public AccessLogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.records = new Record[size];
+        for (int i = 0; i < size; i++) {
+            records[i] = new Record();
+        }
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+    }
+
+    /**
+     * @return the claimed sequence, -1 if the buffer is full
+     */
+    public long tryClaim() {
+        while (true) {
+            long sequence = claimed.get();
+            if (sequence - consumed >= records.length) {
+                return -1;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    public Record get(long sequence) {
+        return records[(int) (sequence & mask)];
+    }
+
+    public void publish(long sequence) {
+        published.set((int) (sequence & mask), sequence + 1);
+    }
+
+    /**
+     * @return the next record if it is published, {@code null} otherwise
+     */
+    public Record peek() {
+        long sequence = consumed;
+        if (published.get((int) (sequence & mask)) != sequence + 1) {
+            return null;
+        }
+        return records[(int) (sequence & mask)];
+    }
+
+    /**
+     * Release the record returned by {@link #peek()}.
+     */
+    public void release() {
+        long sequence = consumed;
+        records[(int) (sequence & mask)].clear();
+        consumed = sequence + 1;
+    }
+
+    public int getCapacity() {
+        return records.length;
+    }
+
+    /**
+     * @return number of claimed records that are not yet released
+     */
+    public int size() {
+        return (int) (claimed.get() - consumed);
+    }
+}
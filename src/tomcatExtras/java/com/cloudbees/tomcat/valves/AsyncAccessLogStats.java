@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of an {@link AsyncSyslogAccessLogValve}.
+ */
+public class AsyncAccessLogStats implements AsyncAccessLogStatsMBean {
+
+    private final AccessLogRingBuffer ringBuffer;
+    final AtomicLong droppedLines = new AtomicLong();
+    final AtomicLong oversizedLines = new AtomicLong();
+    final AtomicLong sentLines = new AtomicLong();
+    final AtomicLong sendErrors = new AtomicLong();
+
+    public AsyncAccessLogStats(AccessLogRingBuffer ringBuffer) {
+        this.ringBuffer = ringBuffer;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return ringBuffer.getCapacity();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return ringBuffer.size();
+    }
+
+    @Override
+    public long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+    @Override
+    public long getOversizedLines() {
+        return oversizedLines.get();
+    }
+
+    @Override
+    public long getSentLines() {
+        return sentLines.get();
+    }
+
+    @Override
+    public long getSendErrors() {
+        return sendErrors.get();
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import org.apache.catalina.AccessLog;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.ObjectName;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log sent to a syslog server without slowing down the request threads.
+ * <p/>
+ * The request thread only copies the fields of the access log line into a preallocated record of an
+ * {@link AccessLogRingBuffer}. A background thread formats the records ({@code common} or {@code combined} pattern)
+ * and sends them in batches: all the available lines in one write with {@code tcp}, one datagram per line with
+ * {@code udp} as required by RFC 5426. A {@code tcp} line bigger than the batch buffer is written on its own, an
+ * {@code udp} line bigger than a datagram is dropped and counted as oversized.
+ * <p/>
+ * When the buffer is full, the line is dropped and counted ({@code overflowPolicy="drop"}, default) or the request
+ * thread waits for a free record ({@code overflowPolicy="block"}). The queue depth, dropped, oversized, sent lines and
+ * send errors are exposed as {@code com.cloudbees.tomcat:type=AsyncAccessLog,host=localhost}.
+ * <p/>
+ * <code><pre>
+ * &lt;Host ...&gt;
+ *     &lt;Valve className="com.cloudbees.tomcat.valves.AsyncSyslogAccessLogValve" pattern="combined"
+ *            syslogServerHostname="${SYSLOG_HOST}" syslogServerPort="${SYSLOG_PORT}" appName="access_log"
+ *            hostname="${SYSLOG_APP_HOSTNAME}" requestAttributesEnabled="true" /&gt;
+ * &lt;/Host&gt;
+ * </pre></code>
+ */
+public class AsyncSyslogAccessLogValve extends ValveBase implements AccessLog {
+
+    private static final Log log = LogFactory.getLog(AsyncSyslogAccessLogValve.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final List<String> FACILITIES = Arrays.asList("kern", "user", "mail", "daemon", "auth", "syslog",
+            "lpr", "news", "uucp", "cron", "authpriv", "ftp", "ntp", "security", "console", "solaris-cron",
+            "local0", "local1", "local2", "local3", "local4", "local5", "local6", "local7");
+
+    private static final int SEVERITY_INFO = 6;
+
+    /**
+     * max payload of an UDP datagram over IPv4
+     */
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private static final long STOP_TIMEOUT_IN_MILLIS = 5000;
+
+    private String pattern = "combined";
+    private String syslogServerHostname = "localhost";
+    private int syslogServerPort = 514;
+    private String protocol = "udp";
+    private String facility = "user";
+    private String appName = "access_log";
+    private String hostname = "localhost";
+    private int bufferSize = 8192;
+    private int maxBatchSize = 512;
+    private String overflowPolicy = "drop";
+    private boolean requestAttributesEnabled = false;
+
+    private volatile AccessLogRingBuffer ringBuffer;
+    private volatile AsyncAccessLogStats stats;
+    private volatile boolean running;
+    private Thread senderThread;
+    private ObjectName statsObjectName;
+
+    private DatagramChannel datagramChannel;
+    private SocketChannel socketChannel;
+    private InetSocketAddress syslogServerAddress;
+
+    public AsyncSyslogAccessLogValve() {
+        super(true);
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        // the line is logged by log() once the request is completed
+        getNext().invoke(request, response);
+    }
+
+    @Override
+    public void log(Request request, Response response, long time) {
+        AccessLogRingBuffer ringBuffer = this.ringBuffer;
+        if (!running || ringBuffer == null) {
+            return;
+        }
+        long sequence = ringBuffer.tryClaim();
+        if (sequence < 0) {
+            if (!"block".equals(overflowPolicy)) {
+                stats.droppedLines.incrementAndGet();
+                return;
+            }
+            while ((sequence = ringBuffer.tryClaim()) < 0 && running) {
+                LockSupport.parkNanos(100000);
+            }
+            if (sequence < 0) {
+                stats.droppedLines.incrementAndGet();
+                return;
+            }
+        }
+        AccessLogRingBuffer.Record record = ringBuffer.get(sequence);
+        try {
+            record.timestamp = System.currentTimeMillis() - time;
+            record.durationInMillis = time;
+            record.status = response.getStatus();
+            record.bytesSent = response.getBytesWritten(false);
+            Object remoteAddr = requestAttributesEnabled ? request.getAttribute(REMOTE_ADDR_ATTRIBUTE) : null;
+            record.remoteAddr = remoteAddr == null ? request.getRemoteAddr() : remoteAddr.toString();
+            record.remoteUser = request.getRemoteUser();
+            record.method = request.getMethod();
+            record.requestUri = request.getRequestURI();
+            record.queryString = request.getQueryString();
+            Object protocol = requestAttributesEnabled ? request.getAttribute(PROTOCOL_ATTRIBUTE) : null;
+            record.protocol = protocol == null ? request.getProtocol() : protocol.toString();
+            if ("combined".equals(pattern)) {
+                record.referer = request.getHeader("Referer");
+                record.userAgent = request.getHeader("User-Agent");
+            }
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+    }
+
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+        startSender();
+        super.startInternal();
+    }
+
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+        super.stopInternal();
+        stopSender();
+    }
+
+    protected void startSender() {
+        if (!"common".equals(pattern) && !"combined".equals(pattern)) {
+            log.warn("Unsupported pattern '" + pattern + "', use 'combined'");
+            pattern = "combined";
+        }
+        ringBuffer = new AccessLogRingBuffer(bufferSize);
+        stats = new AsyncAccessLogStats(ringBuffer);
+        syslogServerAddress = new InetSocketAddress(syslogServerHostname, syslogServerPort);
+        running = true;
+        senderThread = new Thread("async-syslog-access-log[" + getContainer().getName() + "]") {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        };
+        senderThread.setDaemon(true);
+        senderThread.start();
+        try {
+            statsObjectName = new ObjectName("com.cloudbees.tomcat:type=AsyncAccessLog,host=" + getContainer().getName());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, statsObjectName);
+        } catch (Exception e) {
+            log.warn("Exception registering the access log MBean " + statsObjectName, e);
+            statsObjectName = null;
+        }
+    }
+
+    /**
+     * Stop the sender thread once the buffered lines are sent. If they are not sent within 5 seconds, the sender thread
+     * is interrupted and the remaining lines are dropped. The channels are closed by the sender thread when it exits,
+     * never while it may still be writing.
+     */
+    protected void stopSender() {
+        running = false;
+        if (senderThread != null) {
+            try {
+                senderThread.join(STOP_TIMEOUT_IN_MILLIS);
+                if (senderThread.isAlive()) {
+                    log.warn("Access log lines not sent to " + syslogServerAddress + " within " + STOP_TIMEOUT_IN_MILLIS +
+                            "ms, drop them");
+                    senderThread.interrupt();
+                    senderThread.join(STOP_TIMEOUT_IN_MILLIS);
+                    if (senderThread.isAlive()) {
+                        log.warn("Access log sender thread " + senderThread.getName() + " does not stop");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            senderThread = null;
+        }
+        if (statsObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsObjectName);
+            } catch (Exception e) {
+                log.warn("Exception unregistering the access log MBean " + statsObjectName, e);
+            }
+            statsObjectName = null;
+        }
+    }
+
+    protected void sendLoop() {
+        try {
+            doSendLoop();
+        } finally {
+            closeChannels();
+        }
+    }
+
+    private void doSendLoop() {
+        int priority = getFacilityCode() * 8 + SEVERITY_INFO;
+        SimpleDateFormat syslogDateFormat = new SimpleDateFormat("MMM dd HH:mm:ss", Locale.ENGLISH);
+        SimpleDateFormat accessLogDateFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+        String header = " " + hostname + " " + appName + ": ";
+        boolean tcp = "tcp".equalsIgnoreCase(protocol);
+        StringBuilder line = new StringBuilder(512);
+        ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+        long idleNanos = 0;
+
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                // interrupted by stopSender()
+                stats.droppedLines.addAndGet(ringBuffer.size());
+                break;
+            }
+            AccessLogRingBuffer.Record record = ringBuffer.peek();
+            if (record == null) {
+                if (!running && ringBuffer.size() == 0) {
+                    break;
+                }
+                // back off up to 10ms when idle
+                idleNanos = Math.min(Math.max(idleNanos * 2, 100000), 10000000);
+                LockSupport.parkNanos(idleNanos);
+                continue;
+            }
+            idleNanos = 0;
+            int batchedLines = 0;
+            batch.clear();
+            while (record != null && batchedLines < maxBatchSize) {
+                line.setLength(0);
+                line.append('<').append(priority).append('>')
+                        .append(syslogDateFormat.format(new Date(record.timestamp))).append(header);
+                format(record, accessLogDateFormat, line);
+                line.append('\n');
+                ringBuffer.release();
+                byte[] bytes = line.toString().getBytes(UTF_8);
+                if (!tcp) {
+                    if (bytes.length > MAX_DATAGRAM_SIZE) {
+                        stats.oversizedLines.incrementAndGet();
+                    } else {
+                        send(ByteBuffer.wrap(bytes), 1, false);
+                    }
+                } else {
+                    if (bytes.length > batch.remaining() && batchedLines > 0) {
+                        batch.flip();
+                        send(batch, batchedLines, true);
+                        batch.clear();
+                        batchedLines = 0;
+                    }
+                    if (bytes.length > batch.capacity()) {
+                        // the batch is empty, write the line on its own
+                        send(ByteBuffer.wrap(bytes), 1, true);
+                    } else {
+                        batch.put(bytes);
+                        batchedLines++;
+                    }
+                }
+                record = ringBuffer.peek();
+            }
+            if (tcp && batchedLines > 0) {
+                batch.flip();
+                send(batch, batchedLines, true);
+            }
+        }
+    }
+
+    /**
+     * NCSA common or combined log format.
+     */
+    protected void format(AccessLogRingBuffer.Record record, SimpleDateFormat dateFormat, StringBuilder line) {
+        line.append(record.remoteAddr == null ? "-" : record.remoteAddr).append(" - ")
+                .append(record.remoteUser == null ? "-" : record.remoteUser)
+                .append(" [").append(dateFormat.format(new Date(record.timestamp))).append("] \"")
+                .append(record.method).append(' ').append(record.requestUri);
+        if (record.queryString != null) {
+            line.append('?').append(record.queryString);
+        }
+        line.append(' ').append(record.protocol).append("\" ").append(record.status).append(' ');
+        if (record.bytesSent > 0) {
+            line.append(record.bytesSent);
+        } else {
+            line.append('-');
+        }
+        if ("combined".equals(pattern)) {
+            line.append(" \"").append(record.referer == null ? "-" : record.referer).append("\" \"")
+                    .append(record.userAgent == null ? "-" : record.userAgent).append('"');
+        }
+    }
+
+    /**
+     * Send the given lines, reconnecting if needed. The lines are counted as send errors if they can not be sent.
+     */
+    protected void send(ByteBuffer buffer, int lines, boolean tcp) {
+        try {
+            if (tcp) {
+                if (socketChannel == null || !socketChannel.isConnected()) {
+                    closeChannels();
+                    socketChannel = SocketChannel.open(syslogServerAddress);
+                }
+                while (buffer.hasRemaining()) {
+                    socketChannel.write(buffer);
+                }
+            } else {
+                if (datagramChannel == null) {
+                    datagramChannel = DatagramChannel.open();
+                }
+                datagramChannel.send(buffer, syslogServerAddress);
+            }
+            stats.sentLines.addAndGet(lines);
+        } catch (IOException e) {
+            if (stats.sendErrors.getAndAdd(lines) == 0) {
+                log.warn("Exception sending access log to " + syslogServerAddress + ", following errors are only counted", e);
+            }
+            closeChannels();
+        }
+    }
+
+    private void closeChannels() {
+        for (java.nio.channels.Channel channel : new java.nio.channels.Channel[]{datagramChannel, socketChannel}) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.debug("Exception closing " + channel, e);
+                }
+            }
+        }
+        datagramChannel = null;
+        socketChannel = null;
+    }
+
+    private int getFacilityCode() {
+        int code = FACILITIES.indexOf(facility.toLowerCase(Locale.ENGLISH));
+        return code == -1 ? 1 : code;
+    }
+
+    public AsyncAccessLogStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void setRequestAttributesEnabled(boolean requestAttributesEnabled) {
+        this.requestAttributesEnabled = requestAttributesEnabled;
+    }
+
+    @Override
+    public boolean getRequestAttributesEnabled() {
+        return requestAttributesEnabled;
+    }
+
+    /**
+     * @param pattern "common" or "combined"
+     */
+    public void setPattern(String pattern) {
+        this.pattern = pattern;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public void setSyslogServerHostname(String syslogServerHostname) {
+        this.syslogServerHostname = syslogServerHostname;
+    }
+
+    public String getSyslogServerHostname() {
+        return syslogServerHostname;
+    }
+
+    public void setSyslogServerPort(int syslogServerPort) {
+        this.syslogServerPort = syslogServerPort;
+    }
+
+    public int getSyslogServerPort() {
+        return syslogServerPort;
+    }
+
+    /**
+     * @param protocol "udp" or "tcp"
+     */
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * @param facility syslog facility name: "user", "local0"...
+     */
+    public void setFacility(String facility) {
+        this.facility = facility;
+    }
+
+    public String getFacility() {
+        return facility;
+    }
+
+    public void setAppName(String appName) {
+        this.appName = appName;
+    }
+
+    public String getAppName() {
+        return appName;
+    }
+
+    public void setHostname(String hostname) {
+        this.hostname = hostname;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    /**
+     * @param bufferSize number of lines of the buffer, rounded up to a power of two
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param overflowPolicy "drop" or "block"
+     */
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public String getOverflowPolicy() {
+        return overflowPolicy;
+    }
+}
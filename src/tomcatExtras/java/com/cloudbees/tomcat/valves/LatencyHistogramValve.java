@@ -0,0 +1,114 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import com.cloudbees.tomcat.metrics.RequestLatency;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Record the latency of each request in a {@link RequestLatency} histogram exposed as
+ * {@code com.cloudbees.tomcat:type=RequestLatency,host=localhost} with the p50, p90, p99, p99.9 and max of the last
+ * interval.
+ * <p/>
+ * The latency is the time spent in the following valves, filters and servlet; the asynchronous processing of a
+ * request is not included.
+ * <p/>
+ * <code><pre>
+ * &lt;Host ...&gt;
+ *     &lt;Valve className="com.cloudbees.tomcat.valves.LatencyHistogramValve" intervalInSeconds="20" /&gt;
+ * &lt;/Host&gt;
+ * </pre></code>
+ */
+public class LatencyHistogramValve extends ValveBase {
+
+    private static final Log log = LogFactory.getLog(LatencyHistogramValve.class);
+
+    private int intervalInSeconds = 20;
+
+    private volatile RequestLatency requestLatency = new RequestLatency(intervalInSeconds);
+
+    private ObjectName requestLatencyObjectName;
+
+    public LatencyHistogramValve() {
+        super(true);
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        long nanosBefore = System.nanoTime();
+        try {
+            getNext().invoke(request, response);
+        } finally {
+            requestLatency.recordNanos(System.nanoTime() - nanosBefore);
+        }
+    }
+
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            requestLatencyObjectName = new ObjectName("com.cloudbees.tomcat:type=RequestLatency,host=" + getContainer().getName());
+            mbeanServer.registerMBean(requestLatency, requestLatencyObjectName);
+        } catch (Exception e) {
+            log.warn("Exception registering the request latency MBean " + requestLatencyObjectName, e);
+            requestLatencyObjectName = null;
+        }
+        super.startInternal();
+    }
+
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+        super.stopInternal();
+        if (requestLatencyObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(requestLatencyObjectName);
+            } catch (Exception e) {
+                log.warn("Exception unregistering the request latency MBean " + requestLatencyObjectName, e);
+            }
+            requestLatencyObjectName = null;
+        }
+    }
+
+    /**
+     * @return the recorded latencies
+     */
+    public RequestLatency getRequestLatency() {
+        return requestLatency;
+    }
+
+    /**
+     * @param intervalInSeconds duration of an interval, should be the collect interval of jmxtrans-agent
+     */
+    public void setIntervalInSeconds(int intervalInSeconds) {
+        this.intervalInSeconds = intervalInSeconds;
+        this.requestLatency = new RequestLatency(intervalInSeconds);
+    }
+
+    public int getIntervalInSeconds() {
+        return intervalInSeconds;
+    }
+}
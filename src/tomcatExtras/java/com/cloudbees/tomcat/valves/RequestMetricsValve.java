@@ -0,0 +1,372 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import com.cloudbees.tomcat.metrics.RouteMetrics;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count the requests, errors (status 5xx or exception), processing time and max processing time per route, each route
+ * being exposed as a {@code com.cloudbees.tomcat:type=RequestMetrics,host=localhost,route="..."} MBean.
+ * <p/>
+ * Routes are matched on the path of the request within its context, as servlet mappings:
+ * <ul>
+ * <li>{@code patterns}: comma separated list of exact ({@code /login}), prefix ({@code /api/users/*}) and extension
+ * ({@code *.jsp}) patterns, the exact patterns win over the longest prefix that wins over the extensions</li>
+ * <li>{@code topPrefixes}: the requests that match no pattern are grouped by their first {@code prefixDepth} path
+ * segments ({@code /api/orders}). The most requested prefixes of each background processing period become routes,
+ * up to {@code topPrefixes} of them. Once this limit is reached, an automatic route is replaced by a prefix that
+ * received more requests than it during the period: the automatic routes follow the traffic of the application
+ * instead of keeping the first prefixes ever requested</li>
+ * <li>the other requests are counted in the {@code other} route</li>
+ * </ul>
+ * The memory is bounded with high cardinality URIs: at most {@code topPrefixes} automatic routes and
+ * {@code 10 * topPrefixes} candidate prefixes.
+ * <p/>
+ * <code><pre>
+ * &lt;Host ...&gt;
+ *     &lt;Valve className="com.cloudbees.tomcat.valves.RequestMetricsValve" patterns="/api/users/*,*.jsp" topPrefixes="20" /&gt;
+ * &lt;/Host&gt;
+ * </pre></code>
+ */
+public class RequestMetricsValve extends ValveBase {
+
+    public static final String OTHER_ROUTE = "other";
+
+    private static final Log log = LogFactory.getLog(RequestMetricsValve.class);
+
+    private String patterns = "";
+    private int topPrefixes = 20;
+    private int prefixDepth = 2;
+    private int stripes = Runtime.getRuntime().availableProcessors() * 2;
+
+    private volatile Map<String, RouteMetrics> exactRoutes = Collections.emptyMap();
+    /**
+     * longest prefix first
+     */
+    private volatile List<Map.Entry<String, RouteMetrics>> prefixRoutes = Collections.emptyList();
+    private volatile Map<String, RouteMetrics> extensionRoutes = Collections.emptyMap();
+    private final ConcurrentMap<String, RouteMetrics> topPrefixRoutes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> candidatePrefixes = new ConcurrentHashMap<>();
+    /**
+     * request count of each automatic route at the previous background processing, only accessed by
+     * {@link #backgroundProcess()}
+     */
+    private final Map<String, Long> topPrefixRequestCounts = new HashMap<>();
+    private volatile RouteMetrics otherRoute = new RouteMetrics(OTHER_ROUTE, 1);
+
+    private final List<ObjectName> registeredObjectNames = new ArrayList<>();
+
+    public RequestMetricsValve() {
+        super(true);
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        long nanosBefore = System.nanoTime();
+        boolean error = true;
+        try {
+            getNext().invoke(request, response);
+            error = response.getStatus() >= 500;
+        } finally {
+            getRoute(getPath(request)).record((System.nanoTime() - nanosBefore) / 1000, error);
+        }
+    }
+
+    /**
+     * @return the path of the request within its context
+     */
+    protected String getPath(Request request) {
+        String uri = request.getDecodedRequestURI();
+        if (uri == null) {
+            return "/";
+        }
+        String contextPath = request.getContextPath();
+        if (contextPath != null && !contextPath.isEmpty() && uri.startsWith(contextPath)) {
+            uri = uri.substring(contextPath.length());
+        }
+        return uri.isEmpty() ? "/" : uri;
+    }
+
+    protected RouteMetrics getRoute(String path) {
+        RouteMetrics route = exactRoutes.get(path);
+        if (route != null) {
+            return route;
+        }
+        for (Map.Entry<String, RouteMetrics> prefixRoute : prefixRoutes) {
+            String prefix = prefixRoute.getKey();
+            if (path.startsWith(prefix) && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/')) {
+                return prefixRoute.getValue();
+            }
+        }
+        if (!extensionRoutes.isEmpty()) {
+            int lastSlash = path.lastIndexOf('/');
+            int lastDot = path.lastIndexOf('.');
+            if (lastDot > lastSlash) {
+                route = extensionRoutes.get(path.substring(lastDot + 1));
+                if (route != null) {
+                    return route;
+                }
+            }
+        }
+        if (topPrefixes > 0) {
+            String prefix = getPrefix(path);
+            route = topPrefixRoutes.get(prefix);
+            if (route != null) {
+                return route;
+            }
+            AtomicLong candidate = candidatePrefixes.get(prefix);
+            if (candidate == null && candidatePrefixes.size() < 10 * topPrefixes) {
+                AtomicLong newCandidate = new AtomicLong();
+                candidate = candidatePrefixes.putIfAbsent(prefix, newCandidate);
+                if (candidate == null) {
+                    candidate = newCandidate;
+                }
+            }
+            if (candidate != null) {
+                candidate.incrementAndGet();
+            }
+        }
+        return otherRoute;
+    }
+
+    /**
+     * @return the first {@code prefixDepth} segments of the path
+     */
+    protected String getPrefix(String path) {
+        int end = 0;
+        for (int segment = 0; segment < prefixDepth; segment++) {
+            end = path.indexOf('/', end + 1);
+            if (end == -1) {
+                return path;
+            }
+        }
+        return path.substring(0, end);
+    }
+
+    /**
+     * Promote the most requested candidate prefixes of the period to routes, replacing the least requested automatic
+     * routes of the period when there are already {@code topPrefixes} of them.
+     */
+    @Override
+    public void backgroundProcess() {
+        super.backgroundProcess();
+        if (topPrefixes <= 0) {
+            return;
+        }
+        // requests of each automatic route during the period
+        Map<String, Long> routeRequests = new HashMap<>();
+        for (RouteMetrics route : topPrefixRoutes.values()) {
+            long requestCount = route.getRequestCount();
+            Long previousRequestCount = topPrefixRequestCounts.put(route.getRoute(), requestCount);
+            routeRequests.put(route.getRoute(), requestCount - (previousRequestCount == null ? 0 : previousRequestCount));
+        }
+        if (candidatePrefixes.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<String, AtomicLong>> candidates = new ArrayList<>(candidatePrefixes.entrySet());
+        candidatePrefixes.clear();
+        Collections.sort(candidates, new Comparator<Map.Entry<String, AtomicLong>>() {
+            @Override
+            public int compare(Map.Entry<String, AtomicLong> c1, Map.Entry<String, AtomicLong> c2) {
+                return Long.compare(c2.getValue().get(), c1.getValue().get());
+            }
+        });
+        for (Map.Entry<String, AtomicLong> candidate : candidates) {
+            if (topPrefixRoutes.size() >= topPrefixes) {
+                String leastRequestedRoute = null;
+                for (Map.Entry<String, Long> route : routeRequests.entrySet()) {
+                    if (leastRequestedRoute == null || route.getValue() < routeRequests.get(leastRequestedRoute)) {
+                        leastRequestedRoute = route.getKey();
+                    }
+                }
+                if (leastRequestedRoute == null || candidate.getValue().get() <= routeRequests.get(leastRequestedRoute)) {
+                    // candidates are sorted, the next ones are not more requested
+                    break;
+                }
+                routeRequests.remove(leastRequestedRoute);
+                topPrefixRequestCounts.remove(leastRequestedRoute);
+                RouteMetrics evictedRoute = topPrefixRoutes.remove(leastRequestedRoute);
+                if (evictedRoute != null) {
+                    unregisterMBean(evictedRoute);
+                }
+            }
+            RouteMetrics route = new RouteMetrics(candidate.getKey(), stripes);
+            if (topPrefixRoutes.putIfAbsent(candidate.getKey(), route) == null) {
+                registerMBean(route);
+                routeRequests.put(candidate.getKey(), candidate.getValue().get());
+                topPrefixRequestCounts.put(candidate.getKey(), 0L);
+            }
+        }
+    }
+
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+        initRoutes();
+        super.startInternal();
+    }
+
+    /**
+     * Create and register the routes of the {@code patterns} and the {@code other} route.
+     */
+    protected void initRoutes() {
+        Map<String, RouteMetrics> exactRoutes = new HashMap<>();
+        Map<String, RouteMetrics> prefixRoutes = new TreeMap<>(new Comparator<String>() {
+            @Override
+            public int compare(String prefix1, String prefix2) {
+                int result = Integer.compare(prefix2.length(), prefix1.length());
+                return result == 0 ? prefix1.compareTo(prefix2) : result;
+            }
+        });
+        Map<String, RouteMetrics> extensionRoutes = new HashMap<>();
+        for (String pattern : patterns.split(",")) {
+            pattern = pattern.trim();
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            RouteMetrics route = new RouteMetrics(pattern, stripes);
+            if (pattern.startsWith("*.")) {
+                extensionRoutes.put(pattern.substring(2), route);
+            } else if (pattern.endsWith("/*")) {
+                prefixRoutes.put(pattern.substring(0, pattern.length() - 2), route);
+            } else {
+                exactRoutes.put(pattern, route);
+            }
+            registerMBean(route);
+        }
+        this.exactRoutes = exactRoutes;
+        this.prefixRoutes = new ArrayList<>(prefixRoutes.entrySet());
+        this.extensionRoutes = extensionRoutes;
+        this.otherRoute = new RouteMetrics(OTHER_ROUTE, stripes);
+        registerMBean(otherRoute);
+    }
+
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+        super.stopInternal();
+        unregisterMBeans();
+    }
+
+    protected void unregisterMBeans() {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        synchronized (registeredObjectNames) {
+            for (ObjectName objectName : registeredObjectNames) {
+                try {
+                    mbeanServer.unregisterMBean(objectName);
+                } catch (Exception e) {
+                    log.warn("Exception unregistering request metrics MBean " + objectName, e);
+                }
+            }
+            registeredObjectNames.clear();
+        }
+        topPrefixRoutes.clear();
+        topPrefixRequestCounts.clear();
+        candidatePrefixes.clear();
+    }
+
+    protected ObjectName getObjectName(RouteMetrics route) throws MalformedObjectNameException {
+        return new ObjectName("com.cloudbees.tomcat:type=RequestMetrics,host=" + getContainer().getName() +
+                ",route=" + ObjectName.quote(route.getRoute()));
+    }
+
+    protected void unregisterMBean(RouteMetrics route) {
+        ObjectName objectName = null;
+        try {
+            objectName = getObjectName(route);
+            synchronized (registeredObjectNames) {
+                if (registeredObjectNames.remove(objectName)) {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Exception unregistering request metrics MBean " + objectName, e);
+        }
+    }
+
+    protected void registerMBean(RouteMetrics route) {
+        ObjectName objectName = null;
+        try {
+            objectName = getObjectName(route);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(route, objectName);
+            synchronized (registeredObjectNames) {
+                registeredObjectNames.add(objectName);
+            }
+        } catch (Exception e) {
+            log.warn("Exception registering request metrics MBean " + objectName, e);
+        }
+    }
+
+    /**
+     * @param patterns comma separated list of exact ({@code /login}), prefix ({@code /api/*}) and extension
+     *                 ({@code *.jsp}) patterns
+     */
+    public void setPatterns(String patterns) {
+        this.patterns = patterns == null ? "" : patterns;
+    }
+
+    public String getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * @param topPrefixes max number of automatic routes, 0 to disable them
+     */
+    public void setTopPrefixes(int topPrefixes) {
+        this.topPrefixes = topPrefixes;
+    }
+
+    public int getTopPrefixes() {
+        return topPrefixes;
+    }
+
+    /**
+     * @param prefixDepth number of path segments of the automatic routes
+     */
+    public void setPrefixDepth(int prefixDepth) {
+        this.prefixDepth = prefixDepth;
+    }
+
+    public int getPrefixDepth() {
+        return prefixDepth;
+    }
+
+    /**
+     * @param stripes number of stripes of the counters of each route, twice the number of processors by default
+     */
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.jdbc;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class DataSourceQueryStatsTest {
+
+    @Test
+    public void query_counters() {
+        DataSourceQueryStats stats = new DataSourceQueryStats("jdbc/mydb");
+        stats.query(10, false);
+        stats.query(1500, true);
+        stats.query(20, false);
+        stats.failedQuery();
+
+        assertThat(stats.getQueryCount(), is(3L));
+        assertThat(stats.getSlowQueryCount(), is(1L));
+        assertThat(stats.getFailedQueryCount(), is(1L));
+        assertThat(stats.getQueryTime(), is(1530L));
+    }
+
+    @Test
+    public void max_query_time_is_not_reset_on_read() {
+        DataSourceQueryStats stats = new DataSourceQueryStats("jdbc/mydb");
+        stats.query(10, false);
+        stats.query(1500, true);
+
+        assertThat(stats.getMaxQueryTime(), is(1500L));
+        assertThat(stats.getMaxQueryTime(), is(1500L));
+
+        stats.resetMaxQueryTime();
+        assertThat(stats.getMaxQueryTime(), is(0L));
+        stats.query(20, false);
+        assertThat(stats.getMaxQueryTime(), is(20L));
+    }
+}
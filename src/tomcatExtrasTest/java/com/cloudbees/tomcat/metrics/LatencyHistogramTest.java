@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_are_contiguous_with_bounded_error() {
+        int previousIndex = -1;
+        for (long value = 0; value < 1000000; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertThat(index, either(is(previousIndex)).or(is(previousIndex + 1)));
+            assertThat(LatencyHistogram.highestValueOf(index), greaterThanOrEqualTo(value));
+            assertThat((double) LatencyHistogram.highestValueOf(index), lessThanOrEqualTo(value * 1.0625 + 1));
+            previousIndex = index;
+        }
+        assertThat(LatencyHistogram.bucketIndex(Long.MAX_VALUE), is(LatencyHistogram.BUCKETS - 1));
+        assertThat(LatencyHistogram.highestValueOf(LatencyHistogram.BUCKETS - 1), is(LatencyHistogram.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles_of_the_previous_interval() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.rotate();
+
+        assertThat(snapshot.getCount(), is(1000L));
+        assertThat(snapshot.getMax(), is(1000000L));
+        assertThat((double) snapshot.getValueAtPercentile(50), closeTo(500000, 500000 * 0.0625));
+        assertThat((double) snapshot.getValueAtPercentile(99), closeTo(990000, 990000 * 0.0625));
+        assertThat(snapshot.getValueAtPercentile(100), is(1000000L));
+
+        LatencyHistogram.Snapshot emptySnapshot = histogram.rotate();
+        assertThat(emptySnapshot.getCount(), is(0L));
+        assertThat(emptySnapshot.getValueAtPercentile(99.9), is(0L));
+    }
+
+    @Test
+    public void no_value_lost_while_rotating() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong recorded = new AtomicLong();
+        int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    while (running.get()) {
+                        histogram.record(count % 10000);
+                        count++;
+                    }
+                    recorded.addAndGet(count);
+                    done.countDown();
+                }
+            }.start();
+        }
+        long snapshotsCount = 0;
+        long deadline = System.currentTimeMillis() + 500;
+        while (System.currentTimeMillis() < deadline) {
+            snapshotsCount += histogram.rotate().getCount();
+        }
+        running.set(false);
+        done.await();
+        snapshotsCount += histogram.rotate().getCount();
+
+        assertThat(snapshotsCount, is(recorded.get()));
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardHost;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class AsyncSyslogAccessLogValveTest {
+
+    private DatagramSocket syslogServer;
+    private Request request;
+    private Response response;
+
+    @Before
+    public void before() throws Exception {
+        syslogServer = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        syslogServer.setSoTimeout(5000);
+
+        org.apache.coyote.Request coyoteRequest = new org.apache.coyote.Request();
+        coyoteRequest.method().setString("GET");
+        coyoteRequest.requestURI().setString("/api/users/1");
+        coyoteRequest.queryString().setString("format=json");
+        coyoteRequest.protocol().setString("HTTP/1.1");
+        coyoteRequest.remoteAddr().setString("10.0.0.1");
+        MessageBytes userAgent = coyoteRequest.getMimeHeaders().addValue("User-Agent");
+        userAgent.setString("curl/7.30");
+        request = new Request();
+        request.setCoyoteRequest(coyoteRequest);
+        response = new Response() {
+            @Override
+            public int getStatus() {
+                return 404;
+            }
+
+            @Override
+            public long getBytesWritten(boolean flush) {
+                return 0;
+            }
+        };
+    }
+
+    @After
+    public void after() {
+        syslogServer.close();
+    }
+
+    private AsyncSyslogAccessLogValve newValve() {
+        AsyncSyslogAccessLogValve valve = new AsyncSyslogAccessLogValve();
+        StandardHost host = new StandardHost();
+        host.setName("localhost");
+        valve.setContainer(host);
+        valve.setSyslogServerHostname("127.0.0.1");
+        valve.setSyslogServerPort(syslogServer.getLocalPort());
+        valve.setHostname("myhost");
+        valve.setFacility("local0");
+        return valve;
+    }
+
+    @Test
+    public void send_combined_lines_over_udp() throws Exception {
+        AsyncSyslogAccessLogValve valve = newValve();
+        valve.startSender();
+        try {
+            valve.log(request, response, 12);
+            valve.log(request, response, 13);
+
+            for (int i = 0; i < 2; i++) {
+                DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+                syslogServer.receive(packet);
+                String line = new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+                // local0.info
+                assertThat(line, startsWith("<134>"));
+                assertThat(line, containsString(" myhost access_log: 10.0.0.1 - - ["));
+                assertThat(line, endsWith("] \"GET /api/users/1?format=json HTTP/1.1\" 404 - \"-\" \"curl/7.30\"\n"));
+            }
+        } finally {
+            valve.stopSender();
+        }
+        assertThat(valve.getStats().getSentLines(), is(2L));
+        assertThat(valve.getStats().getDroppedLines(), is(0L));
+    }
+
+    @Test
+    public void request_threads_do_not_wait_for_a_slow_syslog_server() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncSyslogAccessLogValve valve = new AsyncSyslogAccessLogValve() {
+            @Override
+            protected void send(ByteBuffer buffer, int lines, boolean tcp) {
+                sending.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.send(buffer, lines, tcp);
+            }
+        };
+        StandardHost host = new StandardHost();
+        host.setName("localhost");
+        valve.setContainer(host);
+        valve.setSyslogServerHostname("127.0.0.1");
+        valve.setSyslogServerPort(syslogServer.getLocalPort());
+        valve.setBufferSize(64);
+        valve.startSender();
+        try {
+            // the sender is stuck on the first line
+            valve.log(request, response, 10);
+            assertThat(sending.await(5, TimeUnit.SECONDS), is(true));
+
+            for (int i = 0; i < 1000; i++) {
+                valve.log(request, response, 10);
+            }
+
+            assertThat(valve.getStats().getQueueDepth(), is(64));
+            assertThat(valve.getStats().getDroppedLines(), is(1000L - 64));
+            assertThat(valve.getStats().getSentLines(), is(0L));
+        } finally {
+            release.countDown();
+            valve.stopSender();
+        }
+        assertThat(valve.getStats().getQueueDepth(), is(0));
+        assertThat(valve.getStats().getSentLines() + valve.getStats().getSendErrors(), is(1L + 64));
+    }
+
+    @Test
+    public void lines_bigger_than_a_batch_are_not_truncated_over_tcp() throws Exception {
+        StringBuilder requestUri = new StringBuilder("/");
+        while (requestUri.length() < 100 * 1024) {
+            requestUri.append("abcdefghij");
+        }
+        request.getCoyoteRequest().requestURI().setString(requestUri.toString());
+
+        try (ServerSocket tcpSyslogServer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            tcpSyslogServer.setSoTimeout(5000);
+            AsyncSyslogAccessLogValve valve = newValve();
+            valve.setProtocol("tcp");
+            valve.setSyslogServerPort(tcpSyslogServer.getLocalPort());
+            valve.startSender();
+            try {
+                valve.log(request, response, 10);
+                try (Socket socket = tcpSyslogServer.accept()) {
+                    socket.setSoTimeout(5000);
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                    String line = reader.readLine();
+                    assertThat(line, containsString(" \"GET " + requestUri + "?format=json HTTP/1.1\" 404 "));
+                    assertThat(line, endsWith("\"curl/7.30\""));
+                }
+            } finally {
+                valve.stopSender();
+            }
+            assertThat(valve.getStats().getSentLines(), is(1L));
+            assertThat(valve.getStats().getOversizedLines(), is(0L));
+        }
+    }
+}
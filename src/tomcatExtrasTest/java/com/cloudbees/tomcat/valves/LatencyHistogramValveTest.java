@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * The overhead of the valve is measured by {@code LatencyHistogramValveBenchmark} ({@code gradle benchmark}).
+ */
+public class LatencyHistogramValveTest {
+
+    @Test
+    public void records_the_latency_of_the_next_valves() throws Exception {
+        LatencyHistogramValve valve = new LatencyHistogramValve();
+        // rotate on each read
+        valve.setIntervalInSeconds(0);
+        valve.setNext(new ValveBase() {
+            @Override
+            public void invoke(Request request, Response response) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2);
+                while (System.nanoTime() < deadline) {
+                    // busy wait
+                }
+            }
+        });
+
+        // each read rotates the histogram, one read per batch of requests
+        for (int i = 0; i < 10; i++) {
+            valve.invoke(new Request(), new Response());
+        }
+        assertThat(valve.getRequestLatency().getCount(), is(10L));
+
+        for (int i = 0; i < 10; i++) {
+            valve.invoke(new Request(), new Response());
+        }
+        assertThat(valve.getRequestLatency().getP50(), greaterThanOrEqualTo(1.5));
+    }
+
+    @Test
+    public void records_the_latency_of_failed_requests() throws Exception {
+        LatencyHistogramValve valve = new LatencyHistogramValve();
+        valve.setIntervalInSeconds(0);
+        valve.setNext(new ValveBase() {
+            @Override
+            public void invoke(Request request, Response response) throws ServletException {
+                throw new ServletException("expected");
+            }
+        });
+
+        try {
+            valve.invoke(new Request(), new Response());
+            fail();
+        } catch (ServletException e) {
+            // expected
+        }
+
+        assertThat(valve.getRequestLatency().getCount(), is(1L));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010-2013, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import com.cloudbees.tomcat.metrics.RouteMetrics;
+import org.apache.catalina.core.StandardHost;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class RequestMetricsValveTest {
+
+    private RequestMetricsValve valve;
+
+    @Before
+    public void before() {
+        StandardHost host = new StandardHost();
+        host.setName("localhost");
+        valve = new RequestMetricsValve();
+        valve.setContainer(host);
+        valve.setPatterns("/login, /api/*, /api/users/*, *.jsp");
+        valve.setTopPrefixes(2);
+        valve.setPrefixDepth(1);
+        valve.setStripes(4);
+        valve.initRoutes();
+    }
+
+    @After
+    public void after() {
+        valve.unregisterMBeans();
+    }
+
+    @Test
+    public void match_patterns_as_servlet_mappings() {
+        assertThat(valve.getRoute("/login").getRoute(), is("/login"));
+        assertThat(valve.getRoute("/api").getRoute(), is("/api/*"));
+        assertThat(valve.getRoute("/api/orders/1").getRoute(), is("/api/*"));
+        assertThat(valve.getRoute("/api/users/1").getRoute(), is("/api/users/*"));
+        assertThat(valve.getRoute("/api/users/index.jsp").getRoute(), is("/api/users/*"));
+        assertThat(valve.getRoute("/admin/index.jsp").getRoute(), is("*.jsp"));
+        assertThat(valve.getRoute("/apix").getRoute(), is(RequestMetricsValve.OTHER_ROUTE));
+    }
+
+    @Test
+    public void promote_top_prefixes_with_bounded_routes() throws Exception {
+        for (int i = 0; i < 10000; i++) {
+            // high cardinality
+            valve.getRoute("/static/" + i + ".png");
+        }
+        for (int i = 0; i < 100; i++) {
+            valve.getRoute("/img/" + i);
+            valve.getRoute("/unique-" + i);
+        }
+        valve.backgroundProcess();
+
+        assertThat(valve.getRoute("/static/logo.png").getRoute(), is("/static"));
+        assertThat(valve.getRoute("/img/logo.png").getRoute(), is("/img"));
+        assertThat(valve.getRoute("/other/logo.png").getRoute(), is(RequestMetricsValve.OTHER_ROUTE));
+        assertThat(ManagementFactory.getPlatformMBeanServer().queryNames(
+                new ObjectName("com.cloudbees.tomcat:type=RequestMetrics,host=localhost,route=*"), null).size(), is(4 + 1 + 2));
+    }
+
+    @Test
+    public void striped_counters() {
+        RouteMetrics route = valve.getRoute("/login");
+        route.record(1000, false);
+        route.record(3000, true);
+
+        assertThat(route.getRequestCount(), is(2L));
+        assertThat(route.getErrorCount(), is(1L));
+        assertThat(route.getProcessingTime(), is(4L));
+        assertThat(route.getMaxTime(), is(3L));
+        // not reset on read
+        assertThat(route.getMaxTime(), is(3L));
+        route.resetMaxTime();
+        assertThat(route.getMaxTime(), is(0L));
+    }
+
+    @Test
+    public void least_requested_top_prefixes_are_replaced() throws Exception {
+        valve.setTopPrefixes(2);
+        for (int i = 0; i < 10; i++) {
+            valve.getRoute("/a/" + i);
+            valve.getRoute("/b/" + i);
+        }
+        valve.getRoute("/c/1");
+        valve.backgroundProcess();
+        assertThat(valve.getRoute("/a/1").getRoute(), is("/a"));
+        assertThat(valve.getRoute("/b/1").getRoute(), is("/b"));
+        assertThat(valve.getRoute("/c/1").getRoute(), is(RequestMetricsValve.OTHER_ROUTE));
+
+        // next period: "/c" is more requested than "/b"
+        for (int i = 0; i < 10; i++) {
+            valve.getRoute("/a/" + i).record(1000, false);
+            valve.getRoute("/c/" + i);
+        }
+        valve.getRoute("/b/1").record(1000, false);
+        valve.backgroundProcess();
+
+        assertThat(valve.getRoute("/a/1").getRoute(), is("/a"));
+        assertThat(valve.getRoute("/c/1").getRoute(), is("/c"));
+        assertThat(valve.getRoute("/b/1").getRoute(), is(RequestMetricsValve.OTHER_ROUTE));
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName("com.cloudbees.tomcat:type=RequestMetrics,host=localhost,route=\"/b\"")), is(false));
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName("com.cloudbees.tomcat:type=RequestMetrics,host=localhost,route=\"/c\"")), is(true));
+    }
+}